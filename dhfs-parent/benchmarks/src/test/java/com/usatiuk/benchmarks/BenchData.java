@@ -0,0 +1,15 @@
+package com.usatiuk.benchmarks;
+
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JObjectKey;
+
+public record BenchData(JObjectKey key, long counter, byte[] payload) implements JData {
+    public BenchData withCounter(long counter) {
+        return new BenchData(key, counter, payload);
+    }
+
+    @Override
+    public int estimateSize() {
+        return payload.length + 64;
+    }
+}
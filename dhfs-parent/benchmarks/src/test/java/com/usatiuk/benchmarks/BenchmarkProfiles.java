@@ -0,0 +1,35 @@
+package com.usatiuk.benchmarks;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BenchmarkProfiles {
+    private static Map<String, String> withTempRoot(String persistence) {
+        try {
+            var ret = new HashMap<String, String>();
+            ret.put("dhfs.objects.persistence.root", Files.createTempDirectory("dhfs-bench").resolve("objs").toString());
+            ret.put("dhfs.objects.persistence", persistence);
+            return ret;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static class MemoryProfile implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return withTempRoot("memory");
+        }
+    }
+
+    public static class LmdbProfile implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return withTempRoot("lmdb");
+        }
+    }
+}
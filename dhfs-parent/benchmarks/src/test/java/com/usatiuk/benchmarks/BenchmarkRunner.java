@@ -0,0 +1,46 @@
+package com.usatiuk.benchmarks;
+
+import org.junit.jupiter.api.Assertions;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+/**
+ * Runs JMH benchmarks inside the current JVM, so that they can use the beans of the running Quarkus application.
+ * The results are written as JSON to the directory from the dhfs.benchmarks.results property,
+ * the benchmarks can be filtered with a regex in dhfs.benchmarks.include.
+ */
+public class BenchmarkRunner {
+    public static void run(String name, Class<?>... benchmarks) throws RunnerException {
+        var include = System.getProperty("dhfs.benchmarks.include", ".*");
+        var resultsDir = new File(System.getProperty("dhfs.benchmarks.results", "target/jmh"));
+        resultsDir.mkdirs();
+
+        var options = new OptionsBuilder()
+                .forks(0)
+                .warmupIterations(Integer.getInteger("dhfs.benchmarks.warmup", 3))
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(Integer.getInteger("dhfs.benchmarks.iterations", 5))
+                .measurementTime(TimeValue.seconds(1))
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(resultsDir, name + ".json").getPath());
+
+        // JMH includes are alternatives, so the filter has to be a part of each of them
+        for (var b : benchmarks)
+            options.include("^(?=.*(?:" + include + "))" + Pattern.quote(b.getName()) + "\\.");
+
+        try {
+            var results = new Runner(options.build()).run();
+            Assertions.assertFalse(results.isEmpty());
+        } catch (NoBenchmarksException e) {
+            // Everything was filtered out
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.usatiuk.benchmarks;
+
+import com.usatiuk.utils.DelayedBlockingQueue;
+import com.usatiuk.utils.HashSetDelayedBlockingQueue;
+import com.usatiuk.utils.ShardedDelayedBlockingQueue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Producers and consumers hammering one delayed queue, like the invalidation and autosync threads do.
+ * The keys repeat, so a part of the adds hits the deduplication.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DelayedQueueBenchmark {
+    @Param({"hashset", "sharded"})
+    String impl;
+    @Param({"65536"})
+    int keys;
+
+    private DelayedBlockingQueue<Integer> _queue;
+    private final AtomicInteger _threadIds = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Producer {
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(DelayedQueueBenchmark bench) {
+            // Spread the threads over the key space
+            next = bench._threadIds.getAndIncrement() * 7919;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        _queue = switch (impl) {
+            case "hashset" -> new HashSetDelayedBlockingQueue<>(0);
+            case "sharded" -> new ShardedDelayedBlockingQueue<>(0);
+            default -> throw new IllegalArgumentException(impl);
+        };
+    }
+
+    private boolean add(Producer p) {
+        return _queue.add(p.next++ % keys);
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(4)
+    public boolean singleAdd(Producer p) {
+        return add(p);
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(4)
+    public Integer singleTryGet() {
+        return _queue.tryGet();
+    }
+
+    @Benchmark
+    @Group("batch")
+    @GroupThreads(4)
+    public boolean batchAdd(Producer p) {
+        return add(p);
+    }
+
+    @Benchmark
+    @Group("batch")
+    @GroupThreads(4)
+    public void batchGetAll(Blackhole bh) {
+        bh.consume(_queue.getAll());
+    }
+
+    @Benchmark
+    @Group("producers")
+    @GroupThreads(8)
+    public boolean producersAdd(Producer p) {
+        return add(p);
+    }
+}
@@ -0,0 +1,67 @@
+package com.usatiuk.benchmarks;
+
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.iterators.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scans over several layered sources, like the ones a transaction iterator merges:
+ * every key is present in a random subset of the sources, some of the entries are tombstones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IteratorBenchmark {
+    @Param({"1", "4", "16"})
+    int sources;
+    @Param({"10000", "200000"})
+    int keys;
+    @Param({"0.1"})
+    double tombstoneRatio;
+
+    private final List<TreeMap<JObjectKey, MaybeTombstone<Long>>> _maps = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var random = new Random(1);
+        for (int i = 0; i < sources; i++)
+            _maps.add(new TreeMap<>());
+        for (long i = 0; i < keys; i++) {
+            var key = JObjectKey.of(String.format("%010d", i));
+            for (var map : _maps) {
+                if (random.nextInt(sources) != 0 && map != _maps.getLast()) continue;
+                map.put(key, random.nextDouble() < tombstoneRatio ? new TombstoneImpl<>() : new DataWrapper<>(i));
+            }
+        }
+    }
+
+    private List<CloseableKvIterator<JObjectKey, MaybeTombstone<Long>>> iterators() {
+        var ret = new ArrayList<CloseableKvIterator<JObjectKey, MaybeTombstone<Long>>>(_maps.size());
+        for (var map : _maps)
+            ret.add(new NavigableMapKvIterator<>(map, IteratorStart.GE, JObjectKey.first()));
+        return ret;
+    }
+
+    @Benchmark
+    public void mergingScan(Blackhole bh) {
+        try (var it = new MergingKvIterator<>(IteratorStart.GE, JObjectKey.first(), iterators())) {
+            while (it.hasNext())
+                bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public void tombstoneSkippingScan(Blackhole bh) {
+        try (var it = new TombstoneSkippingIterator<>(IteratorStart.GE, JObjectKey.first(), iterators())) {
+            while (it.hasNext())
+                bh.consume(it.next());
+        }
+    }
+}
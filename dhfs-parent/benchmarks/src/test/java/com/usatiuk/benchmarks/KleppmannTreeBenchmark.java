@@ -0,0 +1,90 @@
+package com.usatiuk.benchmarks;
+
+import com.usatiuk.kleppmanntree.KleppmannTree;
+import com.usatiuk.kleppmanntree.TreeSimulation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * In-memory peers doing random creates, moves and deletes in one tree and exchanging the ops,
+ * with {@link TreeSimulation}. Every step each peer does one op, so the ops per second are the score times the peers.
+ * The delay makes the ops arrive out of order, so that the peers have to undo and redo a part of the log.
+ * <p>
+ * Every iteration starts from an empty tree, and at its end all the ops are delivered
+ * and the peers are checked to have the same tree, which is not measured.
+ * The largest undo depth and log size of the iteration are logged before that.
+ * <p>
+ * Not run with the utils benchmarks yet, as the tree doesn't converge with several peers,
+ * see {@code KleppmanTreeSimulationTest}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KleppmannTreeBenchmark {
+    // The dummy parents for the ops that arrive before their parents are logged as severe
+    private static final Logger TREE_LOGGER = Logger.getLogger(KleppmannTree.class.getName());
+    private static final Logger LOGGER = Logger.getLogger(KleppmannTreeBenchmark.class.getName());
+
+    @Param({"2", "8"})
+    int peers;
+    @Param({"0", "8"})
+    int maxDelay;
+    @Param({"false", "true"})
+    boolean batch;
+
+    private TreeSimulation _sim;
+    private long _seed = 0;
+    // The totals of the simulation after the previous step
+    private long _applied;
+    private long _undone;
+
+    /**
+     * Ops applied and log entries undone in the iteration, over all the peers.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long applied;
+        public long undone;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            applied = 0;
+            undone = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setupLogging() {
+        TREE_LOGGER.setLevel(java.util.logging.Level.OFF);
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        // Names practically never repeat, so the time is not spent on resolving name conflicts
+        _sim = new TreeSimulation(new TreeSimulation.Config(peers, 1 << 20, maxDelay, batch, ++_seed));
+        _applied = 0;
+        _undone = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void check() {
+        var stats = _sim.stats();
+        LOGGER.info("Steps: " + stats.steps() + ", max undone: " + stats.maxUndone() + ", max log size: " + stats.maxLogSize());
+        _sim.deliverAll();
+        if (!_sim.converged())
+            throw new IllegalStateException("Peers did not converge with seed " + _seed);
+    }
+
+    @Benchmark
+    public void step(Counters counters) {
+        _sim.step();
+        var stats = _sim.stats();
+        counters.applied += stats.applied() - _applied;
+        counters.undone += stats.undone() - _undone;
+        _applied = stats.applied();
+        _undone = stats.undone();
+    }
+}
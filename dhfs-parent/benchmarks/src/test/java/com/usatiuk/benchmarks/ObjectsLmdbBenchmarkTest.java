@@ -0,0 +1,16 @@
+package com.usatiuk.benchmarks;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+@QuarkusTest
+@TestProfile(BenchmarkProfiles.LmdbProfile.class)
+@EnabledIfSystemProperty(named = "dhfs.benchmarks", matches = "true")
+public class ObjectsLmdbBenchmarkTest {
+    @Test
+    void run() throws Exception {
+        BenchmarkRunner.run("lmdb", TransactionBenchmark.class, WritebackBenchmark.class);
+    }
+}
@@ -0,0 +1,17 @@
+package com.usatiuk.benchmarks;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+@QuarkusTest
+@TestProfile(BenchmarkProfiles.MemoryProfile.class)
+@EnabledIfSystemProperty(named = "dhfs.benchmarks", matches = "true")
+public class ObjectsMemoryBenchmarkTest {
+    @Test
+    void run() throws Exception {
+        BenchmarkRunner.run("memory", IteratorBenchmark.class, SerializerBenchmark.class,
+                TransactionBenchmark.class, WritebackBenchmark.class);
+    }
+}
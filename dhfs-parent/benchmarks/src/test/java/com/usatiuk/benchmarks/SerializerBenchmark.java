@@ -0,0 +1,47 @@
+package com.usatiuk.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.objects.JDataVersionedWrapperImpl;
+import com.usatiuk.objects.JDataVersionedWrapperSerializer;
+import com.usatiuk.objects.JObjectKey;
+import io.quarkus.arc.Arc;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization round-trips of versioned objects, with the serializer configured for the application.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializerBenchmark {
+    @Param({"128", "65536"})
+    int payloadSize;
+
+    private JDataVersionedWrapperSerializer _serializer;
+    private JDataVersionedWrapperImpl _wrapper;
+    private ByteString _serialized;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        _serializer = Arc.container().instance(JDataVersionedWrapperSerializer.class).get();
+        _wrapper = new JDataVersionedWrapperImpl(new BenchData(JObjectKey.of("ser-bench"), 1, new byte[payloadSize]), 1);
+        _serialized = _serializer.serialize(_wrapper);
+    }
+
+    @Benchmark
+    public ByteString serialize() {
+        return _serializer.serialize(_wrapper);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return _serializer.deserialize(_serialized.asReadOnlyByteBuffer()).data();
+    }
+
+    @Benchmark
+    public Object roundTrip() {
+        return _serializer.deserialize(_serializer.serialize(_wrapper).asReadOnlyByteBuffer()).data();
+    }
+}
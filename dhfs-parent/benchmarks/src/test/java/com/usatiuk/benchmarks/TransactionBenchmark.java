@@ -0,0 +1,68 @@
+package com.usatiuk.benchmarks;
+
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.transaction.Transaction;
+import com.usatiuk.objects.transaction.TransactionManager;
+import io.quarkus.arc.Arc;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of whole transactions, the contention is controlled by the number of keys the threads pick from.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class TransactionBenchmark {
+    @Param({"1", "64", "4096"})
+    int keys;
+    @Param({"128"})
+    int payloadSize;
+
+    private TransactionManager _txm;
+    private Transaction _curTx;
+    private JObjectKey[] _keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        _txm = Arc.container().instance(TransactionManager.class).get();
+        _curTx = Arc.container().instance(Transaction.class).get();
+        _keys = new JObjectKey[keys];
+        for (int i = 0; i < keys; i++)
+            _keys[i] = JObjectKey.of("tx-bench-" + i);
+        _txm.run(() -> {
+            for (var key : _keys)
+                _curTx.put(new BenchData(key, 0, new byte[payloadSize]));
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        _txm.run(() -> {
+            for (var key : _keys)
+                _curTx.delete(key);
+        });
+    }
+
+    private JObjectKey randomKey() {
+        return _keys[ThreadLocalRandom.current().nextInt(_keys.length)];
+    }
+
+    @Benchmark
+    public BenchData readOnly() {
+        var key = randomKey();
+        return _txm.run(() -> _curTx.get(BenchData.class, key).orElseThrow());
+    }
+
+    @Benchmark
+    public void readModifyWrite() {
+        var key = randomKey();
+        _txm.runTries(() -> {
+            var data = _curTx.get(BenchData.class, key).orElseThrow();
+            _curTx.put(data.withCounter(data.counter() + 1));
+        }, 1000);
+    }
+}
@@ -0,0 +1,16 @@
+package com.usatiuk.benchmarks;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Benchmarks that don't need the application running.
+ */
+@EnabledIfSystemProperty(named = "dhfs.benchmarks", matches = "true")
+public class UtilsBenchmarkTest {
+    @Test
+    void run() throws Exception {
+        // KleppmannTreeBenchmark is left out until the tree converges with several peers, see KleppmanTreeSimulationTest
+        BenchmarkRunner.run("utils", DelayedQueueBenchmark.class);
+    }
+}
@@ -0,0 +1,68 @@
+package com.usatiuk.benchmarks;
+
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.stores.WritebackObjectPersistentStore;
+import com.usatiuk.objects.transaction.TxRecord;
+import io.quarkus.arc.Arc;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commit throughput of the writeback store and the persistent store behind it.
+ * {@link #commit} only measures how fast the bundles are accepted (which is limited by the flushing when the writeback is full),
+ * {@link #commitAndFence} waits until each bundle is persisted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WritebackBenchmark {
+    @Param({"1", "16", "256"})
+    int objectsPerTx;
+    @Param({"128", "65536"})
+    int payloadSize;
+    @Param({"4096"})
+    int keys;
+
+    private WritebackObjectPersistentStore _store;
+    private byte[] _payload;
+    private long _next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        _store = Arc.container().instance(WritebackObjectPersistentStore.class).get();
+        _payload = new byte[payloadSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws InterruptedException {
+        var deletes = new ArrayList<TxRecord.TxObjectRecord<?>>(keys);
+        for (int i = 0; i < keys; i++)
+            deletes.add(new TxRecord.TxObjectRecordDeleted(JObjectKey.of("wb-bench-" + i)));
+        _store.commitTx(deletes);
+        _store.fenceLatest();
+    }
+
+    private ArrayList<TxRecord.TxObjectRecord<?>> nextWrites() {
+        var writes = new ArrayList<TxRecord.TxObjectRecord<?>>(objectsPerTx);
+        for (int i = 0; i < objectsPerTx; i++) {
+            var key = JObjectKey.of("wb-bench-" + (_next++ % keys));
+            writes.add(new TxRecord.TxObjectRecordWrite<>(new BenchData(key, _next, _payload)));
+        }
+        return writes;
+    }
+
+    @Benchmark
+    public void commit() {
+        _store.commitTx(nextWrites());
+    }
+
+    @Benchmark
+    public void commitAndFence() throws InterruptedException {
+        var latch = new CountDownLatch(1);
+        _store.commitTx(nextWrites()).accept(latch::countDown);
+        latch.await();
+    }
+}
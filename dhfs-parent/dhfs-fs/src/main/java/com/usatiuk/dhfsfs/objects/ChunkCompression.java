@@ -0,0 +1,19 @@
+package com.usatiuk.dhfsfs.objects;
+
+/**
+ * Compression algorithm used for chunk data.
+ */
+public enum ChunkCompression {
+    /**
+     * Store the data as-is.
+     */
+    NONE,
+    /**
+     * LZ4, fast but with a lower compression ratio.
+     */
+    LZ4,
+    /**
+     * Zstandard, slower but with a higher compression ratio.
+     */
+    ZSTD
+}
@@ -0,0 +1,130 @@
+package com.usatiuk.dhfsfs.objects;
+
+import com.github.luben.zstd.Zstd;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import jakarta.enterprise.context.ApplicationScoped;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Compression of chunk data, for storage and for sending to other peers.
+ * Compressed data starts with a header: one byte with the {@link ChunkCompression} ordinal and the uncompressed size as an int.
+ * Data that does not compress well is left uncompressed: large chunks are first checked by compressing
+ * a small sample of them with LZ4, and the result is only used if it is smaller than the original by some ratio.
+ */
+@ApplicationScoped
+public class ChunkCompressor {
+    private static final int HEADER_SIZE = 1 + Integer.BYTES;
+    private static final int SAMPLE_SIZE = 16384;
+
+    @ConfigProperty(name = "dhfs.files.compression.storage", defaultValue = "none")
+    ChunkCompression storageCompression;
+    @ConfigProperty(name = "dhfs.files.compression.wire", defaultValue = "none")
+    ChunkCompression wireCompression;
+    @ConfigProperty(name = "dhfs.files.compression.zstd_level", defaultValue = "3")
+    int zstdLevel;
+    @ConfigProperty(name = "dhfs.files.compression.min_size", defaultValue = "1024")
+    int minSize;
+    @ConfigProperty(name = "dhfs.files.compression.max_ratio", defaultValue = "0.9")
+    double maxRatio;
+
+    private final LZ4Compressor _lz4Compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor _lz4Decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    public ChunkCompression storageCompression() {
+        return storageCompression;
+    }
+
+    public ChunkCompression wireCompression() {
+        return wireCompression;
+    }
+
+    /**
+     * Compress the data, if it is worth it.
+     *
+     * @param data        the data to compress
+     * @param compression the compression algorithm to use
+     * @return the compressed data with the header, or an empty optional if it should be stored uncompressed
+     */
+    public Optional<ByteString> compress(ByteString data, ChunkCompression compression) {
+        if (compression == ChunkCompression.NONE || data.size() < minSize)
+            return Optional.empty();
+
+        if (data.size() > 2 * SAMPLE_SIZE) {
+            var sample = data.substring(0, SAMPLE_SIZE).toByteArray();
+            if (compressLz4(sample).length > sample.length * maxRatio)
+                return Optional.empty();
+        }
+
+        var bytes = data.toByteArray();
+        var compressed = switch (compression) {
+            case LZ4 -> compressLz4(bytes);
+            case ZSTD -> Zstd.compress(bytes, zstdLevel);
+            case NONE -> throw new IllegalArgumentException();
+        };
+
+        if (compressed.length > bytes.length * maxRatio)
+            return Optional.empty();
+
+        return Optional.of(header(compression, bytes.length).concat(UnsafeByteOperations.unsafeWrap(compressed)));
+    }
+
+    /**
+     * Compress the data if it is worth it, or add the header for uncompressed data.
+     *
+     * @param data        the data to compress
+     * @param compression the compression algorithm to use
+     * @return the data with the header
+     */
+    public ByteString encode(ByteString data, ChunkCompression compression) {
+        return compress(data, compression).orElseGet(() -> header(ChunkCompression.NONE, data.size()).concat(data));
+    }
+
+    /**
+     * Decode data produced by {@link #compress} or {@link #encode}.
+     *
+     * @param encoded the data with the header
+     * @return the uncompressed data
+     */
+    public ByteString decode(ByteBuffer encoded) {
+        var compression = ChunkCompression.values()[encoded.get(encoded.position())];
+        int size = encoded.getInt(encoded.position() + 1);
+        var payload = encoded.slice(encoded.position() + HEADER_SIZE, encoded.remaining() - HEADER_SIZE);
+
+        return switch (compression) {
+            case NONE -> ByteString.copyFrom(payload);
+            case LZ4 -> {
+                var out = ByteBuffer.allocate(size);
+                _lz4Decompressor.decompress(payload, payload.position(), out, 0, size);
+                yield UnsafeByteOperations.unsafeWrap(out.array());
+            }
+            case ZSTD -> {
+                var in = new byte[payload.remaining()];
+                payload.get(in);
+                yield UnsafeByteOperations.unsafeWrap(Zstd.decompress(in, size));
+            }
+        };
+    }
+
+    private byte[] compressLz4(byte[] data) {
+        var out = new byte[_lz4Compressor.maxCompressedLength(data.length)];
+        int len = _lz4Compressor.compress(data, 0, data.length, out, 0, out.length);
+        var ret = new byte[len];
+        System.arraycopy(out, 0, ret, 0, len);
+        return ret;
+    }
+
+    private ByteString header(ChunkCompression compression, int size) {
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put((byte) compression.ordinal());
+        header.putInt(size);
+        header.flip();
+        return UnsafeByteOperations.unsafeWrap(header);
+    }
+}
@@ -5,14 +5,46 @@ import com.usatiuk.dhfs.remoteobj.JDataRemote;
 import com.usatiuk.dhfs.remoteobj.JDataRemoteDto;
 import com.usatiuk.objects.JObjectKey;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
 /**
  * ChunkData is a data structure that represents an immutable binary blob
  * @param key unique key
  * @param data binary data
  */
 public record ChunkData(JObjectKey key, ByteString data) implements JDataRemote, JDataRemoteDto {
+    private static final String CONTENT_KEY_PREFIX = "sha256-";
+
+    /**
+     * Get the content-addressed key for the given data.
+     * @param data binary data
+     * @return key derived from the SHA-256 hash of the data
+     */
+    public static JObjectKey contentKey(ByteString data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (var buffer : data.asReadOnlyByteBufferList())
+            digest.update(buffer);
+        return JObjectKey.of(CONTENT_KEY_PREFIX + HexFormat.of().formatHex(digest.digest()));
+    }
+
+    /**
+     * Check whether the key is a content-addressed key.
+     * @param key the key
+     * @return true if the key was created by {@link #contentKey}
+     */
+    public static boolean isContentKey(JObjectKey key) {
+        return key.value().startsWith(CONTENT_KEY_PREFIX);
+    }
+
     @Override
     public int estimateSize() {
         return data.size();
     }
-}
\ No newline at end of file
+}
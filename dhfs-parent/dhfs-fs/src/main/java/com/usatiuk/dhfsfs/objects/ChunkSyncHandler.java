@@ -0,0 +1,64 @@
+package com.usatiuk.dhfsfs.objects;
+
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.dhfs.remoteobj.*;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.transaction.Transaction;
+import io.quarkus.logging.Log;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.pcollections.PMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Handles synchronization of chunks.
+ * Chunks are immutable, so usually there is nothing special to do, except for content-addressed chunks:
+ * they can be created independently by several peers, which results in conflicting changelogs,
+ * but as their data is always the same, the changelogs can just be merged.
+ */
+@ApplicationScoped
+public class ChunkSyncHandler implements ObjSyncHandler<ChunkData, ChunkData> {
+    @Inject
+    Transaction curTx;
+    @Inject
+    RemoteTransaction remoteTx;
+    @Inject
+    DefaultObjSyncHandler defaultObjSyncHandler;
+
+    @Override
+    public void handleRemoteUpdate(PeerId from, JObjectKey key, PMap<PeerId, Long> receivedChangelog, @Nullable ChunkData receivedData) {
+        if (!ChunkData.isContentKey(key)) {
+            defaultObjSyncHandler.handleRemoteUpdate(from, key, receivedChangelog, receivedData);
+            return;
+        }
+
+        if (receivedData != null && !ChunkData.contentKey(receivedData.data()).equals(key))
+            throw new IllegalStateException("Chunk data does not match its key: " + key + " from " + from);
+
+        var current = remoteTx.getMeta(key).orElse(null);
+        if (current == null || SyncHelper.compareChangelogs(current.changelog(), receivedChangelog) != SyncHelper.ChangelogCmpResult.CONFLICT) {
+            defaultObjSyncHandler.handleRemoteUpdate(from, key, receivedChangelog, receivedData);
+            return;
+        }
+
+        Log.debugv("Merging changelogs of content-addressed chunk {0} from {1}", key, from);
+
+        var merged = current.changelog();
+        for (var e : receivedChangelog.entrySet()) {
+            if (merged.getOrDefault(e.getKey(), 0L) < e.getValue())
+                merged = merged.plus(e.getKey(), e.getValue());
+        }
+        current = current.withChangelog(merged);
+
+        var receivedTotalVer = receivedChangelog.values().stream().mapToLong(Long::longValue).sum();
+        var curKnownRemoteVersion = current.knownRemoteVersions().get(from);
+        if (curKnownRemoteVersion == null || curKnownRemoteVersion < receivedTotalVer)
+            current = current.withKnownRemoteVersions(current.knownRemoteVersions().plus(from, receivedTotalVer));
+
+        curTx.put(current);
+
+        if (receivedData != null && !current.hasLocalData())
+            remoteTx.putDataLocalCopy(receivedData);
+    }
+}
@@ -0,0 +1,47 @@
+package com.usatiuk.dhfsfs.objects;
+
+import com.usatiuk.objects.binary.BinaryCodec;
+import com.usatiuk.objects.binary.BinaryCodecProvider;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary codecs for the objects of the filesystem.
+ * Tags 128-191 are used here.
+ */
+@ApplicationScoped
+public class DhfsBinaryCodecs implements BinaryCodecProvider {
+    @Override
+    public Collection<BinaryCodec<?>> codecs() {
+        return List.of(
+                BinaryCodec.<File>of(128, 1, File.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeLong(v.mode());
+                            out.writeLong(v.cTime());
+                            out.writeLong(v.mTime());
+                            out.writeBoolean(v.symlink());
+                            out.writeLong(v.size());
+                        },
+                        (in, ver) -> new File(in.readKey(), in.readLong(), in.readLong(), in.readLong(),
+                                in.readBoolean(), in.readLong())),
+                BinaryCodec.<ChunkData>of(129, 1, ChunkData.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeBytes(v.data());
+                        },
+                        (in, ver) -> new ChunkData(in.readKey(), in.readBytes())),
+                BinaryCodec.<JKleppmannTreeNodeMetaFile>of(130, 1, JKleppmannTreeNodeMetaFile.class,
+                        (out, v) -> {
+                            out.writeString(v.name());
+                            out.writeKey(v.fileIno());
+                        },
+                        (in, ver) -> new JKleppmannTreeNodeMetaFile(in.readString(), in.readKey())),
+                BinaryCodec.<JKleppmannTreeNodeMetaDirectory>of(131, 1, JKleppmannTreeNodeMetaDirectory.class,
+                        (out, v) -> out.writeString(v.name()),
+                        (in, ver) -> new JKleppmannTreeNodeMetaDirectory(in.readString()))
+        );
+    }
+}
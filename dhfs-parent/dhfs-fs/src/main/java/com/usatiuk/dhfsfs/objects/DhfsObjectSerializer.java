@@ -0,0 +1,119 @@
+package com.usatiuk.dhfsfs.objects;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.usatiuk.dhfs.refcount.JDataRef;
+import com.usatiuk.dhfs.remoteobj.RemoteObjectDataWrapper;
+import com.usatiuk.objects.BinaryDataSerializer;
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.ObjectSerializer;
+import com.usatiuk.utils.SerializationHelper;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+import org.pcollections.PCollection;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Object serializer that stores chunk data in a raw layout, and everything else with {@link BinaryDataSerializer}
+ * if it is enabled, or with Java serialization otherwise.
+ * <p>
+ * Chunks (wrapped in {@link RemoteObjectDataWrapper}) are stored as a marker byte, the length of the header,
+ * the Java-serialized header with everything except the chunk bytes, and then the chunk bytes themselves.
+ * This allows reading parts of a chunk directly from the storage without deserializing it, see {@link #getChunkData}.
+ * If storage compression is enabled and the chunk compresses well, it is stored with a different marker
+ * and the chunk bytes encoded by {@link ChunkCompressor}; such chunks can't be read without decompressing them.
+ * Java serialization streams always start with 0xACED, so objects stored before this layout was introduced
+ * are still read correctly.
+ */
+@ApplicationScoped
+public class DhfsObjectSerializer implements ObjectSerializer<JData> {
+    private static final byte RAW_CHUNK_MARKER = 0x01;
+    private static final byte COMPRESSED_CHUNK_MARKER = 0x02;
+    private static final int RAW_CHUNK_PREFIX_SIZE = 1 + Integer.BYTES;
+
+    @Inject
+    ChunkCompressor chunkCompressor;
+    @Inject
+    Instance<BinaryDataSerializer> binaryDataSerializer;
+
+    @Override
+    public ByteString serialize(JData obj) {
+        if (obj instanceof RemoteObjectDataWrapper<?> wrapper && wrapper.data() instanceof ChunkData chunk) {
+            var header = SerializationHelper.serializeArray(new ChunkHeader(wrapper.key(), wrapper.refsFrom(), wrapper.frozen(), chunk.key()));
+            var compressed = chunkCompressor.compress(chunk.data(), chunkCompressor.storageCompression());
+            var prefix = ByteBuffer.allocate(RAW_CHUNK_PREFIX_SIZE);
+            prefix.put(compressed.isPresent() ? COMPRESSED_CHUNK_MARKER : RAW_CHUNK_MARKER);
+            prefix.putInt(header.length);
+            prefix.flip();
+            return UnsafeByteOperations.unsafeWrap(prefix)
+                    .concat(UnsafeByteOperations.unsafeWrap(header))
+                    .concat(compressed.orElse(chunk.data()));
+        }
+        if (binaryDataSerializer.isResolvable())
+            return binaryDataSerializer.get().serialize(obj);
+        return SerializationHelper.serialize(obj);
+    }
+
+    @Override
+    public JData deserialize(ByteBuffer data) {
+        if (isChunk(data)) {
+            var headerLength = data.getInt(data.position() + 1);
+            var headerBuffer = data.slice(data.position() + RAW_CHUNK_PREFIX_SIZE, headerLength);
+            ChunkHeader header;
+            try (var is = UnsafeByteOperations.unsafeWrap(headerBuffer).newInput()) {
+                header = SerializationHelper.deserialize(is);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            var chunkData = isRawChunk(data)
+                    ? ByteString.copyFrom(getRawChunkData(data, headerLength))
+                    : chunkCompressor.decode(getRawChunkData(data, headerLength));
+            return new RemoteObjectDataWrapper<>(header.key(), header.refsFrom(), header.frozen(),
+                    new ChunkData(header.chunkKey(), chunkData));
+        }
+
+        if (binaryDataSerializer.isResolvable())
+            return binaryDataSerializer.get().deserialize(data);
+
+        try (var is = UnsafeByteOperations.unsafeWrap(data).newInput()) {
+            return SerializationHelper.deserialize(is);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the chunk bytes from a serialized chunk wrapper, without copying them.
+     *
+     * @param data the serialized object
+     * @return the chunk bytes, or an empty optional if the object is not a chunk stored uncompressed in the raw layout
+     */
+    public Optional<ByteBuffer> getChunkData(ByteBuffer data) {
+        if (!isRawChunk(data))
+            return Optional.empty();
+        return Optional.of(getRawChunkData(data, data.getInt(data.position() + 1)));
+    }
+
+    private boolean isChunk(ByteBuffer data) {
+        return isRawChunk(data) || (data.remaining() >= RAW_CHUNK_PREFIX_SIZE && data.get(data.position()) == COMPRESSED_CHUNK_MARKER);
+    }
+
+    private boolean isRawChunk(ByteBuffer data) {
+        return data.remaining() >= RAW_CHUNK_PREFIX_SIZE && data.get(data.position()) == RAW_CHUNK_MARKER;
+    }
+
+    private ByteBuffer getRawChunkData(ByteBuffer data, int headerLength) {
+        int start = data.position() + RAW_CHUNK_PREFIX_SIZE + headerLength;
+        return data.slice(start, data.limit() - start);
+    }
+
+    private record ChunkHeader(JObjectKey key, PCollection<JDataRef> refsFrom, boolean frozen,
+                               JObjectKey chunkKey) implements Serializable {
+    }
+}
@@ -0,0 +1,67 @@
+package com.usatiuk.dhfsfs.objects;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.usatiuk.dhfs.ProtoSerializer;
+import com.usatiuk.dhfs.persistence.JDataRemoteDtoP;
+import com.usatiuk.dhfs.remoteobj.JDataRemoteDto;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.utils.SerializationHelper;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializer for objects sent to other peers, that compresses chunk data.
+ * <p>
+ * With wire compression enabled, chunks are sent as a marker byte, the length of the key, the key itself
+ * and the chunk bytes encoded by {@link ChunkCompressor}.
+ * Everything else is sent with Java serialization, which always starts with 0xACED,
+ * so objects sent by peers without this serializer are still read correctly.
+ * <p>
+ * The peers don't negotiate the format, and peers without this serializer can't read compressed chunks,
+ * so wire compression is off by default, and should only be enabled once all the peers are updated.
+ */
+@ApplicationScoped
+public class DhfsRemoteObjectSerializer implements ProtoSerializer<JDataRemoteDtoP, JDataRemoteDto> {
+    private static final byte CHUNK_MARKER = 0x01;
+
+    @Inject
+    ChunkCompressor chunkCompressor;
+
+    @Override
+    public JDataRemoteDto deserialize(JDataRemoteDtoP message) {
+        var data = message.getSerializedData();
+        if (data.isEmpty() || data.byteAt(0) != CHUNK_MARKER)
+            return SerializationHelper.deserialize(data.toByteArray());
+
+        var buffer = data.asReadOnlyByteBuffer();
+        buffer.get();
+        var keyBytes = new byte[buffer.getInt()];
+        buffer.get(keyBytes);
+        var key = JObjectKey.of(new String(keyBytes, StandardCharsets.UTF_8));
+        return new ChunkData(key, chunkCompressor.decode(buffer));
+    }
+
+    @Override
+    public JDataRemoteDtoP serialize(JDataRemoteDto object) {
+        if (!(object instanceof ChunkData chunk) || chunkCompressor.wireCompression() == ChunkCompression.NONE)
+            return JDataRemoteDtoP.newBuilder()
+                    .setSerializedData(SerializationHelper.serialize(object))
+                    .build();
+
+        var keyBytes = chunk.key().value().getBytes(StandardCharsets.UTF_8);
+        var prefix = ByteBuffer.allocate(1 + Integer.BYTES + keyBytes.length);
+        prefix.put(CHUNK_MARKER);
+        prefix.putInt(keyBytes.length);
+        prefix.put(keyBytes);
+        prefix.flip();
+        ByteString serialized = UnsafeByteOperations.unsafeWrap(prefix)
+                .concat(chunkCompressor.encode(chunk.data(), chunkCompressor.wireCompression()));
+        return JDataRemoteDtoP.newBuilder()
+                .setSerializedData(serialized)
+                .build();
+    }
+}
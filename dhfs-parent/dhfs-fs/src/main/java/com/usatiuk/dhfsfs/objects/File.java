@@ -17,32 +17,38 @@ import java.util.Set;
  * @param cTime   inode modification time
  * @param mTime   modification time
  * @param symlink true if the file is a symlink, false otherwise
+ * @param size    size of the file contents in bytes
+ *                (files written by older versions can have 0 here even if they have chunks)
  */
 public record File(JObjectKey key, long mode, long cTime, long mTime,
-                   boolean symlink
+                   boolean symlink, long size
 ) implements JDataRemote, JMapHolder<JMapLongKey> {
     public File withSymlink(boolean symlink) {
-        return new File(key, mode, cTime, mTime, symlink);
+        return new File(key, mode, cTime, mTime, symlink, size);
     }
 
     public File withMode(long mode) {
-        return new File(key, mode, cTime, mTime, symlink);
+        return new File(key, mode, cTime, mTime, symlink, size);
     }
 
     public File withCTime(long cTime) {
-        return new File(key, mode, cTime, mTime, symlink);
+        return new File(key, mode, cTime, mTime, symlink, size);
     }
 
     public File withMTime(long mTime) {
-        return new File(key, mode, cTime, mTime, symlink);
+        return new File(key, mode, cTime, mTime, symlink, size);
     }
 
     public File withCurrentMTime() {
-        return new File(key, mode, cTime, System.currentTimeMillis(), symlink);
+        return new File(key, mode, cTime, System.currentTimeMillis(), symlink, size);
+    }
+
+    public File withSize(long size) {
+        return new File(key, mode, cTime, mTime, symlink, size);
     }
 
     public File withCurrentCTime() {
-        return new File(key, mode, System.currentTimeMillis(), mTime, symlink);
+        return new File(key, mode, System.currentTimeMillis(), mTime, symlink, size);
     }
 
     @Override
@@ -124,10 +124,10 @@ public class FileSyncHandler implements ObjSyncHandler<File, FileDto> {
             );
             curTx.put(oursCurMeta);
 
-            remoteTx.putDataRaw(oursCurFile.withCTime(first.cTime()).withMTime(first.mTime()).withMode(first.mode()).withSymlink(first.symlink()));
+            remoteTx.putDataRaw(oursCurFile.withCTime(first.cTime()).withMTime(first.mTime()).withMode(first.mode()).withSymlink(first.symlink()).withSize(first.size()));
             fileHelper.replaceChunks(oursCurFile, firstChunks);
 
-            var newFile = new File(JObjectKey.random(), second.mode(), second.cTime(), second.mTime(), second.symlink());
+            var newFile = new File(JObjectKey.random(), second.mode(), second.cTime(), second.mTime(), second.symlink(), second.size());
             remoteTx.putData(newFile);
             fileHelper.replaceChunks(newFile, secondChunks);
 
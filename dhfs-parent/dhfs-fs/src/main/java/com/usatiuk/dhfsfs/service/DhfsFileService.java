@@ -2,6 +2,8 @@ package com.usatiuk.dhfsfs.service;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.UnsafeByteOperations;
+import com.usatiuk.dhfs.invalidation.InvalidationQueueService;
+import com.usatiuk.dhfs.jkleppmanntree.JKleppmannTreeLookupCache;
 import com.usatiuk.dhfs.jkleppmanntree.JKleppmannTreeManager;
 import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeNode;
 import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeNodeHolder;
@@ -13,6 +15,7 @@ import com.usatiuk.dhfs.remoteobj.JDataRemote;
 import com.usatiuk.dhfs.remoteobj.RemoteObjectMeta;
 import com.usatiuk.dhfs.remoteobj.RemoteTransaction;
 import com.usatiuk.dhfsfs.objects.ChunkData;
+import com.usatiuk.dhfsfs.objects.DhfsObjectSerializer;
 import com.usatiuk.dhfsfs.objects.File;
 import com.usatiuk.dhfsfs.objects.JKleppmannTreeNodeMetaDirectory;
 import com.usatiuk.dhfsfs.objects.JKleppmannTreeNodeMetaFile;
@@ -20,6 +23,8 @@ import com.usatiuk.objects.JData;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.iterators.IteratorStart;
 import com.usatiuk.objects.stores.ObjectPersistentStore;
+import com.usatiuk.objects.stores.WritebackObjectPersistentStore;
+import com.usatiuk.objects.transaction.ReadOnlyTransactionException;
 import com.usatiuk.objects.transaction.Transaction;
 import com.usatiuk.objects.transaction.TransactionManager;
 import com.usatiuk.utils.StatusRuntimeExceptionNoStacktrace;
@@ -38,6 +43,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.StreamSupport;
 
 /**
@@ -51,6 +57,10 @@ public class DhfsFileService {
     int maxChunkSize;
     @ConfigProperty(name = "dhfs.files.allow_recursive_delete")
     boolean allowRecursiveDelete;
+    @ConfigProperty(name = "dhfs.files.content_defined_chunking", defaultValue = "false")
+    boolean contentDefinedChunking;
+    @ConfigProperty(name = "dhfs.files.use_hash_for_chunks", defaultValue = "false")
+    boolean useHashForChunks;
 
 
     @Inject
@@ -62,21 +72,43 @@ public class DhfsFileService {
     @Inject
     JKleppmannTreeManager jKleppmannTreeManager;
     @Inject
+    JKleppmannTreeLookupCache lookupCache;
+    @Inject
     JMapHelper jMapHelper;
     @Inject
     ObjectPersistentStore objectPersistentStore;
+    @Inject
+    WritebackObjectPersistentStore writebackObjectPersistentStore;
+    @Inject
+    InvalidationQueueService invalidationQueueService;
+    @Inject
+    DhfsObjectSerializer objectSerializer;
+    @Inject
+    FastCdcChunker cdcChunker;
 
     private JKleppmannTreeManager.JKleppmannTree getTree() {
         return jKleppmannTreeManager.getTree(JObjectKey.of("fs"), () -> new JKleppmannTreeNodeMetaDirectory(""));
     }
 
     /**
-     * Create a new chunk with the given data and a new unique ID.
+     * Create a new chunk with the given data.
+     * If dhfs.files.use_hash_for_chunks is enabled, the key is derived from the data,
+     * and an existing chunk with the same data is reused. Otherwise, a new unique ID is used.
      *
      * @param bytes the data to store in the chunk
      * @return the created chunk
      */
     private ChunkData createChunk(ByteString bytes) {
+        if (useHashForChunks) {
+            var newChunk = new ChunkData(ChunkData.contentKey(bytes), bytes);
+            // Not putDataNew, as other transactions can create the same chunk concurrently
+            if (remoteTx.getMeta(newChunk.key()).isPresent())
+                remoteTx.putDataLocalCopy(newChunk);
+            else
+                remoteTx.putData(newChunk);
+            return newChunk;
+        }
+
         var newChunk = new ChunkData(JObjectKey.of(UUID.randomUUID().toString()), bytes);
         remoteTx.putDataNew(newChunk);
         return newChunk;
@@ -91,17 +123,33 @@ public class DhfsFileService {
         getTree();
     }
 
+    private List<String> splitPath(String name) {
+        return StreamSupport.stream(Path.of(name).spliterator(), false).map(p -> p.toString()).toList();
+    }
+
     private JKleppmannTreeNode getDirEntry(String name) {
-        var res = getTree().traverse(StreamSupport.stream(Path.of(name).spliterator(), false).map(p -> p.toString()).toList());
+        var tree = getTree();
+        var res = tree.traverse(splitPath(name));
+        return getDirEntryNode(tree, name, res);
+    }
+
+    private JKleppmannTreeNode getDirEntryCached(String name, long cacheGeneration) {
+        var tree = getTree();
+        var res = tree.traverseCached(splitPath(name), cacheGeneration);
+        return getDirEntryNode(tree, name, res);
+    }
+
+    private JKleppmannTreeNode getDirEntryNode(JKleppmannTreeManager.JKleppmannTree tree, String name, JObjectKey res) {
         if (res == null) throw new StatusRuntimeExceptionNoStacktrace(Status.NOT_FOUND);
-        var ret = curTx.get(JKleppmannTreeNodeHolder.class, res).map(JKleppmannTreeNodeHolder::node).orElseThrow(() -> new StatusRuntimeException(Status.NOT_FOUND.withDescription("Tree node exists but not found as jObject: " + name)));
+        var ret = Optional.ofNullable(tree.getNode(res)).orElseThrow(() -> new StatusRuntimeException(Status.NOT_FOUND.withDescription("Tree node exists but not found as jObject: " + name)));
         return ret;
     }
 
     private Optional<JKleppmannTreeNode> getDirEntryOpt(String name) {
-        var res = getTree().traverse(StreamSupport.stream(Path.of(name).spliterator(), false).map(p -> p.toString()).toList());
+        var tree = getTree();
+        var res = tree.traverse(splitPath(name));
         if (res == null) return Optional.empty();
-        var ret = curTx.get(JKleppmannTreeNodeHolder.class, res).map(JKleppmannTreeNodeHolder::node);
+        var ret = Optional.ofNullable(tree.getNode(res));
         return ret;
     }
 
@@ -112,7 +160,7 @@ public class DhfsFileService {
      * @return the attributes of the file or directory
      */
     public Optional<GetattrRes> getattr(JObjectKey uuid) {
-        return jObjectTxManager.executeTx(() -> {
+        return jObjectTxManager.runReadMostly(() -> {
             var ref = curTx.get(JData.class, uuid).orElse(null);
             if (ref == null) return Optional.empty();
             GetattrRes ret;
@@ -139,9 +187,11 @@ public class DhfsFileService {
      * @return the key of the file or directory, or an empty optional if it does not exist
      */
     public Optional<JObjectKey> open(String name) {
-        return jObjectTxManager.executeTx(() -> {
+        // The lookup cache can only be used if we're not nested in a transaction that might have changed the tree
+        long cacheGeneration = jObjectTxManager.current() == null ? lookupCache.generation() : -1;
+        return jObjectTxManager.runReadMostly(() -> {
             try {
-                var ret = getDirEntry(name);
+                var ret = cacheGeneration >= 0 ? getDirEntryCached(name, cacheGeneration) : getDirEntry(name);
                 return switch (ret.meta()) {
                     case JKleppmannTreeNodeMetaFile f -> Optional.of(f.fileIno());
                     case JKleppmannTreeNodeMetaDirectory f -> Optional.of(ret.key());
@@ -179,7 +229,7 @@ public class DhfsFileService {
 
             var fuuid = UUID.randomUUID();
             Log.debug("Creating file " + fuuid);
-            File f = new File(JObjectKey.of(fuuid.toString()), mode, System.currentTimeMillis(), System.currentTimeMillis(), false);
+            File f = new File(JObjectKey.of(fuuid.toString()), mode, System.currentTimeMillis(), System.currentTimeMillis(), false, 0);
             remoteTx.putData(f);
 
             try {
@@ -304,13 +354,14 @@ public class DhfsFileService {
      * @return an iterable of the names of the files in the directory
      */
     public Iterable<String> readDir(String name) {
-        return jObjectTxManager.executeTx(() -> {
+        return jObjectTxManager.runReadMostly(() -> {
             var found = getDirEntry(name);
 
             if (!(found.meta() instanceof JKleppmannTreeNodeMetaDirectory md))
                 throw new StatusRuntimeException(Status.INVALID_ARGUMENT);
 
-            return found.children().keySet();
+            // Large directories read their children from the transaction, so they have to be copied out of it
+            return List.copyOf(found.children().keySet());
         });
     }
 
@@ -323,7 +374,7 @@ public class DhfsFileService {
      * @return the contents of the file as a ByteString
      */
     public ByteString read(JObjectKey fileUuid, long offset, int length) {
-        return jObjectTxManager.executeTx(() -> {
+        return jObjectTxManager.runReadMostly(() -> {
             if (length < 0)
                 throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("Length should be more than zero: " + length));
             if (offset < 0)
@@ -376,6 +427,8 @@ public class DhfsFileService {
                 }
 
                 return buf;
+            } catch (ReadOnlyTransactionException e) {
+                throw e;
             } catch (Exception e) {
                 Log.error("Error reading file: " + fileUuid, e);
                 throw new StatusRuntimeException(Status.INTERNAL.withDescription("Error reading file: " + fileUuid));
@@ -384,10 +437,102 @@ public class DhfsFileService {
     }
 
     /**
-     * Get the size of a file.
+     * Find the chunks of a file in the given range which do not have their data available locally.
      *
-     * @param uuid the ID of the file
-     * @return the size of the file
+     * @param fileUuid the ID of the file
+     * @param offset   the start of the range
+     * @param length   the length of the range
+     * @return the keys of the chunks that would need to be downloaded to read the range
+     */
+    public List<JObjectKey> getMissingChunks(JObjectKey fileUuid, long offset, long length) {
+        return jObjectTxManager.executeTx(() -> {
+            var file = remoteTx.getDataLocal(File.class, fileUuid).orElse(null);
+            if (file == null)
+                return List.of();
+
+            var missing = new ArrayList<JObjectKey>();
+            try (var it = jMapHelper.getIterator(file, IteratorStart.LE, JMapLongKey.of(offset))) {
+                while (it.hasNext()) {
+                    var entry = it.next();
+                    if (entry.getKey().key() >= offset + length) break;
+                    var meta = remoteTx.getMeta(entry.getValue().ref()).orElse(null);
+                    if (meta != null && !meta.hasLocalData())
+                        missing.add(meta.key());
+                }
+            }
+            return missing;
+        });
+    }
+
+    /**
+     * Download the data of a chunk, if it is not yet available locally.
+     *
+     * @param uuid the ID of the chunk
+     * @return true if the chunk data is now available locally, false otherwise
+     */
+    public boolean fetchChunk(JObjectKey uuid) {
+        return jObjectTxManager.executeTx(() -> {
+            return remoteTx.getData(ChunkData.class, uuid).isPresent();
+        });
+    }
+
+    /**
+     * Read data from a file directly into the given output.
+     * When the chunks are present locally, their data is passed straight from the storage, without deserializing them.
+     * The output can be called again for the same positions if the transaction is retried.
+     *
+     * @param fileUuid the ID of the file
+     * @param offset   the offset to start reading from
+     * @param length   the number of bytes to read
+     * @param output   receives the read data and its position relative to the offset,
+     *                 the buffers are valid only during the call
+     * @return the number of bytes read
+     */
+    public int read(JObjectKey fileUuid, long offset, int length, ObjIntConsumer<ByteBuffer> output) {
+        return jObjectTxManager.runReadMostly(() -> {
+            if (length < 0)
+                throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("Length should be more than zero: " + length));
+            if (offset < 0)
+                throw new StatusRuntimeException(Status.INVALID_ARGUMENT.withDescription("Offset should be more than zero: " + offset));
+
+            var file = remoteTx.getData(File.class, fileUuid).orElse(null);
+            if (file == null) {
+                Log.error("File not found when trying to read: " + fileUuid);
+                throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("File not found when trying to read: " + fileUuid));
+            }
+
+            try (var it = jMapHelper.getIterator(file, IteratorStart.LE, JMapLongKey.of(offset))) {
+                long curPos = offset;
+                long end = offset + length;
+
+                while (curPos < end && it.hasNext()) {
+                    var chunk = it.next();
+                    var chunkBytes = readChunkBuffer(chunk.getValue().ref());
+
+                    long offInChunk = curPos - chunk.getKey().key();
+                    long toRead = Math.min(chunkBytes.remaining() - offInChunk, end - curPos);
+
+                    if (toRead <= 0) break;
+
+                    output.accept(chunkBytes.slice(chunkBytes.position() + (int) offInChunk, (int) toRead), (int) (curPos - offset));
+                    curPos += toRead;
+                }
+
+                return (int) (curPos - offset);
+            } catch (ReadOnlyTransactionException e) {
+                throw e;
+            } catch (Exception e) {
+                Log.error("Error reading file: " + fileUuid, e);
+                throw new StatusRuntimeException(Status.INTERNAL.withDescription("Error reading file: " + fileUuid));
+            }
+        });
+    }
+
+    /**
+     * Get the contents of a chunk.
+     *
+     * @param uuid the ID of the chunk
+     * @return the contents of the chunk
      */
     private ByteString readChunk(JObjectKey uuid) {
         var chunkRead = remoteTx.getData(ChunkData.class, uuid).orElse(null);
@@ -407,7 +552,20 @@ public class DhfsFileService {
      * @return the size of the chunk
      */
     private int getChunkSize(JObjectKey uuid) {
-        return readChunk(uuid).size();
+        return readChunkBuffer(uuid).remaining();
+    }
+
+    /**
+     * Get the contents of a chunk as a buffer, reading it directly from the storage if possible.
+     * Transaction is expected to be already started, the buffer is valid only until it is closed.
+     *
+     * @param uuid the ID of the chunk
+     * @return the contents of the chunk
+     */
+    private ByteBuffer readChunkBuffer(JObjectKey uuid) {
+        return remoteTx.getDataLocalRaw(uuid)
+                .flatMap(objectSerializer::getChunkData)
+                .orElseGet(() -> readChunk(uuid).asReadOnlyByteBuffer());
     }
 
     private long alignDown(long num, long n) {
@@ -432,9 +590,11 @@ public class DhfsFileService {
                 throw new StatusRuntimeException(Status.NOT_FOUND.withDescription("File not found when trying to write: " + fileUuid));
             }
 
+            long oldSize = size(file);
             Map<Long, JObjectKey> removedChunks = new HashMap<>();
 
-            long realOffset = targetChunkAlignment >= 0 ? alignDown(offset, targetChunkAlignment) : offset;
+            // With content-defined chunking, the rewritten range starts at the beginning of the chunk containing the offset
+            long realOffset = targetChunkAlignment >= 0 && !contentDefinedChunking ? alignDown(offset, targetChunkAlignment) : offset;
             long writeEnd = offset + data.size();
             long start = realOffset;
             long existingEnd = 0;
@@ -448,7 +608,10 @@ public class DhfsFileService {
                     var curChunkId = curEntry.getValue().ref();
                     long curChunkEnd = it.hasNext() ? it.peekNextKey().key() : curChunkStart + getChunkSize(curChunkId);
                     existingEnd = curChunkEnd;
-                    if (curChunkEnd <= realOffset) break;
+                    // With content-defined chunking, the last chunk ends where the file ended and not at a content-defined
+                    // boundary, so appends re-chunk it
+                    boolean extendTail = contentDefinedChunking && !it.hasNext() && curChunkEnd == realOffset;
+                    if (curChunkEnd <= realOffset && !extendTail) break;
 
                     removedChunks.put(curEntry.getKey().key(), curChunkId);
 
@@ -486,7 +649,28 @@ public class DhfsFileService {
 
             int combinedSize = pendingWrites.size();
 
-            {
+            if (contentDefinedChunking) {
+                // The range always ends at an existing chunk boundary or at the end of the file,
+                // so the chunks after it stay the same
+                var split = new ArrayList<>(cdcChunker.split(pendingWrites));
+                // The end of the range is always cut, and if that leaves a piece smaller than the minimum before
+                // an existing chunk, that chunk is re-chunked too, so that edits don't leave tiny chunks behind
+                long rangeEnd = start + combinedSize;
+                while (!split.isEmpty() && split.getLast().size() < cdcChunker.getMinSize()) {
+                    var next = jMapHelper.get(file, JMapLongKey.of(rangeEnd)).orElse(null);
+                    if (next == null) break;
+                    removedChunks.put(rangeEnd, next.ref());
+                    var nextData = readChunk(next.ref());
+                    rangeEnd += nextData.size();
+                    // The boundaries before the last piece don't depend on the data after them
+                    split.addAll(cdcChunker.split(split.removeLast().concat(nextData)));
+                }
+                for (var thisChunk : split) {
+                    ChunkData newChunkData = createChunk(thisChunk);
+                    newChunks.put(start, newChunkData.key());
+                    start += thisChunk.size();
+                }
+            } else {
                 int cur = 0;
                 while (cur < combinedSize) {
                     int end;
@@ -518,7 +702,7 @@ public class DhfsFileService {
                 jMapHelper.put(file, JMapLongKey.of(e.getKey()), e.getValue());
             }
 
-            remoteTx.putData(file.withCurrentMTime());
+            remoteTx.putData(file.withCurrentMTime().withSize(Math.max(oldSize, writeEnd)));
 
             return (long) data.size();
         });
@@ -544,11 +728,11 @@ public class DhfsFileService {
 
             if (length == 0) {
                 jMapHelper.deleteAll(file);
-                remoteTx.putData(file);
+                remoteTx.putData(file.withSize(0));
                 return true;
             }
 
-            var curSize = size(fileUuid);
+            var curSize = size(file);
             if (curSize == length) return true;
 
             NavigableMap<Long, JObjectKey> removedChunks = new TreeMap<>();
@@ -615,7 +799,7 @@ public class DhfsFileService {
                 jMapHelper.put(file, JMapLongKey.of(e.getKey()), e.getValue());
             }
 
-            remoteTx.putData(file.withCurrentMTime());
+            remoteTx.putData(file.withCurrentMTime().withSize(length));
             return true;
         });
     }
@@ -707,7 +891,7 @@ public class DhfsFileService {
             Log.debug("Creating file " + fuuid);
 
             ChunkData newChunkData = createChunk(UnsafeByteOperations.unsafeWrap(oldpath.getBytes(StandardCharsets.UTF_8)));
-            File f = new File(JObjectKey.of(fuuid.toString()), 0, System.currentTimeMillis(), System.currentTimeMillis(), true);
+            File f = new File(JObjectKey.of(fuuid.toString()), 0, System.currentTimeMillis(), System.currentTimeMillis(), true, newChunkData.data().size());
             jMapHelper.put(f, JMapLongKey.of(0), newChunkData.key());
 
             remoteTx.putData(f);
@@ -752,21 +936,36 @@ public class DhfsFileService {
      */
     public long size(JObjectKey fileUuid) {
         return jObjectTxManager.executeTx(() -> {
-            long realSize = 0;
             var file = remoteTx.getData(File.class, fileUuid)
                     .orElseThrow(() -> new StatusRuntimeException(Status.NOT_FOUND));
+            return size(file);
+        });
+    }
 
-            Pair<JMapLongKey, JMapEntry<JMapLongKey>> last;
-            try (var it = jMapHelper.getIterator(file, IteratorStart.LT, JMapLongKey.max())) {
-                last = it.hasNext() ? it.next() : null;
-            }
+    /**
+     * Get the size of a file.
+     * Transaction is expected to be already started.
+     *
+     * @param file the file
+     * @return the size of the file
+     */
+    private long size(File file) {
+        if (file.size() > 0)
+            return file.size();
+
+        // Files written before the size was stored in them have 0 there,
+        // so check that the file really has no chunks
+        long realSize = 0;
+        Pair<JMapLongKey, JMapEntry<JMapLongKey>> last;
+        try (var it = jMapHelper.getIterator(file, IteratorStart.LT, JMapLongKey.max())) {
+            last = it.hasNext() ? it.next() : null;
+        }
 
-            if (last != null) {
-                realSize = last.getKey().key() + getChunkSize(last.getValue().ref());
-            }
+        if (last != null) {
+            realSize = last.getKey().key() + getChunkSize(last.getValue().ref());
+        }
 
-            return realSize;
-        });
+        return realSize;
     }
 
     /**
@@ -781,6 +980,31 @@ public class DhfsFileService {
         return write(fileUuid, offset, UnsafeByteOperations.unsafeWrap(data));
     }
 
+    /**
+     * Wait until the changes made so far are durably stored.
+     * All transactions committed before this call are waited for to be written to the local storage,
+     * then, if peers is more than zero, the given object is pushed to the reachable peers,
+     * and this waits until the given number of them have acknowledged it.
+     * The peers acknowledge only the metadata of the object, for a file its list of chunks:
+     * the chunk data is not pushed to them, and they fetch it from this peer when they need it.
+     *
+     * @param uuid      the ID of the file or directory
+     * @param peers     the number of peers to wait for, 0 to only wait for local storage
+     * @param timeoutMs the maximum time to wait for the peers, in milliseconds
+     * @return true if the changes are stored durably, false if not enough peers have acknowledged them
+     */
+    public boolean sync(JObjectKey uuid, int peers, long timeoutMs) {
+        try {
+            writebackObjectPersistentStore.fenceLatest();
+            if (peers <= 0)
+                return true;
+            return invalidationQueueService.pushAndWait(uuid, peers, timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     /**
      * Get the free space on the filesystem.
      *
@@ -0,0 +1,102 @@
+package com.usatiuk.dhfsfs.service;
+
+import com.google.protobuf.ByteString;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content-defined chunking using the FastCDC algorithm (gear rolling hash with normalized chunking).
+ * Chunk boundaries depend only on the data since the previous boundary, so after an edit the boundaries
+ * resynchronize with the old ones, and only the chunks around the edit change.
+ */
+@ApplicationScoped
+public class FastCdcChunker {
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // SplitMix64 with a fixed seed, the table must be the same everywhere
+        long seed = 0x6468667363646331L;
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int _minSize;
+    private final int _avgSize;
+    private final int _maxSize;
+    // Harder to match mask used before the average size is reached, and easier one after it
+    private final long _maskSmall;
+    private final long _maskLarge;
+
+    public FastCdcChunker(@ConfigProperty(name = "dhfs.files.cdc.min_chunk_size", defaultValue = "32768") int minSize,
+                          @ConfigProperty(name = "dhfs.files.cdc.avg_chunk_size", defaultValue = "131072") int avgSize,
+                          @ConfigProperty(name = "dhfs.files.cdc.max_chunk_size", defaultValue = "524288") int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize)
+            throw new IllegalArgumentException("Invalid chunk sizes: " + minSize + " " + avgSize + " " + maxSize);
+        _minSize = minSize;
+        _avgSize = avgSize;
+        _maxSize = maxSize;
+
+        // With the gear hash, the highest bits depend on the most bytes, so use them for the masks
+        int bits = 63 - Long.numberOfLeadingZeros(avgSize);
+        _maskSmall = -1L << (64 - Math.min(bits + 1, 63));
+        _maskLarge = -1L << (64 - Math.max(bits - 1, 1));
+    }
+
+    /**
+     * Get the minimum chunk size. Only the last chunk of the data passed to {@link #split} can be smaller.
+     *
+     * @return the minimum chunk size in bytes
+     */
+    public int getMinSize() {
+        return _minSize;
+    }
+
+    /**
+     * Split the data into chunks. Only the end of the data is always a chunk boundary,
+     * so the data should start at a boundary for the chunks to match the ones produced before.
+     *
+     * @param data the data to split
+     * @return the chunks, in order
+     */
+    public List<ByteString> split(ByteString data) {
+        var ret = new ArrayList<ByteString>();
+        int size = data.size();
+        int cur = 0;
+        while (cur < size) {
+            int end = cur + findBoundary(data.substring(cur, Math.min(size, cur + _maxSize)));
+            ret.add(data.substring(cur, end));
+            cur = end;
+        }
+        return ret;
+    }
+
+    private int findBoundary(ByteString data) {
+        int size = data.size();
+        if (size <= _minSize)
+            return size;
+
+        int normalSize = Math.min(_avgSize, size);
+        var it = data.substring(_minSize).iterator();
+        long hash = 0;
+        int i = _minSize;
+
+        for (; i < normalSize; i++) {
+            hash = (hash << 1) + GEAR[it.nextByte() & 0xFF];
+            if ((hash & _maskSmall) == 0)
+                return i + 1;
+        }
+        for (; i < size; i++) {
+            hash = (hash << 1) + GEAR[it.nextByte() & 0xFF];
+            if ((hash & _maskLarge) == 0)
+                return i + 1;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,9 @@
+package com.usatiuk.dhfsfs;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+
+@QuarkusTest
+@TestProfile(Profiles.DhfsFileServiceSimpleTestProfileCompression.class)
+public class DhfsFileServiceSimpleTestCompressionTest extends DhfsFileServiceSimpleTestImpl {
+}
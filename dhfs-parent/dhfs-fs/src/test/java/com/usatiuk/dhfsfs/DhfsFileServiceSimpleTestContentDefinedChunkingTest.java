@@ -0,0 +1,62 @@
+package com.usatiuk.dhfsfs;
+
+import com.usatiuk.dhfs.jmap.JMapHelper;
+import com.usatiuk.dhfsfs.objects.ChunkData;
+import com.usatiuk.dhfsfs.objects.File;
+import com.usatiuk.objects.JObjectKey;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@QuarkusTest
+@TestProfile(Profiles.DhfsFileServiceSimpleTestProfileContentDefinedChunking.class)
+public class DhfsFileServiceSimpleTestContentDefinedChunkingTest extends DhfsFileServiceSimpleTestImpl {
+    @Inject
+    JMapHelper jMapHelper;
+
+    private List<Integer> chunkSizes(JObjectKey uuid) {
+        return jObjectTxManager.run(() -> {
+            var file = remoteTx.getData(File.class, uuid).orElseThrow();
+            var ret = new ArrayList<Integer>();
+            try (var it = jMapHelper.getIterator(file)) {
+                while (it.hasNext())
+                    ret.add(remoteTx.getData(ChunkData.class, it.next().getValue().ref()).orElseThrow().data().size());
+            }
+            return ret;
+        });
+    }
+
+    @Test
+    void noSmallChunksTest() {
+        var uuid = fileService.create("/noSmallChunksTest", 777).orElseThrow();
+        var random = new Random(1);
+        var expected = new byte[0];
+
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[1 + random.nextInt(3)];
+            random.nextBytes(data);
+            // Mostly appends, with some overwrites in the middle
+            int offset = expected.length == 0 || random.nextInt(4) != 0 ? expected.length : random.nextInt(expected.length);
+            fileService.write(uuid, offset, data);
+
+            if (offset + data.length > expected.length)
+                expected = Arrays.copyOf(expected, offset + data.length);
+            System.arraycopy(data, 0, expected, offset, data.length);
+        }
+
+        Assertions.assertArrayEquals(expected, fileService.read(uuid, 0, expected.length).toByteArray());
+        var sizes = chunkSizes(uuid);
+        // Only the last chunk can be smaller than the minimum of 2
+        for (int i = 0; i < sizes.size() - 1; i++)
+            Assertions.assertTrue(sizes.get(i) >= 2, "Chunk " + i + " of " + sizes);
+
+        fileService.unlink("/noSmallChunksTest");
+    }
+}
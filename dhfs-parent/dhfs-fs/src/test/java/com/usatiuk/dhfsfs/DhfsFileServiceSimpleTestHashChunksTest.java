@@ -0,0 +1,106 @@
+package com.usatiuk.dhfsfs;
+
+import com.usatiuk.dhfs.jmap.JMapHelper;
+import com.usatiuk.dhfsfs.objects.ChunkData;
+import com.usatiuk.dhfsfs.objects.File;
+import com.usatiuk.objects.JObjectKey;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+
+@QuarkusTest
+@TestProfile(Profiles.DhfsFileServiceSimpleTestProfileHashChunks.class)
+public class DhfsFileServiceSimpleTestHashChunksTest extends DhfsFileServiceSimpleTestImpl {
+    @Inject
+    JMapHelper jMapHelper;
+
+    private List<JObjectKey> chunkKeys(JObjectKey uuid) {
+        return jObjectTxManager.run(() -> {
+            var file = remoteTx.getData(File.class, uuid).orElseThrow();
+            var ret = new ArrayList<JObjectKey>();
+            try (var it = jMapHelper.getIterator(file)) {
+                while (it.hasNext())
+                    ret.add(it.next().getValue().ref());
+            }
+            return ret;
+        });
+    }
+
+    // Other tests write the same small arrays, and the chunks are shared between all the files
+    private static byte[] uniqueData(int size) {
+        var ret = new byte[size];
+        ThreadLocalRandom.current().nextBytes(ret);
+        return ret;
+    }
+
+    private int refCount(JObjectKey chunk) {
+        return jObjectTxManager.run(() -> remoteTx.getMeta(chunk).map(m -> m.refsFrom().size()).orElse(0));
+    }
+
+    @Test
+    void sameDataSharesChunksTest() {
+        var data = uniqueData(8);
+        var uuid1 = fileService.create("/sameDataSharesChunksTest1", 777).orElseThrow();
+        var uuid2 = fileService.create("/sameDataSharesChunksTest2", 777).orElseThrow();
+        fileService.write(uuid1, 0, data);
+        fileService.write(uuid2, 0, data);
+
+        var chunks = chunkKeys(uuid1);
+        // Chunks of 4 bytes
+        Assertions.assertEquals(2, chunks.size());
+        Assertions.assertEquals(chunks, chunkKeys(uuid2));
+        for (var chunk : chunks) {
+            Assertions.assertTrue(ChunkData.isContentKey(chunk));
+            Assertions.assertEquals(2, refCount(chunk));
+        }
+
+        fileService.unlink("/sameDataSharesChunksTest1");
+        fileService.unlink("/sameDataSharesChunksTest2");
+    }
+
+    @Test
+    void sameDataInOneFileTest() {
+        var uuid = fileService.create("/sameDataInOneFileTest", 777).orElseThrow();
+        var half = uniqueData(4);
+        var data = new byte[8];
+        System.arraycopy(half, 0, data, 0, 4);
+        System.arraycopy(half, 0, data, 4, 4);
+        fileService.write(uuid, 0, data);
+
+        var chunks = chunkKeys(uuid);
+        Assertions.assertEquals(2, chunks.size());
+        Assertions.assertEquals(chunks.get(0), chunks.get(1));
+        Assertions.assertEquals(2, refCount(chunks.get(0)));
+
+        fileService.unlink("/sameDataInOneFileTest");
+    }
+
+    @Test
+    void deleteKeepsSharedChunkTest() {
+        var data = uniqueData(8);
+        var uuid1 = fileService.create("/deleteKeepsSharedChunkTest1", 777).orElseThrow();
+        var uuid2 = fileService.create("/deleteKeepsSharedChunkTest2", 777).orElseThrow();
+        fileService.write(uuid1, 0, data);
+        fileService.write(uuid2, 0, data);
+        var chunks = chunkKeys(uuid2);
+
+        fileService.unlink("/deleteKeepsSharedChunkTest1");
+        await().atMost(5, TimeUnit.SECONDS).until(() -> chunks.stream().allMatch(c -> refCount(c) == 1));
+
+        for (var chunk : chunks)
+            Assertions.assertTrue(jObjectTxManager.run(() -> remoteTx.getData(ChunkData.class, chunk).isPresent()));
+        Assertions.assertArrayEquals(data, fileService.read(uuid2, 0, data.length).toByteArray());
+
+        fileService.unlink("/deleteKeepsSharedChunkTest2");
+        await().atMost(5, TimeUnit.SECONDS).until(() -> chunks.stream().allMatch(c -> refCount(c) == 0));
+    }
+}
@@ -11,6 +11,8 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
 
 class Profiles {
@@ -38,6 +40,46 @@ class Profiles {
             ret.put("dhfs.files.target_chunk_alignment", "2");
         }
     }
+
+    public static class DhfsFileServiceSimpleTestProfileContentDefinedChunking extends TempDataProfile {
+        @Override
+        protected void getConfigOverrides(Map<String, String> ret) {
+            ret.put("dhfs.fuse.enabled", "false");
+            ret.put("dhfs.files.content_defined_chunking", "true");
+            ret.put("dhfs.files.cdc.min_chunk_size", "2");
+            ret.put("dhfs.files.cdc.avg_chunk_size", "4");
+            ret.put("dhfs.files.cdc.max_chunk_size", "8");
+        }
+    }
+
+    public static class DhfsFileServiceSimpleTestProfileHashChunks extends TempDataProfile {
+        @Override
+        protected void getConfigOverrides(Map<String, String> ret) {
+            ret.put("dhfs.fuse.enabled", "false");
+            ret.put("dhfs.files.target_chunk_size", "3");
+            ret.put("dhfs.files.target_chunk_alignment", "2");
+            ret.put("dhfs.files.max_chunk_size", "4");
+            ret.put("dhfs.files.use_hash_for_chunks", "true");
+        }
+    }
+
+    public static class DhfsFileServiceSimpleTestProfileCompression extends TempDataProfile {
+        @Override
+        protected void getConfigOverrides(Map<String, String> ret) {
+            ret.put("dhfs.fuse.enabled", "false");
+            ret.put("dhfs.files.compression.storage", "zstd");
+            ret.put("dhfs.files.compression.min_size", "0");
+            ret.put("dhfs.files.compression.max_ratio", "100");
+        }
+    }
+
+    public static class DhfsFileServiceSimpleTestProfileBinarySerializer extends TempDataProfile {
+        @Override
+        protected void getConfigOverrides(Map<String, String> ret) {
+            ret.put("dhfs.fuse.enabled", "false");
+            ret.put("dhfs.objects.serializer", "binary");
+        }
+    }
 }
 
 public abstract class DhfsFileServiceSimpleTestImpl {
@@ -130,6 +172,29 @@ public abstract class DhfsFileServiceSimpleTestImpl {
         Assertions.assertFalse(fileService.open("/writeTest").isPresent());
     }
 
+    @Test
+    void readToBufferTest() {
+        var ret = fileService.create("/readToBufferTest", 777);
+        Assertions.assertTrue(ret.isPresent());
+
+        var uuid = ret.get();
+
+        byte[] all = new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12};
+        fileService.write(uuid, 0, all);
+
+        for (int start = 0; start < all.length; start++) {
+            for (int end = start; end <= all.length + 2; end++) {
+                var out = new byte[end - start];
+                var read = fileService.read(uuid, start, end - start, (data, pos) -> data.get(data.position(), out, pos, data.remaining()));
+                int expected = Math.min(end, all.length) - start;
+                Assertions.assertEquals(expected, read);
+                Assertions.assertArrayEquals(Arrays.copyOfRange(all, start, start + expected), Arrays.copyOf(out, read));
+            }
+        }
+
+        fileService.unlink("/readToBufferTest");
+    }
+
     @Test
     void removeTest() {
         var ret = fileService.create("/removeTest", 777);
@@ -299,4 +364,29 @@ public abstract class DhfsFileServiceSimpleTestImpl {
         Assertions.assertArrayEquals(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
                 fileService.read(fileService.open("/movedTest2").get(), 0, 10).toByteArray());
     }
+
+    @Test
+    void largeDirTest() {
+        // Enough to shard the children of the directory, and then to go back to a plain map
+        int count = 2000;
+        fileService.mkdir("/largeDirTest", 777);
+        for (int i = 0; i < count; i++)
+            Assertions.assertTrue(fileService.create("/largeDirTest/f" + i, 777).isPresent());
+
+        var names = new HashSet<String>();
+        fileService.readDir("/largeDirTest").forEach(names::add);
+        Assertions.assertEquals(count, names.size());
+        Assertions.assertTrue(names.contains("f0"));
+        Assertions.assertTrue(names.contains("f" + (count - 1)));
+        Assertions.assertTrue(fileService.open("/largeDirTest/f1234").isPresent());
+
+        for (int i = 0; i < count - 10; i++)
+            fileService.unlink("/largeDirTest/f" + i);
+
+        names.clear();
+        fileService.readDir("/largeDirTest").forEach(names::add);
+        Assertions.assertEquals(10, names.size());
+        Assertions.assertFalse(fileService.open("/largeDirTest/f0").isPresent());
+        Assertions.assertTrue(fileService.open("/largeDirTest/f" + (count - 1)).isPresent());
+    }
 }
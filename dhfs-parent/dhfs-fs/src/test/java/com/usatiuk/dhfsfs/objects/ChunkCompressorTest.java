@@ -0,0 +1,103 @@
+package com.usatiuk.dhfsfs.objects;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.Random;
+
+public class ChunkCompressorTest {
+    static ChunkCompressor compressor() {
+        var ret = new ChunkCompressor();
+        ret.storageCompression = ChunkCompression.NONE;
+        ret.wireCompression = ChunkCompression.NONE;
+        ret.zstdLevel = 3;
+        ret.minSize = 1024;
+        ret.maxRatio = 0.9;
+        return ret;
+    }
+
+    static ByteString compressible(int size) {
+        var ret = new byte[size];
+        for (int i = 0; i < size; i++)
+            ret[i] = (byte) ("compressible text " + (i / 100)).charAt(i % 18);
+        return ByteString.copyFrom(ret);
+    }
+
+    static ByteString random(long seed, int size) {
+        var ret = new byte[size];
+        new Random(seed).nextBytes(ret);
+        return ByteString.copyFrom(ret);
+    }
+
+    private static ChunkCompression encodedAs(ByteString encoded) {
+        return ChunkCompression.values()[encoded.byteAt(0)];
+    }
+
+    @ParameterizedTest
+    @EnumSource(ChunkCompression.class)
+    void compressibleRoundTripTest(ChunkCompression compression) {
+        var compressor = compressor();
+        var data = compressible(100000);
+        var encoded = compressor.encode(data, compression);
+        Assertions.assertEquals(compression, encodedAs(encoded));
+        if (compression != ChunkCompression.NONE)
+            Assertions.assertTrue(encoded.size() < data.size() / 2, "Encoded to " + encoded.size());
+        Assertions.assertEquals(data, compressor.decode(encoded.asReadOnlyByteBuffer()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(ChunkCompression.class)
+    void smallDataNotCompressedTest(ChunkCompression compression) {
+        var compressor = compressor();
+        var data = compressible(1000);
+        Assertions.assertTrue(compressor.compress(data, compression).isEmpty());
+        var encoded = compressor.encode(data, compression);
+        Assertions.assertEquals(ChunkCompression.NONE, encodedAs(encoded));
+        Assertions.assertEquals(data, compressor.decode(encoded.asReadOnlyByteBuffer()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = ChunkCompression.class, names = {"LZ4", "ZSTD"})
+    void incompressibleNotCompressedTest(ChunkCompression compression) {
+        var compressor = compressor();
+        // Smaller than two samples, so the whole data is compressed and then the result is thrown away
+        var small = random(1, 20000);
+        Assertions.assertTrue(compressor.compress(small, compression).isEmpty());
+        // Large enough to be rejected after compressing only a sample
+        var large = random(2, 200000);
+        Assertions.assertTrue(compressor.compress(large, compression).isEmpty());
+        var encoded = compressor.encode(large, compression);
+        Assertions.assertEquals(ChunkCompression.NONE, encodedAs(encoded));
+        Assertions.assertEquals(large, compressor.decode(encoded.asReadOnlyByteBuffer()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = ChunkCompression.class, names = {"LZ4", "ZSTD"})
+    void sampleDecidesTest(ChunkCompression compression) {
+        var compressor = compressor();
+        // The sample at the start doesn't compress, so the rest isn't even tried
+        var randomStart = random(3, 20000).concat(compressible(200000));
+        Assertions.assertTrue(compressor.compress(randomStart, compression).isEmpty());
+        // And the other way around, the sample compresses but the whole data doesn't
+        var compressibleStart = compressible(20000).concat(random(4, 200000));
+        Assertions.assertTrue(compressor.compress(compressibleStart, compression).isEmpty());
+        // Compresses everywhere
+        var compressibleAll = compressible(220000);
+        var compressed = compressor.compress(compressibleAll, compression);
+        Assertions.assertTrue(compressed.isPresent());
+        Assertions.assertEquals(compressibleAll, compressor.decode(compressed.get().asReadOnlyByteBuffer()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = ChunkCompression.class, names = {"LZ4", "ZSTD"})
+    void decodeFromOffsetTest(ChunkCompression compression) {
+        // The serializers decode from the middle of a buffer, after their own header
+        var compressor = compressor();
+        var data = compressible(50000);
+        var buffer = ByteString.copyFromUtf8("prefix").concat(compressor.encode(data, compression)).asReadOnlyByteBuffer();
+        buffer.position(6);
+        Assertions.assertEquals(data, compressor.decode(buffer));
+    }
+}
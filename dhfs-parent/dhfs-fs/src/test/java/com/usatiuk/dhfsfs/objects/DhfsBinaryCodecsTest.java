@@ -0,0 +1,83 @@
+package com.usatiuk.dhfsfs.objects;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.dhfs.SyncBaseBinaryCodecs;
+import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeNode;
+import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeNodeHolder;
+import com.usatiuk.dhfs.remoteobj.RemoteObjectDataWrapper;
+import com.usatiuk.objects.BinaryDataSerializer;
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.JavaDataSerializer;
+import com.usatiuk.objects.binary.BinaryCodecRegistry;
+import com.usatiuk.objects.binary.BinaryReader;
+import com.usatiuk.objects.binary.BinaryWriter;
+import com.usatiuk.utils.SerializationHelper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.List;
+
+public class DhfsBinaryCodecsTest {
+    private static final DhfsBinaryCodecs CODECS = new DhfsBinaryCodecs();
+    private static final BinaryCodecRegistry REGISTRY = new BinaryCodecRegistry(List.of(new SyncBaseBinaryCodecs(), CODECS));
+
+    private static List<Object> samples() {
+        return List.of(
+                new File(JObjectKey.of("file"), 0644, 1, 2, true, 3),
+                new ChunkData(JObjectKey.of("chunk"), ByteString.copyFromUtf8("chunk data")),
+                new JKleppmannTreeNodeMetaFile("file", JObjectKey.of("file")),
+                new JKleppmannTreeNodeMetaDirectory("directory")
+        );
+    }
+
+    @Test
+    void samplesCoverAllCodecsTest() {
+        var types = new HashSet<Class<?>>();
+        for (var codec : CODECS.codecs())
+            types.add(codec.type());
+        var sampled = new HashSet<Class<?>>();
+        for (var sample : samples())
+            sampled.add(sample.getClass());
+        Assertions.assertEquals(types, sampled);
+    }
+
+    @Test
+    void roundTripTest() {
+        for (var sample : samples()) {
+            var writer = new BinaryWriter(REGISTRY);
+            writer.writeObject(sample);
+            var written = writer.toByteString();
+            // The object is written by its codec, not with Java serialization
+            Assertions.assertTrue(written.size() < SerializationHelper.serialize((Serializable) sample).size(),
+                    "Written " + sample.getClass() + " with " + written.size() + " bytes");
+            Assertions.assertEquals(sample, new BinaryReader(REGISTRY, written.asReadOnlyByteBuffer()).readObject());
+        }
+    }
+
+    @Test
+    void readsJavaSerializedTest() {
+        // Objects stored by JavaDataSerializer before the binary format was enabled, as they are stored
+        var serializer = new BinaryDataSerializer(REGISTRY);
+        var javaSerializer = new JavaDataSerializer();
+        var file = new File(JObjectKey.of("file"), 0644, 1, 2, false, 3);
+        List<JData> objects = List.of(
+                new RemoteObjectDataWrapper<>(file),
+                new RemoteObjectDataWrapper<>(new ChunkData(JObjectKey.of("chunk"), ByteString.copyFromUtf8("chunk data"))),
+                new JKleppmannTreeNodeHolder(new JKleppmannTreeNode(JObjectKey.of("node"), JObjectKey.of("parent"),
+                        new JKleppmannTreeNodeMetaFile("file", file.key()))),
+                new JKleppmannTreeNodeHolder(new JKleppmannTreeNode(JObjectKey.of("dir"), JObjectKey.of("parent"),
+                        new JKleppmannTreeNodeMetaDirectory("dir")))
+        );
+        for (var obj : objects) {
+            var read = serializer.deserialize(javaSerializer.serialize(obj).asReadOnlyByteBuffer());
+            Assertions.assertEquals(obj, read);
+            // And are written in the binary format when changed
+            var rewritten = serializer.serialize(read);
+            Assertions.assertNotEquals(javaSerializer.serialize(obj), rewritten);
+            Assertions.assertEquals(obj, serializer.deserialize(rewritten.asReadOnlyByteBuffer()));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.usatiuk.dhfsfs.objects;
+
+import com.usatiuk.dhfs.persistence.JDataRemoteDtoP;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.utils.SerializationHelper;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.List;
+
+public class DhfsRemoteObjectSerializerTest {
+    private static DhfsRemoteObjectSerializer serializer(ChunkCompression wireCompression) {
+        var compressor = ChunkCompressorTest.compressor();
+        compressor.wireCompression = wireCompression;
+        var ret = new DhfsRemoteObjectSerializer();
+        ret.chunkCompressor = compressor;
+        return ret;
+    }
+
+    @Test
+    void uncompressedIsJavaSerializationTest() {
+        // What peers without wire compression send and expect
+        var chunk = new ChunkData(JObjectKey.of("chunk"), ChunkCompressorTest.compressible(100000));
+        var serialized = serializer(ChunkCompression.NONE).serialize(chunk);
+        Assertions.assertEquals(chunk, SerializationHelper.deserialize(serialized.getSerializedData().toByteArray()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(ChunkCompression.class)
+    void readsJavaSerializationTest(ChunkCompression wireCompression) {
+        var chunk = new ChunkData(JObjectKey.of("chunk"), ChunkCompressorTest.compressible(100000));
+        var message = JDataRemoteDtoP.newBuilder().setSerializedData(SerializationHelper.serialize(chunk)).build();
+        Assertions.assertEquals(chunk, serializer(wireCompression).deserialize(message));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = ChunkCompression.class, names = {"LZ4", "ZSTD"})
+    void compressedRoundTripTest(ChunkCompression wireCompression) {
+        var serializer = serializer(wireCompression);
+        var chunk = new ChunkData(JObjectKey.of("chunk-ключ"), ChunkCompressorTest.compressible(100000));
+        var serialized = serializer.serialize(chunk);
+        Assertions.assertTrue(serialized.getSerializedData().size() < chunk.data().size() / 2);
+        Assertions.assertEquals(chunk, serializer.deserialize(serialized));
+        // Decoding doesn't depend on the local setting
+        Assertions.assertEquals(chunk, serializer(ChunkCompression.NONE).deserialize(serialized));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = ChunkCompression.class, names = {"LZ4", "ZSTD"})
+    void incompressibleRoundTripTest(ChunkCompression wireCompression) {
+        var serializer = serializer(wireCompression);
+        var chunk = new ChunkData(JObjectKey.of("chunk"), ChunkCompressorTest.random(1, 100000));
+        var serialized = serializer.serialize(chunk);
+        // Sent as is, with just the headers
+        Assertions.assertTrue(serialized.getSerializedData().size() < chunk.data().size() + 32);
+        Assertions.assertEquals(chunk, serializer.deserialize(serialized));
+    }
+
+    @ParameterizedTest
+    @EnumSource(ChunkCompression.class)
+    void otherObjectsTest(ChunkCompression wireCompression) {
+        var serializer = serializer(wireCompression);
+        var file = new FileDto(new File(JObjectKey.of("file"), 0644, 1, 2, false, 3), List.of(Pair.of(0L, JObjectKey.of("chunk"))));
+        var serialized = serializer.serialize(file);
+        Assertions.assertEquals(file, SerializationHelper.deserialize(serialized.getSerializedData().toByteArray()));
+        Assertions.assertEquals(file, serializer.deserialize(serialized));
+    }
+}
@@ -0,0 +1,131 @@
+package com.usatiuk.dhfsfs.service;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+public class FastCdcChunkerTest {
+    private static final int MIN = 1024;
+    private static final int AVG = 4096;
+    private static final int MAX = 16384;
+
+    private static ByteString randomData(long seed, int size) {
+        var bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static List<Integer> sizes(List<ByteString> chunks) {
+        return chunks.stream().map(ByteString::size).toList();
+    }
+
+    private static int changedChunks(List<ByteString> before, List<ByteString> after) {
+        var old = new HashSet<>(before);
+        return (int) after.stream().filter(c -> !old.contains(c)).count();
+    }
+
+    @Test
+    void invalidSizesTest() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new FastCdcChunker(0, AVG, MAX));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new FastCdcChunker(AVG + 1, AVG, MAX));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new FastCdcChunker(MIN, MAX + 1, MAX));
+    }
+
+    @Test
+    void deterministicTest() {
+        var data = randomData(1, 1 << 20);
+        var first = new FastCdcChunker(MIN, AVG, MAX).split(data);
+        var second = new FastCdcChunker(MIN, AVG, MAX).split(data);
+        Assertions.assertEquals(first, second);
+        Assertions.assertEquals(data, ByteString.copyFrom(first));
+    }
+
+    @Test
+    void chunkSizesTest() {
+        var chunker = new FastCdcChunker(MIN, AVG, MAX);
+        var data = randomData(2, 1 << 20);
+        var chunks = chunker.split(data);
+        Assertions.assertEquals(data, ByteString.copyFrom(chunks));
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            Assertions.assertTrue(chunks.get(i).size() >= MIN, "Chunk " + i + " is too small: " + chunks.get(i).size());
+            Assertions.assertTrue(chunks.get(i).size() <= MAX, "Chunk " + i + " is too large: " + chunks.get(i).size());
+        }
+        Assertions.assertTrue(chunks.getLast().size() <= MAX);
+        // Not exact, but the normalized chunking keeps the average around the target
+        double avg = (double) data.size() / chunks.size();
+        Assertions.assertTrue(avg > AVG / 2.0 && avg < AVG * 2.0, "Average chunk size " + avg);
+    }
+
+    @Test
+    void maxSizeTest() {
+        // Nothing in the zeros ever matches the masks, so every chunk is cut at the maximum size
+        var chunker = new FastCdcChunker(MIN, AVG, MAX);
+        var chunks = chunker.split(ByteString.copyFrom(new byte[MAX * 3 + 5]));
+        Assertions.assertEquals(List.of(MAX, MAX, MAX, 5), sizes(chunks));
+    }
+
+    @Test
+    void smallDataTest() {
+        var chunker = new FastCdcChunker(MIN, AVG, MAX);
+        Assertions.assertEquals(List.of(), chunker.split(ByteString.empty()));
+        Assertions.assertEquals(List.of(MIN), sizes(chunker.split(randomData(3, MIN))));
+        Assertions.assertEquals(List.of(10), sizes(chunker.split(randomData(3, 10))));
+    }
+
+    @Test
+    void overwriteLocalityTest() {
+        var chunker = new FastCdcChunker(MIN, AVG, MAX);
+        var data = randomData(4, 1 << 20);
+        var before = chunker.split(data);
+
+        var edited = data.toByteArray();
+        edited[data.size() / 2] ^= 1;
+        var after = chunker.split(ByteString.copyFrom(edited));
+
+        Assertions.assertTrue(changedChunks(before, after) <= 2, "Changed " + changedChunks(before, after) + " chunks");
+    }
+
+    @Test
+    void insertLocalityTest() {
+        var chunker = new FastCdcChunker(MIN, AVG, MAX);
+        var data = randomData(5, 1 << 20);
+        var before = chunker.split(data);
+
+        int at = data.size() / 3;
+        var inserted = data.substring(0, at).concat(randomData(6, 100)).concat(data.substring(at));
+        var after = chunker.split(inserted);
+
+        // The boundaries after the insert shift by its size, but the chunks stay the same
+        Assertions.assertTrue(changedChunks(before, after) <= 2, "Changed " + changedChunks(before, after) + " chunks");
+        Assertions.assertEquals(before.getLast(), after.getLast());
+    }
+
+    @Test
+    void splitFromBoundaryTest() {
+        // Splitting from a boundary gives the same chunks as splitting everything, which is what the writes rely on
+        var chunker = new FastCdcChunker(MIN, AVG, MAX);
+        var data = randomData(7, 1 << 18);
+        var all = chunker.split(data);
+        int offset = all.get(0).size() + all.get(1).size();
+        Assertions.assertEquals(all.subList(2, all.size()), chunker.split(data.substring(offset)));
+    }
+
+    @Test
+    void appendTest() {
+        // Re-chunking the last chunk with the appended data gives the same chunks as chunking all the data at once
+        var chunker = new FastCdcChunker(MIN, AVG, MAX);
+        var data = randomData(8, 1 << 18);
+        var chunks = new ArrayList<ByteString>();
+        for (int pos = 0; pos < data.size(); pos += 777) {
+            var appended = data.substring(pos, Math.min(data.size(), pos + 777));
+            var tail = chunks.isEmpty() ? ByteString.empty() : chunks.removeLast();
+            chunks.addAll(chunker.split(tail.concat(appended)));
+        }
+        Assertions.assertEquals(chunker.split(data), chunks);
+    }
+}
@@ -34,6 +34,7 @@ import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -46,7 +47,7 @@ import static jnr.posix.FileStat.*;
 public class DhfsFuse extends FuseStubFS {
     private static final int blksize = 1048576;
     private static final int iosize = 1048576;
-    private final ConcurrentHashMap<Long, JObjectKey> _openHandles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, OpenHandle> _openHandles = new ConcurrentHashMap<>();
     private final AtomicLong _fh = new AtomicLong(1);
     @ConfigProperty(name = "dhfs.fuse.root")
     String root;
@@ -54,8 +55,27 @@ public class DhfsFuse extends FuseStubFS {
     boolean enabled;
     @ConfigProperty(name = "dhfs.fuse.debug")
     Boolean debug;
+    @ConfigProperty(name = "dhfs.fuse.fsync.mode", defaultValue = "local")
+    FsyncMode fsyncMode;
+    @ConfigProperty(name = "dhfs.fuse.fsync.peers", defaultValue = "1")
+    int fsyncPeers;
+    @ConfigProperty(name = "dhfs.fuse.fsync.peers-timeout-ms", defaultValue = "30000")
+    long fsyncPeersTimeoutMs;
     @Inject
     DhfsFileService fileService;
+    @Inject
+    ReadAheadService readAheadService;
+    @Inject
+    WriteBufferService writeBufferService;
+
+    /**
+     * State associated with an open file handle.
+     *
+     * @param key       the key of the opened file
+     * @param readAhead the read-ahead state of the handle
+     */
+    private record OpenHandle(JObjectKey key, ReadAheadService.ReadAheadState readAhead) {
+    }
 
     /**
      * Allocate a handle for the given key.
@@ -64,15 +84,39 @@ public class DhfsFuse extends FuseStubFS {
      * @return the allocated handle, not 0
      */
     private long allocateHandle(JObjectKey key) {
+        var handle = new OpenHandle(key, readAheadService.open(key));
         while (true) {
             var newFh = _fh.getAndIncrement();
             if (newFh == 0) continue;
-            if (_openHandles.putIfAbsent(newFh, key) == null) {
+            if (_openHandles.putIfAbsent(newFh, handle) == null) {
                 return newFh;
             }
         }
     }
 
+    /**
+     * Get a stable inode number for the given key.
+     * The keys of files and directories are random UUIDs, so their bits are used directly,
+     * for other keys (like the root directory) a hash of the key is used.
+     *
+     * @param key the key of the file or directory
+     * @return the inode number, positive and not 0 or 1
+     */
+    static long inodeOf(JObjectKey key) {
+        long ino;
+        try {
+            var uuid = UUID.fromString(key.value());
+            ino = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        } catch (IllegalArgumentException e) {
+            ino = 1125899906842597L;
+            for (int i = 0; i < key.value().length(); i++)
+                ino = 31 * ino + key.value().charAt(i);
+        }
+        ino &= Long.MAX_VALUE;
+        // 0 is invalid and 1 is reserved for the root in FUSE
+        return ino < 2 ? ino + 2 : ino;
+    }
+
     /**
      * Get the key from the handle.
      *
@@ -80,6 +124,17 @@ public class DhfsFuse extends FuseStubFS {
      * @return the key, or null if not found
      */
     private JObjectKey getFromHandle(long handle) {
+        var found = getOpenHandle(handle);
+        return found == null ? null : found.key();
+    }
+
+    /**
+     * Get the state of an open handle.
+     *
+     * @param handle the handle to get the state of
+     * @return the handle state, or null if not found
+     */
+    private OpenHandle getOpenHandle(long handle) {
         if (handle == 0)
             throw new IllegalStateException("Handle is 0");
         return _openHandles.get(handle);
@@ -124,6 +179,8 @@ public class DhfsFuse extends FuseStubFS {
             opts.add("-o");
             opts.add("auto_cache");
             opts.add("-o");
+            opts.add("use_ino");
+            opts.add("-o");
             opts.add("uid=" + uid);
             opts.add("-o");
             opts.add("gid=" + gid);
@@ -165,6 +222,7 @@ public class DhfsFuse extends FuseStubFS {
             var fileOpt = fileService.open(path);
             if (fileOpt.isEmpty()) return -ErrorCodes.ENOENT();
             var uuid = fileOpt.get();
+            writeBufferService.flush(uuid);
             Optional<GetattrRes> found = fileService.getattr(uuid);
             if (found.isEmpty()) {
                 return -ErrorCodes.ENOENT();
@@ -194,6 +252,7 @@ public class DhfsFuse extends FuseStubFS {
             stat.st_atim.tv_sec.set(atime / 1000);
             stat.st_atim.tv_nsec.set((atime % 1000) * 1000000L);
             stat.st_blksize.set(blksize);
+            stat.st_ino.set(inodeOf(uuid));
         } catch (Throwable e) {
             Log.error("When getattr " + path, e);
             return -ErrorCodes.EIO();
@@ -207,6 +266,7 @@ public class DhfsFuse extends FuseStubFS {
             var fileOpt = fileService.open(path);
             if (fileOpt.isEmpty()) return -ErrorCodes.ENOENT();
             var file = fileOpt.get();
+            writeBufferService.flush(file);
             var res = fileService.setTimes(file,
                     timespec[1].tv_sec.get() * 1000L + timespec[1].tv_nsec.longValue() / 1000000L);
             if (!res) return -ErrorCodes.EINVAL();
@@ -233,7 +293,15 @@ public class DhfsFuse extends FuseStubFS {
     @Override
     public int release(String path, FuseFileInfo fi) {
         assert fi.fh.get() != 0;
-        _openHandles.remove(fi.fh.get());
+        var removed = _openHandles.remove(fi.fh.get());
+        if (removed == null) return 0;
+        readAheadService.close(removed.readAhead());
+        try {
+            writeBufferService.flush(removed.key());
+        } catch (Throwable e) {
+            Log.error("When flushing " + path, e);
+            return -ErrorCodes.EIO();
+        }
         return 0;
     }
 
@@ -242,17 +310,74 @@ public class DhfsFuse extends FuseStubFS {
         if (size < 0) return -ErrorCodes.EINVAL();
         if (offset < 0) return -ErrorCodes.EINVAL();
         try {
-            var fileKey = getFromHandle(fi.fh.get());
-            var read = fileService.read(fileKey, offset, (int) size);
-            if (read.isEmpty()) return 0;
-            UnsafeByteOperations.unsafeWriteTo(read, new JnrPtrByteOutput(buf, size));
-            return read.size();
+            var handle = getOpenHandle(fi.fh.get());
+            writeBufferService.flush(handle.key());
+            var output = new JnrPtrByteOutput(buf, size);
+            var read = fileService.read(handle.key(), offset, (int) size, (data, pos) -> output.writeAt(pos, data));
+            if (read == 0) return 0;
+            readAheadService.onRead(handle.readAhead(), offset, read);
+            return read;
         } catch (Throwable e) {
             Log.error("When reading " + path, e);
             return -ErrorCodes.EIO();
         }
     }
 
+    /**
+     * Wait for the changes to a file to be durably stored, according to the configured fsync mode.
+     *
+     * @param path the path of the file, for logging
+     * @param key  the key of the file
+     * @return 0 on success, or a negative error code
+     */
+    private int syncFile(String path, JObjectKey key) {
+        if (fsyncMode == FsyncMode.NONE) return 0;
+        var ok = fileService.sync(key, fsyncMode == FsyncMode.PEERS ? fsyncPeers : 0, fsyncPeersTimeoutMs);
+        if (!ok) {
+            Log.warnv("Could not durably sync {0}", path);
+            return -ErrorCodes.EIO();
+        }
+        return 0;
+    }
+
+    @Override
+    public int flush(String path, FuseFileInfo fi) {
+        try {
+            var handle = getOpenHandle(fi.fh.get());
+            if (handle == null) return -ErrorCodes.EBADF();
+            writeBufferService.flush(handle.key());
+            return 0;
+        } catch (Throwable e) {
+            Log.error("When flushing " + path, e);
+            return -ErrorCodes.EIO();
+        }
+    }
+
+    @Override
+    public int fsync(String path, int isdatasync, FuseFileInfo fi) {
+        try {
+            var handle = getOpenHandle(fi.fh.get());
+            if (handle == null) return -ErrorCodes.EBADF();
+            writeBufferService.flush(handle.key());
+            return syncFile(path, handle.key());
+        } catch (Throwable e) {
+            Log.error("When fsyncing " + path, e);
+            return -ErrorCodes.EIO();
+        }
+    }
+
+    @Override
+    public int fsyncdir(String path, FuseFileInfo fi) {
+        try {
+            var dirOpt = fileService.open(path);
+            if (dirOpt.isEmpty()) return -ErrorCodes.ENOENT();
+            return syncFile(path, dirOpt.get());
+        } catch (Throwable e) {
+            Log.error("When fsyncing dir " + path, e);
+            return -ErrorCodes.EIO();
+        }
+    }
+
     @Override
     public int write(String path, Pointer buf, long size, long offset, FuseFileInfo fi) {
         var buffer = UninitializedByteBuffer.allocate((int) size);
@@ -268,7 +393,7 @@ public class DhfsFuse extends FuseStubFS {
         if (offset < 0) return -ErrorCodes.EINVAL();
         try {
             var fileKey = getFromHandle(fi.fh.get());
-            var written = fileService.write(fileKey, offset, UnsafeByteOperations.unsafeWrap(buffer));
+            var written = writeBufferService.write(fileKey, offset, UnsafeByteOperations.unsafeWrap(buffer));
             return Math.toIntExact(written);
         } catch (Exception e) {
             Log.error("When writing " + path, e);
@@ -318,9 +443,12 @@ public class DhfsFuse extends FuseStubFS {
     @Override
     public int rename(String path, String newName) {
         try {
+            var source = fileService.open(path);
+            var replaced = fileService.open(newName).filter(k -> !source.equals(Optional.of(k)));
             var ret = fileService.rename(path, newName);
             if (!ret) return -ErrorCodes.ENOENT();
-            else return 0;
+            replaced.ifPresent(writeBufferService::discard);
+            return 0;
         } catch (Throwable e) {
             Log.error("When renaming " + path, e);
             return -ErrorCodes.EIO();
@@ -331,7 +459,9 @@ public class DhfsFuse extends FuseStubFS {
     @Override
     public int unlink(String path) {
         try {
+            var removed = fileService.open(path);
             fileService.unlink(path);
+            removed.ifPresent(writeBufferService::discard);
             return 0;
         } catch (Throwable e) {
             Log.error("When unlinking " + path, e);
@@ -345,8 +475,7 @@ public class DhfsFuse extends FuseStubFS {
         try {
             var fileOpt = fileService.open(path);
             if (fileOpt.isEmpty()) return -ErrorCodes.ENOENT();
-            var file = fileOpt.get();
-            var ok = fileService.truncate(file, size);
+            var ok = writeBufferService.truncate(fileOpt.get(), size);
             if (ok)
                 return 0;
             else
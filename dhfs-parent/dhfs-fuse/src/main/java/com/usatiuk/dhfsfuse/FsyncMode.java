@@ -0,0 +1,23 @@
+package com.usatiuk.dhfsfuse;
+
+/**
+ * What fsync waits for before returning.
+ */
+public enum FsyncMode {
+    /**
+     * Only flush the write buffers, don't wait for anything to be written.
+     */
+    NONE,
+    /**
+     * Wait until the changes are written to the local storage.
+     */
+    LOCAL,
+    /**
+     * Wait until the changes are written to the local storage and acknowledged by some number of peers.
+     * <p>
+     * This only covers the metadata of the file: the peers acknowledge its new list of chunks,
+     * but they download the chunks themselves later, from this peer, so until then
+     * the data is still only stored locally.
+     */
+    PEERS
+}
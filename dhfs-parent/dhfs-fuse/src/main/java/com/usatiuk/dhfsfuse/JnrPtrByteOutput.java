@@ -43,20 +43,35 @@ public class JnrPtrByteOutput extends ByteOutput {
     @Override
     public void write(ByteBuffer value) {
         var rem = value.remaining();
-        if (rem + _pos > _size) throw new IndexOutOfBoundsException();
+        writeAt(_pos, value);
+        _pos += rem;
+    }
+
+    /**
+     * Copy the buffer to the given position, without changing the current position.
+     *
+     * @param pos   the position in the output
+     * @param value the data to copy
+     */
+    public void writeAt(long pos, ByteBuffer value) {
+        var rem = value.remaining();
+        if (pos < 0 || rem + pos > _size) throw new IndexOutOfBoundsException();
 
         if (value.isDirect()) {
             if (value instanceof MappedByteBuffer mb) {
                 mb.load();
             }
             long addr = UnsafeAccessor.NIO.getBufferAddress(value) + value.position();
-            var out = _backing.address() + _pos;
+            var out = _backing.address() + pos;
             UnsafeAccessor.UNSAFE.copyMemory(addr, out, rem);
+        } else if (value.hasArray()) {
+            _backing.put(pos, value.array(), value.arrayOffset() + value.position(), rem);
         } else {
-            _backing.put(_pos, value.array(), value.arrayOffset() + value.position(), rem);
+            // Read-only heap buffer
+            var tmp = new byte[rem];
+            value.duplicate().get(tmp);
+            _backing.put(pos, tmp, 0, rem);
         }
-
-        _pos += rem;
     }
 
     @Override
@@ -0,0 +1,147 @@
+package com.usatiuk.dhfsfuse;
+
+import com.usatiuk.dhfsfs.service.DhfsFileService;
+import com.usatiuk.objects.JObjectKey;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sequential read detection and background chunk prefetching for open file handles.
+ * When a handle is read sequentially, the chunks following the current read position are downloaded
+ * in the background, so that subsequent reads of remote files don't have to wait for a round-trip per chunk.
+ */
+@ApplicationScoped
+public class ReadAheadService {
+    @Inject
+    DhfsFileService fileService;
+    @ConfigProperty(name = "dhfs.fuse.readahead.enabled", defaultValue = "true")
+    boolean enabled;
+    @ConfigProperty(name = "dhfs.fuse.readahead.min-bytes", defaultValue = "262144")
+    long minWindow;
+    @ConfigProperty(name = "dhfs.fuse.readahead.max-bytes", defaultValue = "8388608")
+    long maxWindow;
+    @ConfigProperty(name = "dhfs.fuse.readahead.threads", defaultValue = "4")
+    int threads;
+
+    private ExecutorService _prefetchExecutor;
+
+    void init(@Observes @Priority(400) StartupEvent event) {
+        if (!enabled) return;
+        BasicThreadFactory factory = new BasicThreadFactory.Builder()
+                .namingPattern("readahead-%d")
+                .build();
+        _prefetchExecutor = Executors.newFixedThreadPool(threads, factory);
+    }
+
+    void shutdown(@Observes @Priority(10) ShutdownEvent event) {
+        if (_prefetchExecutor != null)
+            _prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * Create the read-ahead state for a newly opened file.
+     *
+     * @param key the key of the opened file
+     * @return the read-ahead state, to be passed to {@link #onRead}
+     */
+    public ReadAheadState open(JObjectKey key) {
+        return new ReadAheadState(key, minWindow);
+    }
+
+    /**
+     * Record a read from a handle and schedule prefetching if the access is sequential.
+     *
+     * @param state  the read-ahead state of the handle
+     * @param offset the offset of the read
+     * @param size   the number of bytes read
+     */
+    public void onRead(ReadAheadState state, long offset, long size) {
+        if (!enabled || size <= 0) return;
+
+        long from, to;
+        synchronized (state) {
+            if (state._closed) return;
+
+            long end = offset + size;
+            if (offset != state._lastEnd) {
+                // Random access, start over
+                state._window = minWindow;
+                state._prefetchedUntil = end;
+                state._lastEnd = end;
+                return;
+            }
+            state._lastEnd = end;
+
+            if (state._prefetchedUntil < end)
+                state._prefetchedUntil = end;
+
+            // Only issue more once less than half of the window is left
+            if (state._inFlight || state._prefetchedUntil - end > state._window / 2)
+                return;
+
+            from = state._prefetchedUntil;
+            to = end + state._window;
+            state._prefetchedUntil = to;
+            state._inFlight = true;
+            state._window = Math.min(state._window * 2, maxWindow);
+        }
+
+        _prefetchExecutor.submit(() -> prefetch(state, from, to));
+    }
+
+    private void prefetch(ReadAheadState state, long from, long to) {
+        try {
+            var missing = fileService.getMissingChunks(state._key, from, to - from);
+            for (var chunk : missing) {
+                if (state._closed) return;
+                if (!fileService.fetchChunk(chunk))
+                    Log.debugv("Could not prefetch chunk {0} of {1}", chunk, state._key);
+            }
+            Log.tracev("Prefetched {0} chunks of {1} in {2}-{3}", missing.size(), state._key, from, to);
+        } catch (Exception e) {
+            Log.debug("Error prefetching " + state._key, e);
+        } finally {
+            synchronized (state) {
+                state._inFlight = false;
+            }
+        }
+    }
+
+    /**
+     * Stop any further prefetching for a handle.
+     *
+     * @param state the read-ahead state of the closed handle
+     */
+    public void close(ReadAheadState state) {
+        synchronized (state) {
+            state._closed = true;
+        }
+    }
+
+    /**
+     * Per-handle read-ahead state.
+     */
+    public static class ReadAheadState {
+        private final JObjectKey _key;
+        private long _lastEnd = 0;
+        private long _prefetchedUntil = 0;
+        private long _window;
+        private boolean _inFlight = false;
+        private volatile boolean _closed = false;
+
+        private ReadAheadState(JObjectKey key, long window) {
+            _key = key;
+            _window = window;
+        }
+    }
+}
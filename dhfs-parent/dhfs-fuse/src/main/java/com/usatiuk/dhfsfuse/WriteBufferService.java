@@ -0,0 +1,317 @@
+package com.usatiuk.dhfsfuse;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.dhfsfs.service.DhfsFileService;
+import com.usatiuk.objects.JObjectKey;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers writes to open files, merging adjacent and overlapping writes into larger extents
+ * before passing them to {@link DhfsFileService#write}.
+ * The buffered data is kept in the (off-heap) buffers it was received in.
+ * Buffers are shared between all handles of the same file, and are flushed when the file is
+ * read, when a handle is released, when it grows over the per-file or total limits, or after a delay.
+ * <p>
+ * An extent is removed from the buffer only after it was written, so if writing fails, the data stays buffered
+ * and the write is retried by the next flush. A write succeeds once its data is buffered, even if the flush
+ * it triggers fails. If the data had to be dropped because the file does not exist anymore,
+ * the error is reported by the next explicit {@link #flush} of the file.
+ */
+@ApplicationScoped
+public class WriteBufferService {
+    private final ConcurrentHashMap<JObjectKey, FileWriteBuffer> _buffers = new ConcurrentHashMap<>();
+    private final AtomicLong _totalBuffered = new AtomicLong(0);
+    // Errors of background flushes that lost data, to be reported by the next flush of the file
+    private final ConcurrentHashMap<JObjectKey, Exception> _lostErrors = new ConcurrentHashMap<>();
+    @Inject
+    DhfsFileService fileService;
+    @ConfigProperty(name = "dhfs.fuse.write-buffer.enabled", defaultValue = "true")
+    boolean enabled;
+    @ConfigProperty(name = "dhfs.fuse.write-buffer.file-limit", defaultValue = "4194304")
+    long fileLimit;
+    @ConfigProperty(name = "dhfs.fuse.write-buffer.total-limit", defaultValue = "67108864")
+    long totalLimit;
+    @ConfigProperty(name = "dhfs.fuse.write-buffer.flush-delay-ms", defaultValue = "1000")
+    long flushDelayMs;
+    @ConfigProperty(name = "dhfs.files.target_chunk_alignment", defaultValue = "17")
+    int targetChunkAlignment;
+    @ConfigProperty(name = "dhfs.files.content_defined_chunking", defaultValue = "false")
+    boolean contentDefinedChunking;
+    private ScheduledExecutorService _flushExecutor;
+
+    void init(@Observes @Priority(400) StartupEvent event) {
+        if (!enabled) return;
+        BasicThreadFactory factory = new BasicThreadFactory.Builder()
+                .namingPattern("write-buffer-flush-%d")
+                .build();
+        _flushExecutor = Executors.newSingleThreadScheduledExecutor(factory);
+        _flushExecutor.scheduleWithFixedDelay(this::flushExpired, flushDelayMs, Math.max(flushDelayMs / 2, 1), TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown(@Observes @Priority(5) ShutdownEvent event) {
+        if (_flushExecutor != null)
+            _flushExecutor.shutdownNow();
+        for (var key : _buffers.keySet()) {
+            try {
+                flush(key);
+            } catch (Exception e) {
+                Log.error("Error flushing buffered writes of " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Write data to a file, buffering it if possible.
+     *
+     * @param key    the key of the file
+     * @param offset the offset to write to
+     * @param data   the data to write, must not be modified afterwards
+     * @return the number of bytes written
+     */
+    public long write(JObjectKey key, long offset, ByteString data) {
+        if (!enabled)
+            return fileService.write(key, offset, data);
+
+        while (true) {
+            var buffer = _buffers.computeIfAbsent(key, FileWriteBuffer::new);
+            synchronized (buffer) {
+                if (buffer._removed) continue;
+                buffer.add(offset, data);
+
+                // The data is buffered already, so failing the write would be wrong if it's written later
+                if (_totalBuffered.get() > totalLimit) {
+                    Log.tracev("Total write buffer limit reached, flushing {0}", key);
+                    flushBufferOrKeep(buffer, false);
+                } else if (buffer._size > fileLimit) {
+                    flushBufferOrKeep(buffer, true);
+                }
+            }
+            return data.size();
+        }
+    }
+
+    /**
+     * Flush all buffered writes of a file.
+     *
+     * @param key the key of the file
+     * @throws IllegalStateException if some buffered writes of the file were lost when flushing them in background
+     */
+    public void flush(JObjectKey key) {
+        var buffer = _buffers.get(key);
+        if (buffer != null) {
+            synchronized (buffer) {
+                flushBuffer(buffer, false);
+            }
+        }
+        var lost = _lostErrors.remove(key);
+        if (lost != null)
+            throw new IllegalStateException("Buffered writes of " + key + " were lost", lost);
+    }
+
+    /**
+     * Flush the buffered writes of a file and truncate it, without letting other writes to it in between.
+     *
+     * @param key    the key of the file
+     * @param length the new length of the file
+     * @return the result of {@link DhfsFileService#truncate}
+     */
+    public boolean truncate(JObjectKey key, long length) {
+        if (!enabled)
+            return fileService.truncate(key, length);
+
+        while (true) {
+            var buffer = _buffers.computeIfAbsent(key, FileWriteBuffer::new);
+            synchronized (buffer) {
+                if (buffer._removed) continue;
+                try {
+                    writeOut(buffer, false);
+                    return fileService.truncate(key, length);
+                } finally {
+                    // Removed only after the truncation, so that new writes wait for it
+                    removeIfEmpty(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the buffered writes of a file that was removed, so they are not written into it anymore.
+     *
+     * @param key the key of the file
+     */
+    public void discard(JObjectKey key) {
+        _lostErrors.remove(key);
+        var buffer = _buffers.get(key);
+        if (buffer == null) return;
+        synchronized (buffer) {
+            while (!buffer._extents.isEmpty())
+                buffer.remove(buffer._extents.firstKey());
+            removeIfEmpty(buffer);
+        }
+    }
+
+    private void flushExpired() {
+        long now = System.currentTimeMillis();
+        for (var buffer : _buffers.values()) {
+            if (now - buffer._firstWriteTime < flushDelayMs) continue;
+            synchronized (buffer) {
+                flushBufferOrKeep(buffer, false);
+            }
+        }
+    }
+
+    /**
+     * Flush the buffer without throwing. If writing fails, the data stays buffered to be retried later,
+     * unless the file doesn't exist anymore, then it's dropped and the error is reported by the next {@link #flush}.
+     * Must be called with the buffer locked.
+     */
+    private void flushBufferOrKeep(FileWriteBuffer buffer, boolean keepUnaligned) {
+        try {
+            flushBuffer(buffer, keepUnaligned);
+        } catch (StatusRuntimeException e) {
+            if (e.getStatus().getCode() != Status.Code.NOT_FOUND) {
+                Log.error("Error flushing buffered writes of " + buffer._key + ", will retry", e);
+                return;
+            }
+            // There is no file to write the data to anymore
+            Log.error("Dropping buffered writes of " + buffer._key, e);
+            discard(buffer._key);
+            _lostErrors.put(buffer._key, e);
+        } catch (Exception e) {
+            Log.error("Error flushing buffered writes of " + buffer._key + ", will retry", e);
+        }
+    }
+
+    /**
+     * Write out the buffered extents, and remove the buffer if everything was written.
+     * Must be called with the buffer locked.
+     *
+     * @param buffer        the buffer to flush
+     * @param keepUnaligned if true, the tail of the last extent that does not fill a whole chunk is kept in the buffer,
+     *                      ignored with content-defined chunking, as then the chunks are not aligned
+     */
+    private void flushBuffer(FileWriteBuffer buffer, boolean keepUnaligned) {
+        if (buffer._removed) return;
+        try {
+            writeOut(buffer, keepUnaligned);
+        } finally {
+            if (!removeIfEmpty(buffer))
+                buffer._firstWriteTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Write out the buffered extents, each is removed from the buffer only after it was written.
+     * Must be called with the buffer locked.
+     */
+    private void writeOut(FileWriteBuffer buffer, boolean keepUnaligned) {
+        while (!buffer._extents.isEmpty()) {
+            var extent = buffer._extents.firstEntry();
+            var data = extent.getValue();
+            long start = extent.getKey();
+
+            if (keepUnaligned && !contentDefinedChunking && buffer._extents.size() == 1 && targetChunkAlignment >= 0) {
+                long alignedEnd = (start + data.size()) & -(1L << targetChunkAlignment);
+                if (alignedEnd <= start) break;
+                int toFlush = Math.toIntExact(alignedEnd - start);
+                if (toFlush < data.size()) {
+                    fileService.write(buffer._key, start, data.substring(0, toFlush));
+                    buffer.remove(start);
+                    buffer.put(alignedEnd, data.substring(toFlush));
+                    break;
+                }
+            }
+
+            fileService.write(buffer._key, start, data);
+            buffer.remove(start);
+        }
+    }
+
+    /**
+     * Remove the buffer from the map if it has no data. Must be called with the buffer locked.
+     *
+     * @return true if the buffer was removed
+     */
+    private boolean removeIfEmpty(FileWriteBuffer buffer) {
+        if (!buffer._extents.isEmpty())
+            return false;
+        buffer._removed = true;
+        _buffers.remove(buffer._key, buffer);
+        return true;
+    }
+
+    /**
+     * Buffered writes of a single file, as non-overlapping extents keyed by their offsets.
+     */
+    private class FileWriteBuffer {
+        private final JObjectKey _key;
+        private final TreeMap<Long, ByteString> _extents = new TreeMap<>();
+        private long _size = 0;
+        private volatile long _firstWriteTime = System.currentTimeMillis();
+        private boolean _removed = false;
+
+        private FileWriteBuffer(JObjectKey key) {
+            _key = key;
+        }
+
+        private void put(long offset, ByteString data) {
+            _extents.put(offset, data);
+            _size += data.size();
+            _totalBuffered.addAndGet(data.size());
+        }
+
+        private void remove(long offset) {
+            var removed = _extents.remove(offset);
+            _size -= removed.size();
+            _totalBuffered.addAndGet(-removed.size());
+        }
+
+        /**
+         * Add a write, merging it with any extents it overlaps or touches. Newer data takes precedence.
+         */
+        private void add(long offset, ByteString data) {
+            long start = offset;
+            long end = offset + data.size();
+            ByteString merged = data;
+
+            Map.Entry<Long, ByteString> prev = _extents.floorEntry(offset);
+            if (prev != null && prev.getKey() + prev.getValue().size() >= offset) {
+                var prevData = prev.getValue();
+                start = prev.getKey();
+                merged = prevData.substring(0, Math.toIntExact(offset - start)).concat(merged);
+                if (prev.getKey() + prevData.size() > end)
+                    merged = merged.concat(prevData.substring(Math.toIntExact(end - start)));
+                remove(prev.getKey());
+            }
+
+            Map.Entry<Long, ByteString> next;
+            while ((next = _extents.ceilingEntry(start)) != null && next.getKey() <= end) {
+                var nextData = next.getValue();
+                long nextEnd = next.getKey() + nextData.size();
+                if (nextEnd > end)
+                    merged = merged.concat(nextData.substring(Math.toIntExact(end - next.getKey())));
+                remove(next.getKey());
+            }
+
+            put(start, merged);
+        }
+    }
+}
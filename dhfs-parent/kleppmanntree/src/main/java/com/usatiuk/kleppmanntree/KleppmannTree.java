@@ -23,6 +23,7 @@ public class KleppmannTree<TimestampT extends Comparable<TimestampT>, PeerIdT ex
     private final PeerInterface<PeerIdT> _peers;
     private final Clock<TimestampT> _clock;
     private final OpRecorder<TimestampT, PeerIdT, MetaT, NodeIdT> _opRecorder;
+    private final LogObserver _logObserver;
 
     /**
      * Constructor with all the dependencies
@@ -36,10 +37,29 @@ public class KleppmannTree<TimestampT extends Comparable<TimestampT>, PeerIdT ex
                          PeerInterface<PeerIdT> peers,
                          Clock<TimestampT> clock,
                          OpRecorder<TimestampT, PeerIdT, MetaT, NodeIdT> opRecorder) {
+        this(storage, peers, clock, opRecorder, new LogObserver() {
+        });
+    }
+
+    /**
+     * Constructor with all the dependencies and a log observer
+     *
+     * @param storage     Storage interface
+     * @param peers       Peer interface
+     * @param clock       Clock interface
+     * @param opRecorder  Operation recorder interface
+     * @param logObserver Log observer interface
+     */
+    public KleppmannTree(StorageInterface<TimestampT, PeerIdT, MetaT, NodeIdT> storage,
+                         PeerInterface<PeerIdT> peers,
+                         Clock<TimestampT> clock,
+                         OpRecorder<TimestampT, PeerIdT, MetaT, NodeIdT> opRecorder,
+                         LogObserver logObserver) {
         _storage = storage;
         _peers = peers;
         _clock = clock;
         _opRecorder = opRecorder;
+        _logObserver = logObserver;
     }
 
     /**
@@ -179,10 +199,12 @@ public class KleppmannTree<TimestampT extends Comparable<TimestampT>, PeerIdT ex
             Set<NodeIdT> inTrash = new HashSet<>();
 
             {
+                int trimmed = 0;
                 Pair<CombinedTimestamp<TimestampT, PeerIdT>, LogRecord<TimestampT, PeerIdT, MetaT, NodeIdT>> entry = null;
                 while ((entry = log.peekOldest()) != null
                         && entry.getLeft().compareTo(threshold) <= 0) {
                     log.takeOldest();
+                    trimmed++;
                     if (entry.getRight().effects() != null)
                         for (var e : entry.getRight().effects()) {
                             if (Objects.equals(e.newParentId(), _storage.getTrashId())) {
@@ -192,6 +214,7 @@ public class KleppmannTree<TimestampT extends Comparable<TimestampT>, PeerIdT ex
                             }
                         }
                 }
+                _logObserver.logTrimmed(trimmed);
             }
 
             if (!inTrash.isEmpty()) {
@@ -251,6 +274,66 @@ public class KleppmannTree<TimestampT extends Comparable<TimestampT>, PeerIdT ex
         applyOp(from, op, false);
     }
 
+    /**
+     * Apply a batch of external operations from a remote peer
+     * <p>
+     * The result is the same as applying them one by one with {@link #applyExternalOp},
+     * but the log is undone only once, to the oldest of the operations,
+     * and the undone entries are redone together with the new operations in one pass in timestamp order,
+     * instead of undoing and redoing them for every operation that is older than the log head.
+     *
+     * @param from The peer ID
+     * @param ops  The operations to apply, in any order
+     */
+    public void applyExternalOps(PeerIdT from, Collection<? extends OpMove<TimestampT, PeerIdT, MetaT, NodeIdT>> ops) {
+        if (ops.isEmpty()) return;
+
+        var sorted = new ArrayList<OpMove<TimestampT, PeerIdT, MetaT, NodeIdT>>(ops);
+        sorted.sort(Comparator.comparing(OpMove::timestamp));
+
+        _clock.updateTimestamp(sorted.getLast().timestamp().timestamp());
+
+        var log = _storage.getLog();
+
+        var toApply = new ArrayList<OpMove<TimestampT, PeerIdT, MetaT, NodeIdT>>(sorted.size());
+        for (var op : sorted) {
+            if (!updateTimestampImpl(op.timestamp().nodeId(), op.timestamp().timestamp())) continue;
+            if (log.containsKey(op.timestamp())) continue;
+            toApply.add(op);
+        }
+
+        if (toApply.isEmpty()) {
+            tryTrimLog();
+            return;
+        }
+
+        LOGGER.finer(() -> "Will apply " + toApply.size() + " ops from " + from);
+
+        var oldest = toApply.getFirst().timestamp();
+        List<Pair<CombinedTimestamp<TimestampT, PeerIdT>, LogRecord<TimestampT, PeerIdT, MetaT, NodeIdT>>> toUndo =
+                !log.isEmpty() && oldest.compareTo(log.peekNewest().getKey()) < 0
+                        ? log.newestSlice(oldest, false)
+                        : List.of();
+
+        for (var entry : toUndo.reversed()) {
+            undoOp(entry.getValue());
+        }
+
+        int redoIdx = 0;
+        for (var op : toApply) {
+            while (redoIdx < toUndo.size() && toUndo.get(redoIdx).getKey().compareTo(op.timestamp()) < 0)
+                redoOp(toUndo.get(redoIdx++));
+            doAndPut(op, false);
+        }
+        while (redoIdx < toUndo.size())
+            redoOp(toUndo.get(redoIdx++));
+
+        _logObserver.opApplied(toUndo.size());
+        for (int i = 1; i < toApply.size(); i++)
+            _logObserver.opApplied(0);
+        tryTrimLog();
+    }
+
     /**
      * Update the causality threshold timestamp for a peer
      *
@@ -318,9 +401,11 @@ public class KleppmannTree<TimestampT extends Comparable<TimestampT>, PeerIdT ex
             for (var entry : toUndo) {
                 redoOp(entry);
             }
+            _logObserver.opApplied(toUndo.size());
             tryTrimLog();
         } else {
             doAndPut(op, failCreatingIfExists);
+            _logObserver.opApplied(0);
             tryTrimLog();
         }
     }
@@ -0,0 +1,24 @@
+package com.usatiuk.kleppmanntree;
+
+/**
+ * Interface to observe the work the tree does on its log, for example to collect metrics.
+ * All methods are called synchronously, inside the operation that caused them.
+ */
+public interface LogObserver {
+    /**
+     * Called after an operation was applied and put into the log.
+     *
+     * @param undone the number of newer operations that had to be undone to apply it in the timestamp order,
+     *               the same number of operations was redone after it
+     */
+    default void opApplied(int undone) {
+    }
+
+    /**
+     * Called after causally stable entries were removed from the log.
+     *
+     * @param trimmed the number of removed entries
+     */
+    default void logTrimmed(int trimmed) {
+    }
+}
@@ -5,7 +5,9 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class KleppmanTreeSimpleTest {
     private final TestNode testNode1 = new TestNode(1);
@@ -91,6 +93,71 @@ public class KleppmanTreeSimpleTest {
         Assertions.assertTrue(testNode2._storageInterface.getLog().size() <= 1);
     }
 
+    @Test
+    void logObserverTest() {
+        var d1id = testNode1._storageInterface.getNewNodeId();
+        var d2id = testNode1._storageInterface.getNewNodeId();
+        var d3id = testNode2._storageInterface.getNewNodeId();
+        testNode1._tree.move(testNode1._storageInterface.getRootId(), new TestNodeMetaDir("Test1"), d1id);
+        testNode1._tree.move(testNode1._storageInterface.getRootId(), new TestNodeMetaDir("Test2"), d2id);
+        testNode2._tree.move(testNode2._storageInterface.getRootId(), new TestNodeMetaDir("Test3"), d3id);
+        testNode1.getRecorded();
+
+        Assertions.assertEquals(2, testNode1._logObserver.applied);
+        Assertions.assertEquals(0, testNode1._logObserver.undone);
+        Assertions.assertEquals(0, testNode1._logObserver.trimmed);
+
+        // Timestamp 1 from node 2 goes before timestamp 2 from node 1, which has to be undone and redone
+        var r2 = testNode2.getRecorded();
+        Assertions.assertEquals(1, r2.size());
+        testNode1._tree.applyExternalOp(2L, r2.getFirst());
+
+        Assertions.assertEquals(3, testNode1._logObserver.applied);
+        Assertions.assertEquals(1, testNode1._logObserver.undone);
+        // Both peers are past timestamp 1 now
+        Assertions.assertEquals(2, testNode1._logObserver.trimmed);
+        Assertions.assertEquals(1, testNode1._storageInterface.getLog().size());
+    }
+
+    @Test
+    void batchApplyTest() {
+        var d1id = testNode1._storageInterface.getNewNodeId();
+        var d2id = testNode1._storageInterface.getNewNodeId();
+        var d3id = testNode2._storageInterface.getNewNodeId();
+        var d4id = testNode2._storageInterface.getNewNodeId();
+        testNode1._tree.move(testNode1._storageInterface.getRootId(), new TestNodeMetaDir("Test1"), d1id);
+        testNode1._tree.move(testNode1._storageInterface.getRootId(), new TestNodeMetaDir("Test2"), d2id);
+        testNode1._tree.move(d1id, new TestNodeMetaDir("Test2"), d2id);
+        testNode2._tree.move(testNode2._storageInterface.getRootId(), new TestNodeMetaDir("Test1"), d3id);
+        testNode2._tree.move(testNode2._storageInterface.getRootId(), new TestNodeMetaDir("Test3"), d4id);
+        testNode2._tree.move(d3id, new TestNodeMetaDir("Test3"), d4id);
+        var r1 = testNode1.getRecorded();
+        var r2 = testNode2.getRecorded();
+        Assertions.assertEquals(3, r1.size());
+        Assertions.assertEquals(3, r2.size());
+
+        // One by one on node 2, as a reversed batch on node 1, with a duplicate
+        for (var op : r1)
+            testNode2._tree.applyExternalOp(1L, op);
+        var batch = new ArrayList<>(r2.reversed());
+        batch.add(r2.getFirst());
+        testNode1._tree.applyExternalOps(2L, batch);
+
+        // (1, 2) goes after (1, 1), so (2, 1) and (3, 1) are undone once for the whole batch
+        Assertions.assertEquals(6, testNode1._logObserver.applied);
+        Assertions.assertEquals(2, testNode1._logObserver.undone);
+
+        // Same result as applying the ops one by one
+        var root1 = testNode1._storageInterface.getById(testNode1._storageInterface.getRootId());
+        var root2 = testNode2._storageInterface.getById(testNode2._storageInterface.getRootId());
+        Assertions.assertEquals(Set.copyOf(root2.children().keySet()), Set.copyOf(root1.children().keySet()));
+        for (var name : root1.children().keySet())
+            Assertions.assertEquals(testNode2._storageInterface.getById(root2.children().get(name)).children().keySet(),
+                    testNode1._storageInterface.getById(root1.children().get(name)).children().keySet());
+        Assertions.assertEquals(d2id, testNode1._tree.traverse(List.of("Test1.conflict." + d1id, "Test2")));
+        Assertions.assertEquals(d4id, testNode1._tree.traverse(List.of("Test1.conflict." + d3id, "Test3")));
+    }
+
     @ParameterizedTest
     @ValueSource(booleans = {true, false})
     void undoWithRenameTest(boolean opOrder) {
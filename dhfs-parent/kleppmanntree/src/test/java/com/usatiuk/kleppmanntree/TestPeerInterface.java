@@ -5,9 +5,15 @@ import java.util.List;
 
 public class TestPeerInterface implements PeerInterface<Long> {
     private final long selfId;
+    private final Collection<Long> peers;
 
     public TestPeerInterface(long selfId) {
+        this(selfId, List.of(1L, 2L));
+    }
+
+    public TestPeerInterface(long selfId, Collection<Long> peers) {
         this.selfId = selfId;
+        this.peers = peers;
     }
 
     @Override
@@ -17,6 +23,6 @@ public class TestPeerInterface implements PeerInterface<Long> {
 
     @Override
     public Collection<Long> getAllPeers() {
-        return List.of(1L, 2L);
+        return peers;
     }
 }
@@ -0,0 +1,314 @@
+package com.usatiuk.kleppmanntree;
+
+import java.util.*;
+import java.util.stream.LongStream;
+
+/**
+ * Simulation of several peers changing the same tree and exchanging their ops.
+ * <p>
+ * Every step, each peer does a random create, move or delete, and sends it to all other peers.
+ * Each op is delivered after a random delay of up to {@code maxDelay} steps, the ops from one peer
+ * to another are delivered in the order they were sent (like they are sent by the op queues),
+ * but the ops from different peers can be reordered.
+ * When all the sent ops from a peer are delivered, its timestamp is pushed too, so that the log can be trimmed.
+ * Everything is driven by one seeded random, so a run can be reproduced from its config.
+ */
+public class TreeSimulation {
+    /**
+     * @param peers    number of peers
+     * @param names    number of different names used for the nodes, the less there are, the more name conflicts
+     * @param maxDelay maximum number of steps an op can wait before it's delivered
+     * @param batch    deliver the ops that are ready together with {@link KleppmannTree#applyExternalOps}
+     * @param seed     random seed
+     */
+    public record Config(int peers, int names, int maxDelay, boolean batch, long seed) {
+    }
+
+    /**
+     * @param steps      number of steps done
+     * @param ops        number of ops created by all peers
+     * @param applied    number of ops applied by all peers, both local and remote
+     * @param undone     number of log entries undone (and then redone) by all peers
+     * @param maxUndone  largest number of log entries undone to apply one op (or one batch)
+     * @param trimmed    number of log entries trimmed by all peers
+     * @param maxLogSize largest log size seen on any peer
+     */
+    public record Stats(long steps, long ops, long applied, long undone, long maxUndone, long trimmed,
+                        long maxLogSize) {
+    }
+
+    private record InFlight(OpMove<Long, Long, TestNodeMeta, Long> op, long deliverAt) {
+    }
+
+    // Unlike TestClock, peeks the last timestamp that was given out, like the clock of the real trees does,
+    // as peers push it to say they won't send anything older
+    private static class PeerClock implements Clock<Long> {
+        private long _last = 0;
+
+        @Override
+        public Long getTimestamp() {
+            return ++_last;
+        }
+
+        @Override
+        public Long peekTimestamp() {
+            return _last;
+        }
+
+        @Override
+        public Long updateTimestamp(Long receivedTimestamp) {
+            var old = _last;
+            _last = Math.max(_last, receivedTimestamp) + 1;
+            return old;
+        }
+    }
+
+    private static class Peer implements OpRecorder<Long, Long, TestNodeMeta, Long> {
+        final long id;
+        final PeerClock clock = new PeerClock();
+        final TestStorageInterface storage;
+        final KleppmannTree<Long, Long, TestNodeMeta, Long> tree;
+        ArrayList<OpMove<Long, Long, TestNodeMeta, Long>> recorded = new ArrayList<>();
+
+        Peer(long id, Collection<Long> peers, LogObserver logObserver) {
+            this.id = id;
+            storage = new TestStorageInterface(id);
+            tree = new KleppmannTree<>(storage, new TestPeerInterface(id, peers), clock, this, logObserver);
+        }
+
+        List<OpMove<Long, Long, TestNodeMeta, Long>> takeRecorded() {
+            var ret = recorded;
+            recorded = new ArrayList<>();
+            return ret;
+        }
+
+        @Override
+        public void recordOp(OpMove<Long, Long, TestNodeMeta, Long> op) {
+            recorded.add(op);
+        }
+
+        @Override
+        public void recordOpForPeer(Long peer, OpMove<Long, Long, TestNodeMeta, Long> op) {
+        }
+    }
+
+    private final Config _config;
+    private final Random _random;
+    private final List<Peer> _nodes = new ArrayList<>();
+    // Shared by all the peers, so that the stats are not summed up on every call
+    private final TestNode.TestLogObserver _logObserver = new TestNode.TestLogObserver();
+    // Ops in flight from peer i to peer j, in the order they were sent
+    private final ArrayDeque<InFlight>[][] _links;
+    // All the nodes created by anyone, some might not be known to some peers yet
+    private final ArrayList<Long> _created = new ArrayList<>();
+    private long _steps = 0;
+    private long _ops = 0;
+    private long _maxLogSize = 0;
+
+    @SuppressWarnings("unchecked")
+    public TreeSimulation(Config config) {
+        _config = config;
+        _random = new Random(config.seed());
+        var peerIds = LongStream.rangeClosed(1, config.peers()).boxed().toList();
+        for (var id : peerIds)
+            _nodes.add(new Peer(id, peerIds, _logObserver));
+        _links = new ArrayDeque[config.peers()][config.peers()];
+        for (int i = 0; i < config.peers(); i++)
+            for (int j = 0; j < config.peers(); j++)
+                _links[i][j] = new ArrayDeque<>();
+    }
+
+    private String randomName() {
+        return "n" + _random.nextInt(_config.names());
+    }
+
+    private boolean isLive(Peer node, Long id) {
+        var root = node.storage.getRootId();
+        var cur = node.storage.getById(id);
+        // Bounded, so that a broken tree with a cycle doesn't hang the simulation
+        for (int depth = 0; cur != null && cur.parent() != null && depth <= _created.size(); depth++)
+            cur = node.storage.getById(cur.parent());
+        return cur != null && cur.key().equals(root);
+    }
+
+    /**
+     * @return a random node that is in the tree of the peer and not deleted, or the root
+     */
+    private long randomLive(Peer node) {
+        for (int tries = 0; tries < 4 && !_created.isEmpty(); tries++) {
+            var id = _created.get(_random.nextInt(_created.size()));
+            if (isLive(node, id))
+                return id;
+        }
+        return node.storage.getRootId();
+    }
+
+    private void doRandomOp(Peer node) {
+        var root = node.storage.getRootId();
+        var kind = _random.nextInt(10);
+        if (kind < 4 || _created.isEmpty()) {
+            var id = node.storage.getNewNodeId();
+            var meta = _random.nextBoolean()
+                    ? new TestNodeMetaDir(randomName())
+                    : new TestNodeMetaFile(randomName(), id);
+            // Files are only created in the root, so that every move target is a directory
+            var parent = meta instanceof TestNodeMetaDir ? randomLive(node) : root;
+            if (node.storage.getById(parent).meta() instanceof TestNodeMetaFile)
+                parent = root;
+            node.tree.move(parent, meta, id, false);
+            _created.add(id);
+        } else {
+            var child = randomLive(node);
+            if (child == root) return;
+            var childNode = node.storage.getById(child);
+            // Dummy parent created for an op that arrived before the creation of its parent
+            if (childNode.meta() == null) return;
+            if (kind < 8) {
+                var parent = randomLive(node);
+                if (node.storage.getById(parent).meta() instanceof TestNodeMetaFile)
+                    parent = root;
+                node.tree.move(parent, (TestNodeMeta) childNode.meta().withName(randomName()), child, false);
+            } else if (childNode.children().isEmpty()) {
+                // Like the file system, only empty directories are deleted
+                node.tree.move(node.storage.getTrashId(), (TestNodeMeta) childNode.meta().withName(Long.toString(child)), child, false);
+            }
+        }
+    }
+
+    private void send(int from) {
+        for (var op : _nodes.get(from).takeRecorded()) {
+            _ops++;
+            for (int to = 0; to < _nodes.size(); to++) {
+                if (to == from) continue;
+                _links[from][to].add(new InFlight(op, _steps + _random.nextInt(_config.maxDelay() + 1)));
+            }
+        }
+    }
+
+    private void deliver(int from, int to, long until) {
+        var link = _links[from][to];
+        var node = _nodes.get(to);
+        var fromId = _nodes.get(from).id;
+
+        var ready = new ArrayList<OpMove<Long, Long, TestNodeMeta, Long>>();
+        while (!link.isEmpty() && link.peek().deliverAt() <= until)
+            ready.add(link.poll().op());
+
+        if (_config.batch()) {
+            node.tree.applyExternalOps(fromId, ready);
+        } else {
+            for (var op : ready)
+                node.tree.applyExternalOp(fromId, op);
+        }
+
+        if (link.isEmpty())
+            node.tree.updateExternalTimestamp(fromId, _nodes.get(from).clock.peekTimestamp());
+
+        _maxLogSize = Math.max(_maxLogSize, node.storage.getLog().size());
+    }
+
+    /**
+     * Does one step: every peer does a random op, then the ops whose delay has passed are delivered.
+     */
+    public void step() {
+        for (int i = 0; i < _nodes.size(); i++) {
+            doRandomOp(_nodes.get(i));
+            send(i);
+        }
+        for (int from = 0; from < _nodes.size(); from++)
+            for (int to = 0; to < _nodes.size(); to++)
+                if (from != to)
+                    deliver(from, to, _steps);
+        _steps++;
+    }
+
+    /**
+     * Delivers all the ops in flight, and the timestamps of all the peers to each other.
+     */
+    public void deliverAll() {
+        // Twice, so that everyone learns the timestamps that were bumped by the ops delivered in the first round
+        for (int round = 0; round < 2; round++)
+            for (int from = 0; from < _nodes.size(); from++)
+                for (int to = 0; to < _nodes.size(); to++)
+                    if (from != to)
+                        deliver(from, to, Long.MAX_VALUE);
+    }
+
+    private void dump(Peer node, Long id, StringBuilder out) {
+        var cur = node.storage.getById(id);
+        out.append('(');
+        for (var e : new TreeMap<>(cur.children()).entrySet()) {
+            var child = node.storage.getById(e.getValue());
+            out.append(e.getKey()).append('=').append(e.getValue())
+                    .append(child.meta() instanceof TestNodeMetaFile ? 'f' : 'd');
+            dump(node, e.getValue(), out);
+        }
+        out.append(')');
+    }
+
+    /**
+     * @param peer index of the peer
+     * @return the tree of the peer, with children sorted by name, in a form that can be compared between peers
+     */
+    public String dump(int peer) {
+        var node = _nodes.get(peer);
+        var out = new StringBuilder();
+        dump(node, node.storage.getRootId(), out);
+        return out.toString();
+    }
+
+    /**
+     * @return true if on every peer, every node can be reached from the root, the trash or the lost+found node,
+     * and its parent has it as a child under its name
+     */
+    public boolean consistent() {
+        for (var node : _nodes) {
+            var storage = node.storage;
+            var seen = new HashSet<Long>();
+            var queue = new ArrayDeque<>(List.of(storage.getRootId(), storage.getTrashId(), storage.getLostFoundId()));
+            while (!queue.isEmpty()) {
+                var cur = storage.getById(queue.poll());
+                if (cur == null || !seen.add(cur.key()))
+                    return false;
+                for (var e : cur.children().entrySet()) {
+                    var child = storage.getById(e.getValue());
+                    if (child == null || !cur.key().equals(child.parent()) || !e.getKey().equals(child.name()))
+                        return false;
+                    queue.add(e.getValue());
+                }
+            }
+            for (var id : _created)
+                if (storage.getById(id) != null && !seen.contains(id))
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if all peers have the same tree
+     */
+    public boolean converged() {
+        var first = dump(0);
+        for (int i = 1; i < _nodes.size(); i++)
+            if (!first.equals(dump(i)))
+                return false;
+        return true;
+    }
+
+    public int peers() {
+        return _nodes.size();
+    }
+
+    /**
+     * @param peer index of the peer
+     * @return current size of the log of the peer
+     */
+    public long logSize(int peer) {
+        return _nodes.get(peer).storage.getLog().size();
+    }
+
+    public Stats stats() {
+        return new Stats(_steps, _ops, _logObserver.applied, _logObserver.undone, _logObserver.maxUndone,
+                _logObserver.trimmed, _maxLogSize);
+    }
+}
@@ -0,0 +1,59 @@
+package com.usatiuk.objects;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.usatiuk.objects.binary.BinaryCodecRegistry;
+import com.usatiuk.objects.binary.BinaryReader;
+import com.usatiuk.objects.binary.BinaryWriter;
+import com.usatiuk.utils.SerializationHelper;
+import io.quarkus.arc.DefaultBean;
+import io.quarkus.arc.properties.IfBuildProperty;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Object serializer using the compact binary format, see {@link BinaryWriter}.
+ * Enabled instead of {@link JavaDataSerializer} with {@code dhfs.objects.serializer=binary}.
+ * <p>
+ * Serialized objects start with a marker byte. Java serialization streams always start with 0xACED,
+ * so objects written by {@link JavaDataSerializer} can still be read, and are rewritten in the binary format
+ * the next time they are changed.
+ */
+@ApplicationScoped
+@DefaultBean
+@IfBuildProperty(name = "dhfs.objects.serializer", stringValue = "binary")
+public class BinaryDataSerializer implements ObjectSerializer<JData> {
+    private static final byte BINARY_MARKER = (byte) 0xB1;
+
+    private final BinaryCodecRegistry _binaryCodecRegistry;
+
+    @Inject
+    public BinaryDataSerializer(BinaryCodecRegistry binaryCodecRegistry) {
+        _binaryCodecRegistry = binaryCodecRegistry;
+    }
+
+    @Override
+    public ByteString serialize(JData obj) {
+        var writer = new BinaryWriter(_binaryCodecRegistry);
+        writer.writeByte(BINARY_MARKER);
+        writer.writeObject(obj);
+        return writer.toByteString();
+    }
+
+    @Override
+    public JData deserialize(ByteBuffer data) {
+        if (data.get(data.position()) == BINARY_MARKER) {
+            var reader = new BinaryReader(_binaryCodecRegistry, data.slice(data.position() + 1, data.remaining() - 1));
+            return reader.readObject();
+        }
+
+        try (var is = UnsafeByteOperations.unsafeWrap(data).newInput()) {
+            return SerializationHelper.deserialize(is);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
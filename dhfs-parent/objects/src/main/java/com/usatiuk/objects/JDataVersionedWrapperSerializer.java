@@ -13,8 +13,12 @@ import java.nio.ByteBuffer;
  */
 @Singleton
 public class JDataVersionedWrapperSerializer {
+    private final ObjectSerializer<JData> _dataSerializer;
+
     @Inject
-    ObjectSerializer<JData> dataSerializer;
+    public JDataVersionedWrapperSerializer(ObjectSerializer<JData> dataSerializer) {
+        _dataSerializer = dataSerializer;
+    }
 
     /**
      * Serializes a JDataVersionedWrapper object to a ByteString.
@@ -26,7 +30,7 @@ public class JDataVersionedWrapperSerializer {
         ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
         buffer.putLong(obj.version());
         buffer.flip();
-        return ByteString.copyFrom(buffer).concat(dataSerializer.serialize(obj.data()));
+        return ByteString.copyFrom(buffer).concat(_dataSerializer.serialize(obj.data()));
     }
 
     /**
@@ -39,7 +43,42 @@ public class JDataVersionedWrapperSerializer {
     public JDataVersionedWrapper deserialize(ByteBuffer data) {
         var version = data.getLong();
         return new JDataVersionedWrapperLazy(version, data.remaining(),
-                () -> dataSerializer.deserialize(data)
+                () -> _dataSerializer.deserialize(data)
+        );
+    }
+
+    /**
+     * Deserializes a JDataVersionedWrapper object from the serialized wrapped object and its version,
+     * as returned by {@link #getData} and {@link #getVersion}.
+     * Returns a lazy wrapper (JDataVersionedWrapperLazy).
+     *
+     * @param version the version of the object
+     * @param data    the ByteBuffer containing the serialized wrapped object
+     * @return the deserialized object
+     */
+    public JDataVersionedWrapper deserializeData(long version, ByteBuffer data) {
+        return new JDataVersionedWrapperLazy(version, data.remaining(),
+                () -> _dataSerializer.deserialize(data)
         );
     }
+
+    /**
+     * Get the version from a serialized JDataVersionedWrapper.
+     *
+     * @param data the ByteBuffer containing the serialized JDataVersionedWrapper
+     * @return the version of the object
+     */
+    public long getVersion(ByteBuffer data) {
+        return data.getLong(data.position());
+    }
+
+    /**
+     * Get the serialized wrapped object from a serialized JDataVersionedWrapper, without copying it.
+     *
+     * @param data the ByteBuffer containing the serialized JDataVersionedWrapper
+     * @return the part of the buffer containing the serialized object
+     */
+    public ByteBuffer getData(ByteBuffer data) {
+        return data.slice(data.position() + Long.BYTES, data.remaining() - Long.BYTES);
+    }
 }
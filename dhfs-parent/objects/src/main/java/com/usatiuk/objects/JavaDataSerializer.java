@@ -5,6 +5,7 @@ import com.google.protobuf.ByteString;
 import com.google.protobuf.UnsafeByteOperations;
 import com.usatiuk.utils.SerializationHelper;
 import io.quarkus.arc.DefaultBean;
+import io.quarkus.arc.properties.IfBuildProperty;
 import jakarta.enterprise.context.ApplicationScoped;
 
 import java.io.IOException;
@@ -15,6 +16,7 @@ import java.nio.ByteBuffer;
  */
 @ApplicationScoped
 @DefaultBean
+@IfBuildProperty(name = "dhfs.objects.serializer", stringValue = "java", enableIfMissing = true)
 public class JavaDataSerializer implements ObjectSerializer<JData> {
     @Override
     public ByteString serialize(JData obj) {
@@ -0,0 +1,105 @@
+package com.usatiuk.objects.binary;
+
+/**
+ * Codec for writing objects of some type in the binary format used by {@link com.usatiuk.objects.BinaryDataSerializer}.
+ * <p>
+ * Every codec has a unique tag that is written before the object, and a version that is written after it.
+ * The tag must never change once objects were written with it. When the layout of an object changes,
+ * the version should be incremented and {@link #read} should still handle the older versions.
+ *
+ * @param <T> the type of the objects
+ */
+public interface BinaryCodec<T> {
+    /**
+     * Tags below this value are reserved for the types built into {@link BinaryWriter}.
+     */
+    int MIN_TAG = 64;
+
+    /**
+     * Create a codec from a pair of functions.
+     *
+     * @param tag     the tag of the codec
+     * @param version the current version of the layout
+     * @param type    the class of the objects, with generic types erased
+     * @param writer  function that writes the object
+     * @param reader  function that reads the object
+     * @param <T>     the type of the objects
+     * @return the codec
+     */
+    static <T> BinaryCodec<T> of(int tag, int version, Class<?> type, Writer<T> writer, Reader<T> reader) {
+        return new BinaryCodec<>() {
+            @Override
+            public int tag() {
+                return tag;
+            }
+
+            @Override
+            public int version() {
+                return version;
+            }
+
+            @Override
+            public Class<?> type() {
+                return type;
+            }
+
+            @Override
+            public void write(BinaryWriter out, T value) {
+                writer.write(out, value);
+            }
+
+            @Override
+            public T read(BinaryReader in, int version) {
+                return reader.read(in, version);
+            }
+        };
+    }
+
+    /**
+     * The unique tag of this codec.
+     *
+     * @return the tag
+     */
+    int tag();
+
+    /**
+     * The version of the layout written by {@link #write}.
+     *
+     * @return the version
+     */
+    int version();
+
+    /**
+     * The exact class of the objects handled by this codec.
+     *
+     * @return the class
+     */
+    Class<?> type();
+
+    /**
+     * Write the object.
+     *
+     * @param out   the writer
+     * @param value the object
+     */
+    void write(BinaryWriter out, T value);
+
+    /**
+     * Read the object.
+     *
+     * @param in      the reader
+     * @param version the version of the layout the object was written with
+     * @return the object
+     */
+    T read(BinaryReader in, int version);
+
+    @FunctionalInterface
+    interface Writer<T> {
+        void write(BinaryWriter out, T value);
+    }
+
+    @FunctionalInterface
+    interface Reader<T> {
+        T read(BinaryReader in, int version);
+    }
+}
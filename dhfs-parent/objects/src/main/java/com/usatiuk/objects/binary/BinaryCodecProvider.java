@@ -0,0 +1,15 @@
+package com.usatiuk.objects.binary;
+
+import java.util.Collection;
+
+/**
+ * Interface for beans that provide {@link BinaryCodec}s for the object types of some module.
+ */
+public interface BinaryCodecProvider {
+    /**
+     * Get the codecs provided by this provider.
+     *
+     * @return the codecs
+     */
+    Collection<BinaryCodec<?>> codecs();
+}
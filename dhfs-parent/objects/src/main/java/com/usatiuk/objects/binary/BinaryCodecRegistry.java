@@ -0,0 +1,82 @@
+package com.usatiuk.objects.binary;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of all {@link BinaryCodec}s provided by the {@link BinaryCodecProvider} beans.
+ */
+@ApplicationScoped
+public class BinaryCodecRegistry {
+    private final Map<Class<?>, BinaryCodec<?>> _byClass;
+    private final Map<Integer, BinaryCodec<?>> _byTag;
+    private final ConcurrentHashMap<String, Class<?>> _classes = new ConcurrentHashMap<>();
+
+    @Inject
+    public BinaryCodecRegistry(Instance<BinaryCodecProvider> providers) {
+        this((Iterable<? extends BinaryCodecProvider>) providers);
+    }
+
+    /**
+     * Create a registry with the codecs of the given providers, without CDI.
+     *
+     * @param providers the codec providers
+     */
+    public BinaryCodecRegistry(Iterable<? extends BinaryCodecProvider> providers) {
+        var byClass = new HashMap<Class<?>, BinaryCodec<?>>();
+        var byTag = new HashMap<Integer, BinaryCodec<?>>();
+
+        for (var provider : providers) {
+            for (var codec : provider.codecs()) {
+                if (codec.tag() < BinaryCodec.MIN_TAG)
+                    throw new IllegalStateException("Codec tag " + codec.tag() + " for " + codec.type() + " is reserved");
+                var prevTag = byTag.put(codec.tag(), codec);
+                if (prevTag != null)
+                    throw new IllegalStateException("Duplicate codec tag " + codec.tag() + ": " + prevTag.type() + " and " + codec.type());
+                var prevClass = byClass.put(codec.type(), codec);
+                if (prevClass != null)
+                    throw new IllegalStateException("Duplicate codec for " + codec.type());
+            }
+        }
+
+        _byClass = Map.copyOf(byClass);
+        _byTag = Map.copyOf(byTag);
+    }
+
+    /**
+     * Get the codec for objects of the given class.
+     *
+     * @param type the exact class of the object
+     * @return the codec, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public <T> BinaryCodec<T> forClass(Class<?> type) {
+        return (BinaryCodec<T>) _byClass.get(type);
+    }
+
+    /**
+     * Get the codec with the given tag.
+     *
+     * @param tag the tag
+     * @return the codec, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public <T> BinaryCodec<T> forTag(int tag) {
+        return (BinaryCodec<T>) _byTag.get(tag);
+    }
+
+    Class<?> classForName(String name) {
+        return _classes.computeIfAbsent(name, n -> {
+            try {
+                return Class.forName(n, false, BinaryCodecRegistry.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+}
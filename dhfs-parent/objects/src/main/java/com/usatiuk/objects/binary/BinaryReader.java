@@ -0,0 +1,165 @@
+package com.usatiuk.objects.binary;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.utils.SerializationHelper;
+import org.pcollections.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import static com.usatiuk.objects.binary.BinaryWriter.*;
+
+/**
+ * Reader for the binary object format written by {@link BinaryWriter}.
+ * Byte strings are copied out of the buffer, so the buffer does not need to outlive the read objects.
+ */
+public class BinaryReader {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Comparator<Object> NATURAL_ORDER = (Comparator) Comparator.naturalOrder();
+
+    private final BinaryCodecRegistry _registry;
+    private final ByteBuffer _buf;
+
+    public BinaryReader(BinaryCodecRegistry registry, ByteBuffer buf) {
+        _registry = registry;
+        _buf = buf;
+    }
+
+    public byte readByte() {
+        return _buf.get();
+    }
+
+    public boolean readBoolean() {
+        return _buf.get() != 0;
+    }
+
+    public long readVarLong() {
+        long ret = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = _buf.get();
+            ret |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return ret;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    public long readLong() {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public int readInt() {
+        return (int) readLong();
+    }
+
+    private int readLength() {
+        var len = readVarLong();
+        if (len < 0 || len > _buf.remaining())
+            throw new IllegalStateException("Invalid length " + len);
+        return (int) len;
+    }
+
+    public String readString() {
+        int len = readLength();
+        var ret = StandardCharsets.UTF_8.decode(_buf.slice(_buf.position(), len)).toString();
+        _buf.position(_buf.position() + len);
+        return ret;
+    }
+
+    public ByteString readBytes() {
+        int len = readLength();
+        var ret = ByteString.copyFrom(_buf.slice(_buf.position(), len));
+        _buf.position(_buf.position() + len);
+        return ret;
+    }
+
+    public JObjectKey readKey() {
+        return JObjectKey.of(readString());
+    }
+
+    /**
+     * Read an object written by {@link BinaryWriter#writeObject}.
+     *
+     * @param <T> the expected type of the object
+     * @return the object, can be null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T readObject() {
+        int tag = (int) readVarLong();
+        Object ret = switch (tag) {
+            case TAG_NULL -> null;
+            case TAG_JAVA -> {
+                int len = readLength();
+                try (var is = UnsafeByteOperations.unsafeWrap(_buf.slice(_buf.position(), len)).newInput()) {
+                    Object obj = SerializationHelper.deserialize(is);
+                    _buf.position(_buf.position() + len);
+                    yield obj;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            case TAG_STRING -> readString();
+            case TAG_LONG -> readLong();
+            case TAG_INTEGER -> readInt();
+            case TAG_BOOLEAN -> readBoolean();
+            case TAG_BYTES -> readBytes();
+            case TAG_KEY -> readKey();
+            case TAG_CLASS -> _registry.classForName(readString());
+            case TAG_MAP -> {
+                PMap<Object, Object> map = HashTreePMap.empty();
+                for (long i = readVarLong(); i > 0; i--)
+                    map = map.plus(readObject(), readObject());
+                yield map;
+            }
+            case TAG_SORTED_MAP -> {
+                PSortedMap<Object, Object> map = TreePMap.empty(NATURAL_ORDER);
+                for (long i = readVarLong(); i > 0; i--)
+                    map = map.plus(readObject(), readObject());
+                yield map;
+            }
+            case TAG_SET -> {
+                PSet<Object> set = HashTreePSet.empty();
+                for (long i = readVarLong(); i > 0; i--)
+                    set = set.plus(readObject());
+                yield set;
+            }
+            case TAG_SORTED_SET -> {
+                PSortedSet<Object> set = TreePSet.empty(NATURAL_ORDER);
+                for (long i = readVarLong(); i > 0; i--)
+                    set = set.plus(readObject());
+                yield set;
+            }
+            case TAG_VECTOR -> {
+                PVector<Object> vector = TreePVector.empty();
+                for (long i = readVarLong(); i > 0; i--)
+                    vector = vector.plus(readObject());
+                yield vector;
+            }
+            case TAG_LIST -> {
+                int size = readLength();
+                var list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(readObject());
+                yield Collections.unmodifiableList(list);
+            }
+            default -> {
+                var codec = _registry.forTag(tag);
+                if (codec == null)
+                    throw new IllegalStateException("Unknown type tag " + tag);
+                int version = (int) readVarLong();
+                if (version > codec.version())
+                    throw new IllegalStateException("Object " + codec.type() + " has version " + version
+                            + ", newer than supported " + codec.version());
+                yield codec.read(this, version);
+            }
+        };
+        return (T) ret;
+    }
+}
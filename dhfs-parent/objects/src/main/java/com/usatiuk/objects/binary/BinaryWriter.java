@@ -0,0 +1,219 @@
+package com.usatiuk.objects.binary;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.utils.SerializationHelper;
+import jakarta.annotation.Nullable;
+import org.pcollections.*;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writer for the binary object format.
+ * <p>
+ * Numbers are written as varints, strings as UTF-8 with the length before them.
+ * Objects written with {@link #writeObject} are preceded by a tag: either one of the built-in types
+ * (strings, boxed numbers, keys, classes, pcollections and lists) or the tag of a registered {@link BinaryCodec}
+ * followed by its version. Serializable objects without a codec are written with Java serialization.
+ */
+public class BinaryWriter {
+    static final int TAG_NULL = 0;
+    static final int TAG_JAVA = 1;
+    static final int TAG_STRING = 2;
+    static final int TAG_LONG = 3;
+    static final int TAG_INTEGER = 4;
+    static final int TAG_BOOLEAN = 5;
+    static final int TAG_BYTES = 6;
+    static final int TAG_KEY = 7;
+    static final int TAG_CLASS = 8;
+    static final int TAG_MAP = 9;
+    static final int TAG_SORTED_MAP = 10;
+    static final int TAG_SET = 11;
+    static final int TAG_SORTED_SET = 12;
+    static final int TAG_VECTOR = 13;
+    static final int TAG_LIST = 14;
+
+    private final BinaryCodecRegistry _registry;
+    private byte[] _buf = new byte[256];
+    private int _pos = 0;
+
+    public BinaryWriter(BinaryCodecRegistry registry) {
+        _registry = registry;
+    }
+
+    private static boolean isNaturalOrder(@Nullable Comparator<?> comparator) {
+        return comparator == null || comparator == Comparator.naturalOrder();
+    }
+
+    private void ensureCapacity(int extra) {
+        if (_pos + extra > _buf.length)
+            _buf = Arrays.copyOf(_buf, Math.max(_buf.length * 2, _pos + extra));
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        _buf[_pos++] = (byte) value;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Write a non-negative number as a varint.
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            _buf[_pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        _buf[_pos++] = (byte) value;
+    }
+
+    /**
+     * Write any number as a zigzag-encoded varint.
+     */
+    public void writeLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeInt(int value) {
+        writeLong(value);
+    }
+
+    public void writeString(String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, _buf, _pos, bytes.length);
+        _pos += bytes.length;
+    }
+
+    public void writeBytes(ByteString value) {
+        writeVarLong(value.size());
+        ensureCapacity(value.size());
+        value.copyTo(_buf, _pos);
+        _pos += value.size();
+    }
+
+    public void writeKey(JObjectKey key) {
+        writeString(key.value());
+    }
+
+    /**
+     * Write an object of any supported type, preceded by its tag.
+     *
+     * @param value the object, can be null
+     */
+    public void writeObject(@Nullable Object value) {
+        if (value == null) {
+            writeVarLong(TAG_NULL);
+            return;
+        }
+
+        var codec = _registry.forClass(value.getClass());
+        if (codec != null) {
+            writeVarLong(codec.tag());
+            writeVarLong(codec.version());
+            codec.write(this, value);
+            return;
+        }
+
+        switch (value) {
+            case String s -> {
+                writeVarLong(TAG_STRING);
+                writeString(s);
+            }
+            case Long l -> {
+                writeVarLong(TAG_LONG);
+                writeLong(l);
+            }
+            case Integer i -> {
+                writeVarLong(TAG_INTEGER);
+                writeInt(i);
+            }
+            case Boolean b -> {
+                writeVarLong(TAG_BOOLEAN);
+                writeBoolean(b);
+            }
+            case ByteString b -> {
+                writeVarLong(TAG_BYTES);
+                writeBytes(b);
+            }
+            case JObjectKey k -> {
+                writeVarLong(TAG_KEY);
+                writeKey(k);
+            }
+            case Class<?> c -> {
+                writeVarLong(TAG_CLASS);
+                writeString(c.getName());
+            }
+            case PSortedMap<?, ?> m when isNaturalOrder(m.comparator()) -> {
+                writeVarLong(TAG_SORTED_MAP);
+                writeEntries(m);
+            }
+            case PSortedMap<?, ?> m -> writeJava(m);
+            case PMap<?, ?> m -> {
+                writeVarLong(TAG_MAP);
+                writeEntries(m);
+            }
+            case PSortedSet<?> s when isNaturalOrder(s.comparator()) -> {
+                writeVarLong(TAG_SORTED_SET);
+                writeElements(s);
+            }
+            case PSortedSet<?> s -> writeJava(s);
+            case PSet<?> s -> {
+                writeVarLong(TAG_SET);
+                writeElements(s);
+            }
+            case PVector<?> v -> {
+                writeVarLong(TAG_VECTOR);
+                writeElements(v);
+            }
+            case List<?> l -> {
+                writeVarLong(TAG_LIST);
+                writeElements(l);
+            }
+            case Serializable s -> writeJava(s);
+            default -> throw new IllegalArgumentException("Can't serialize " + value.getClass());
+        }
+    }
+
+    private void writeJava(Object value) {
+        if (!(value instanceof Serializable serializable))
+            throw new IllegalArgumentException("Can't serialize " + value.getClass());
+        writeVarLong(TAG_JAVA);
+        writeBytes(SerializationHelper.serialize(serializable));
+    }
+
+    private void writeEntries(Map<?, ?> map) {
+        writeVarLong(map.size());
+        for (var e : map.entrySet()) {
+            writeObject(e.getKey());
+            writeObject(e.getValue());
+        }
+    }
+
+    private void writeElements(Collection<?> collection) {
+        writeVarLong(collection.size());
+        for (var e : collection)
+            writeObject(e);
+    }
+
+    /**
+     * Get the written data. The writer must not be used after this.
+     *
+     * @return the written data
+     */
+    public ByteString toByteString() {
+        return UnsafeByteOperations.unsafeWrap(_buf, 0, _pos);
+    }
+}
@@ -1,23 +1,31 @@
 package com.usatiuk.objects.iterators;
 
-import io.quarkus.logging.Log;
-import org.apache.commons.lang3.mutable.MutableObject;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.NavigableMap;
 import java.util.NoSuchElementException;
-import java.util.TreeMap;
 
 /**
  * A merging key-value iterator that combines multiple iterators into a single iterator.
+ * <p>
+ * The iterators are kept in a binary heap ordered by their current key and then by priority,
+ * the current keys are cached, so peeking and comparing doesn't go through the merged iterators.
+ * Iterators at the same key are ordered by priority, when an element is consumed,
+ * its key is skipped in all the lower priority iterators.
+ * When only one of the iterators has elements left, it is used directly.
  *
  * @param <K> the type of the keys
  * @param <V> the type of the values
  */
 public class MergingKvIterator<K extends Comparable<K>, V> extends ReversibleKvIterator<K, V> {
-    private final NavigableMap<K, IteratorEntry<K, V>> _sortedIterators = new TreeMap<>();
-    private final List<IteratorEntry<K, V>> _iterators;
+    // Index in the array is the priority, lower is higher
+    private final CloseableKvIterator<K, V>[] _iterators;
+    // Indices of the non-exhausted iterators
+    private final int[] _heap;
+    // Current key of each iterator in the heap, might be stale if there is only one
+    private final K[] _keys;
+    private int _size = 0;
 
     /**
      * Constructs a MergingKvIterator with the specified start type, start key, and list of iterators.
@@ -28,16 +36,12 @@ public class MergingKvIterator<K extends Comparable<K>, V> extends ReversibleKvI
      * @param startKey  the starting key
      * @param iterators the list of iterators to merge
      */
+    @SuppressWarnings("unchecked")
     public MergingKvIterator(IteratorStart startType, K startKey, List<CloseableKvIterator<K, V>> iterators) {
         _goingForward = true;
-
-        {
-            IteratorEntry<K, V>[] iteratorEntries = new IteratorEntry[iterators.size()];
-            for (int i = 0; i < iterators.size(); i++) {
-                iteratorEntries[i] = new IteratorEntry<>(i, iterators.get(i));
-            }
-            _iterators = List.of(iteratorEntries);
-        }
+        _iterators = iterators.toArray(new CloseableKvIterator[0]);
+        _heap = new int[_iterators.length];
+        _keys = (K[]) new Comparable[_iterators.length];
 
         if (startType == IteratorStart.LT || startType == IteratorStart.LE) {
             // Starting at a greatest key less than/less or equal than:
@@ -48,8 +52,7 @@ public class MergingKvIterator<K extends Comparable<K>, V> extends ReversibleKvI
             K greatestLess = null;
             K smallestMore = null;
 
-            for (var ite : _iterators) {
-                var it = ite.iterator();
+            for (var it : _iterators) {
                 if (it.hasNext()) {
                     var peeked = it.peekNextKey();
                     if (startType == IteratorStart.LE ? peeked.compareTo(startKey) <= 0 : peeked.compareTo(startKey) < 0) {
@@ -70,37 +73,14 @@ public class MergingKvIterator<K extends Comparable<K>, V> extends ReversibleKvI
             else
                 initialMaxValue = smallestMore;
 
-            if (initialMaxValue == null) {
-                // Empty iterators
-            }
-
-            for (var ite : _iterators) {
-                var iterator = ite.iterator();
+            for (var iterator : _iterators) {
                 while (iterator.hasNext() && iterator.peekNextKey().compareTo(initialMaxValue) < 0) {
                     iterator.skip();
                 }
             }
         }
 
-        for (IteratorEntry<K, V> iterator : _iterators) {
-            advanceIterator(iterator);
-        }
-
-//        Log.tracev("{0} Initialized: {1}", _name, _sortedIterators);
-//        switch (startType) {
-////            case LT -> {
-////                assert _sortedIterators.isEmpty() || _sortedIterators.firstKey().compareTo(initialStartKey) < 0;
-////            }
-////            case LE -> {
-////                assert _sortedIterators.isEmpty() || _sortedIterators.firstKey().compareTo(initialStartKey) <= 0;
-////            }
-//            case GT -> {
-//                assert _sortedIterators.isEmpty() || _sortedIterators.firstKey().compareTo(startKey) > 0;
-//            }
-//            case GE -> {
-//                assert _sortedIterators.isEmpty() || _sortedIterators.firstKey().compareTo(startKey) >= 0;
-//            }
-//        }
+        rebuild();
     }
 
     /**
@@ -117,117 +97,155 @@ public class MergingKvIterator<K extends Comparable<K>, V> extends ReversibleKvI
         this(startType, startKey, List.of(iterators));
     }
 
-    private void advanceIterator(IteratorEntry<K, V> iteratorEntry) {
-        while (iteratorEntry.iterator().hasNext()) {
-            K key = iteratorEntry.iterator().peekNextKey();
-//            Log.tracev("{0} Advance peeked: {1}-{2}", _name, iteratorEntry, key);
+    private boolean has(int i) {
+        return _goingForward ? _iterators[i].hasNext() : _iterators[i].hasPrev();
+    }
+
+    private K peek(int i) {
+        return _goingForward ? _iterators[i].peekNextKey() : _iterators[i].peekPrevKey();
+    }
 
-            MutableObject<IteratorEntry<K, V>> mutableBoolean = new MutableObject<>(null);
+    private void advance(int i) {
+        if (_goingForward)
+            _iterators[i].skip();
+        else
+            _iterators[i].skipPrev();
+    }
 
-            var newVal = _sortedIterators.merge(key, iteratorEntry, (theirsEntry, oldValOurs) -> {
-                var oursPrio = oldValOurs.priority();
-                var theirsPrio = theirsEntry.priority();
+    private Pair<K, V> take(int i) {
+        return _goingForward ? _iterators[i].next() : _iterators[i].prev();
+    }
 
-                if (oursPrio < theirsPrio) {
-                    mutableBoolean.setValue(theirsEntry);
-                    return oldValOurs;
-                    // advance them
-                    // return
-                } else {
-                    return theirsEntry;
-                    // skip, continue
-                }
-            });
+    // Whether iterator a should come before iterator b
+    private boolean before(int a, int b) {
+        int cmp = _keys[a].compareTo(_keys[b]);
+        if (cmp != 0)
+            return _goingForward ? cmp < 0 : cmp > 0;
+        return a < b;
+    }
 
-            if (newVal != iteratorEntry) {
-//                Log.tracev("{0} Skipped: {1}", _name, iteratorEntry.iterator().peekNextKey());
-                iteratorEntry.iterator().skip();
-                continue;
-            }
+    private void siftDown(int pos) {
+        int it = _heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= _size) break;
+            if (child + 1 < _size && before(_heap[child + 1], _heap[child]))
+                child++;
+            if (!before(_heap[child], it)) break;
+            _heap[pos] = _heap[child];
+            pos = child;
+        }
+        _heap[pos] = it;
+    }
 
-            if (mutableBoolean.getValue() != null) {
-                advanceIterator(mutableBoolean.getValue());
-                return;
+    private void rebuild() {
+        _size = 0;
+        for (int i = 0; i < _iterators.length; i++) {
+            if (has(i)) {
+                _keys[i] = peek(i);
+                _heap[_size++] = i;
+            } else {
+                _keys[i] = null;
             }
-            return;
+        }
+        for (int pos = _size / 2 - 1; pos >= 0; pos--)
+            siftDown(pos);
+    }
+
+    /**
+     * Update the position of the top iterator after it was moved.
+     */
+    private void refreshTop() {
+        int top = _heap[0];
+        if (has(top)) {
+            _keys[top] = peek(top);
+        } else {
+            _keys[top] = null;
+            _heap[0] = _heap[--_size];
+        }
+        if (_size > 1)
+            siftDown(0);
+    }
+
+    /**
+     * Skip the key in the iterators that are at it, they have lower priority than the one it was taken from.
+     */
+    private void skipDuplicates(K key) {
+        while (_size > 0 && _keys[_heap[0]].compareTo(key) == 0) {
+            advance(_heap[0]);
+            refreshTop();
         }
     }
 
     @Override
     protected void reverse() {
-        var cur = _goingForward ? _sortedIterators.pollFirstEntry() : _sortedIterators.pollLastEntry();
-//        Log.tracev("{0} Reversing from {1}", _name, cur);
+        // Duplicates are only skipped after their key is consumed, so behind the current position
+        // everything was consumed in all the iterators, and they already are where they should be
         _goingForward = !_goingForward;
-        _sortedIterators.clear();
-        for (IteratorEntry<K, V> iterator : _iterators) {
-            // _goingForward inverted already
-            advanceIterator(!_goingForward ? iterator.reversed() : iterator);
-        }
-        if (_sortedIterators.isEmpty() || cur == null) {
-            return;
-        }
-        // Advance to the expected key, as we might have brought back some iterators
-        // that were at their ends
-        while (!_sortedIterators.isEmpty()
-                && ((_goingForward && peekImpl().compareTo(cur.getKey()) <= 0)
-                || (!_goingForward && peekImpl().compareTo(cur.getKey()) >= 0))) {
-            skipImpl();
-        }
+        rebuild();
     }
 
     @Override
     protected K peekImpl() {
-        if (_sortedIterators.isEmpty())
+        if (_size == 0)
             throw new NoSuchElementException();
-        return _goingForward ? _sortedIterators.firstKey() : _sortedIterators.lastKey();
+        if (_size == 1)
+            return peek(_heap[0]);
+        return _keys[_heap[0]];
     }
 
     @Override
     protected void skipImpl() {
-        var cur = _goingForward ? _sortedIterators.pollFirstEntry() : _sortedIterators.pollLastEntry();
-        if (cur == null) {
+        if (_size == 0)
             throw new NoSuchElementException();
+        int top = _heap[0];
+        if (_size == 1) {
+            advance(top);
+            if (!has(top)) _size = 0;
+            return;
         }
-        cur.getValue().iterator().skip();
-        advanceIterator(cur.getValue());
-//        Log.tracev("{0} Skip: {1}, next: {2}", _name, cur, _sortedIterators);
+        var key = _keys[top];
+        advance(top);
+        refreshTop();
+        skipDuplicates(key);
     }
 
     @Override
     protected boolean hasImpl() {
-        return !_sortedIterators.isEmpty();
+        return _size > 0;
     }
 
     @Override
     protected Pair<K, V> nextImpl() {
-        var cur = _goingForward ? _sortedIterators.pollFirstEntry() : _sortedIterators.pollLastEntry();
-        if (cur == null) {
+        if (_size == 0)
             throw new NoSuchElementException();
+        int top = _heap[0];
+        if (_size == 1) {
+            var ret = take(top);
+            if (!has(top)) _size = 0;
+            return ret;
         }
-        var curVal = cur.getValue().iterator().next();
-        advanceIterator(cur.getValue());
-//        Log.tracev("{0} Read from {1}: {2}, next: {3}", _name, cur.getValue(), curVal, _sortedIterators.keySet());
-        return curVal;
+        var ret = take(top);
+        refreshTop();
+        skipDuplicates(ret.getKey());
+        return ret;
     }
 
     @Override
     public void close() {
-        for (IteratorEntry<K, V> iterator : _iterators) {
-            iterator.iterator().close();
+        for (var iterator : _iterators) {
+            iterator.close();
         }
     }
 
     @Override
     public String toString() {
+        var keys = new ArrayList<K>(_size);
+        for (int i = 0; i < _size; i++)
+            keys.add(_keys[_heap[i]]);
         return "MergingKvIterator{" +
-                ", _sortedIterators=" + _sortedIterators.keySet() +
-                ", _iterators=" + _iterators +
+                "_keys=" + keys +
+                ", _iterators=" + List.of(_iterators) +
                 '}';
     }
-
-    private record IteratorEntry<K extends Comparable<K>, V>(int priority, CloseableKvIterator<K, V> iterator) {
-        public IteratorEntry<K, V> reversed() {
-            return new IteratorEntry<>(priority, iterator.reversed());
-        }
-    }
 }
@@ -2,11 +2,15 @@ package com.usatiuk.objects.snapshot;
 
 import com.usatiuk.objects.iterators.CloseableKvIterator;
 import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.iterators.KeyPredicateKvIterator;
 import com.usatiuk.objects.iterators.MaybeTombstone;
+import com.usatiuk.utils.ListUtils;
 
 import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * Interface for a snapshot of a database.
@@ -26,6 +30,21 @@ public interface Snapshot<K extends Comparable<K>, V> extends AutoCloseable {
      */
     List<CloseableKvIterator<K, MaybeTombstone<V>>> getIterator(IteratorStart start, K key);
 
+    /**
+     * Get a list of iterators representing only the objects of one storage partition,
+     * see {@link com.usatiuk.objects.stores.StorageKeyRouter}.
+     * Stores that keep the partitions apart don't look at the objects of the other partitions at all,
+     * by default all objects are iterated and the keys of the other partitions are skipped.
+     *
+     * @param partition   the name of the partition
+     * @param inPartition whether a key is routed to the partition
+     * @return a list of iterators, as in {@link #getIterator(IteratorStart, Comparable)}
+     */
+    default List<CloseableKvIterator<K, MaybeTombstone<V>>> getIterator(IteratorStart start, K key,
+                                                                         String partition, Function<K, Boolean> inPartition) {
+        return ListUtils.map(getIterator(start, key), i -> new KeyPredicateKvIterator<>(i, start, key, inPartition));
+    }
+
     /**
      * Read an object from the snapshot.
      * @param name the name of the object
@@ -34,6 +53,18 @@ public interface Snapshot<K extends Comparable<K>, V> extends AutoCloseable {
     @Nonnull
     Optional<V> readObject(K name);
 
+    /**
+     * Read the serialized form of an object from the snapshot, without deserializing it.
+     * The returned buffer is valid only until the snapshot is closed.
+     * @param name the name of the object
+     * @return an optional containing the serialized object, or an empty optional if it does not exist
+     * or is not available in serialized form
+     */
+    @Nonnull
+    default Optional<ByteBuffer> readRaw(K name) {
+        return Optional.empty();
+    }
+
     /**
      * Get the ID of the snapshot.
      * @return the ID of the snapshot
@@ -1,8 +1,10 @@
 package com.usatiuk.objects.stores;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.usatiuk.objects.JDataVersionedWrapper;
 import com.usatiuk.objects.JDataVersionedWrapperLazy;
+import com.usatiuk.objects.JDataVersionedWrapperSerializer;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.iterators.CloseableKvIterator;
 import com.usatiuk.objects.iterators.IteratorStart;
@@ -10,6 +12,7 @@ import com.usatiuk.objects.iterators.MaybeTombstone;
 import com.usatiuk.objects.snapshot.Snapshot;
 import com.usatiuk.utils.ListUtils;
 import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
 import jakarta.annotation.Priority;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -19,47 +22,96 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import javax.annotation.Nonnull;
-import java.time.Duration;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 /**
  * CachingObjectPersistentStore is a caching layer for the SerializingObjectPersistentStore
  * It stores the already deserialized objects in memory.
+ * <p>
+ * The cache holds the latest committed version of each cached object. Committed objects are put into the cache
+ * before they are written to the underlying store, so a snapshot that sees some version in the store
+ * will also see it (or a newer one) in the cache. Snapshots older than the cached version read from the underlying store.
+ * Objects read from the store are cached only if no transaction was committed after the snapshot was taken,
+ * so that an older version never replaces a newer evicted one.
+ * <p>
+ * Large objects (usually file chunks) are not kept in the heap cache, instead their serialized form
+ * is cached off-heap by {@link OffHeapBlobCache}, following the same rules.
+ * Raw reads are served directly from it, and the objects are deserialized from it when needed.
  * Not (yet) thread safe for writes.
  */
 @ApplicationScoped
 public class CachingObjectPersistentStore {
     @Inject
     SerializingObjectPersistentStore delegate;
+    @Inject
+    JDataVersionedWrapperSerializer serializer;
     @ConfigProperty(name = "dhfs.objects.lru.print-stats")
     boolean printStats;
-//    private ExecutorService _statusExecutor;
+    @ConfigProperty(name = "dhfs.objects.blob-cache.min-size", defaultValue = "16384")
+    int blobMinSize;
+    private ExecutorService _statusExecutor;
 
-    private final com.github.benmanes.caffeine.cache.Cache<Pair<Long, JObjectKey>, JDataVersionedWrapper> _cache;
+    private final Cache<JObjectKey, JDataVersionedWrapper> _cache;
+    private final OffHeapBlobCache _blobCache;
+    // Id of the last transaction that was written through to the cache
+    private volatile long _lastWriteThroughId = -1;
+    // Cache hits with a version newer than the snapshot
+    private final AtomicLong _tooNew = new AtomicLong(0);
 
-    public CachingObjectPersistentStore(@ConfigProperty(name = "dhfs.objects.lru.limit") int sizeLimit) {
+    public CachingObjectPersistentStore(@ConfigProperty(name = "dhfs.objects.lru.limit") int sizeLimit,
+                                        @ConfigProperty(name = "dhfs.objects.blob-cache.limit", defaultValue = "67108864") long blobSizeLimit) {
         _cache = Caffeine.newBuilder()
                 .maximumWeight(sizeLimit)
-                .weigher((Pair<Long, JObjectKey> key, JDataVersionedWrapper value) -> value.estimateSize())
-                .expireAfterWrite(Duration.ofMinutes(5)).build();
+                .weigher((JObjectKey key, JDataVersionedWrapper value) -> value.estimateSize())
+                .recordStats()
+                .build();
+        _blobCache = new OffHeapBlobCache(blobSizeLimit);
     }
 
     void init(@Observes @Priority(110) StartupEvent event) {
-//        if (printStats) {
-//            _statusExecutor = Executors.newSingleThreadExecutor();
-//            _statusExecutor.submit(() -> {
-//                try {
-//                    while (true) {
-//                        Log.infov("Cache status: size=" + _cache.estimatedSize() / 1024 / 1024 + "MB" + " cache success ratio: " + (_cached.get() / (double) _cacheTries.get()));
-//                        _cached.set(0);
-//                        _cacheTries.set(0);
-//                        Thread.sleep(1000);
-//                    }
-//                } catch (InterruptedException ignored) {
-//                }
-//            });
-//        }
+        if (printStats) {
+            _statusExecutor = Executors.newSingleThreadExecutor();
+            _statusExecutor.submit(() -> {
+                try {
+                    var lastStats = _cache.stats();
+                    var lastBlobStats = _blobCache.stats();
+                    while (true) {
+                        Thread.sleep(1000);
+                        var curStats = _cache.stats();
+                        var stats = curStats.minus(lastStats);
+                        lastStats = curStats;
+                        var curBlobStats = _blobCache.stats();
+                        var blobStats = curBlobStats.minus(lastBlobStats);
+                        lastBlobStats = curBlobStats;
+                        Log.info("Cache status: size=" + _cache.policy().eviction().orElseThrow().weightedSize().orElse(0) / 1024 / 1024 + "MB"
+                                + " hits=" + stats.hitCount()
+                                + " misses=" + stats.missCount()
+                                + " hit ratio=" + stats.hitRate()
+                                + " too new=" + _tooNew.getAndSet(0)
+                                + " evictions=" + stats.evictionCount()
+                                + " evicted=" + stats.evictionWeight() / 1024 + "KB");
+                        Log.info("Blob cache status: size=" + _blobCache.size() / 1024 / 1024 + "MB"
+                                + " hits=" + blobStats.hitCount()
+                                + " misses=" + blobStats.missCount()
+                                + " hit ratio=" + blobStats.hitRate()
+                                + " evictions=" + blobStats.evictionCount()
+                                + " evicted=" + blobStats.evictionWeight() / 1024 + "KB");
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+    }
+
+    void shutdown(@Observes @Priority(900) ShutdownEvent event) {
+        if (_statusExecutor != null)
+            _statusExecutor.shutdownNow();
     }
 
     /**
@@ -70,13 +122,85 @@ public class CachingObjectPersistentStore {
      * @param txId the transaction ID
      */
     public void commitTx(TxManifestObj<? extends JDataVersionedWrapper> objs, long txId) {
+        commitTx(objs, prepareTx(objs), txId);
+    }
+
+    /**
+     * Serialize the objects of the transaction, to be later committed with {@link #commitTx(TxManifestObj, TxManifestRaw, long)}.
+     * This allows serializing one transaction while the previous one is being committed.
+     *
+     * @param objs the transaction manifest object
+     * @return the serialized transaction manifest
+     */
+    public TxManifestRaw prepareTx(TxManifestObj<? extends JDataVersionedWrapper> objs) {
+        return delegate.prepareManifest(objs);
+    }
+
+    /**
+     * Commit the already serialized transaction to the underlying store and update the cache.
+     * Once this function returns, the transaction is committed and the cache is updated.
+     *
+     * @param objs     the transaction manifest object
+     * @param manifest the serialized transaction manifest, see {@link #prepareTx}
+     * @param txId     the transaction ID
+     */
+    public void commitTx(TxManifestObj<? extends JDataVersionedWrapper> objs, TxManifestRaw manifest, long txId) {
         Log.tracev("Committing: {0} writes, {1} deletes", objs.written().size(), objs.deleted().size());
 
-        delegate.commitTx(objs, txId);
+        // Must be set before the cache is changed, see cacheRead
+        _lastWriteThroughId = txId;
+        for (var e : objs.written()) {
+            if (e.getValue().estimateSize() < blobMinSize)
+                _cache.put(e.getKey(), e.getValue());
+            else
+                _cache.invalidate(e.getKey());
+        }
+        for (var e : manifest.written()) {
+            if (e.getValue().size() - Long.BYTES >= blobMinSize)
+                _blobCache.put(e.getKey(), toBlobEntry(OffHeapBlobCache.copyOffHeap(e.getValue())));
+            else
+                _blobCache.invalidate(e.getKey());
+        }
+        for (var key : objs.deleted()) {
+            _cache.invalidate(key);
+            _blobCache.invalidate(key);
+        }
+
+        delegate.commitTx(manifest, txId);
 
         Log.tracev("Committed: {0} writes, {1} deletes", objs.written().size(), objs.deleted().size());
     }
 
+    private OffHeapBlobCache.Entry toBlobEntry(ByteBuffer serialized) {
+        return new OffHeapBlobCache.Entry(serializer.getVersion(serialized), serializer.getData(serialized));
+    }
+
+    private void cacheRead(JObjectKey key, JDataVersionedWrapper obj, long snapshotId) {
+        if (obj.estimateSize() >= blobMinSize)
+            return;
+        _cache.asMap().compute(key, (k, old) -> {
+            // Some transaction could have changed this object after the snapshot was taken,
+            // and its version could have already been evicted
+            if (snapshotId < _lastWriteThroughId)
+                return old;
+            if (old != null && old.version() >= obj.version())
+                return old;
+            return obj;
+        });
+    }
+
+    private void cacheBlobRead(JObjectKey key, long version, ByteBuffer data, long snapshotId) {
+        if (data.remaining() < blobMinSize)
+            return;
+        _blobCache.compute(key, old -> {
+            if (snapshotId < _lastWriteThroughId)
+                return old;
+            if (old != null && old.version() >= version)
+                return old;
+            return new OffHeapBlobCache.Entry(version, OffHeapBlobCache.copyOffHeap(data));
+        });
+    }
+
     /**
      * Get a snapshot of underlying store and the cache.
      * Objects are read from the cache if possible, if not, they are read from the underlying store,
@@ -86,24 +210,19 @@ public class CachingObjectPersistentStore {
      */
     public Snapshot<JObjectKey, JDataVersionedWrapper> getSnapshot() {
         while (true) {
-            Snapshot<JObjectKey, JDataVersionedWrapper> backing = null;
+            SerializingObjectPersistentStore.SerializingSnapshot backing = null;
 
             try {
                 backing = delegate.getSnapshot();
 
-                Snapshot<JObjectKey, JDataVersionedWrapper> finalBacking = backing;
+                SerializingObjectPersistentStore.SerializingSnapshot finalBacking = backing;
                 return new Snapshot<JObjectKey, JDataVersionedWrapper>() {
-                    private final Snapshot<JObjectKey, JDataVersionedWrapper> _backing = finalBacking;
+                    private final SerializingObjectPersistentStore.SerializingSnapshot _backing = finalBacking;
                     private boolean _closed = false;
 
-                    private void doCache(JObjectKey key, JDataVersionedWrapper obj) {
-                        var cacheKey = Pair.of(obj.version(), key);
-                        _cache.put(cacheKey, obj);
-                    }
-
                     private void maybeCache(JObjectKey key, JDataVersionedWrapper obj) {
                         if (!(obj instanceof JDataVersionedWrapperLazy lazy)) {
-                            doCache(key, obj);
+                            cacheRead(key, obj, _backing.id());
                             return;
                         }
 
@@ -112,9 +231,8 @@ public class CachingObjectPersistentStore {
                                 Log.error("Cache callback called after close");
                                 System.exit(-1);
                             }
-                            doCache(key, obj);
+                            cacheRead(key, obj, _backing.id());
                         });
-                        return;
                     }
 
                     @Override
@@ -125,9 +243,18 @@ public class CachingObjectPersistentStore {
                         );
                     }
 
+                    @Override
+                    public List<CloseableKvIterator<JObjectKey, MaybeTombstone<JDataVersionedWrapper>>> getIterator(IteratorStart start, JObjectKey key,
+                                                                                                                    String partition, Function<JObjectKey, Boolean> inPartition) {
+                        return ListUtils.map(
+                                _backing.getIterator(start, key, partition, inPartition),
+                                i -> new CachingKvIterator((CloseableKvIterator<JObjectKey, JDataVersionedWrapper>) (CloseableKvIterator<JObjectKey, ?>) i)
+                        );
+                    }
+
                     private JDataVersionedWrapper tryGetCached(JObjectKey key, JDataVersionedWrapper obj) {
-                        var cached = _cache.getIfPresent(Pair.of(obj.version(), key));
-                        if (cached != null) {
+                        var cached = _cache.getIfPresent(key);
+                        if (cached != null && cached.version() == obj.version()) {
                             return cached;
                         }
                         maybeCache(key, obj);
@@ -137,7 +264,39 @@ public class CachingObjectPersistentStore {
                     @Nonnull
                     @Override
                     public Optional<JDataVersionedWrapper> readObject(JObjectKey name) {
-                        return _backing.readObject(name).map(o -> tryGetCached(name, o));
+                        var cached = _cache.getIfPresent(name);
+                        if (cached != null) {
+                            if (cached.version() <= _backing.id())
+                                return Optional.of(cached);
+                            _tooNew.incrementAndGet();
+                        }
+                        var blob = _blobCache.get(name);
+                        if (blob != null) {
+                            if (blob.version() <= _backing.id())
+                                return Optional.of(serializer.deserializeData(blob.version(), blob.data().duplicate()));
+                            _tooNew.incrementAndGet();
+                        }
+                        return _backing.readObject(name).map(o -> {
+                            maybeCache(name, o);
+                            return o;
+                        });
+                    }
+
+                    @Nonnull
+                    @Override
+                    public Optional<ByteBuffer> readRaw(JObjectKey name) {
+                        var blob = _blobCache.get(name);
+                        if (blob != null) {
+                            if (blob.version() <= _backing.id())
+                                return Optional.of(blob.data().duplicate());
+                            _tooNew.incrementAndGet();
+                        }
+                        // Read with the version, so that it can be cached without reading the object again
+                        return _backing.readSerialized(name).map(serialized -> {
+                            var raw = serializer.getData(serialized);
+                            cacheBlobRead(name, serializer.getVersion(serialized), raw, _backing.id());
+                            return raw;
+                        });
                     }
 
                     @Override
@@ -0,0 +1,24 @@
+package com.usatiuk.objects.stores;
+
+import com.usatiuk.objects.JObjectKey;
+import io.quarkus.arc.DefaultBean;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.util.List;
+
+/**
+ * Storage key router that stores everything in the default partition.
+ */
+@ApplicationScoped
+@DefaultBean
+public class DefaultStorageKeyRouter implements StorageKeyRouter {
+    @Override
+    public List<String> partitions() {
+        return List.of(DEFAULT_PARTITION);
+    }
+
+    @Override
+    public String route(JObjectKey key) {
+        return DEFAULT_PARTITION;
+    }
+}
@@ -1,5 +1,6 @@
 package com.usatiuk.objects.stores;
 
+import com.google.protobuf.ByteString;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.JObjectKeyMax;
 import com.usatiuk.objects.JObjectKeyMin;
@@ -12,6 +13,8 @@ import io.quarkus.runtime.StartupEvent;
 import jakarta.annotation.Priority;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.mutable.MutableObject;
 import org.apache.commons.lang3.tuple.Pair;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
@@ -23,56 +26,122 @@ import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static org.lmdbjava.DbiFlags.MDB_CREATE;
 import static org.lmdbjava.Env.create;
 
 /**
- * Persistent object storage using LMDB
+ * Persistent object storage using LMDB.
+ * Objects are split between several LMDB databases, as decided by the {@link StorageKeyRouter}.
+ * Stores created with the older single-database layout are migrated in the background,
+ * until the migration is done, objects are also looked up in the default database.
  */
 @ApplicationScoped
 @IfBuildProperty(name = "dhfs.objects.persistence", stringValue = "lmdb")
 public class LmdbObjectPersistentStore implements ObjectPersistentStore {
-    private static final String DB_NAME = "objects";
+    private static final String DB_NAME = StorageKeyRouter.DEFAULT_PARTITION;
 
     // LMDB object name for the transaction id
     private static final String DB_VER_OBJ_NAME_STR = "__DB_VER_OBJ";
     private static final ByteBuffer DB_VER_OBJ_NAME;
+    // LMDB object name for the marker of finished migration to the partitioned layout
+    private static final String DB_LAYOUT_OBJ_NAME_STR = "__DB_LAYOUT_OBJ";
+    private static final ByteBuffer DB_LAYOUT_OBJ_NAME;
+    private static final int DB_LAYOUT_VERSION = 1;
 
     @ConfigProperty(name = "dhfs.objects.persistence.lmdb.size", defaultValue = "1000000000000")
     long lmdbSize;
+    @ConfigProperty(name = "dhfs.objects.persistence.lmdb.migration-batch-size", defaultValue = "1000")
+    int migrationBatchSize;
+
+    @Inject
+    StorageKeyRouter keyRouter;
 
     static {
-        byte[] tmp = DB_VER_OBJ_NAME_STR.getBytes(StandardCharsets.ISO_8859_1);
-        var bb = ByteBuffer.allocateDirect(tmp.length);
-        bb.put(tmp);
-        bb.flip();
-        DB_VER_OBJ_NAME = bb.asReadOnlyBuffer();
+        DB_VER_OBJ_NAME = directName(DB_VER_OBJ_NAME_STR);
+        DB_LAYOUT_OBJ_NAME = directName(DB_LAYOUT_OBJ_NAME_STR);
     }
 
     private final Path _root;
     private Env<ByteBuffer> _env;
     private Dbi<ByteBuffer> _db;
+    private Map<String, Dbi<ByteBuffer>> _dbs;
+    private ExecutorService _migrationExecutor;
+    private volatile boolean _migrated = true;
     private boolean _ready = false;
 
+    @Inject
     public LmdbObjectPersistentStore(@ConfigProperty(name = "dhfs.objects.persistence.root") String root) {
         _root = Path.of(root).resolve("objects");
     }
 
+    /**
+     * Create a store that is not managed by CDI, to be used as a part of another store.
+     * {@link #open()} and {@link #close()} have to be called by the owner.
+     *
+     * @param root               the directory of the LMDB environment
+     * @param lmdbSize           the LMDB map size
+     * @param migrationBatchSize the number of objects scanned per transaction during layout migration
+     * @param keyRouter          the router of keys to databases
+     */
+    LmdbObjectPersistentStore(Path root, long lmdbSize, int migrationBatchSize, StorageKeyRouter keyRouter) {
+        _root = root;
+        this.lmdbSize = lmdbSize;
+        this.migrationBatchSize = migrationBatchSize;
+        this.keyRouter = keyRouter;
+    }
+
+    private static ByteBuffer directName(String name) {
+        byte[] tmp = name.getBytes(StandardCharsets.ISO_8859_1);
+        var bb = ByteBuffer.allocateDirect(tmp.length);
+        bb.put(tmp);
+        bb.flip();
+        return bb.asReadOnlyBuffer();
+    }
+
+    private static boolean isReservedKey(JObjectKey key) {
+        return key.value().equals(DB_VER_OBJ_NAME_STR) || key.value().equals(DB_LAYOUT_OBJ_NAME_STR);
+    }
+
     void init(@Observes @Priority(100) StartupEvent event) throws IOException {
+        open();
+    }
+
+    void open() {
+        open(true);
+    }
+
+    /**
+     * Open the store.
+     *
+     * @param startMigration whether to start the layout migration in the background if it is needed,
+     *                       otherwise it can be run with {@link #migrate()}
+     */
+    void open(boolean startMigration) {
         if (!_root.toFile().exists()) {
             Log.info("Initializing with root " + _root);
             _root.toFile().mkdirs();
         }
-        Log.info("Opening LMDB with root " + _root);
+        var partitions = keyRouter.partitions();
+        assert partitions.contains(DB_NAME);
+        Log.info("Opening LMDB with root " + _root + " and databases " + partitions);
         _env = create()
                 .setMapSize(lmdbSize)
-                .setMaxDbs(1)
+                .setMaxDbs(partitions.size())
                 .open(_root.toFile(), EnvFlags.MDB_NOTLS);
         _db = _env.openDbi(DB_NAME, MDB_CREATE);
+        var dbs = new HashMap<String, Dbi<ByteBuffer>>();
+        dbs.put(DB_NAME, _db);
+        for (var partition : partitions) {
+            if (!partition.equals(DB_NAME))
+                dbs.put(partition, _env.openDbi(partition, MDB_CREATE));
+        }
+        _dbs = Map.copyOf(dbs);
 
         Log.info("Opened LMDB with root " + _root);
 
@@ -85,8 +154,23 @@ public class LmdbObjectPersistentStore implements ObjectPersistentStore {
                 bbData.putLong(0);
                 bbData.flip();
                 _db.put(txn, DB_VER_OBJ_NAME.asReadOnlyBuffer(), bbData);
-                txn.commit();
             }
+            if (_dbs.size() > 1 && _db.get(txn, DB_LAYOUT_OBJ_NAME.asReadOnlyBuffer()) == null) {
+                if (read.isPresent()) {
+                    _migrated = false;
+                } else {
+                    // Nothing to migrate in a new store
+                    writeLayoutVersion(txn);
+                }
+            }
+            txn.commit();
+        }
+
+        if (!_migrated && startMigration) {
+            _migrationExecutor = Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder()
+                    .namingPattern("lmdb-migration-%d")
+                    .build());
+            _migrationExecutor.submit(this::migrate);
         }
 
         _ready = true;
@@ -98,12 +182,92 @@ public class LmdbObjectPersistentStore implements ObjectPersistentStore {
         return Optional.ofNullable(value).map(ByteBuffer::getLong);
     }
 
-    void shutdown(@Observes @Priority(900) ShutdownEvent event) throws IOException {
+    private void writeLayoutVersion(Txn<ByteBuffer> txn) {
+        var bbData = ByteBuffer.allocateDirect(4);
+        bbData.putInt(DB_LAYOUT_VERSION);
+        bbData.flip();
+        _db.put(txn, DB_LAYOUT_OBJ_NAME.asReadOnlyBuffer(), bbData);
+    }
+
+    /**
+     * Moves the objects that were stored in the default database by the older layout
+     * into the databases they are routed to now.
+     * Every batch is moved in its own write transaction, so readers always see each object exactly once.
+     * Stops when the thread is interrupted, the rest is migrated on the next start.
+     */
+    void migrate() {
+        Log.info("Migrating LMDB storage to the partitioned layout");
+        long moved = 0;
+        ByteBuffer from = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean hasMore;
+                try (var txn = _env.txnWrite()) {
+                    try (var cursor = _db.openCursor(txn)) {
+                        hasMore = from == null ? cursor.first() : cursor.get(from, GetOp.MDB_SET_RANGE);
+                        int scanned = 0;
+                        while (hasMore && scanned++ < migrationBatchSize) {
+                            var key = JObjectKey.fromByteBuffer(cursor.key().duplicate());
+                            var target = keyRouter.route(key);
+                            if (!isReservedKey(key) && !target.equals(DB_NAME)) {
+                                var val = cursor.val();
+                                var data = new byte[val.remaining()];
+                                val.get(data);
+                                var putBb = _dbs.get(target).reserve(txn, key.toByteBuffer(), data.length);
+                                putBb.put(data);
+                                // After a delete, LMDB doesn't advance the cursor on the next call
+                                cursor.delete();
+                                moved++;
+                            }
+                            hasMore = cursor.next();
+                        }
+                        if (hasMore) {
+                            var key = cursor.key();
+                            from = ByteBuffer.allocateDirect(key.remaining());
+                            from.put(key.duplicate());
+                            from.flip();
+                        }
+                    }
+                    if (!hasMore)
+                        writeLayoutVersion(txn);
+                    txn.commit();
+                }
+                if (!hasMore) {
+                    _migrated = true;
+                    Log.infov("Migrated LMDB storage to the partitioned layout, moved {0} objects", moved);
+                    return;
+                }
+            }
+            Log.infov("LMDB storage migration interrupted after moving {0} objects, will continue on next start", moved);
+        } catch (Throwable t) {
+            Log.error("LMDB storage migration failed, will retry on next start", t);
+        }
+    }
+
+    /**
+     * @return true if the objects are all in the databases they are routed to
+     */
+    boolean isMigrated() {
+        return _migrated;
+    }
+
+    void shutdown(@Observes @Priority(900) ShutdownEvent event) throws IOException, InterruptedException {
+        close();
+    }
+
+    void close() throws InterruptedException {
         if (!_ready) {
             return;
         }
         _ready = false;
-        _db.close();
+        if (_migrationExecutor != null) {
+            _migrationExecutor.shutdownNow();
+            if (!_migrationExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                Log.error("LMDB storage migration did not stop in time");
+            }
+        }
+        for (var db : _dbs.values())
+            db.close();
         _env.close();
     }
 
@@ -111,6 +275,10 @@ public class LmdbObjectPersistentStore implements ObjectPersistentStore {
         if (!_ready) throw new IllegalStateException("Wrong service order!");
     }
 
+    private Dbi<ByteBuffer> dbFor(JObjectKey key) {
+        return _dbs.get(keyRouter.route(key));
+    }
+
     /**
      * Get a snapshot of the database.
      * Note that the ByteBuffers are invalid after the snapshot is closed.
@@ -120,25 +288,57 @@ public class LmdbObjectPersistentStore implements ObjectPersistentStore {
     @Override
     public Snapshot<JObjectKey, ByteBuffer> getSnapshot() {
         verifyReady();
+        // Has to be read before the transaction is opened
+        boolean migrated = _migrated;
         var txn = _env.txnRead();
         try {
             long commitId = readTxId(txn).orElseThrow();
             return new Snapshot<JObjectKey, ByteBuffer>() {
                 private final Txn<ByteBuffer> _txn = txn;
                 private final long _id = commitId;
+                private final boolean _migrated = migrated;
                 private boolean _closed = false;
 
                 @Override
                 public List<CloseableKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>>> getIterator(IteratorStart start, JObjectKey key) {
                     assert !_closed;
-                    return List.of(new KeyPredicateKvIterator<>(new LmdbKvIterator(_txn, start, key), start, key, (k) -> !k.value().equals(DB_VER_OBJ_NAME_STR)));
+                    // Every key is in exactly one of the databases, so their order doesn't matter
+                    var ret = new ArrayList<CloseableKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>>>(_dbs.size());
+                    for (var db : _dbs.values()) {
+                        if (db == _db)
+                            ret.add(new KeyPredicateKvIterator<>(new LmdbKvIterator(_txn, db, start, key), start, key, (k) -> !isReservedKey(k)));
+                        else
+                            ret.add(new LmdbKvIterator(_txn, db, start, key));
+                    }
+                    return ret;
+                }
+
+                @Override
+                public List<CloseableKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>>> getIterator(IteratorStart start, JObjectKey key,
+                                                                                                     String partition, Function<JObjectKey, Boolean> inPartition) {
+                    assert !_closed;
+                    var db = _dbs.get(partition);
+                    // Nothing is routed to partitions that don't exist
+                    if (db == null) return List.of();
+                    // Until the migration is done, the default database also has objects of the other partitions
+                    if (db == _db)
+                        return List.of(new KeyPredicateKvIterator<>(new LmdbKvIterator(_txn, _db, start, key), start, key,
+                                (k) -> !isReservedKey(k) && (_migrated || inPartition.apply(k))));
+                    if (_migrated)
+                        return List.of(new LmdbKvIterator(_txn, db, start, key));
+                    return List.of(new LmdbKvIterator(_txn, db, start, key),
+                            new KeyPredicateKvIterator<>(new LmdbKvIterator(_txn, _db, start, key), start, key,
+                                    (k) -> !isReservedKey(k) && inPartition.apply(k)));
                 }
 
                 @Nonnull
                 @Override
                 public Optional<ByteBuffer> readObject(JObjectKey name) {
                     assert !_closed;
-                    var got = _db.get(_txn, name.toByteBuffer());
+                    var db = dbFor(name);
+                    var got = db.get(_txn, name.toByteBuffer());
+                    if (got == null && !_migrated && db != _db)
+                        got = _db.get(_txn, name.toByteBuffer());
                     var ret = Optional.ofNullable(got).map(ByteBuffer::asReadOnlyBuffer);
                     return ret;
                 }
@@ -165,13 +365,21 @@ public class LmdbObjectPersistentStore implements ObjectPersistentStore {
     @Override
     public void commitTx(TxManifestRaw names, long txId) {
         verifyReady();
+        // If the migration finishes while we're writing, the extra deletes are harmless
+        boolean migrated = _migrated;
         try (var txn = _env.txnWrite()) {
             for (var written : names.written()) {
-                var putBb = _db.reserve(txn, written.getKey().toByteBuffer(), written.getValue().size());
+                var db = dbFor(written.getKey());
+                var putBb = db.reserve(txn, written.getKey().toByteBuffer(), written.getValue().size());
                 written.getValue().copyTo(putBb);
+                if (!migrated && db != _db)
+                    _db.delete(txn, written.getKey().toByteBuffer());
             }
             for (JObjectKey key : names.deleted()) {
-                _db.delete(txn, key.toByteBuffer());
+                var db = dbFor(key);
+                db.delete(txn, key.toByteBuffer());
+                if (!migrated && db != _db)
+                    _db.delete(txn, key.toByteBuffer());
             }
 
             assert txId > readTxId(txn).orElseThrow();
@@ -184,6 +392,45 @@ public class LmdbObjectPersistentStore implements ObjectPersistentStore {
         }
     }
 
+    /**
+     * A replacement of the stored value of an object.
+     *
+     * @param key         the key of the object
+     * @param expected    the value that the object should have for it to be replaced
+     * @param replacement the new value
+     */
+    record ValueReplacement(JObjectKey key, ByteString expected, ByteString replacement) {
+    }
+
+    /**
+     * Replace the stored values of objects, if they have not changed, without changing the transaction id.
+     * Used for moving the data of objects around, when the objects don't change logically.
+     *
+     * @param replacements the replacements
+     * @return the number of objects that were replaced
+     */
+    int replaceValues(Collection<ValueReplacement> replacements) {
+        verifyReady();
+        int replaced = 0;
+        try (var txn = _env.txnWrite()) {
+            for (var r : replacements) {
+                var db = dbFor(r.key());
+                var cur = db.get(txn, r.key().toByteBuffer());
+                if (cur == null && !_migrated && db != _db) {
+                    db = _db;
+                    cur = _db.get(txn, r.key().toByteBuffer());
+                }
+                if (cur == null || !cur.equals(r.expected().asReadOnlyByteBuffer()))
+                    continue;
+                var putBb = db.reserve(txn, r.key().toByteBuffer(), r.replacement().size());
+                r.replacement().copyTo(putBb);
+                replaced++;
+            }
+            txn.commit();
+        }
+        return replaced;
+    }
+
     @Override
     public long getTotalSpace() {
         verifyReady();
@@ -206,11 +453,11 @@ public class LmdbObjectPersistentStore implements ObjectPersistentStore {
         private boolean _hasNext = false;
         private JObjectKey _peekedNextKey = null;
 
-        LmdbKvIterator(Txn<ByteBuffer> txn, IteratorStart start, JObjectKey key) {
+        LmdbKvIterator(Txn<ByteBuffer> txn, Dbi<ByteBuffer> db, IteratorStart start, JObjectKey key) {
             _txn = txn;
             _goingForward = true;
 
-            _cursor = _db.openCursor(_txn);
+            _cursor = db.openCursor(_txn);
 
             var closedRef = _closed;
 //            var bt = _allocationStacktrace;
@@ -236,6 +483,9 @@ public class LmdbObjectPersistentStore implements ObjectPersistentStore {
                 if (!_cursor.first())
                     return;
             } else if (!_cursor.get(key.toByteBuffer(), GetOp.MDB_SET_RANGE)) {
+                // Everything is less than the key
+                if (start == IteratorStart.LT || start == IteratorStart.LE)
+                    _hasNext = _cursor.last();
                 return;
             }
 
@@ -0,0 +1,100 @@
+package com.usatiuk.objects.stores;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.protobuf.ByteString;
+import com.usatiuk.objects.JObjectKey;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * Cache of serialized large objects, kept in direct memory instead of the heap.
+ * <p>
+ * Every entry is copied into its own direct buffer, the cache is bounded by the total size of the buffers.
+ * Evicted buffers are not freed explicitly, so the readers can keep using them until they are done,
+ * the memory is released once the buffer is garbage collected.
+ */
+class OffHeapBlobCache {
+    private final Cache<JObjectKey, Entry> _cache;
+
+    OffHeapBlobCache(long sizeLimit) {
+        _cache = Caffeine.newBuilder()
+                .maximumWeight(sizeLimit)
+                .weigher((JObjectKey key, Entry value) -> value.data().capacity())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Copy the data into a new direct buffer.
+     *
+     * @param data the data to copy
+     * @return the read-only direct buffer with the data
+     */
+    static ByteBuffer copyOffHeap(ByteString data) {
+        var buf = ByteBuffer.allocateDirect(data.size());
+        data.copyTo(buf);
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy the data into a new direct buffer.
+     *
+     * @param data the data to copy
+     * @return the read-only direct buffer with the data
+     */
+    static ByteBuffer copyOffHeap(ByteBuffer data) {
+        var buf = ByteBuffer.allocateDirect(data.remaining());
+        buf.put(data.duplicate());
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    @Nullable
+    Entry get(JObjectKey key) {
+        return _cache.getIfPresent(key);
+    }
+
+    void put(JObjectKey key, Entry entry) {
+        _cache.put(key, entry);
+    }
+
+    void invalidate(JObjectKey key) {
+        _cache.invalidate(key);
+    }
+
+    /**
+     * Atomically update the entry for the key, see {@link java.util.concurrent.ConcurrentMap#compute}.
+     */
+    void compute(JObjectKey key, Function<Entry, Entry> fn) {
+        _cache.asMap().compute(key, (k, old) -> fn.apply(old));
+    }
+
+    CacheStats stats() {
+        return _cache.stats();
+    }
+
+    /**
+     * Perform the pending maintenance, like evicting the entries over the size limit.
+     */
+    void cleanUp() {
+        _cache.cleanUp();
+    }
+
+    long size() {
+        return _cache.policy().eviction().orElseThrow().weightedSize().orElse(0);
+    }
+
+    /**
+     * A cached object.
+     *
+     * @param version the version of the object
+     * @param data    the serialized object, without the version, in a read-only direct buffer
+     */
+    record Entry(long version, ByteBuffer data) {
+    }
+}
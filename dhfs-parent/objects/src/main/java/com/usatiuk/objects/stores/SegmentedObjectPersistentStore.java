@@ -0,0 +1,557 @@
+package com.usatiuk.objects.stores;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.iterators.*;
+import com.usatiuk.objects.snapshot.Snapshot;
+import com.usatiuk.utils.ListUtils;
+import io.quarkus.arc.properties.IfBuildProperty;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.tuple.Pair;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Persistent object storage that keeps large values in append-only segment files,
+ * and the small values together with the locations of the large ones in LMDB.
+ * <p>
+ * Large values are appended to the current segment, which is synced before the LMDB transaction
+ * referencing them is committed. Segments are read through memory mappings.
+ * Segments where most of the values were overwritten or deleted are compacted in the background:
+ * their live values are appended to the current segment, and the old segment file is deleted
+ * once no open snapshot can reference it anymore.
+ */
+@ApplicationScoped
+@IfBuildProperty(name = "dhfs.objects.persistence", stringValue = "lmdb-segments")
+public class SegmentedObjectPersistentStore implements ObjectPersistentStore {
+    // Values in LMDB are prefixed by one of these
+    private static final byte INLINE_VALUE = 0;
+    private static final byte SEGMENT_VALUE = 1;
+    private static final int POINTER_SIZE = 1 + Long.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final ByteString INLINE_PREFIX = ByteString.copyFrom(new byte[]{INLINE_VALUE});
+
+    // Segment entries are [int keyLen][key][int valueLen][value]
+    private static final int ENTRY_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final long COMPACTION_BATCH_BYTES = 16 * 1024 * 1024;
+
+    private final Path _root;
+    private final ConcurrentHashMap<Long, Segment> _segments = new ConcurrentHashMap<>();
+    private final Object _commitLock = new Object();
+    private final AtomicLong _snapshotSeq = new AtomicLong();
+    private final ConcurrentSkipListSet<Long> _openSnapshots = new ConcurrentSkipListSet<>();
+    // Only accessed by the compaction thread
+    private final List<Pair<Long, Segment>> _retired = new ArrayList<>();
+
+    @ConfigProperty(name = "dhfs.objects.persistence.lmdb.size", defaultValue = "1000000000000")
+    long lmdbSize;
+    @ConfigProperty(name = "dhfs.objects.persistence.lmdb.migration-batch-size", defaultValue = "1000")
+    int migrationBatchSize;
+    @ConfigProperty(name = "dhfs.objects.persistence.segments.min-value-size", defaultValue = "32768")
+    int minValueSize;
+    @ConfigProperty(name = "dhfs.objects.persistence.segments.segment-size", defaultValue = "268435456")
+    int segmentSize;
+    @ConfigProperty(name = "dhfs.objects.persistence.segments.compaction-threshold", defaultValue = "0.5")
+    double compactionThreshold;
+    @ConfigProperty(name = "dhfs.objects.persistence.segments.compaction-interval-ms", defaultValue = "10000")
+    long compactionIntervalMs;
+
+    @Inject
+    StorageKeyRouter keyRouter;
+
+    private LmdbObjectPersistentStore _index;
+    // Guarded by _commitLock
+    private Segment _current;
+    private long _nextSegmentId = 0;
+    private ScheduledExecutorService _compactionExecutor;
+    private volatile boolean _ready = false;
+
+    @Inject
+    public SegmentedObjectPersistentStore(@ConfigProperty(name = "dhfs.objects.persistence.root") String root) {
+        _root = Path.of(root).resolve("segmented");
+    }
+
+    /**
+     * Create a store that is not managed by CDI.
+     * {@link #open()} and {@link #close()} have to be called by the owner.
+     *
+     * @param root                 the directory of the store
+     * @param minValueSize         the minimum size of the values stored in segments
+     * @param segmentSize          the size of a segment
+     * @param compactionThreshold  the fraction of live data below which a segment is compacted
+     * @param compactionIntervalMs the interval of the background compaction
+     * @param keyRouter            the router of keys to the index databases
+     */
+    SegmentedObjectPersistentStore(Path root, int minValueSize, int segmentSize, double compactionThreshold,
+                                   long compactionIntervalMs, StorageKeyRouter keyRouter) {
+        _root = root;
+        this.lmdbSize = 1L << 30;
+        this.migrationBatchSize = 1000;
+        this.minValueSize = minValueSize;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.compactionIntervalMs = compactionIntervalMs;
+        this.keyRouter = keyRouter;
+    }
+
+    private static int entrySize(JObjectKey key, int valueSize) {
+        return ENTRY_HEADER_SIZE + key.value().length() + valueSize;
+    }
+
+    private static ByteString pointer(long segment, int offset, int length) {
+        var bb = ByteBuffer.allocate(POINTER_SIZE);
+        bb.put(SEGMENT_VALUE);
+        bb.putLong(segment);
+        bb.putInt(offset);
+        bb.putInt(length);
+        bb.flip();
+        return UnsafeByteOperations.unsafeWrap(bb);
+    }
+
+    private static Path segmentPath(Path dir, long id) {
+        return dir.resolve(SEGMENT_PREFIX + String.format("%016x", id) + SEGMENT_SUFFIX);
+    }
+
+    void init(@Observes @Priority(100) StartupEvent event) throws IOException {
+        open();
+    }
+
+    void open() throws IOException {
+        var segmentsDir = _root.resolve("segments");
+        Files.createDirectories(segmentsDir);
+        Log.info("Opening segmented storage with root " + _root);
+
+        _index = new LmdbObjectPersistentStore(_root.resolve("index"), lmdbSize, migrationBatchSize, keyRouter);
+        _index.open();
+
+        try (var files = Files.newDirectoryStream(segmentsDir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (var file : files) {
+                var name = file.getFileName().toString();
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+                var segment = Segment.open(id, file);
+                _segments.put(id, segment);
+                _nextSegmentId = Math.max(_nextSegmentId, id + 1);
+            }
+        }
+
+        // Live data accounting isn't persisted, recompute it from the index
+        try (var snapshot = _index.getSnapshot()) {
+            for (var it : snapshot.getIterator(IteratorStart.GE, JObjectKey.first())) {
+                try (it) {
+                    while (it.hasNext()) {
+                        var next = it.next();
+                        var value = ((DataWrapper<ByteBuffer>) next.getValue()).value();
+                        if (value.get(value.position()) != SEGMENT_VALUE) continue;
+                        var segment = _segments.get(value.getLong(value.position() + 1));
+                        if (segment == null) {
+                            Log.errorv("Object {0} references a missing segment", next.getKey());
+                            continue;
+                        }
+                        segment.liveBytes.addAndGet(entrySize(next.getKey(), value.getInt(value.position() + 1 + Long.BYTES + Integer.BYTES)));
+                    }
+                }
+            }
+        }
+
+        _compactionExecutor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("segment-compaction-%d")
+                .build());
+        _compactionExecutor.scheduleWithFixedDelay(this::compact, compactionIntervalMs, compactionIntervalMs, TimeUnit.MILLISECONDS);
+
+        _ready = true;
+        Log.infov("Segmented storage ready, {0} segments", _segments.size());
+    }
+
+    void shutdown(@Observes @Priority(900) ShutdownEvent event) throws IOException, InterruptedException {
+        close();
+    }
+
+    void close() throws IOException, InterruptedException {
+        if (!_ready) {
+            return;
+        }
+        _ready = false;
+        // Not interrupting it, as that would close the segment channels
+        _compactionExecutor.shutdown();
+        if (!_compactionExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+            Log.error("Segment compaction did not stop in time");
+        }
+        synchronized (_commitLock) {
+            for (var segment : _segments.values())
+                segment.channel.close();
+            _index.close();
+        }
+    }
+
+    private void verifyReady() {
+        if (!_ready) throw new IllegalStateException("Wrong service order!");
+    }
+
+    private ByteBuffer resolve(ByteBuffer value) {
+        int pos = value.position();
+        if (value.get(pos) == INLINE_VALUE)
+            return value.slice(pos + 1, value.remaining() - 1);
+
+        long id = value.getLong(pos + 1);
+        int offset = value.getInt(pos + 1 + Long.BYTES);
+        int length = value.getInt(pos + 1 + Long.BYTES + Integer.BYTES);
+        var segment = _segments.get(id);
+        if (segment == null)
+            throw new IllegalStateException("Missing segment " + id);
+        return segment.map.slice(offset, length);
+    }
+
+    /**
+     * Get a snapshot of the database.
+     * Note that the ByteBuffers are invalid after the snapshot is closed.
+     *
+     * @return a snapshot of the database
+     */
+    @Override
+    public Snapshot<JObjectKey, ByteBuffer> getSnapshot() {
+        verifyReady();
+        // Has to be registered before the index snapshot is opened, see retireSegment
+        long seq = _snapshotSeq.incrementAndGet();
+        _openSnapshots.add(seq);
+        try {
+            var backing = _index.getSnapshot();
+            return new Snapshot<JObjectKey, ByteBuffer>() {
+                private final Snapshot<JObjectKey, ByteBuffer> _backing = backing;
+
+                @Override
+                public List<CloseableKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>>> getIterator(IteratorStart start, JObjectKey key) {
+                    return ListUtils.map(_backing.getIterator(start, key),
+                            i -> new MappingKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>, MaybeTombstone<ByteBuffer>>(i,
+                                    d -> new DataWrapper<>(resolve(((DataWrapper<ByteBuffer>) d).value()))));
+                }
+
+                @Override
+                public List<CloseableKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>>> getIterator(IteratorStart start, JObjectKey key,
+                                                                                                     String partition, Function<JObjectKey, Boolean> inPartition) {
+                    return ListUtils.map(_backing.getIterator(start, key, partition, inPartition),
+                            i -> new MappingKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>, MaybeTombstone<ByteBuffer>>(i,
+                                    d -> new DataWrapper<>(resolve(((DataWrapper<ByteBuffer>) d).value()))));
+                }
+
+                @Nonnull
+                @Override
+                public Optional<ByteBuffer> readObject(JObjectKey name) {
+                    return _backing.readObject(name).map(SegmentedObjectPersistentStore.this::resolve);
+                }
+
+                @Override
+                public long id() {
+                    return _backing.id();
+                }
+
+                @Override
+                public void close() {
+                    _backing.close();
+                    _openSnapshots.remove(seq);
+                }
+            };
+        } catch (Exception e) {
+            _openSnapshots.remove(seq);
+            throw e;
+        }
+    }
+
+    @Override
+    public void commitTx(TxManifestRaw names, long txId) {
+        verifyReady();
+        synchronized (_commitLock) {
+            try {
+                var written = new ArrayList<Pair<JObjectKey, ByteString>>(names.written().size());
+                // Changes of the live data in the segments, applied only once the transaction is committed
+                var appended = new HashMap<Segment, Long>();
+                var released = new HashMap<Segment, Long>();
+                try (var old = _index.getSnapshot()) {
+                    for (var w : names.written()) {
+                        release(old, w.getKey(), released);
+                        if (w.getValue().size() < minValueSize) {
+                            written.add(Pair.of(w.getKey(), INLINE_PREFIX.concat(w.getValue())));
+                        } else {
+                            written.add(Pair.of(w.getKey(), append(w.getKey(), w.getValue(), appended)));
+                        }
+                    }
+                    for (var d : names.deleted()) {
+                        release(old, d, released);
+                    }
+                }
+                for (var segment : appended.keySet())
+                    segment.channel.force(false);
+                _index.commitTx(new TxManifestRaw(written, names.deleted()), txId);
+                appended.forEach((segment, bytes) -> segment.liveBytes.addAndGet(bytes));
+                released.forEach((segment, bytes) -> segment.liveBytes.addAndGet(-bytes));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Account for the currently stored value of an object being overwritten or deleted.
+     *
+     * @param released the bytes released in each segment, updated with the value of the object
+     */
+    private void release(Snapshot<JObjectKey, ByteBuffer> index, JObjectKey key, Map<Segment, Long> released) {
+        var value = index.readObject(key).orElse(null);
+        if (value == null || value.get(value.position()) != SEGMENT_VALUE) return;
+        var segment = _segments.get(value.getLong(value.position() + 1));
+        if (segment != null)
+            released.merge(segment, (long) entrySize(key, value.getInt(value.position() + 1 + Long.BYTES + Integer.BYTES)), Long::sum);
+    }
+
+    /**
+     * Append a value to the current segment, starting a new one if it doesn't fit.
+     * If the write fails, the segment is truncated back to where the value would start.
+     * Must be called with the commit lock held.
+     *
+     * @param appended the bytes appended to each segment, to be synced and accounted as live once committed
+     * @return the pointer to the value to be stored in the index
+     */
+    private ByteString append(JObjectKey key, ByteString value, Map<Segment, Long> appended) throws IOException {
+        var keyBytes = key.value().getBytes(StandardCharsets.ISO_8859_1);
+        int size = entrySize(key, value.size());
+        if (_current == null || _current.size + size > _current.capacity) {
+            if (_current != null) {
+                appended.putIfAbsent(_current, 0L);
+            }
+            long id = _nextSegmentId++;
+            _current = Segment.create(id, segmentPath(_root.resolve("segments"), id), Math.max(segmentSize, size));
+            _segments.put(id, _current);
+        }
+
+        var header = ByteBuffer.allocate(Integer.BYTES + keyBytes.length + Integer.BYTES);
+        header.putInt(keyBytes.length);
+        header.put(keyBytes);
+        header.putInt(value.size());
+        header.flip();
+        int start = _current.size;
+        int valueOffset = start + header.remaining();
+
+        try {
+            long pos = writeFully(_current.channel, header, start);
+            for (var bb : value.asReadOnlyByteBufferList())
+                pos = writeFully(_current.channel, bb, pos);
+        } catch (IOException e) {
+            try {
+                _current.truncate(start);
+            } catch (IOException te) {
+                e.addSuppressed(te);
+            }
+            throw e;
+        }
+
+        _current.size += size;
+        appended.merge(_current, (long) size, Long::sum);
+        return pointer(_current.id, valueOffset, value.size());
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining())
+            position += channel.write(bb, position);
+        return position;
+    }
+
+    void compact() {
+        try {
+            deleteRetired();
+            List<Segment> candidates;
+            synchronized (_commitLock) {
+                candidates = _segments.values().stream()
+                        .filter(s -> s != _current && _retired.stream().noneMatch(r -> r.getRight() == s))
+                        .filter(s -> s.liveBytes.get() <= s.size * compactionThreshold)
+                        .sorted(Comparator.comparingLong(s -> s.liveBytes.get()))
+                        .toList();
+            }
+            for (var segment : candidates) {
+                if (!_ready) return;
+                compactSegment(segment);
+            }
+        } catch (Throwable t) {
+            Log.error("Error compacting segments", t);
+        }
+    }
+
+    /**
+     * Move all live values out of the segment, then retire it.
+     */
+    private void compactSegment(Segment segment) throws IOException {
+        Log.debugv("Compacting segment {0}, {1} live bytes out of {2}", segment.id, segment.liveBytes.get(), segment.size);
+        var map = segment.map;
+        int pos = 0;
+        long moved = 0;
+        var batch = new ArrayList<Pair<JObjectKey, ByteString>>();
+        long batchBytes = 0;
+
+        while (_ready) {
+            boolean end = pos + ENTRY_HEADER_SIZE > segment.capacity;
+            int keyLen = end ? 0 : map.getInt(pos);
+            // Unused space (sparse zeroes) or an incomplete write
+            end = end || keyLen <= 0 || (long) pos + ENTRY_HEADER_SIZE + keyLen > segment.capacity;
+            if (!end) {
+                var keyBytes = new byte[keyLen];
+                map.get(pos + Integer.BYTES, keyBytes);
+                int valueLen = map.getInt(pos + Integer.BYTES + keyLen);
+                int valueOffset = pos + ENTRY_HEADER_SIZE + keyLen;
+                if (valueLen < 0 || (long) valueOffset + valueLen > segment.capacity) {
+                    end = true;
+                } else {
+                    batch.add(Pair.of(JObjectKey.fromBytes(keyBytes), pointer(segment.id, valueOffset, valueLen)));
+                    batchBytes += valueLen;
+                    pos = valueOffset + valueLen;
+                }
+            }
+            if (!batch.isEmpty() && (end || batchBytes >= COMPACTION_BATCH_BYTES)) {
+                moved += moveLive(segment, batch);
+                batch.clear();
+                batchBytes = 0;
+            }
+            if (end) break;
+        }
+
+        if (!_ready) return;
+        Log.debugv("Compacted segment {0}, moved {1} values", segment.id, moved);
+        retireSegment(segment);
+    }
+
+    /**
+     * Copy the values that are still referenced by the index to the current segment and point the index to them.
+     */
+    private int moveLive(Segment from, List<Pair<JObjectKey, ByteString>> entries) throws IOException {
+        synchronized (_commitLock) {
+            var replacements = new ArrayList<LmdbObjectPersistentStore.ValueReplacement>();
+            var appended = new HashMap<Segment, Long>();
+            long movedBytes = 0;
+            try (var index = _index.getSnapshot()) {
+                for (var e : entries) {
+                    var cur = index.readObject(e.getKey()).orElse(null);
+                    if (cur == null || !cur.equals(e.getValue().asReadOnlyByteBuffer()))
+                        continue;
+                    var value = resolve(e.getValue().asReadOnlyByteBuffer());
+                    var newPointer = append(e.getKey(), UnsafeByteOperations.unsafeWrap(value), appended);
+                    replacements.add(new LmdbObjectPersistentStore.ValueReplacement(e.getKey(), e.getValue(), newPointer));
+                    movedBytes += entrySize(e.getKey(), value.remaining());
+                }
+            }
+            if (replacements.isEmpty())
+                return 0;
+            for (var segment : appended.keySet())
+                segment.channel.force(false);
+            // Nothing else can change the values while the commit lock is held
+            int replaced = _index.replaceValues(replacements);
+            assert replaced == replacements.size();
+            appended.forEach((segment, bytes) -> segment.liveBytes.addAndGet(bytes));
+            from.liveBytes.addAndGet(-movedBytes);
+            return replaced;
+        }
+    }
+
+    /**
+     * Schedule the deletion of a segment that is not referenced by the index anymore.
+     * Snapshots registered before this point could still have read the old pointers,
+     * the ones registered after it can't, so the segment can be deleted once all the former are closed.
+     */
+    private void retireSegment(Segment segment) {
+        _retired.add(Pair.of(_snapshotSeq.get(), segment));
+        deleteRetired();
+    }
+
+    private void deleteRetired() {
+        var it = _retired.iterator();
+        while (it.hasNext()) {
+            var r = it.next();
+            var oldestOpen = _openSnapshots.isEmpty() ? Long.MAX_VALUE : _openSnapshots.first();
+            if (oldestOpen <= r.getLeft()) continue;
+            var segment = r.getRight();
+            _segments.remove(segment.id);
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                Log.error("Error deleting segment " + segment.path, e);
+            }
+            it.remove();
+        }
+    }
+
+    @Override
+    public long getTotalSpace() {
+        verifyReady();
+        return _index.getTotalSpace();
+    }
+
+    @Override
+    public long getFreeSpace() {
+        verifyReady();
+        return _index.getFreeSpace();
+    }
+
+    /**
+     * A segment file. It is preallocated (sparsely) to its capacity and mapped as a whole,
+     * segments from previous runs are never appended to.
+     */
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final int capacity;
+        final AtomicLong liveBytes = new AtomicLong();
+        int size;
+
+        private Segment(long id, Path path, FileChannel channel, int capacity, int size) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.capacity = capacity;
+            this.size = size;
+            this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+        }
+
+        static Segment create(long id, Path path, int capacity) throws IOException {
+            var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.write(ByteBuffer.allocate(1), capacity - 1);
+            return new Segment(id, path, channel, capacity, 0);
+        }
+
+        /**
+         * Drop everything written after the given size, keeping the file preallocated to its capacity,
+         * as the whole capacity is mapped.
+         */
+        void truncate(int size) throws IOException {
+            channel.truncate(size);
+            channel.write(ByteBuffer.allocate(1), capacity - 1);
+        }
+
+        static Segment open(long id, Path path) throws IOException {
+            var channel = FileChannel.open(path, StandardOpenOption.READ);
+            int capacity = Math.toIntExact(channel.size());
+            return new Segment(id, path, channel, capacity, capacity);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import javax.annotation.Nonnull;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
@@ -36,8 +37,8 @@ public class SerializingObjectPersistentStore {
      *
      * @return a snapshot of the persistent store
      */
-    public Snapshot<JObjectKey, JDataVersionedWrapper> getSnapshot() {
-        return new Snapshot<JObjectKey, JDataVersionedWrapper>() {
+    public SerializingSnapshot getSnapshot() {
+        return new SerializingSnapshot() {
             private final Snapshot<JObjectKey, ByteBuffer> _backing = delegateStore.getSnapshot();
 
             @Override
@@ -47,12 +48,32 @@ public class SerializingObjectPersistentStore {
                                 d -> serializer.deserialize(((DataWrapper<ByteBuffer>) d).value())));
             }
 
+            @Override
+            public List<CloseableKvIterator<JObjectKey, MaybeTombstone<JDataVersionedWrapper>>> getIterator(IteratorStart start, JObjectKey key,
+                                                                                                            String partition, Function<JObjectKey, Boolean> inPartition) {
+                return ListUtils.map(_backing.getIterator(start, key, partition, inPartition),
+                        i -> new MappingKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>, MaybeTombstone<JDataVersionedWrapper>>(i,
+                                d -> serializer.deserialize(((DataWrapper<ByteBuffer>) d).value())));
+            }
+
             @Nonnull
             @Override
             public Optional<JDataVersionedWrapper> readObject(JObjectKey name) {
                 return _backing.readObject(name).map(serializer::deserialize);
             }
 
+            @Nonnull
+            @Override
+            public Optional<ByteBuffer> readRaw(JObjectKey name) {
+                return _backing.readObject(name).map(serializer::getData);
+            }
+
+            @Nonnull
+            @Override
+            public Optional<ByteBuffer> readSerialized(JObjectKey name) {
+                return _backing.readObject(name);
+            }
+
             @Override
             public long id() {
                 return _backing.id();
@@ -67,12 +88,27 @@ public class SerializingObjectPersistentStore {
     }
 
 
+    /**
+     * Snapshot of the persistent store that can also return the objects exactly as they are stored.
+     */
+    public interface SerializingSnapshot extends Snapshot<JObjectKey, JDataVersionedWrapper> {
+        /**
+         * Read the serialized object together with its version,
+         * to be split with {@link JDataVersionedWrapperSerializer#getVersion} and {@link JDataVersionedWrapperSerializer#getData}.
+         *
+         * @param name the key of the object
+         * @return the serialized object, or an empty optional if it doesn't exist
+         */
+        @Nonnull
+        Optional<ByteBuffer> readSerialized(JObjectKey name);
+    }
+
     /**
      * Serialize the objects, in parallel
      * @param objs the objects to serialize
      * @return the serialized objects
      */
-    private TxManifestRaw prepareManifest(TxManifestObj<? extends JDataVersionedWrapper> objs) {
+    TxManifestRaw prepareManifest(TxManifestObj<? extends JDataVersionedWrapper> objs) {
         return new TxManifestRaw(
                 objs.written().parallelStream()
                         .map(e -> Pair.of(e.getKey(), serializer.serialize(e.getValue())))
@@ -88,4 +124,13 @@ public class SerializingObjectPersistentStore {
     void commitTx(TxManifestObj<? extends JDataVersionedWrapper> objects, long txId) {
         delegateStore.commitTx(prepareManifest(objects), txId);
     }
+
+    /**
+     * Commit a transaction with already serialized objects to the persistent store.
+     * @param manifest the serialized transaction manifest, see {@link #prepareManifest}
+     * @param txId the transaction ID
+     */
+    void commitTx(TxManifestRaw manifest, long txId) {
+        delegateStore.commitTx(manifest, txId);
+    }
 }
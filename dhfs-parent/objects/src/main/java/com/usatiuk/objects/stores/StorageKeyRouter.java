@@ -0,0 +1,33 @@
+package com.usatiuk.objects.stores;
+
+import com.usatiuk.objects.JObjectKey;
+
+import java.util.List;
+
+/**
+ * Decides in which partition of the persistent storage an object is stored, based on its key.
+ * Persistent stores can use this to keep objects with different access patterns apart,
+ * for example small metadata objects separately from large data blobs.
+ * The same key must always be routed to the same partition.
+ */
+public interface StorageKeyRouter {
+    /**
+     * Name of the partition that holds all objects not routed anywhere else.
+     */
+    String DEFAULT_PARTITION = "objects";
+
+    /**
+     * Get the names of all partitions, including the default one.
+     *
+     * @return the names of the partitions
+     */
+    List<String> partitions();
+
+    /**
+     * Get the name of the partition an object with the given key is stored in.
+     *
+     * @param key the key of the object
+     * @return the name of the partition, one of {@link #partitions()}
+     */
+    String route(JObjectKey key);
+}
@@ -5,6 +5,7 @@ import com.usatiuk.objects.JDataVersionedWrapperImpl;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.iterators.CloseableKvIterator;
 import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.iterators.KeyPredicateKvIterator;
 import com.usatiuk.objects.iterators.MaybeTombstone;
 import com.usatiuk.objects.iterators.NavigableMapKvIterator;
 import com.usatiuk.objects.snapshot.Snapshot;
@@ -24,18 +25,24 @@ import org.pcollections.PSortedMap;
 import org.pcollections.TreePMap;
 
 import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Asynchronous write cache of objects.
- * Objects are put into a write queue by commitTx, and written to the storage by a separate thread.
+ * Objects are put into a write queue by commitTx, and written to the storage by separate threads.
+ * <p>
+ * Writeback is pipelined: one thread takes the pending bundle of transactions and serializes it,
+ * while another commits the previously serialized bundle to the storage.
+ * Transactions committed while the bundle is waiting for the group commit window, or while the threads are busy,
+ * are merged into a single bundle, and written in a single storage transaction.
  */
 @ApplicationScoped
 public class WritebackObjectPersistentStore {
@@ -46,10 +53,19 @@ public class WritebackObjectPersistentStore {
 
     @ConfigProperty(name = "dhfs.objects.writeback.limit")
     int sizeLimit;
+    @ConfigProperty(name = "dhfs.objects.writeback.group-commit-window-ms", defaultValue = "1")
+    long groupCommitWindowMs;
+    @ConfigProperty(name = "dhfs.objects.writeback.print-stats", defaultValue = "false")
+    boolean printStats;
 
     private TxBundle _pendingBundle = null;
+    // Bundles being serialized or committed, in the order of their ids
+    private final ArrayDeque<TxBundle> _flushingBundles = new ArrayDeque<>();
     private int _curSize = 0;
 
+    // Serialized bundles, handed off from the serializing thread to the committing one
+    private final SynchronousQueue<PreparedBundle> _preparedBundles = new SynchronousQueue<>();
+
     private final AtomicReference<PendingWriteData> _pendingWrites = new AtomicReference<>(null);
 
     private final ReentrantLock _pendingBundleLock = new ReentrantLock();
@@ -62,7 +78,17 @@ public class WritebackObjectPersistentStore {
 
     private final AtomicLong _waitedTotal = new AtomicLong(0);
 
+    // Statistics since they were last printed
+    private final AtomicLong _statBundles = new AtomicLong(0);
+    private final AtomicLong _statBundleEntries = new AtomicLong(0);
+    private final AtomicLong _statBundleSize = new AtomicLong(0);
+    private final AtomicLong _statSerializeNanos = new AtomicLong(0);
+    private final AtomicLong _statCommitNanos = new AtomicLong(0);
+    private final AtomicLong _statMaxCommitNanos = new AtomicLong(0);
+    private final AtomicLong _statWaited = new AtomicLong(0);
+
     private ExecutorService _writebackExecutor;
+    private ExecutorService _commitExecutor;
     private ExecutorService _statusExecutor;
 
     private volatile boolean _ready = false;
@@ -76,6 +102,14 @@ public class WritebackObjectPersistentStore {
             _writebackExecutor = Executors.newSingleThreadExecutor(factory);
             _writebackExecutor.submit(this::writeback);
         }
+        {
+            BasicThreadFactory factory = new BasicThreadFactory.Builder()
+                    .namingPattern("tx-writeback-commit-%d")
+                    .build();
+
+            _commitExecutor = Executors.newSingleThreadExecutor(factory);
+            _commitExecutor.submit(this::commitPrepared);
+        }
 
         _statusExecutor = Executors.newSingleThreadExecutor();
         _statusExecutor.submit(() -> {
@@ -84,6 +118,8 @@ public class WritebackObjectPersistentStore {
                     Thread.sleep(1000);
                     if (_curSize > 0)
                         Log.info("Tx commit status: size=" + _curSize / 1024 / 1024 + "MB");
+                    if (printStats)
+                        printStats();
                 }
             } catch (InterruptedException ignored) {
             }
@@ -104,7 +140,7 @@ public class WritebackObjectPersistentStore {
         _ready = false;
         _pendingBundleLock.lock();
         try {
-            while (_curSize > 0) {
+            while (_curSize > 0 || !_flushingBundles.isEmpty()) {
                 _flushCondition.await();
             }
         } finally {
@@ -112,6 +148,7 @@ public class WritebackObjectPersistentStore {
         }
 
         _writebackExecutor.shutdownNow();
+        _commitExecutor.shutdownNow();
         Log.info("Total tx bundle wait time: " + _waitedTotal.get() + "ms");
     }
 
@@ -119,6 +156,25 @@ public class WritebackObjectPersistentStore {
         if (!_ready) throw new IllegalStateException("Not doing transactions while shutting down!");
     }
 
+    private void printStats() {
+        long bundles = _statBundles.getAndSet(0);
+        long waited = _statWaited.getAndSet(0);
+        if (bundles == 0 && waited == 0)
+            return;
+        long entries = _statBundleEntries.getAndSet(0);
+        long size = _statBundleSize.getAndSet(0);
+        long serializeNanos = _statSerializeNanos.getAndSet(0);
+        long commitNanos = _statCommitNanos.getAndSet(0);
+        long maxCommitNanos = _statMaxCommitNanos.getAndSet(0);
+        Log.info("Writeback stats: bundles=" + bundles
+                + " avg entries=" + (bundles == 0 ? 0 : entries / bundles)
+                + " avg size=" + (bundles == 0 ? 0 : size / bundles / 1024) + "KB"
+                + " avg serialize=" + (bundles == 0 ? 0 : serializeNanos / bundles / 1000) + "us"
+                + " avg commit=" + (bundles == 0 ? 0 : commitNanos / bundles / 1000) + "us"
+                + " max commit=" + maxCommitNanos / 1000 + "us"
+                + " writers waited=" + waited + "ms");
+    }
+
     private void writeback() {
         while (!Thread.interrupted()) {
             try {
@@ -127,8 +183,16 @@ public class WritebackObjectPersistentStore {
                 try {
                     while (_pendingBundle == null)
                         _newBundleCondition.await();
+
+                    // Let more transactions join the bundle, unless writers are already blocked by it
+                    long windowEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitWindowMs);
+                    long left;
+                    while (_curSize < sizeLimit && (left = windowEnd - System.nanoTime()) > 0)
+                        _newBundleCondition.awaitNanos(left);
+
                     bundle = _pendingBundle;
                     _pendingBundle = null;
+                    _flushingBundles.addLast(bundle);
 
                     _curSize -= bundle.size();
                     assert _curSize == 0;
@@ -137,6 +201,8 @@ public class WritebackObjectPersistentStore {
                     _pendingBundleLock.unlock();
                 }
 
+                long serializeStart = System.nanoTime();
+
                 var toWrite = new ArrayList<Pair<JObjectKey, JDataVersionedWrapper>>();
                 var toDelete = new ArrayList<JObjectKey>();
 
@@ -154,10 +220,44 @@ public class WritebackObjectPersistentStore {
                     }
                 }
 
-                cachedStore.commitTx(new TxManifestObj<>(toWrite, toDelete), bundle.id());
+                var objs = new TxManifestObj<>(toWrite, toDelete);
+                var manifest = cachedStore.prepareTx(objs);
+
+                _statSerializeNanos.addAndGet(System.nanoTime() - serializeStart);
+                _statBundles.incrementAndGet();
+                _statBundleEntries.addAndGet(bundle._entries.size());
+                _statBundleSize.addAndGet(bundle.size());
+
+                Log.tracev("Bundle {0} serialized", bundle.id());
+
+                // Blocks until the previous bundle is committed
+                _preparedBundles.put(new PreparedBundle(bundle, objs, manifest));
+            } catch (InterruptedException ignored) {
+                break;
+            } catch (Exception e) {
+                Log.error("Uncaught exception in writeback", e);
+            } catch (Throwable o) {
+                Log.error("Uncaught THROWABLE in writeback", o);
+            }
+        }
+        Log.info("Writeback thread exiting");
+    }
+
+    private void commitPrepared() {
+        while (!Thread.interrupted()) {
+            try {
+                var prepared = _preparedBundles.take();
+                var bundle = prepared.bundle();
+
+                long commitStart = System.nanoTime();
+                cachedStore.commitTx(prepared.objs(), prepared.manifest(), bundle.id());
+                long commitTime = System.nanoTime() - commitStart;
+                _statCommitNanos.addAndGet(commitTime);
+                _statMaxCommitNanos.accumulateAndGet(commitTime, Math::max);
 
                 Log.tracev("Bundle {0} committed", bundle.id());
 
+                List<Runnable> callbacks;
                 _pendingBundleLock.lock();
                 try {
                     var curPw = _pendingWrites.get();
@@ -173,23 +273,29 @@ public class WritebackObjectPersistentStore {
                             curPw.lastCommittedId()
                     );
                     _pendingWrites.compareAndSet(curPw, newCurPw);
+
+                    // Callbacks can be added to the bundle being flushed until it's marked as flushed
+                    _lastFlushedId.set(bundle.id());
+                    var flushed = _flushingBundles.removeFirst();
+                    assert flushed == bundle;
+                    _flushCondition.signalAll();
+                    callbacks = bundle.callbacks();
                 } finally {
                     _pendingBundleLock.unlock();
                 }
 
-                _lastFlushedId.set(bundle.id());
-                var callbacks = bundle.callbacks();
                 _callbackExecutor.submit(() -> {
                     callbacks.forEach(Runnable::run);
                 });
             } catch (InterruptedException ignored) {
+                break;
             } catch (Exception e) {
-                Log.error("Uncaught exception in writeback", e);
+                Log.error("Uncaught exception in writeback commit", e);
             } catch (Throwable o) {
-                Log.error("Uncaught THROWABLE in writeback", o);
+                Log.error("Uncaught THROWABLE in writeback commit", o);
             }
         }
-        Log.info("Writeback thread exiting");
+        Log.info("Writeback commit thread exiting");
     }
 
     private long commitBundle(Collection<TxRecord.TxObjectRecord<?>> writes) {
@@ -204,6 +310,7 @@ public class WritebackObjectPersistentStore {
                     _flushCondition.await();
                 long waited = System.currentTimeMillis() - started;
                 _waitedTotal.addAndGet(waited);
+                _statWaited.addAndGet(waited);
                 if (Log.isTraceEnabled())
                     Log.tracev("Thread {0} waited for tx bundle for {1} ms", Thread.currentThread().getName(), waited);
             }
@@ -284,6 +391,12 @@ public class WritebackObjectPersistentStore {
                 fn.run();
                 return;
             }
+            for (var flushingBundle : _flushingBundles) {
+                if (flushingBundle.id() >= txId) {
+                    flushingBundle.addCallback(fn);
+                    return;
+                }
+            }
             var pendingBundle = _pendingBundle;
             if (pendingBundle == null) {
                 fn.run();
@@ -295,6 +408,28 @@ public class WritebackObjectPersistentStore {
         }
     }
 
+    /**
+     * Block until the transaction with id txId is written to the persistent store.
+     *
+     * @param txId transaction id to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void fence(long txId) throws InterruptedException {
+        if (_lastFlushedId.get() >= txId) return;
+        var latch = new CountDownLatch(1);
+        asyncFence(txId, latch::countDown);
+        latch.await();
+    }
+
+    /**
+     * Block until all the transactions committed so far are written to the persistent store.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void fenceLatest() throws InterruptedException {
+        fence(getLastCommitId());
+    }
+
     /**
      * Commit a transaction to the persistent store.
      *
@@ -356,6 +491,13 @@ public class WritebackObjectPersistentStore {
                     return ListUtils.prepend(new NavigableMapKvIterator<>(_pendingWrites, start, key), _cache.getIterator(start, key));
                 }
 
+                @Override
+                public List<CloseableKvIterator<JObjectKey, MaybeTombstone<JDataVersionedWrapper>>> getIterator(IteratorStart start, JObjectKey key,
+                                                                                                                String partition, Function<JObjectKey, Boolean> inPartition) {
+                    return ListUtils.prepend(new KeyPredicateKvIterator<>(new NavigableMapKvIterator<>(_pendingWrites, start, key), start, key, inPartition),
+                            _cache.getIterator(start, key, partition, inPartition));
+                }
+
                 @Nonnull
                 @Override
                 public Optional<JDataVersionedWrapper> readObject(JObjectKey name) {
@@ -372,6 +514,15 @@ public class WritebackObjectPersistentStore {
                     return _cache.readObject(name);
                 }
 
+                @Nonnull
+                @Override
+                public Optional<ByteBuffer> readRaw(JObjectKey name) {
+                    // Pending writes are not serialized yet
+                    if (_pendingWrites.containsKey(name))
+                        return Optional.empty();
+                    return _cache.readRaw(name);
+                }
+
                 @Override
                 public long id() {
                     assert txId >= _cache.id();
@@ -390,6 +541,11 @@ public class WritebackObjectPersistentStore {
         }
     }
 
+    private record PreparedBundle(TxBundle bundle,
+                                  TxManifestObj<JDataVersionedWrapper> objs,
+                                  TxManifestRaw manifest) {
+    }
+
     private record PendingWriteData(TreePMap<JObjectKey, PendingWriteEntry> pendingWrites,
                                     long lastFlushedId,
                                     long lastCommittedId) {
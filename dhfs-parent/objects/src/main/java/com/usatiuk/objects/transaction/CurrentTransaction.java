@@ -7,6 +7,7 @@ import com.usatiuk.objects.iterators.IteratorStart;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
 @Singleton
@@ -29,6 +30,11 @@ public class CurrentTransaction implements Transaction {
         return transactionManager.current().get(type, key);
     }
 
+    @Override
+    public Optional<ByteBuffer> getRaw(JObjectKey key) {
+        return transactionManager.current().getRaw(key);
+    }
+
     @Override
     public void delete(JObjectKey key) {
         transactionManager.current().delete(key);
@@ -39,6 +45,16 @@ public class CurrentTransaction implements Transaction {
         return transactionManager.current().getIterator(start, key);
     }
 
+    @Override
+    public CloseableKvIterator<JObjectKey, JData> getIterator(String partition, IteratorStart start, JObjectKey key) {
+        return transactionManager.current().getIterator(partition, start, key);
+    }
+
+    @Override
+    public boolean readOnly() {
+        return transactionManager.current().readOnly();
+    }
+
     @Override
     public <T extends JData> void put(JData obj) {
         transactionManager.current().put(obj);
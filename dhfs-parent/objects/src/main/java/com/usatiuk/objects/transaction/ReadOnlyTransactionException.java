@@ -0,0 +1,10 @@
+package com.usatiuk.objects.transaction;
+
+/**
+ * Thrown when something tries to write in a read-only transaction.
+ */
+public class ReadOnlyTransactionException extends RuntimeException {
+    public ReadOnlyTransactionException(String message) {
+        super(message);
+    }
+}
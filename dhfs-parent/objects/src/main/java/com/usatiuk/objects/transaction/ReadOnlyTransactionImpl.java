@@ -0,0 +1,109 @@
+package com.usatiuk.objects.transaction;
+
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JDataVersionedWrapper;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.iterators.CloseableKvIterator;
+import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.iterators.MappingKvIterator;
+import com.usatiuk.objects.iterators.TombstoneSkippingIterator;
+import com.usatiuk.objects.snapshot.Snapshot;
+import com.usatiuk.objects.stores.StorageKeyRouter;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Transaction that only reads from a snapshot.
+ * As there is nothing to check when it finishes, the reads are not tracked.
+ */
+class ReadOnlyTransactionImpl implements Transaction, AutoCloseable {
+    private final List<Runnable> _onCommit = new LinkedList<>();
+    private final List<Runnable> _onFlush = new LinkedList<>();
+    private final Snapshot<JObjectKey, JDataVersionedWrapper> _snapshot;
+    private final StorageKeyRouter _keyRouter;
+    private boolean _closed = false;
+
+    ReadOnlyTransactionImpl(Snapshot<JObjectKey, JDataVersionedWrapper> snapshot, StorageKeyRouter keyRouter) {
+        _snapshot = snapshot;
+        _keyRouter = keyRouter;
+    }
+
+    @Override
+    public void onCommit(Runnable runnable) {
+        _onCommit.add(runnable);
+    }
+
+    @Override
+    public void onFlush(Runnable runnable) {
+        _onFlush.add(runnable);
+    }
+
+    Collection<Runnable> getOnCommit() {
+        return Collections.unmodifiableCollection(_onCommit);
+    }
+
+    Collection<Runnable> getOnFlush() {
+        return Collections.unmodifiableCollection(_onFlush);
+    }
+
+    Snapshot<JObjectKey, JDataVersionedWrapper> snapshot() {
+        return _snapshot;
+    }
+
+    @Override
+    public <T extends JData> Optional<T> get(Class<T> type, JObjectKey key) {
+        return _snapshot.readObject(key)
+                .map(JDataVersionedWrapper::data)
+                .map(type::cast);
+    }
+
+    @Override
+    public Optional<ByteBuffer> getRaw(JObjectKey key) {
+        return _snapshot.readRaw(key);
+    }
+
+    @Override
+    public <T extends JData> void put(JData obj) {
+        throw new ReadOnlyTransactionException("Trying to write " + obj.key() + " in a read-only transaction");
+    }
+
+    @Override
+    public <T extends JData> void putNew(JData obj) {
+        throw new ReadOnlyTransactionException("Trying to write " + obj.key() + " in a read-only transaction");
+    }
+
+    @Override
+    public void delete(JObjectKey key) {
+        throw new ReadOnlyTransactionException("Trying to delete " + key + " in a read-only transaction");
+    }
+
+    @Override
+    public CloseableKvIterator<JObjectKey, JData> getIterator(IteratorStart start, JObjectKey key) {
+        return new MappingKvIterator<>(new TombstoneSkippingIterator<>(start, key, _snapshot.getIterator(start, key)),
+                JDataVersionedWrapper::data);
+    }
+
+    @Override
+    public CloseableKvIterator<JObjectKey, JData> getIterator(String partition, IteratorStart start, JObjectKey key) {
+        return new MappingKvIterator<>(new TombstoneSkippingIterator<>(start, key,
+                _snapshot.getIterator(start, key, partition, k -> _keyRouter.route(k).equals(partition))),
+                JDataVersionedWrapper::data);
+    }
+
+    @Override
+    public boolean readOnly() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (_closed) return;
+        _closed = true;
+        _snapshot.close();
+    }
+}
@@ -5,6 +5,7 @@ import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.iterators.CloseableKvIterator;
 import com.usatiuk.objects.iterators.IteratorStart;
 
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
 // The transaction interface actually used by user code to retrieve objects
@@ -13,6 +14,18 @@ public interface Transaction extends TransactionHandle {
 
     <T extends JData> Optional<T> get(Class<T> type, JObjectKey key);
 
+    /**
+     * Get the serialized form of an object as it is in the storage, without deserializing it.
+     * Returns an empty optional if the object was changed in this transaction or is not available in serialized form,
+     * in which case {@link #get} should be used instead.
+     * The read is not tracked for conflict detection, so it should only be used for immutable objects.
+     * The returned buffer is valid only until the transaction is closed.
+     *
+     * @param key the key of the object
+     * @return the serialized object, if available
+     */
+    Optional<ByteBuffer> getRaw(JObjectKey key);
+
     <T extends JData> void put(JData obj);
     <T extends JData> void putNew(JData obj);
 
@@ -24,4 +37,30 @@ public interface Transaction extends TransactionHandle {
         return getIterator(IteratorStart.GE, key);
     }
 
+    /**
+     * Get an iterator over only the objects stored in one partition of the storage,
+     * see {@link com.usatiuk.objects.stores.StorageKeyRouter}.
+     * The objects of the other partitions are not looked at, so scanning a small partition
+     * doesn't have to go through all the objects.
+     *
+     * @param partition the name of the partition
+     * @param start     the starting position relative to the key
+     * @param key       the starting key
+     * @return an iterator over the objects of the partition
+     */
+    CloseableKvIterator<JObjectKey, JData> getIterator(String partition, IteratorStart start, JObjectKey key);
+
+    default CloseableKvIterator<JObjectKey, JData> getIterator(String partition, JObjectKey key) {
+        return getIterator(partition, IteratorStart.GE, key);
+    }
+
+    /**
+     * Whether this is a read-only transaction, in which writing throws {@link ReadOnlyTransactionException}.
+     *
+     * @return true if the transaction is read-only
+     */
+    default boolean readOnly() {
+        return false;
+    }
+
 }
@@ -5,11 +5,14 @@ import com.usatiuk.objects.JDataVersionedWrapper;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.iterators.*;
 import com.usatiuk.objects.snapshot.Snapshot;
+import com.usatiuk.objects.stores.StorageKeyRouter;
 import com.usatiuk.utils.ListUtils;
 import io.quarkus.logging.Log;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.function.Function;
 
 class TransactionImpl implements Transaction, AutoCloseable {
     private final Map<JObjectKey, Optional<JDataVersionedWrapper>> _readSet = new HashMap<>();
@@ -18,6 +21,7 @@ class TransactionImpl implements Transaction, AutoCloseable {
     private final List<Runnable> _onFlush = new LinkedList<>();
     private final HashSet<JObjectKey> _knownNew = new HashSet<>();
     private final Snapshot<JObjectKey, JDataVersionedWrapper> _snapshot;
+    private final StorageKeyRouter _keyRouter;
     private boolean _closed = false;
 
     private boolean _writeTrack = false;
@@ -51,8 +55,9 @@ class TransactionImpl implements Transaction, AutoCloseable {
         }
     }
 
-    TransactionImpl(Snapshot<JObjectKey, JDataVersionedWrapper> snapshot) {
+    TransactionImpl(Snapshot<JObjectKey, JDataVersionedWrapper> snapshot, StorageKeyRouter keyRouter) {
         _snapshot = snapshot;
+        _keyRouter = keyRouter;
     }
 
     @Override
@@ -96,6 +101,13 @@ class TransactionImpl implements Transaction, AutoCloseable {
         };
     }
 
+    @Override
+    public Optional<ByteBuffer> getRaw(JObjectKey key) {
+        if (_writes.containsKey(key) || _knownNew.contains(key))
+            return Optional.empty();
+        return _snapshot.readRaw(key);
+    }
+
     @Override
     public void delete(JObjectKey key) {
         var record = new TxRecord.TxObjectRecordDeleted(key);
@@ -109,9 +121,24 @@ class TransactionImpl implements Transaction, AutoCloseable {
     @Override
     public CloseableKvIterator<JObjectKey, JData> getIterator(IteratorStart start, JObjectKey key) {
         Log.tracev("Getting tx iterator with start={0}, key={1}", start, key);
+        return getIterator(start, key, new NavigableMapKvIterator<>(_writes, start, key), _snapshot.getIterator(start, key));
+    }
+
+    @Override
+    public CloseableKvIterator<JObjectKey, JData> getIterator(String partition, IteratorStart start, JObjectKey key) {
+        Log.tracev("Getting tx iterator of partition {0} with start={1}, key={2}", partition, start, key);
+        Function<JObjectKey, Boolean> inPartition = k -> _keyRouter.route(k).equals(partition);
+        return getIterator(start, key,
+                new KeyPredicateKvIterator<>(new NavigableMapKvIterator<>(_writes, start, key), start, key, inPartition),
+                _snapshot.getIterator(start, key, partition, inPartition));
+    }
+
+    private CloseableKvIterator<JObjectKey, JData> getIterator(IteratorStart start, JObjectKey key,
+                                                               CloseableKvIterator<JObjectKey, TxRecord.TxObjectRecord<?>> writes,
+                                                               List<CloseableKvIterator<JObjectKey, MaybeTombstone<JDataVersionedWrapper>>> snapshot) {
         return new ReadTrackingIterator(new TombstoneSkippingIterator<JObjectKey, ReadTrackingSourceWrapper>(start, key,
                 ListUtils.prependAndMap(
-                        new MappingKvIterator<>(new NavigableMapKvIterator<>(_writes, start, key),
+                        new MappingKvIterator<>(writes,
                                 t -> switch (t) {
                                     case TxRecord.TxObjectRecordWrite<?> write ->
                                             new DataWrapper<ReadTrackingSourceWrapper>(new ReadTrackingSourceWrapperTx(write.data()));
@@ -119,7 +146,7 @@ class TransactionImpl implements Transaction, AutoCloseable {
                                             new TombstoneImpl<ReadTrackingSourceWrapper>();
                                     case null, default -> null;
                                 }),
-                        _snapshot.getIterator(start, key),
+                        snapshot,
                         itin -> new MappingKvIterator<JObjectKey, MaybeTombstone<JDataVersionedWrapper>, MaybeTombstone<ReadTrackingSourceWrapper>>(itin,
                                 d -> switch (d) {
                                     case Data<JDataVersionedWrapper> w ->
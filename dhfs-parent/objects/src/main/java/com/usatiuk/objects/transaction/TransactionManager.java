@@ -99,6 +99,41 @@ public interface TransactionManager {
         return run(supplier, false);
     }
 
+    /**
+     * Run a function in a read-only transaction.
+     * It reads from a snapshot, without tracking the reads or locking anything, and there is nothing to check at its end.
+     * Writing in it throws {@link ReadOnlyTransactionException}.
+     * If a transaction is already running, the function is run in it.
+     *
+     * @param supplier the function to run
+     * @return the result of the function
+     */
+    <T> T runReadOnly(Supplier<T> supplier);
+
+    default void runReadOnly(Runnable fn) {
+        runReadOnly(() -> {
+            fn.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run a function that usually only reads in a read-only transaction,
+     * if it turns out it needs to write, run it again in a normal transaction.
+     * The function should be fine with being run twice.
+     *
+     * @param supplier the function to run
+     * @return the result of the function
+     */
+    default <T> T runReadMostly(Supplier<T> supplier) {
+        try {
+            return runReadOnly(supplier);
+        } catch (ReadOnlyTransactionException e) {
+            Log.tracev("Retrying read-only transaction as a normal one: {0}", e.getMessage());
+            return run(supplier);
+        }
+    }
+
     default void executeTx(Runnable fn) {
         run(fn, false);
     }
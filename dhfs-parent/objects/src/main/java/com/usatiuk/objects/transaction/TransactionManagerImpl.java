@@ -8,10 +8,11 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.Collection;
 import java.util.Stack;
+import java.util.function.Supplier;
 
 @Singleton
 public class TransactionManagerImpl implements TransactionManager {
-    private static final ThreadLocal<Stack<TransactionImpl>> _currentTransaction = ThreadLocal.withInitial(Stack::new);
+    private static final ThreadLocal<Stack<Transaction>> _currentTransaction = ThreadLocal.withInitial(Stack::new);
     @Inject
     TransactionService transactionService;
 
@@ -28,7 +29,8 @@ public class TransactionManagerImpl implements TransactionManager {
         if (stack.empty()) {
             throw new IllegalStateException("No transaction started");
         }
-        var peeked = stack.peek();
+        if (!(stack.peek() instanceof TransactionImpl peeked))
+            throw new IllegalStateException("Read-only transactions are not committed");
 
         Log.trace("Committing transaction");
 
@@ -61,7 +63,8 @@ public class TransactionManagerImpl implements TransactionManager {
         if (stack.empty()) {
             throw new IllegalStateException("No transaction started");
         }
-        var peeked = stack.peek();
+        if (!(stack.peek() instanceof TransactionImpl peeked))
+            throw new IllegalStateException("Read-only transactions are not rolled back");
 
         try {
             transactionService.rollback(peeked);
@@ -76,6 +79,38 @@ public class TransactionManagerImpl implements TransactionManager {
         }
     }
 
+    @Override
+    public <T> T runReadOnly(Supplier<T> supplier) {
+        var stack = _currentTransaction.get();
+        if (!stack.empty())
+            return supplier.get();
+
+        var tx = transactionService.createReadOnlyTransaction();
+        stack.push(tx);
+        T ret;
+        try {
+            ret = supplier.get();
+        } catch (Throwable e) {
+            // Drop the callbacks
+            transactionService.finishReadOnly(tx);
+            throw e;
+        } finally {
+            stack.pop();
+            _currentTransaction.remove();
+        }
+
+        var onCommit = transactionService.finishReadOnly(tx);
+
+        for (var r : onCommit) {
+            try {
+                r.run();
+            } catch (Throwable e) {
+                Log.error("Transaction commit hook error: ", e);
+            }
+        }
+        return ret;
+    }
+
     @Override
     @Nullable
     public Transaction current() {
@@ -4,10 +4,12 @@ import com.usatiuk.objects.JData;
 import com.usatiuk.objects.JDataVersionedWrapper;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.snapshot.Snapshot;
+import com.usatiuk.objects.stores.StorageKeyRouter;
 import com.usatiuk.objects.stores.WritebackObjectPersistentStore;
 import com.usatiuk.utils.AutoCloseableNoThrow;
 import com.usatiuk.utils.DataLocker;
 import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
 import jakarta.annotation.Priority;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -16,8 +18,12 @@ import jakarta.enterprise.inject.Instance;
 import jakarta.enterprise.inject.spi.CDI;
 import jakarta.inject.Inject;
 import org.apache.commons.lang3.tuple.Pair;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -26,16 +32,26 @@ public class TransactionService {
     private static final List<PreCommitTxHook> _preCommitTxHooks;
     @Inject
     WritebackObjectPersistentStore writebackObjectPersistentStore;
+    @Inject
+    StorageKeyRouter keyRouter;
+
+    @ConfigProperty(name = "dhfs.objects.lock_timeout_secs")
+    long lockTimeoutSecs;
+    @ConfigProperty(name = "dhfs.objects.lock.print-stats")
+    boolean printLockStats;
 
     private boolean _ready = false;
-    private final DataLocker _objLocker = new DataLocker();
+    private final DataLocker _objLocker;
+    private ExecutorService _statusExecutor;
 
     static {
         _preCommitTxHooks = List.copyOf(CDI.current().select(PreCommitTxHook.class).stream().sorted(Comparator.comparingInt(PreCommitTxHook::getPriority)).toList());
     }
 
-    TransactionService(Instance<PreCommitTxHook> preCommitTxHooks) {
+    TransactionService(Instance<PreCommitTxHook> preCommitTxHooks,
+                       @ConfigProperty(name = "dhfs.objects.lock.stripes") int lockStripes) {
         Log.debugv("Pre-commit hooks: {0}", String.join("->", _preCommitTxHooks.stream().map(Objects::toString).toList()));
+        _objLocker = new DataLocker(lockStripes);
     }
 
     private void verifyReady() {
@@ -44,21 +60,80 @@ public class TransactionService {
 
     void init(@Observes @Priority(200) StartupEvent event) {
         _ready = true;
+        if (printLockStats) {
+            _statusExecutor = Executors.newSingleThreadExecutor();
+            _statusExecutor.submit(() -> {
+                try {
+                    var lastStats = _objLocker.stats();
+                    while (true) {
+                        Thread.sleep(1000);
+                        var curStats = _objLocker.stats();
+                        var stats = curStats.minus(lastStats);
+                        lastStats = curStats;
+                        Log.info("Object locks: acquired=" + stats.acquired()
+                                + " contended=" + stats.contended()
+                                + " timed out=" + stats.timedOut());
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+    }
+
+    void shutdown(@Observes @Priority(900) ShutdownEvent event) {
+        if (_statusExecutor != null)
+            _statusExecutor.shutdownNow();
+    }
+
+    /**
+     * Contention counters of the object locks taken when committing.
+     */
+    public DataLocker.Stats lockStats() {
+        return _objLocker.stats();
     }
 
     public TransactionImpl createTransaction() {
         verifyReady();
-        var tx = new TransactionImpl(writebackObjectPersistentStore.getSnapshot());
+        var tx = new TransactionImpl(writebackObjectPersistentStore.getSnapshot(), keyRouter);
         Log.tracev("Created transaction with snapshotId={0}", tx.snapshot().id());
         return tx;
     }
 
+    public ReadOnlyTransactionImpl createReadOnlyTransaction() {
+        verifyReady();
+        var tx = new ReadOnlyTransactionImpl(writebackObjectPersistentStore.getSnapshot(), keyRouter);
+        Log.tracev("Created read-only transaction with snapshotId={0}", tx.snapshot().id());
+        return tx;
+    }
+
+    /**
+     * Close a read-only transaction.
+     * Nothing was read that is newer than its snapshot, so the flush callbacks only have to wait for it.
+     *
+     * @param tx the transaction
+     * @return the callbacks to run after the transaction is finished
+     */
+    public Collection<Runnable> finishReadOnly(ReadOnlyTransactionImpl tx) {
+        long snapshotId = tx.snapshot().id();
+        tx.close();
+        var onCommit = tx.getOnCommit();
+        var onFlush = tx.getOnFlush();
+        if (onCommit.isEmpty() && onFlush.isEmpty())
+            return List.of();
+        return List.of(() -> {
+            for (var f : onCommit)
+                f.run();
+            for (var f : onFlush)
+                writebackObjectPersistentStore.asyncFence(snapshotId, f);
+        });
+    }
+
     public Pair<Collection<Runnable>, TransactionHandle> commit(TransactionImpl tx) {
         verifyReady();
         var writes = new HashMap<JObjectKey, TxRecord.TxObjectRecord<?>>();
         Snapshot<JObjectKey, JDataVersionedWrapper> commitSnapshot = null;
         Map<JObjectKey, Optional<JDataVersionedWrapper>> readSet = null;
-        Collection<AutoCloseableNoThrow> toUnlock = null;
+        AutoCloseableNoThrow toUnlock = null;
 
         try {
             long pendingCount = 0;
@@ -148,22 +223,16 @@ public class TransactionService {
             readSet = tx.reads();
 
             if (!writes.isEmpty()) {
-                toUnlock = new ArrayList<>(readSet.size() + writes.size());
                 ArrayList<JObjectKey> toLock = new ArrayList<>(readSet.size() + writes.size());
                 for (var read : readSet.entrySet()) {
-                    toLock.add(read.getKey());
+                    if (!tx.knownNew().contains(read.getKey()))
+                        toLock.add(read.getKey());
                 }
                 for (var write : writes.keySet()) {
-                    if (!readSet.containsKey(write))
+                    if (!readSet.containsKey(write) && !tx.knownNew().contains(write))
                         toLock.add(write);
                 }
-                toLock.sort(null);
-                for (var key : toLock) {
-                    if (tx.knownNew().contains(key))
-                        continue;
-                    var lock = _objLocker.lock(key);
-                    toUnlock.add(lock);
-                }
+                toUnlock = _objLocker.lockAll(toLock, Duration.ofSeconds(lockTimeoutSecs));
 
             } else {
                 Log.trace("Committing transaction - no changes");
@@ -250,9 +319,7 @@ public class TransactionService {
             throw new TxCommitException(t.getMessage(), t);
         } finally {
             if (toUnlock != null)
-                for (var unlock : toUnlock) {
-                    unlock.close();
-                }
+                toUnlock.close();
             if (commitSnapshot != null)
                 commitSnapshot.close();
             tx.close();
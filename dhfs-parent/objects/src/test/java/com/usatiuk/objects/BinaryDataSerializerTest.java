@@ -0,0 +1,135 @@
+package com.usatiuk.objects;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.objects.binary.*;
+import com.usatiuk.objects.data.Kid;
+import com.usatiuk.objects.data.Parent;
+import com.usatiuk.utils.SerializationHelper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pcollections.*;
+
+import java.util.Comparator;
+import java.util.List;
+
+public class BinaryDataSerializerTest {
+    private record Versioned(JObjectKey key, String name, long size) implements JData {
+    }
+
+    // Version 1 didn't have the size
+    private static final BinaryCodec<Versioned> VERSIONED_CODEC = BinaryCodec.of(64, 2, Versioned.class,
+            (out, v) -> {
+                out.writeKey(v.key());
+                out.writeString(v.name());
+                out.writeLong(v.size());
+            },
+            (in, ver) -> new Versioned(in.readKey(), in.readString(), ver >= 2 ? in.readLong() : -1));
+
+    private static final BinaryCodecRegistry REGISTRY = new BinaryCodecRegistry(List.of(() -> List.of(VERSIONED_CODEC)));
+
+    private static Object roundTrip(Object value) {
+        var writer = new BinaryWriter(REGISTRY);
+        writer.writeObject(value);
+        return new BinaryReader(REGISTRY, writer.toByteString().asReadOnlyByteBuffer()).readObject();
+    }
+
+    @Test
+    void builtInTypesTest() {
+        var values = List.of(
+                "string-строка", 1L, -1L, Long.MAX_VALUE, 42, true, false,
+                ByteString.copyFromUtf8("bytes"), ByteString.EMPTY,
+                JObjectKey.of("key"), Parent.class,
+                HashTreePMap.<String, Object>empty().plus("a", 1L).plus("b", JObjectKey.of("c")),
+                TreePMap.<String, Long>empty().plus("a", 1L).plus("b", 2L),
+                HashTreePSet.empty().plus(JObjectKey.of("a")).plus(JObjectKey.of("b")),
+                TreePSet.<Long>empty().plus(1L).plus(2L),
+                TreePVector.empty().plus("a").plus("b"),
+                List.of("a", 1L, List.of())
+        );
+        for (var value : values)
+            Assertions.assertEquals(value, roundTrip(value));
+        Assertions.assertNull(roundTrip(null));
+    }
+
+    @Test
+    void sortedKeepsOrderTest() {
+        var map = TreePMap.<Long, String>empty().plus(3L, "c").plus(1L, "a").plus(2L, "b");
+        var read = (PSortedMap<Long, String>) roundTrip(map);
+        Assertions.assertEquals(List.of(1L, 2L, 3L), List.copyOf(read.keySet()));
+        // Still usable as a sorted map after reading
+        Assertions.assertEquals(List.of(1L), List.copyOf(read.headMap(2L).keySet()));
+
+        // Custom comparators can't be written in the binary format
+        var reversed = TreePMap.<Long, String>empty(Comparator.reverseOrder()).plus(1L, "a").plus(2L, "b");
+        var readReversed = (PSortedMap<Long, String>) roundTrip(reversed);
+        Assertions.assertEquals(reversed, readReversed);
+        Assertions.assertEquals(List.of(2L, 1L), List.copyOf(readReversed.keySet()));
+    }
+
+    @Test
+    void codecTest() {
+        var value = new Versioned(JObjectKey.of("v"), "name", 123);
+        Assertions.assertEquals(value, roundTrip(value));
+        Assertions.assertEquals(HashTreePMap.empty().plus("v", value), roundTrip(HashTreePMap.empty().plus("v", value)));
+    }
+
+    @Test
+    void oldVersionTest() {
+        var writer = new BinaryWriter(REGISTRY);
+        writer.writeVarLong(VERSIONED_CODEC.tag());
+        writer.writeVarLong(1);
+        writer.writeKey(JObjectKey.of("v"));
+        writer.writeString("name");
+        var read = new BinaryReader(REGISTRY, writer.toByteString().asReadOnlyByteBuffer()).readObject();
+        Assertions.assertEquals(new Versioned(JObjectKey.of("v"), "name", -1), read);
+    }
+
+    @Test
+    void newerVersionTest() {
+        var writer = new BinaryWriter(REGISTRY);
+        writer.writeVarLong(VERSIONED_CODEC.tag());
+        writer.writeVarLong(3);
+        writer.writeKey(JObjectKey.of("v"));
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> new BinaryReader(REGISTRY, writer.toByteString().asReadOnlyByteBuffer()).readObject());
+    }
+
+    @Test
+    void registryChecksTagsTest() {
+        BinaryCodec<Parent> reserved = BinaryCodec.of(1, 1, Parent.class, (out, v) -> {
+        }, (in, ver) -> null);
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> new BinaryCodecRegistry(List.of(() -> List.of(reserved))));
+        BinaryCodec<Parent> sameTag = BinaryCodec.of(64, 1, Parent.class, (out, v) -> {
+        }, (in, ver) -> null);
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> new BinaryCodecRegistry(List.of(() -> List.of(VERSIONED_CODEC), () -> List.of(sameTag))));
+    }
+
+    @Test
+    void serializerRoundTripTest() {
+        var serializer = new BinaryDataSerializer(REGISTRY);
+        // Without a codec, written with Java serialization inside the binary format
+        for (JData obj : List.of(new Versioned(JObjectKey.of("v"), "name", 1), new Parent(JObjectKey.of("p"), "parent"),
+                new Kid(JObjectKey.of("k"), "kid"))) {
+            var serialized = serializer.serialize(obj);
+            Assertions.assertNotEquals(SerializationHelper.serialize(obj), serialized);
+            Assertions.assertEquals(obj, serializer.deserialize(serialized.asReadOnlyByteBuffer()));
+        }
+    }
+
+    @Test
+    void readsJavaSerializedTest() {
+        // Objects stored by JavaDataSerializer before the binary format was enabled
+        var serializer = new BinaryDataSerializer(REGISTRY);
+        var javaSerializer = new JavaDataSerializer();
+        for (JData obj : List.of(new Versioned(JObjectKey.of("v"), "name", 1), new Parent(JObjectKey.of("p"), "parent"))) {
+            var old = javaSerializer.serialize(obj);
+            Assertions.assertEquals(obj, serializer.deserialize(old.asReadOnlyByteBuffer()));
+            // Also when read from the middle of a buffer
+            var buffer = ByteString.copyFromUtf8("prefix").concat(old).asReadOnlyByteBuffer();
+            buffer.position(6);
+            Assertions.assertEquals(obj, serializer.deserialize(buffer));
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.usatiuk.objects;
 
 import com.usatiuk.objects.data.Parent;
 import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.transaction.ReadOnlyTransactionException;
 import com.usatiuk.objects.transaction.Transaction;
 import com.usatiuk.objects.transaction.TransactionManager;
 import io.quarkus.logging.Log;
@@ -15,6 +16,7 @@ import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class Profiles {
     public static class ObjectsTestProfileExtraChecks extends TempDataProfile {
@@ -30,6 +32,17 @@ class Profiles {
             toPut.put("dhfs.objects.persistence.snapshot-extra-checks", "false");
         }
     }
+
+    public static class ObjectsTestProfileSegmented extends TempDataProfile {
+        @Override
+        protected void getConfigOverrides(Map<String, String> toPut) {
+            toPut.put("dhfs.objects.persistence", "lmdb-segments");
+            toPut.put("dhfs.objects.persistence.snapshot-extra-checks", "true");
+            toPut.put("dhfs.objects.persistence.segments.min-value-size", "0");
+            toPut.put("dhfs.objects.persistence.segments.segment-size", "65536");
+            toPut.put("dhfs.objects.persistence.segments.compaction-interval-ms", "100");
+        }
+    }
 }
 
 public abstract class ObjectsTestImpl {
@@ -87,6 +100,38 @@ public abstract class ObjectsTestImpl {
         });
     }
 
+    @Test
+    void readOnlyTest(TestInfo testInfo) {
+        var key = JObjectKey.of(testInfo.getDisplayName() + "ParentReadOnly");
+        txm.run(() -> {
+            curTx.put(new Parent(key, "John"));
+        });
+
+        var name = txm.runReadOnly(() -> {
+            Assertions.assertTrue(curTx.readOnly());
+            return curTx.get(Parent.class, key).map(Parent::name).orElse(null);
+        });
+        Assertions.assertEquals("John", name);
+
+        Assertions.assertThrows(ReadOnlyTransactionException.class, () -> txm.runReadOnly(() -> {
+            curTx.put(new Parent(key, "John2"));
+        }));
+
+        var tries = new AtomicInteger();
+        var got = txm.runReadMostly(() -> {
+            tries.incrementAndGet();
+            var parent = curTx.get(Parent.class, key).orElseThrow();
+            curTx.put(parent.withName("John3"));
+            return parent.name();
+        });
+        Assertions.assertEquals("John", got);
+        Assertions.assertEquals(2, tries.get());
+
+        txm.runReadOnly(() -> {
+            Assertions.assertEquals("John3", curTx.get(Parent.class, key).orElseThrow().name());
+        });
+    }
+
     @Test
     void createGetObject(TestInfo testInfo) {
         txm.run(() -> {
@@ -0,0 +1,9 @@
+package com.usatiuk.objects;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+
+@QuarkusTest
+@TestProfile(Profiles.ObjectsTestProfileSegmented.class)
+public class ObjectsTestSegmentedTest extends ObjectsTestImpl {
+}
@@ -0,0 +1,195 @@
+package com.usatiuk.objects.stores;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.objects.*;
+import com.usatiuk.objects.data.Parent;
+import com.usatiuk.objects.iterators.CloseableKvIterator;
+import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.iterators.MaybeTombstone;
+import com.usatiuk.objects.snapshot.Snapshot;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingObjectPersistentStoreTest {
+    private static final int BLOB_MIN_SIZE = 1024;
+    private static final long BLOB_LIMIT = 64 * 1024;
+
+    // Counts the reads of the objects from the store
+    private static class CountingStore extends MemoryObjectPersistentStore {
+        final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public Snapshot<JObjectKey, ByteBuffer> getSnapshot() {
+            var snapshot = super.getSnapshot();
+            return new Snapshot<>() {
+                @Override
+                public List<CloseableKvIterator<JObjectKey, MaybeTombstone<ByteBuffer>>> getIterator(IteratorStart start, JObjectKey key) {
+                    return snapshot.getIterator(start, key);
+                }
+
+                @Nonnull
+                @Override
+                public Optional<ByteBuffer> readObject(JObjectKey name) {
+                    reads.incrementAndGet();
+                    return snapshot.readObject(name);
+                }
+
+                @Override
+                public long id() {
+                    return snapshot.id();
+                }
+
+                @Override
+                public void close() {
+                    snapshot.close();
+                }
+            };
+        }
+    }
+
+    private final CountingStore _store = new CountingStore();
+    private final JDataVersionedWrapperSerializer _serializer = new JDataVersionedWrapperSerializer(new JavaDataSerializer());
+    private long _txId = 0;
+
+    private CachingObjectPersistentStore open() {
+        var serializing = new SerializingObjectPersistentStore();
+        serializing.serializer = _serializer;
+        serializing.delegateStore = _store;
+        var ret = new CachingObjectPersistentStore(1024 * 1024, BLOB_LIMIT);
+        ret.delegate = serializing;
+        ret.serializer = _serializer;
+        ret.blobMinSize = BLOB_MIN_SIZE;
+        return ret;
+    }
+
+    private static Parent parent(String key, int size, char fill) {
+        return new Parent(JObjectKey.of(key), String.valueOf(fill).repeat(size));
+    }
+
+    private void write(CachingObjectPersistentStore store, Parent obj) {
+        var txId = ++_txId;
+        store.commitTx(new TxManifestObj<>(List.of(Pair.of(obj.key(), new JDataVersionedWrapperImpl(obj, txId))), List.of()), txId);
+    }
+
+    private void delete(CachingObjectPersistentStore store, JObjectKey key) {
+        var txId = ++_txId;
+        store.commitTx(new TxManifestObj<>(List.of(), List.of(key)), txId);
+    }
+
+    private Optional<ByteString> readRaw(CachingObjectPersistentStore store, JObjectKey key) {
+        try (var snapshot = store.getSnapshot()) {
+            return snapshot.readRaw(key).map(ByteString::copyFrom);
+        }
+    }
+
+    private static ByteString serialized(JData obj) {
+        return new JavaDataSerializer().serialize(obj);
+    }
+
+    @Test
+    void missReadsStoreOnceTest() {
+        var obj = parent("blob", 10000, 'a');
+        write(open(), obj);
+
+        // As after a restart, nothing is cached
+        var store = open();
+        _store.reads.set(0);
+        Assertions.assertEquals(Optional.of(serialized(obj)), readRaw(store, obj.key()));
+        Assertions.assertEquals(1, _store.reads.get());
+
+        // Cached by the first read
+        Assertions.assertEquals(Optional.of(serialized(obj)), readRaw(store, obj.key()));
+        Assertions.assertEquals(1, _store.reads.get());
+        try (var snapshot = store.getSnapshot()) {
+            Assertions.assertEquals(obj, snapshot.readObject(obj.key()).orElseThrow().data());
+        }
+        Assertions.assertEquals(1, _store.reads.get());
+    }
+
+    @Test
+    void missNotFoundTest() {
+        var store = open();
+        Assertions.assertEquals(Optional.empty(), readRaw(store, JObjectKey.of("missing")));
+        Assertions.assertEquals(1, _store.reads.get());
+    }
+
+    @Test
+    void smallNotCachedTest() {
+        var obj = parent("small", 10, 'a');
+        write(open(), obj);
+        var store = open();
+        _store.reads.set(0);
+        Assertions.assertEquals(Optional.of(serialized(obj)), readRaw(store, obj.key()));
+        Assertions.assertEquals(Optional.of(serialized(obj)), readRaw(store, obj.key()));
+        Assertions.assertEquals(2, _store.reads.get());
+    }
+
+    @Test
+    void writeInvalidatesTest() {
+        var store = open();
+        var key = JObjectKey.of("blob");
+        write(store, parent("blob", 10000, 'a'));
+        var updated = parent("blob", 10000, 'b');
+        write(store, updated);
+        _store.reads.set(0);
+        // Written through to the cache
+        Assertions.assertEquals(Optional.of(serialized(updated)), readRaw(store, key));
+        Assertions.assertEquals(0, _store.reads.get());
+
+        // Became small, so it is read from the store
+        var small = parent("blob", 10, 'c');
+        write(store, small);
+        Assertions.assertEquals(Optional.of(serialized(small)), readRaw(store, key));
+        Assertions.assertEquals(1, _store.reads.get());
+    }
+
+    @Test
+    void deleteInvalidatesTest() {
+        var store = open();
+        var obj = parent("blob", 10000, 'a');
+        write(store, obj);
+        Assertions.assertEquals(Optional.of(serialized(obj)), readRaw(store, obj.key()));
+        delete(store, obj.key());
+        _store.reads.set(0);
+        Assertions.assertEquals(Optional.empty(), readRaw(store, obj.key()));
+        Assertions.assertEquals(1, _store.reads.get());
+    }
+
+    @Test
+    void oldSnapshotTest() {
+        var store = open();
+        var obj = parent("blob", 10000, 'a');
+        write(store, obj);
+        try (var snapshot = store.getSnapshot()) {
+            var updated = parent("blob", 10000, 'b');
+            write(store, updated);
+            // The cached version is too new for the snapshot
+            Assertions.assertEquals(serialized(obj), ByteString.copyFrom(snapshot.readRaw(obj.key()).orElseThrow()));
+            Assertions.assertEquals(Optional.of(serialized(updated)), readRaw(store, obj.key()));
+        }
+        // And the old version read by it didn't replace the new one
+        _store.reads.set(0);
+        Assertions.assertEquals(serialized(parent("blob", 10000, 'b')), readRaw(store, obj.key()).orElseThrow());
+        Assertions.assertEquals(0, _store.reads.get());
+    }
+
+    @Test
+    void evictionTest() {
+        var store = open();
+        int count = 64;
+        for (int i = 0; i < count; i++)
+            write(store, parent("blob" + i, 10000, 'a'));
+        _store.reads.set(0);
+        for (int i = 0; i < count; i++)
+            Assertions.assertEquals(Optional.of(serialized(parent("blob" + i, 10000, 'a'))), readRaw(store, JObjectKey.of("blob" + i)));
+        // At most 6 objects of 10KB fit in the cache, most of them are read from the store
+        Assertions.assertTrue(_store.reads.get() >= count - (int) (BLOB_LIMIT / 10000), "Read " + _store.reads.get());
+    }
+}
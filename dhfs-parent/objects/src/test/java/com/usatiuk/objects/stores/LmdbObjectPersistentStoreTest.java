@@ -0,0 +1,342 @@
+package com.usatiuk.objects.stores;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.iterators.MergingKvIterator;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LmdbObjectPersistentStoreTest {
+    // Keys starting with "map=" go to their own database
+    private static final StorageKeyRouter PARTITIONED = new StorageKeyRouter() {
+        @Override
+        public List<String> partitions() {
+            return List.of(DEFAULT_PARTITION, "maps");
+        }
+
+        @Override
+        public String route(JObjectKey key) {
+            return key.value().startsWith("map=") ? "maps" : DEFAULT_PARTITION;
+        }
+    };
+
+    // The older layout, with everything in the default database
+    private static final StorageKeyRouter SINGLE = new StorageKeyRouter() {
+        @Override
+        public List<String> partitions() {
+            return List.of(DEFAULT_PARTITION);
+        }
+
+        @Override
+        public String route(JObjectKey key) {
+            return DEFAULT_PARTITION;
+        }
+    };
+
+    @TempDir
+    Path dir;
+
+    private final List<LmdbObjectPersistentStore> _opened = new ArrayList<>();
+    private long _txId = 0;
+
+    @AfterEach
+    void closeAll() throws InterruptedException {
+        for (var store : _opened)
+            store.close();
+    }
+
+    private LmdbObjectPersistentStore open(StorageKeyRouter router) {
+        var store = new LmdbObjectPersistentStore(dir, 1L << 30, 1000, router);
+        store.open();
+        _opened.add(store);
+        return store;
+    }
+
+    // Opens the store without starting the migration in the background
+    private LmdbObjectPersistentStore openNoMigration(StorageKeyRouter router, int batchSize) {
+        var store = new LmdbObjectPersistentStore(dir, 1L << 30, batchSize, router);
+        store.open(false);
+        _opened.add(store);
+        return store;
+    }
+
+    private void close(LmdbObjectPersistentStore store) throws InterruptedException {
+        store.close();
+        _opened.remove(store);
+    }
+
+    // Creates a store in the older layout
+    private void createSingle() throws InterruptedException {
+        var store = open(SINGLE);
+        commit(store, List.of(entry("a1", "1"), entry("a2", "2"), entry("map=1", "3"), entry("map=2", "4"),
+                entry("map=3", "5"), entry("map=4", "6"), entry("z", "7")));
+        close(store);
+    }
+
+    private static void assertAll(LmdbObjectPersistentStore store, Map<String, String> expected) {
+        var all = new ArrayList<>(expected.keySet());
+        Assertions.assertEquals(all, keys(store, IteratorStart.GE, ""));
+        // Every object is seen once, when starting from any of them
+        for (int i = 1; i < all.size(); i++)
+            Assertions.assertEquals(all.subList(i, all.size()), keys(store, IteratorStart.GT, all.get(i - 1)));
+        for (var e : expected.entrySet())
+            Assertions.assertEquals(Optional.of(e.getValue()), read(store, e.getKey()));
+    }
+
+    // Interrupts the thread when the given number of keys was routed, the count is decremented by every route call
+    private static StorageKeyRouter interruptAfter(AtomicInteger routed) {
+        return new StorageKeyRouter() {
+            @Override
+            public List<String> partitions() {
+                return PARTITIONED.partitions();
+            }
+
+            @Override
+            public String route(JObjectKey key) {
+                if (routed.decrementAndGet() == 0)
+                    Thread.currentThread().interrupt();
+                return PARTITIONED.route(key);
+            }
+        };
+    }
+
+    private static final Map<String, String> SINGLE_CONTENTS = new TreeMap<>(Map.of(
+            "a1", "1", "a2", "2", "map=1", "3", "map=2", "4", "map=3", "5", "map=4", "6", "z", "7"));
+
+    private static Pair<JObjectKey, ByteString> entry(String key, String value) {
+        return Pair.of(JObjectKey.of(key), ByteString.copyFromUtf8(value));
+    }
+
+    private void commit(LmdbObjectPersistentStore store, Collection<Pair<JObjectKey, ByteString>> written, String... deleted) {
+        store.commitTx(new TxManifestRaw(written, List.of(deleted).stream().map(JObjectKey::of).toList()), ++_txId);
+    }
+
+    private static Optional<String> read(LmdbObjectPersistentStore store, String key) {
+        try (var snapshot = store.getSnapshot()) {
+            return snapshot.readObject(JObjectKey.of(key)).map(bb -> StandardCharsets.UTF_8.decode(bb).toString());
+        }
+    }
+
+    private static List<String> keys(LmdbObjectPersistentStore store, IteratorStart start, String key) {
+        var ret = new ArrayList<String>();
+        try (var snapshot = store.getSnapshot();
+             var it = new MergingKvIterator<>(start, JObjectKey.of(key), snapshot.getIterator(start, JObjectKey.of(key)))) {
+            while (it.hasNext())
+                ret.add(it.next().getKey().value());
+        }
+        return ret;
+    }
+
+    // Counts the keys of other partitions that were looked at
+    private final AtomicInteger _otherPartitionKeys = new AtomicInteger();
+
+    private List<String> partitionKeys(LmdbObjectPersistentStore store, String partition, IteratorStart start, String key) {
+        var ret = new ArrayList<String>();
+        try (var snapshot = store.getSnapshot();
+             var it = new MergingKvIterator<>(start, JObjectKey.of(key), snapshot.getIterator(start, JObjectKey.of(key), partition,
+                     k -> {
+                         if (PARTITIONED.route(k).equals(partition)) return true;
+                         _otherPartitionKeys.incrementAndGet();
+                         return false;
+                     }))) {
+            while (it.hasNext())
+                ret.add(it.next().getKey().value());
+        }
+        return ret;
+    }
+
+    @Test
+    void iteratePartitionTest() {
+        var store = open(PARTITIONED);
+        commit(store, List.of(entry("a1", "1"), entry("a2", "2"), entry("map=1", "3"), entry("map=2", "4"), entry("z", "5")));
+
+        Assertions.assertEquals(List.of("a1", "a2", "z"), partitionKeys(store, StorageKeyRouter.DEFAULT_PARTITION, IteratorStart.GE, ""));
+        Assertions.assertEquals(List.of("a2", "z"), partitionKeys(store, StorageKeyRouter.DEFAULT_PARTITION, IteratorStart.GT, "a1"));
+        Assertions.assertEquals(List.of("a2", "z"), partitionKeys(store, StorageKeyRouter.DEFAULT_PARTITION, IteratorStart.LE, "map=3"));
+        Assertions.assertEquals(List.of("map=1", "map=2"), partitionKeys(store, "maps", IteratorStart.GE, ""));
+        Assertions.assertEquals(List.of("map=2"), partitionKeys(store, "maps", IteratorStart.LT, "z"));
+        Assertions.assertEquals(List.of(), partitionKeys(store, "unknown", IteratorStart.GE, ""));
+        // The partitions are in separate databases, so the other ones are not looked at
+        Assertions.assertEquals(0, _otherPartitionKeys.get());
+    }
+
+    @Test
+    void iteratePartitionBeforeMigrationTest() throws InterruptedException {
+        createSingle();
+        var store = openNoMigration(PARTITIONED, 2);
+        // The objects of both partitions are still in the default database, and are filtered
+        Assertions.assertEquals(List.of("a1", "a2", "z"), partitionKeys(store, StorageKeyRouter.DEFAULT_PARTITION, IteratorStart.GE, ""));
+        Assertions.assertEquals(List.of("map=1", "map=2", "map=3", "map=4"), partitionKeys(store, "maps", IteratorStart.GE, ""));
+
+        commit(store, List.of(entry("map=5", "8")), "map=1");
+        Assertions.assertEquals(List.of("map=2", "map=3", "map=4", "map=5"), partitionKeys(store, "maps", IteratorStart.GE, ""));
+
+        store.migrate();
+        _otherPartitionKeys.set(0);
+        Assertions.assertEquals(List.of("a1", "a2", "z"), partitionKeys(store, StorageKeyRouter.DEFAULT_PARTITION, IteratorStart.GE, ""));
+        Assertions.assertEquals(List.of("map=2", "map=3", "map=4", "map=5"), partitionKeys(store, "maps", IteratorStart.GE, ""));
+        Assertions.assertEquals(0, _otherPartitionKeys.get());
+    }
+
+    @Test
+    void iterateBeforeEndTest() {
+        var store = open(PARTITIONED);
+        commit(store, List.of(entry("a1", "1"), entry("a2", "2"), entry("map=1", "3"), entry("map=2", "4")));
+
+        Assertions.assertEquals(List.of("map=2"), keys(store, IteratorStart.LE, "map=3"));
+        Assertions.assertEquals(List.of("map=2"), keys(store, IteratorStart.LT, "map=3"));
+        Assertions.assertEquals(List.of("map=2"), keys(store, IteratorStart.LE, "map=2"));
+        Assertions.assertEquals(List.of("map=1", "map=2"), keys(store, IteratorStart.LT, "map=2"));
+        Assertions.assertEquals(List.of("a2", "map=1", "map=2"), keys(store, IteratorStart.LE, "a3"));
+        Assertions.assertEquals(List.of(), keys(store, IteratorStart.GE, "map=3"));
+        Assertions.assertEquals(List.of(), keys(store, IteratorStart.GT, "map=2"));
+    }
+
+    @Test
+    void migrateSingleTest() throws InterruptedException {
+        createSingle();
+        var store = openNoMigration(PARTITIONED, 2);
+        Assertions.assertFalse(store.isMigrated());
+        assertAll(store, SINGLE_CONTENTS);
+        store.migrate();
+        Assertions.assertTrue(store.isMigrated());
+        assertAll(store, SINGLE_CONTENTS);
+        close(store);
+
+        // Doesn't need to be migrated again
+        store = openNoMigration(PARTITIONED, 2);
+        Assertions.assertTrue(store.isMigrated());
+        assertAll(store, SINGLE_CONTENTS);
+        close(store);
+
+        // The objects were moved out of the default database
+        store = open(SINGLE);
+        Assertions.assertEquals(List.of("a1", "a2", "z"), keys(store, IteratorStart.GE, ""));
+    }
+
+    @Test
+    void migrateInBackgroundTest() throws InterruptedException {
+        createSingle();
+        var store = open(PARTITIONED);
+        assertAll(store, SINGLE_CONTENTS);
+        for (int i = 0; i < 100 && !store.isMigrated(); i++)
+            Thread.sleep(100);
+        Assertions.assertTrue(store.isMigrated());
+        assertAll(store, SINGLE_CONTENTS);
+    }
+
+    @Test
+    void newStoreNotMigratedTest() {
+        var store = openNoMigration(PARTITIONED, 1000);
+        Assertions.assertTrue(store.isMigrated());
+    }
+
+    @Test
+    void migrationInterruptedTest() throws InterruptedException {
+        createSingle();
+        var routed = new AtomicInteger(-1);
+        var store = openNoMigration(interruptAfter(routed), 1);
+        // Stops after moving map=1 and map=2, one object per transaction,
+        // after routing the transaction id, a1, a2, map=1 and map=2
+        routed.set(5);
+        store.migrate();
+        Assertions.assertTrue(Thread.interrupted());
+        routed.set(-1);
+        Assertions.assertFalse(store.isMigrated());
+        assertAll(store, SINGLE_CONTENTS);
+        close(store);
+
+        // Partially migrated
+        store = open(SINGLE);
+        Assertions.assertEquals(List.of("a1", "a2", "map=3", "map=4", "z"), keys(store, IteratorStart.GE, ""));
+        close(store);
+
+        // Restarted
+        store = openNoMigration(PARTITIONED, 1);
+        Assertions.assertFalse(store.isMigrated());
+        assertAll(store, SINGLE_CONTENTS);
+        store.migrate();
+        Assertions.assertTrue(store.isMigrated());
+        assertAll(store, SINGLE_CONTENTS);
+        close(store);
+
+        store = open(SINGLE);
+        Assertions.assertEquals(List.of("a1", "a2", "z"), keys(store, IteratorStart.GE, ""));
+    }
+
+    @Test
+    void changesBeforeMigrationTest() throws InterruptedException {
+        createSingle();
+        var store = openNoMigration(PARTITIONED, 1);
+        var expected = new TreeMap<>(SINGLE_CONTENTS);
+
+        commit(store, List.of(entry("map=1", "new"), entry("map=5", "8"), entry("a1", "new")), "map=2", "a2");
+        expected.put("map=1", "new");
+        expected.put("map=5", "8");
+        expected.put("a1", "new");
+        expected.remove("map=2");
+        expected.remove("a2");
+        assertAll(store, expected);
+
+        // Deleted and written again
+        commit(store, List.of(), "map=3");
+        expected.remove("map=3");
+        assertAll(store, expected);
+        commit(store, List.of(entry("map=3", "again")));
+        expected.put("map=3", "again");
+        assertAll(store, expected);
+
+        store.migrate();
+        Assertions.assertTrue(store.isMigrated());
+        assertAll(store, expected);
+
+        commit(store, List.of(entry("map=4", "after")), "map=5");
+        expected.put("map=4", "after");
+        expected.remove("map=5");
+        assertAll(store, expected);
+        close(store);
+
+        store = open(PARTITIONED);
+        Assertions.assertTrue(store.isMigrated());
+        assertAll(store, expected);
+    }
+
+    @Test
+    void changesDuringMigrationTest() throws InterruptedException {
+        createSingle();
+        var expected = new TreeMap<>(SINGLE_CONTENTS);
+        // Stopped in the middle, so that both the moved and the not yet moved objects are changed
+        var routed = new AtomicInteger(-1);
+        var store = openNoMigration(interruptAfter(routed), 1);
+        routed.set(5);
+        store.migrate();
+        Assertions.assertTrue(Thread.interrupted());
+        routed.set(-1);
+
+        // map=1 and map=2 were moved already, map=3 and map=4 were not
+        commit(store, List.of(entry("map=1", "new1"), entry("map=3", "new3")), "map=2", "map=4");
+        expected.put("map=1", "new1");
+        expected.put("map=3", "new3");
+        expected.remove("map=2");
+        expected.remove("map=4");
+        assertAll(store, expected);
+
+        store.migrate();
+        Assertions.assertTrue(store.isMigrated());
+        assertAll(store, expected);
+    }
+}
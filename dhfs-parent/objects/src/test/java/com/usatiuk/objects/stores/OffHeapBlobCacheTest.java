@@ -0,0 +1,71 @@
+package com.usatiuk.objects.stores;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.objects.JObjectKey;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class OffHeapBlobCacheTest {
+    private static OffHeapBlobCache.Entry entry(long version, int size) {
+        return new OffHeapBlobCache.Entry(version, OffHeapBlobCache.copyOffHeap(ByteString.copyFrom(new byte[size])));
+    }
+
+    @Test
+    void copyOffHeapTest() {
+        var data = ByteString.copyFromUtf8("data");
+        var copy = OffHeapBlobCache.copyOffHeap(data);
+        Assertions.assertTrue(copy.isDirect());
+        Assertions.assertTrue(copy.isReadOnly());
+        Assertions.assertEquals(data, ByteString.copyFrom(copy.duplicate()));
+
+        var buffer = ByteString.copyFromUtf8("prefix-data").asReadOnlyByteBuffer().position(7);
+        var bufferCopy = OffHeapBlobCache.copyOffHeap(buffer);
+        Assertions.assertEquals(data, ByteString.copyFrom(bufferCopy));
+        // The source buffer is not consumed
+        Assertions.assertEquals(7, buffer.position());
+    }
+
+    @Test
+    void evictionTest() {
+        var cache = new OffHeapBlobCache(10000);
+        for (int i = 0; i < 100; i++) {
+            cache.put(JObjectKey.of("blob" + i), entry(i, 1000));
+            cache.cleanUp();
+            Assertions.assertTrue(cache.size() <= 10000, "Cache size " + cache.size());
+        }
+        int present = 0;
+        for (int i = 0; i < 100; i++)
+            if (cache.get(JObjectKey.of("blob" + i)) != null)
+                present++;
+        Assertions.assertTrue(present > 0 && present <= 10, "Present " + present);
+        Assertions.assertTrue(cache.stats().evictionCount() >= 90);
+    }
+
+    @Test
+    void largerThanLimitTest() {
+        var cache = new OffHeapBlobCache(10000);
+        cache.put(JObjectKey.of("small"), entry(1, 1000));
+        cache.put(JObjectKey.of("huge"), entry(1, 20000));
+        cache.cleanUp();
+        Assertions.assertNull(cache.get(JObjectKey.of("huge")));
+        Assertions.assertNotNull(cache.get(JObjectKey.of("small")));
+        Assertions.assertEquals(1000, cache.size());
+    }
+
+    @Test
+    void computeTest() {
+        var cache = new OffHeapBlobCache(10000);
+        var key = JObjectKey.of("blob");
+        cache.compute(key, old -> {
+            Assertions.assertNull(old);
+            return entry(2, 1000);
+        });
+        // Returning the old entry keeps it
+        cache.compute(key, old -> old.version() >= 1 ? old : entry(1, 1000));
+        Assertions.assertEquals(2, cache.get(key).version());
+        cache.compute(key, old -> null);
+        Assertions.assertNull(cache.get(key));
+        cache.cleanUp();
+        Assertions.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,262 @@
+package com.usatiuk.objects.stores;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.iterators.DataWrapper;
+import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.iterators.MergingKvIterator;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class SegmentedObjectPersistentStoreTest {
+    private static final int MIN_VALUE_SIZE = 100;
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    private static final int VALUE_SIZE = 1000;
+
+    private static final StorageKeyRouter ROUTER = new StorageKeyRouter() {
+        @Override
+        public List<String> partitions() {
+            return List.of(DEFAULT_PARTITION);
+        }
+
+        @Override
+        public String route(JObjectKey key) {
+            return DEFAULT_PARTITION;
+        }
+    };
+
+    @TempDir
+    Path dir;
+
+    private SegmentedObjectPersistentStore _store;
+    private long _txId = 0;
+    // What the store should contain
+    private final Map<String, ByteString> _expected = new TreeMap<>();
+
+    @AfterEach
+    void close() throws IOException, InterruptedException {
+        if (_store != null)
+            _store.close();
+    }
+
+    private void open() throws IOException {
+        // Compacted only explicitly
+        _store = new SegmentedObjectPersistentStore(dir, MIN_VALUE_SIZE, SEGMENT_SIZE, 0.5, 3600 * 1000, ROUTER);
+        _store.open();
+    }
+
+    private void reopen() throws IOException, InterruptedException {
+        _store.close();
+        _store = null;
+        open();
+    }
+
+    private static String key(int i) {
+        return String.format("obj%02d", i);
+    }
+
+    private static String[] keys(int from, int to) {
+        var ret = new String[to - from];
+        for (int i = from; i < to; i++)
+            ret[i - from] = key(i);
+        return ret;
+    }
+
+    private static ByteString value(String key, int version, int size) {
+        var bytes = new byte[size];
+        new Random(Objects.hash(key, version)).nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    private void write(Map<String, ByteString> written, String... deleted) {
+        _store.commitTx(new TxManifestRaw(
+                written.entrySet().stream().map(e -> Pair.of(JObjectKey.of(e.getKey()), e.getValue())).toList(),
+                Arrays.stream(deleted).map(JObjectKey::of).toList()), ++_txId);
+        _expected.putAll(written);
+        for (var d : deleted)
+            _expected.remove(d);
+    }
+
+    private void writeAll(int version, int from, int to) {
+        var written = new TreeMap<String, ByteString>();
+        for (int i = from; i < to; i++)
+            written.put(key(i), value(key(i), version, VALUE_SIZE));
+        write(written);
+    }
+
+    private void assertContents() {
+        try (var snapshot = _store.getSnapshot()) {
+            Assertions.assertEquals(_txId, snapshot.id());
+            for (var e : _expected.entrySet())
+                Assertions.assertEquals(e.getValue(), ByteString.copyFrom(snapshot.readObject(JObjectKey.of(e.getKey())).orElseThrow()), e.getKey());
+            var found = new TreeMap<String, ByteString>();
+            try (var it = new MergingKvIterator<>(IteratorStart.GE, JObjectKey.first(), snapshot.getIterator(IteratorStart.GE, JObjectKey.first()))) {
+                while (it.hasNext()) {
+                    var next = it.next();
+                    found.put(next.getKey().value(), ByteString.copyFrom(((DataWrapper<ByteBuffer>) next.getValue()).value()));
+                }
+            }
+            Assertions.assertEquals(_expected, found);
+        }
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (var files = Files.list(dir.resolve("segments"))) {
+            return files.sorted().toList();
+        }
+    }
+
+    @Test
+    void readWriteTest() throws IOException, InterruptedException {
+        open();
+        write(Map.of("small", value("small", 0, 10), "large", value("large", 0, VALUE_SIZE)));
+        assertContents();
+        // Large values that don't fit into the segment size get their own segment
+        write(Map.of("small", value("small", 1, VALUE_SIZE), "large", value("large", 1, 10), "huge", value("huge", 0, 2 * SEGMENT_SIZE)));
+        assertContents();
+        write(Map.of(), "small", "huge");
+        assertContents();
+
+        reopen();
+        assertContents();
+        write(Map.of("after", value("after", 0, VALUE_SIZE)));
+        assertContents();
+    }
+
+    @Test
+    void reopenTest() throws IOException, InterruptedException {
+        open();
+        writeAll(0, 0, 40);
+        Assertions.assertTrue(segmentFiles().size() > 1);
+        reopen();
+        assertContents();
+
+        // Segments from the previous run are not appended to
+        var before = segmentFiles();
+        writeAll(1, 0, 5);
+        var after = segmentFiles();
+        Assertions.assertTrue(after.containsAll(before));
+        Assertions.assertEquals(before.size() + 1, after.size());
+        reopen();
+        assertContents();
+    }
+
+    @Test
+    void compactionTest() throws IOException, InterruptedException {
+        open();
+        // 16 values per segment
+        writeAll(0, 0, 64);
+        var before = segmentFiles();
+        Assertions.assertEquals(4, before.size());
+        // Most of the values of the first two segments are overwritten
+        writeAll(1, 0, 30);
+        _store.compact();
+        var after = segmentFiles();
+        Assertions.assertFalse(after.contains(before.get(0)), "Before " + before + " after " + after);
+        Assertions.assertFalse(after.contains(before.get(1)), "Before " + before + " after " + after);
+        assertContents();
+
+        reopen();
+        assertContents();
+        // The live data is recomputed on restart
+        write(Map.of(), keys(32, 44));
+        _store.compact();
+        after = segmentFiles();
+        Assertions.assertFalse(after.contains(before.get(2)), "Before " + before + " after " + after);
+        Assertions.assertTrue(after.contains(before.get(3)), "Before " + before + " after " + after);
+        assertContents();
+        reopen();
+        assertContents();
+    }
+
+    @Test
+    void compactionWithOpenSnapshotTest() throws IOException {
+        open();
+        writeAll(0, 0, 32);
+        var first = segmentFiles().get(0);
+        try (var snapshot = _store.getSnapshot()) {
+            var old = ByteString.copyFrom(snapshot.readObject(JObjectKey.of(key(0))).orElseThrow());
+            write(Map.of(), keys(0, 11));
+            _store.compact();
+            // Still can be read by the snapshot
+            Assertions.assertTrue(Files.exists(first));
+            Assertions.assertEquals(old, ByteString.copyFrom(snapshot.readObject(JObjectKey.of(key(0))).orElseThrow()));
+            Assertions.assertEquals(value(key(12), 0, VALUE_SIZE), ByteString.copyFrom(snapshot.readObject(JObjectKey.of(key(12))).orElseThrow()));
+        }
+        _store.compact();
+        Assertions.assertFalse(Files.exists(first));
+        assertContents();
+    }
+
+    // The size of the entries that were written to a fresh store by writeAll, one segment at most
+    private static int entriesSize(int from, int to) {
+        int ret = 0;
+        for (int i = from; i < to; i++)
+            ret += Integer.BYTES + key(i).length() + Integer.BYTES + VALUE_SIZE;
+        return ret;
+    }
+
+    @Test
+    void truncatedTailTest() throws IOException, InterruptedException {
+        open();
+        writeAll(0, 0, 10);
+        var segment = segmentFiles().get(0);
+        _store.close();
+        _store = null;
+
+        // The preallocated space was lost, and an incomplete entry was left at the end
+        int end = entriesSize(0, 10);
+        try (var channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+            var key = key(10).getBytes(StandardCharsets.ISO_8859_1);
+            var partial = ByteBuffer.allocate(Integer.BYTES + key.length + Integer.BYTES + 10);
+            partial.putInt(key.length).put(key).putInt(VALUE_SIZE);
+            partial.flip();
+            channel.write(partial, end);
+        }
+
+        open();
+        assertContents();
+        writeAll(1, 0, 8);
+        _store.compact();
+        Assertions.assertFalse(Files.exists(segment));
+        assertContents();
+        reopen();
+        assertContents();
+    }
+
+    @Test
+    void truncatedEntryHeaderTest() throws IOException, InterruptedException {
+        open();
+        writeAll(0, 0, 10);
+        var segment = segmentFiles().get(0);
+        _store.close();
+        _store = null;
+
+        // Cut in the middle of the header of an entry that was never committed
+        int end = entriesSize(0, 10);
+        try (var channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 100), end);
+        }
+
+        open();
+        assertContents();
+        write(Map.of(), keys(0, 7));
+        _store.compact();
+        Assertions.assertFalse(Files.exists(segment));
+        assertContents();
+    }
+}
@@ -0,0 +1,204 @@
+package com.usatiuk.dhfs;
+
+import com.usatiuk.dhfs.jkleppmanntree.structs.*;
+import com.usatiuk.dhfs.jmap.JMapEntry;
+import com.usatiuk.dhfs.jmap.JMapLongKey;
+import com.usatiuk.dhfs.jmap.JMapRef;
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.dhfs.peersync.PeerInfo;
+import com.usatiuk.dhfs.peersync.structs.JKleppmannTreeNodeMetaPeer;
+import com.usatiuk.dhfs.refcount.JDataNormalRef;
+import com.usatiuk.dhfs.remoteobj.RemoteObjectDataWrapper;
+import com.usatiuk.dhfs.remoteobj.RemoteObjectMeta;
+import com.usatiuk.kleppmanntree.*;
+import com.usatiuk.objects.binary.BinaryCodec;
+import com.usatiuk.objects.binary.BinaryCodecProvider;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary codecs for the objects of sync-base and of the Kleppmann tree.
+ * Tags 64-127 are used here.
+ */
+@ApplicationScoped
+public class SyncBaseBinaryCodecs implements BinaryCodecProvider {
+    // The Kleppmann tree records are created as raw types, their type parameters can't be inferred from the reader
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Override
+    public Collection<BinaryCodec<?>> codecs() {
+        return List.of(
+                BinaryCodec.<PeerId>of(64, 1, PeerId.class,
+                        (out, v) -> out.writeKey(v.id()),
+                        (in, ver) -> new PeerId(in.readKey())),
+                BinaryCodec.<JDataNormalRef>of(65, 1, JDataNormalRef.class,
+                        (out, v) -> out.writeKey(v.obj()),
+                        (in, ver) -> new JDataNormalRef(in.readKey())),
+                BinaryCodec.<JMapRef>of(66, 1, JMapRef.class,
+                        (out, v) -> {
+                            out.writeKey(v.holder());
+                            out.writeObject(v.mapKey());
+                        },
+                        (in, ver) -> new JMapRef(in.readKey(), in.readObject())),
+                BinaryCodec.<JMapLongKey>of(67, 1, JMapLongKey.class,
+                        (out, v) -> out.writeLong(v.key()),
+                        (in, ver) -> new JMapLongKey(in.readLong())),
+                BinaryCodec.<JMapEntry<?>>of(68, 1, JMapEntry.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeKey(v.holder());
+                            out.writeObject(v.selfKey());
+                            out.writeKey(v.ref());
+                        },
+                        (in, ver) -> new JMapEntry<>(in.readKey(), in.readKey(), in.readObject(), in.readKey())),
+                BinaryCodec.<RemoteObjectMeta>of(69, 1, RemoteObjectMeta.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeObject(v.refsFrom());
+                            out.writeBoolean(v.frozen());
+                            out.writeObject(v.knownRemoteVersions());
+                            out.writeObject(v.knownType());
+                            out.writeObject(v.confirmedDeletes());
+                            out.writeBoolean(v.seen());
+                            out.writeObject(v.changelog());
+                            out.writeBoolean(v.hasLocalData());
+                        },
+                        (in, ver) -> new RemoteObjectMeta(in.readKey(), in.readObject(), in.readBoolean(),
+                                in.readObject(), in.readObject(), in.readObject(), in.readBoolean(),
+                                in.readObject(), in.readBoolean())),
+                BinaryCodec.<RemoteObjectDataWrapper<?>>of(70, 1, RemoteObjectDataWrapper.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeObject(v.refsFrom());
+                            out.writeBoolean(v.frozen());
+                            out.writeObject(v.data());
+                        },
+                        (in, ver) -> new RemoteObjectDataWrapper<>(in.readKey(), in.readObject(), in.readBoolean(), in.readObject())),
+                BinaryCodec.<JKleppmannTreeNodeHolder>of(71, 1, JKleppmannTreeNodeHolder.class,
+                        (out, v) -> {
+                            out.writeObject(v.refsFrom());
+                            out.writeBoolean(v.frozen());
+                            out.writeObject(v.node());
+                        },
+                        (in, ver) -> new JKleppmannTreeNodeHolder(in.readObject(), in.readBoolean(), in.readObject())),
+                BinaryCodec.<JKleppmannTreeNode>of(72, 1, JKleppmannTreeNode.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeObject(v.parent());
+                            out.writeObject(v.lastEffectiveOp());
+                            out.writeObject(v.meta());
+                            out.writeObject(v.children());
+                        },
+                        (in, ver) -> new JKleppmannTreeNode(in.readKey(), in.readObject(), in.readObject(),
+                                in.readObject(), in.readObject())),
+                BinaryCodec.<JKleppmannTreePersistentData>of(73, 1, JKleppmannTreePersistentData.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeObject(v.refsFrom());
+                            out.writeBoolean(v.frozen());
+                            out.writeLong(v.clock());
+                            out.writeObject(v.queues());
+                            out.writeObject(v.peerTimestampLog());
+                            out.writeObject(v.log());
+                        },
+                        (in, ver) -> new JKleppmannTreePersistentData(in.readKey(), in.readObject(), in.readBoolean(),
+                                in.readLong(), in.readObject(), in.readObject(), in.readObject())),
+                BinaryCodec.<JKleppmannTreeNodeMetaPeer>of(74, 1, JKleppmannTreeNodeMetaPeer.class,
+                        (out, v) -> {
+                            out.writeString(v.name());
+                            out.writeKey(v.peerId());
+                        },
+                        (in, ver) -> new JKleppmannTreeNodeMetaPeer(in.readString(), in.readKey())),
+                BinaryCodec.<PeerInfo>of(75, 1, PeerInfo.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeObject(v.id());
+                            out.writeBytes(v.cert());
+                            out.writeObject(v.kickCounter());
+                            out.writeLong(v.lastSeenTimestamp());
+                        },
+                        (in, ver) -> new PeerInfo(in.readKey(), in.readObject(), in.readBytes(),
+                                in.readObject(), in.readLong())),
+                BinaryCodec.<CombinedTimestamp<?, ?>>of(76, 1, CombinedTimestamp.class,
+                        (out, v) -> {
+                            out.writeObject(v.timestamp());
+                            out.writeObject(v.nodeId());
+                        },
+                        (in, ver) -> new CombinedTimestamp(in.readObject(), in.readObject())),
+                BinaryCodec.<OpMove<?, ?, ?, ?>>of(77, 1, OpMove.class,
+                        (out, v) -> {
+                            out.writeObject(v.timestamp());
+                            out.writeObject(v.newParentId());
+                            out.writeObject(v.newMeta());
+                            out.writeObject(v.childId());
+                        },
+                        (in, ver) -> new OpMove(in.readObject(), in.readObject(), in.readObject(), in.readObject())),
+                BinaryCodec.<LogRecord<?, ?, ?, ?>>of(78, 1, LogRecord.class,
+                        (out, v) -> {
+                            out.writeObject(v.op());
+                            out.writeObject(v.effects());
+                        },
+                        (in, ver) -> new LogRecord(in.readObject(), in.readObject())),
+                BinaryCodec.<LogEffect<?, ?, ?, ?>>of(79, 1, LogEffect.class,
+                        (out, v) -> {
+                            out.writeObject(v.oldInfo());
+                            out.writeObject(v.effectiveOp());
+                            out.writeObject(v.newParentId());
+                            out.writeObject(v.newMeta());
+                            out.writeObject(v.childId());
+                        },
+                        (in, ver) -> new LogEffect(in.readObject(), in.readObject(), in.readObject(),
+                                in.readObject(), in.readObject())),
+                BinaryCodec.<LogEffectOld<?, ?, ?, ?>>of(80, 1, LogEffectOld.class,
+                        (out, v) -> {
+                            out.writeObject(v.oldEffectiveMove());
+                            out.writeObject(v.oldParent());
+                            out.writeObject(v.oldMeta());
+                        },
+                        (in, ver) -> new LogEffectOld(in.readObject(), in.readObject(), in.readObject())),
+                BinaryCodec.<JKleppmannTreeClockData>of(81, 1, JKleppmannTreeClockData.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeLong(v.clock());
+                        },
+                        (in, ver) -> new JKleppmannTreeClockData(in.readKey(), in.readLong())),
+                BinaryCodec.<JKleppmannTreePeerTimestamp>of(82, 1, JKleppmannTreePeerTimestamp.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeObject(v.peer());
+                            out.writeLong(v.timestamp());
+                        },
+                        (in, ver) -> new JKleppmannTreePeerTimestamp(in.readKey(), in.readObject(), in.readLong())),
+                BinaryCodec.<JKleppmannTreeLogEntry>of(83, 1, JKleppmannTreeLogEntry.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeObject(v.record());
+                        },
+                        (in, ver) -> new JKleppmannTreeLogEntry(in.readKey(), in.readObject())),
+                BinaryCodec.<JKleppmannTreeQueueEntry>of(84, 1, JKleppmannTreeQueueEntry.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeKey(v.tree());
+                            out.writeObject(v.peer());
+                            out.writeObject(v.op());
+                        },
+                        (in, ver) -> new JKleppmannTreeQueueEntry(in.readKey(), in.readKey(), in.readObject(), in.readObject())),
+                BinaryCodec.<JKleppmannTreeShardedChildren>of(85, 1, JKleppmannTreeShardedChildren.class,
+                        (out, v) -> {
+                            out.writeKey(v.node());
+                            out.writeInt(v.shardCount());
+                            out.writeInt(v.size());
+                        },
+                        (in, ver) -> new JKleppmannTreeShardedChildren(in.readKey(), in.readInt(), in.readInt())),
+                BinaryCodec.<JKleppmannTreeChildShard>of(86, 1, JKleppmannTreeChildShard.class,
+                        (out, v) -> {
+                            out.writeKey(v.key());
+                            out.writeObject(v.refsFrom());
+                            out.writeBoolean(v.frozen());
+                            out.writeObject(v.children());
+                        },
+                        (in, ver) -> new JKleppmannTreeChildShard(in.readKey(), in.readObject(), in.readBoolean(), in.readObject()))
+        );
+    }
+}
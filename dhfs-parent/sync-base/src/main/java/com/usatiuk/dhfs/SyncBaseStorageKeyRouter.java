@@ -0,0 +1,40 @@
+package com.usatiuk.dhfs;
+
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.stores.StorageKeyRouter;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.util.List;
+
+/**
+ * Keeps remote object data and map entries apart from the rest of the (metadata) objects,
+ * so that scanning metadata doesn't have to go through pages full of chunk data.
+ */
+@ApplicationScoped
+public class SyncBaseStorageKeyRouter implements StorageKeyRouter {
+    /**
+     * Data of remote objects, see {@link com.usatiuk.dhfs.remoteobj.RemoteObjectMeta#ofDataKey}
+     */
+    public static final String DATA_PARTITION = "data";
+    /**
+     * Entries of JMaps, see {@link com.usatiuk.dhfs.jmap.JMapHelper}
+     */
+    public static final String MAPS_PARTITION = "maps";
+
+    private static final List<String> PARTITIONS = List.of(DEFAULT_PARTITION, DATA_PARTITION, MAPS_PARTITION);
+
+    @Override
+    public List<String> partitions() {
+        return PARTITIONS;
+    }
+
+    @Override
+    public String route(JObjectKey key) {
+        var value = key.value();
+        if (value.indexOf('=') >= 0)
+            return MAPS_PARTITION;
+        if (value.endsWith("_data"))
+            return DATA_PARTITION;
+        return DEFAULT_PARTITION;
+    }
+}
@@ -6,9 +6,11 @@ import com.usatiuk.dhfs.remoteobj.RemoteTransaction;
 import com.usatiuk.objects.JData;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.stores.StorageKeyRouter;
 import com.usatiuk.objects.transaction.Transaction;
 import com.usatiuk.objects.transaction.TransactionManager;
-import com.usatiuk.utils.HashSetDelayedBlockingQueue;
+import com.usatiuk.utils.DelayedBlockingQueue;
+import com.usatiuk.utils.ShardedDelayedBlockingQueue;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
@@ -27,8 +29,8 @@ import java.util.concurrent.Executors;
  */
 @ApplicationScoped
 public class AutosyncProcessor {
-    private final HashSetDelayedBlockingQueue<JObjectKey> _pending = new HashSetDelayedBlockingQueue<>(0);
-    private final HashSetDelayedBlockingQueue<JObjectKey> _retries = new HashSetDelayedBlockingQueue<>(10000); //FIXME:
+    private final DelayedBlockingQueue<JObjectKey> _pending = new ShardedDelayedBlockingQueue<>(0);
+    private final DelayedBlockingQueue<JObjectKey> _retries = new ShardedDelayedBlockingQueue<>(10000); //FIXME:
     @Inject
     TransactionManager txm;
     @ConfigProperty(name = "dhfs.objects.autosync.threads")
@@ -58,7 +60,8 @@ public class AutosyncProcessor {
             executorService.submit(() -> {
                 Log.info("Adding all to autosync");
                 txm.run(() -> {
-                    try (var it = curTx.getIterator(IteratorStart.GE, JObjectKey.first())) {
+                    // The remote object metadata is all in the default partition, no need to go through the data
+                    try (var it = curTx.getIterator(StorageKeyRouter.DEFAULT_PARTITION, IteratorStart.GE, JObjectKey.first())) {
                         while (it.hasNext()) {
                             var key = it.peekNextKey();
                             txm.run(() -> {
@@ -11,7 +11,8 @@ import com.usatiuk.objects.transaction.Transaction;
 import com.usatiuk.objects.transaction.TransactionManager;
 import com.usatiuk.utils.AutoCloseableNoThrow;
 import com.usatiuk.utils.DataLocker;
-import com.usatiuk.utils.HashSetDelayedBlockingQueue;
+import com.usatiuk.utils.DelayedBlockingQueue;
+import com.usatiuk.utils.ShardedDelayedBlockingQueue;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
@@ -24,8 +25,13 @@ import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -38,9 +44,10 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 @ApplicationScoped
 public class InvalidationQueueService {
-    private final HashSetDelayedBlockingQueue<InvalidationQueueEntry> _queue;
+    private final DelayedBlockingQueue<InvalidationQueueEntry> _queue;
     private final AtomicReference<ConcurrentHashSet<JObjectKey>> _toAllQueue = new AtomicReference<>(new ConcurrentHashSet<>());
     private final DataLocker _locker = new DataLocker();
+    private final ConcurrentHashMap<InvalidationQueueEntry, ConcurrentLinkedQueue<Runnable>> _pushWaiters = new ConcurrentHashMap<>();
     @Inject
     ReachablePeerManager reachablePeerManager;
     @Inject
@@ -63,7 +70,7 @@ public class InvalidationQueueService {
     private volatile boolean _shutdown = false;
 
     public InvalidationQueueService(@ConfigProperty(name = "dhfs.objects.invalidation.delay") int delay) {
-        _queue = new HashSetDelayedBlockingQueue<>(delay);
+        _queue = new ShardedDelayedBlockingQueue<>(delay);
     }
 
     void init(@Observes @Priority(300) StartupEvent event) throws InterruptedException {
@@ -128,6 +135,7 @@ public class InvalidationQueueService {
                     try {
                         ArrayListValuedHashMap<PeerId, Op> ops = new ArrayListValuedHashMap<>();
                         ArrayListValuedHashMap<PeerId, Runnable> commits = new ArrayListValuedHashMap<>();
+                        HashMap<InvalidationQueueEntry, List<Runnable>> sent = new HashMap<>();
                         for (var e : data) {
                             // TODO: Race?
                             if (!peerInfoService.existsPeer(e.peer())) {
@@ -151,6 +159,8 @@ public class InvalidationQueueService {
                                 continue;
                             }
                             locks.add(lock);
+                            // Only the waiters registered before the extraction have their changes in it
+                            var waiters = currentWaiters(e);
                             try {
                                 txm.run(() -> {
                                     var obj = curTx.get(JData.class, e.key()).orElse(null);
@@ -161,6 +171,7 @@ public class InvalidationQueueService {
                                     ops.get(e.peer()).addAll(extracted.getLeft());
                                     commits.get(e.peer()).add(extracted.getRight());
                                 });
+                                sent.put(e, waiters);
                                 success++;
                             } catch (Exception ex) {
                                 Log.warnv("Failed to prepare invalidation to {0}, will retry: {1}", e, ex);
@@ -178,6 +189,9 @@ public class InvalidationQueueService {
                             remoteObjectServiceClient.pushOps(p, list);
                             commits.get(p).forEach(Runnable::run);
                         }
+
+                        for (var e : sent.entrySet())
+                            notifyPushed(e.getKey(), e.getValue());
                     } catch (Exception e) {
                         Log.warn("Failed to send invalidations, will retry", e);
                         for (var inv : data) {
@@ -221,6 +235,68 @@ public class InvalidationQueueService {
     }
 
 
+    private List<Runnable> currentWaiters(InvalidationQueueEntry entry) {
+        var waiters = _pushWaiters.get(entry);
+        if (waiters == null) return List.of();
+        return List.copyOf(waiters);
+    }
+
+    private void notifyPushed(InvalidationQueueEntry entry, List<Runnable> waiters) {
+        if (waiters.isEmpty()) return;
+        var removed = new ArrayList<Runnable>(waiters.size());
+        _pushWaiters.computeIfPresent(entry, (k, v) -> {
+            for (var w : waiters)
+                if (v.remove(w))
+                    removed.add(w);
+            return v.isEmpty() ? null : v;
+        });
+        // The waiter could have timed out and removed itself in the meantime
+        removed.forEach(Runnable::run);
+    }
+
+    /**
+     * Push the operations of an object to all reachable peers immediately,
+     * and wait until a given number of them have acknowledged them.
+     * Peers acknowledge the operations once they have been durably applied on their side.
+     *
+     * @param key       the object key to process
+     * @param peers     the number of peers to wait for
+     * @param timeoutMs the maximum time to wait, in milliseconds
+     * @return true if enough peers have acknowledged the operations, false otherwise
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean pushAndWait(JObjectKey key, int peers, long timeoutMs) throws InterruptedException {
+        if (peers <= 0) return true;
+        var available = reachablePeerManager.getHostStateSnapshot().available();
+        if (available.size() < peers) {
+            Log.warnv("Can't wait for {0} peers to acknowledge {1}, only {2} reachable", peers, key, available.size());
+            return false;
+        }
+
+        var latch = new CountDownLatch(peers);
+        Runnable waiter = latch::countDown;
+        var entries = available.stream().map(p -> new InvalidationQueueEntry(p, key)).toList();
+        for (var entry : entries) {
+            _pushWaiters.compute(entry, (k, v) -> {
+                if (v == null) v = new ConcurrentLinkedQueue<>();
+                v.add(waiter);
+                return v;
+            });
+            pushInvalidationToOneNoDelay(entry);
+        }
+
+        try {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } finally {
+            for (var entry : entries) {
+                _pushWaiters.computeIfPresent(entry, (k, v) -> {
+                    v.remove(waiter);
+                    return v.isEmpty() ? null : v;
+                });
+            }
+        }
+    }
+
     void pushInvalidationToOne(InvalidationQueueEntry entry) {
         if (reachablePeerManager.isReachable(entry.peer()))
             _queue.add(entry);
@@ -2,6 +2,8 @@ package com.usatiuk.dhfs.invalidation;
 
 import com.usatiuk.dhfs.peersync.PeerId;
 
+import java.util.List;
+
 /**
  * Interface for handling operations.
  * @param <T> the type of operation
@@ -14,4 +16,16 @@ public interface OpHandler<T extends Op> {
      * @param op   the operation to handle
      */
     void handleOp(PeerId from, T op);
+
+    /**
+     * Handles a batch of operations of this type, in the order they were received.
+     * By default, handles them one by one.
+     *
+     * @param from the ID of the peer that sent the operations
+     * @param ops  the operations to handle
+     */
+    default void handleOps(PeerId from, List<T> ops) {
+        for (var op : ops)
+            handleOp(from, op);
+    }
 }
@@ -7,6 +7,7 @@ import jakarta.enterprise.inject.Instance;
 import java.lang.reflect.ParameterizedType;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
@@ -52,4 +53,28 @@ public class OpHandlerService {
         }
         handler.handleOp(from, op);
     }
+
+    /**
+     * Handle the given operations, in order.
+     * Consecutive operations of the same type are passed to their handler together.
+     *
+     * @param from the ID of the peer that sent the operations
+     * @param ops  the operations to handle
+     */
+    public void handleOps(PeerId from, List<Op> ops) {
+        int start = 0;
+        while (start < ops.size()) {
+            var type = ops.get(start).getClass();
+            int end = start + 1;
+            while (end < ops.size() && ops.get(end).getClass().equals(type))
+                end++;
+
+            var handler = _opHandlerMap.get(type);
+            if (handler == null) {
+                throw new IllegalArgumentException("No handler for op: " + type);
+            }
+            handler.handleOps(from, ops.subList(start, end));
+            start = end;
+        }
+    }
 }
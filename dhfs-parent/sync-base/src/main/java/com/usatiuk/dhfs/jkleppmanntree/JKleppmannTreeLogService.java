@@ -0,0 +1,159 @@
+package com.usatiuk.dhfs.jkleppmanntree;
+
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.dhfs.peersync.PeerInfo;
+import com.usatiuk.dhfs.peersync.PeerInfoService;
+import com.usatiuk.dhfs.peersync.PersistentPeerDataService;
+import com.usatiuk.dhfs.peersync.ReachablePeerManager;
+import com.usatiuk.dhfs.remoteobj.RemoteTransaction;
+import com.usatiuk.kleppmanntree.LogObserver;
+import com.usatiuk.objects.transaction.TransactionManager;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.common.annotation.Blocking;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the op logs of the trees bounded, and collects the log metrics.
+ * <p>
+ * Log entries are only removed once all synchronized peers have seen them,
+ * so a peer that is offline for a long time keeps the whole log since then.
+ * If the log of some tree is more than {@code dhfs.objects.jkleppmanntree.max-trim-lag} timestamps behind
+ * because of an unreachable peer, that peer is kicked out, the same way as {@link com.usatiuk.dhfs.peersync.PeerLastSeenUpdater}
+ * does for the peers that were not seen for a long time. It is then not waited for anymore, and when it comes back,
+ * it gets the current state of the tree from the initial sync instead of the log. Setting the lag to -1 disables this,
+ * letting the log grow while any peer is unreachable.
+ */
+@ApplicationScoped
+public class JKleppmannTreeLogService implements LogObserver {
+    private final LongAdder _applied = new LongAdder();
+    private final LongAdder _undone = new LongAdder();
+    private final LongAdder _trimmed = new LongAdder();
+    @Inject
+    JKleppmannTreeManager jKleppmannTreeManager;
+    @Inject
+    ReachablePeerManager reachablePeerManager;
+    @Inject
+    PeerInfoService peerInfoService;
+    @Inject
+    PersistentPeerDataService persistentPeerDataService;
+    @Inject
+    RemoteTransaction remoteTransaction;
+    @Inject
+    TransactionManager txm;
+    @ConfigProperty(name = "dhfs.objects.jkleppmanntree.max-trim-lag")
+    long maxTrimLag;
+    @ConfigProperty(name = "dhfs.objects.jkleppmanntree.print-stats", defaultValue = "false")
+    boolean printStats;
+    private ExecutorService _statusExecutor;
+
+    /**
+     * Log counters, since the start.
+     *
+     * @param applied number of ops applied
+     * @param undone  number of ops undone and redone to apply the ops in the timestamp order
+     * @param trimmed number of log entries removed
+     */
+    public record Stats(long applied, long undone, long trimmed) {
+        public Stats minus(Stats other) {
+            return new Stats(applied - other.applied, undone - other.undone, trimmed - other.trimmed);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(_applied.sum(), _undone.sum(), _trimmed.sum());
+    }
+
+    @Override
+    public void opApplied(int undone) {
+        _applied.increment();
+        _undone.add(undone);
+    }
+
+    @Override
+    public void logTrimmed(int trimmed) {
+        _trimmed.add(trimmed);
+    }
+
+    void init(@Observes @Priority(300) StartupEvent event) {
+        if (printStats) {
+            _statusExecutor = Executors.newSingleThreadExecutor();
+            _statusExecutor.submit(() -> {
+                try {
+                    var lastStats = stats();
+                    while (true) {
+                        Thread.sleep(1000);
+                        var curStats = stats();
+                        var stats = curStats.minus(lastStats);
+                        lastStats = curStats;
+                        Log.info("Tree ops: applied=" + stats.applied()
+                                + " undone=" + stats.undone()
+                                + " trimmed=" + stats.trimmed());
+                        for (var name : jKleppmannTreeManager.getKnownTrees()) {
+                            txm.run(() -> {
+                                var tree = jKleppmannTreeManager.getTree(name).orElse(null);
+                                if (tree == null) return;
+                                long maxLag = 0;
+                                for (var p : peerInfoService.getSynchronizedPeersNoSelf())
+                                    maxLag = Math.max(maxLag, tree.getTrimLag(p.id()));
+                                Log.info("Tree " + name + ": log size=" + tree.getLogSize() + " trim lag=" + maxLag);
+                            });
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+    }
+
+    void shutdown(@Observes @Priority(900) ShutdownEvent event) {
+        if (_statusExecutor != null)
+            _statusExecutor.shutdownNow();
+    }
+
+    @Scheduled(every = "${dhfs.objects.last-seen.update}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP, skipExecutionIf = Scheduled.ApplicationNotRunning.class)
+    @Blocking
+    void evictLagging() {
+        if (maxTrimLag == -1)
+            return;
+
+        var snapshot = reachablePeerManager.getHostStateSnapshot();
+        for (var u : snapshot.unavailable()) {
+            if (!persistentPeerDataService.isInitialSyncDone(u))
+                continue;
+
+            for (var name : jKleppmannTreeManager.getKnownTrees()) {
+                boolean kicked = txm.run(() -> {
+                    var tree = jKleppmannTreeManager.getTree(name).orElse(null);
+                    if (tree == null) return false;
+
+                    var lag = tree.getTrimLag(u);
+                    if (lag <= maxTrimLag) return false;
+
+                    return kick(u, name + " log is " + lag + " behind");
+                });
+                if (kicked) break;
+            }
+        }
+    }
+
+    private boolean kick(PeerId peer, String reason) {
+        var curInfo = remoteTransaction.getData(PeerInfo.class, peer.id()).orElse(null);
+        if (curInfo == null) return false;
+
+        Log.warnv("Kicking out {0}: {1}", peer, reason);
+        var kicked = curInfo.withIncrementedKickCounter(persistentPeerDataService.getSelfUuid());
+        remoteTransaction.putData(kicked);
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+package com.usatiuk.dhfs.jkleppmanntree;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.usatiuk.objects.JObjectKey;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of committed tree lookups, mapping a (parent node, child name) pair to the child node key.
+ * All the entries of a parent are invalidated when a transaction changing that parent node is committed.
+ * <p>
+ * To avoid caching stale data read from older snapshots, readers should get the {@link #generation()} before
+ * starting the transaction they will read from, and pass it to {@link #put}.
+ */
+@ApplicationScoped
+public class JKleppmannTreeLookupCache {
+    private final Cache<JObjectKey, ConcurrentHashMap<String, JObjectKey>> _cache;
+    private final AtomicLong _generation = new AtomicLong(0);
+
+    public JKleppmannTreeLookupCache(@ConfigProperty(name = "dhfs.objects.jkleppmanntree.lookup-cache.size", defaultValue = "16384") long size) {
+        _cache = Caffeine.newBuilder().maximumSize(size).build();
+    }
+
+    /**
+     * Get the current cache generation, incremented on every invalidation.
+     *
+     * @return the current generation
+     */
+    public long generation() {
+        return _generation.get();
+    }
+
+    /**
+     * Find a cached child of a node.
+     *
+     * @param parent the parent node key
+     * @param name   the name of the child
+     * @return the child node key, or null if not cached
+     */
+    public JObjectKey get(JObjectKey parent, String name) {
+        var children = _cache.getIfPresent(parent);
+        if (children == null) return null;
+        return children.get(name);
+    }
+
+    /**
+     * Cache a child of a node, if no invalidations happened since the given generation.
+     *
+     * @param parent     the parent node key
+     * @param name       the name of the child
+     * @param child      the child node key
+     * @param generation the generation obtained before the lookup transaction was started
+     */
+    public void put(JObjectKey parent, String name, JObjectKey child, long generation) {
+        if (_generation.get() != generation) return;
+        var children = _cache.get(parent, k -> new ConcurrentHashMap<>());
+        children.put(name, child);
+        // Could have raced with an invalidation
+        if (_generation.get() != generation)
+            children.remove(name, child);
+    }
+
+    /**
+     * Invalidate all cached children of a node.
+     *
+     * @param parent the parent node key
+     */
+    public void invalidate(JObjectKey parent) {
+        _generation.incrementAndGet();
+        _cache.invalidate(parent);
+    }
+}
@@ -1,32 +1,36 @@
 package com.usatiuk.dhfs.jkleppmanntree;
 
 import com.usatiuk.dhfs.invalidation.Op;
-import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeNode;
-import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeNodeHolder;
-import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeNodeMeta;
-import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreePersistentData;
+import com.usatiuk.dhfs.jkleppmanntree.structs.*;
 import com.usatiuk.dhfs.peersync.PeerId;
 import com.usatiuk.dhfs.peersync.PeerInfoService;
 import com.usatiuk.dhfs.peersync.PersistentPeerDataService;
 import com.usatiuk.kleppmanntree.*;
+import com.usatiuk.objects.JData;
 import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.iterators.CloseableKvIterator;
+import com.usatiuk.objects.iterators.IteratorStart;
 import com.usatiuk.objects.transaction.Transaction;
 import com.usatiuk.objects.transaction.TransactionManager;
 import io.quarkus.logging.Log;
+import jakarta.annotation.Nullable;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import org.apache.commons.lang3.tuple.Pair;
-import org.pcollections.HashTreePMap;
-import org.pcollections.TreePMap;
 import org.pcollections.TreePSet;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 /**
  * Automatically synchronized and persistent Kleppmann tree service.
  * The trees are identified by their names, and can have any type of root node.
+ * <p>
+ * Besides the nodes, the state of a tree is stored in small objects keyed by {@link JKleppmannTreeKeys}:
+ * the clock, the latest timestamp of each peer, and one object per log entry and per queued op,
+ * so that an operation only writes the entries it touches.
  */
 @ApplicationScoped
 public class JKleppmannTreeManager {
@@ -41,6 +45,20 @@ public class JKleppmannTreeManager {
     PeerInfoService peerInfoService;
     @Inject
     PersistentPeerDataService persistentPeerDataService;
+    @Inject
+    JKleppmannTreeLookupCache lookupCache;
+    @Inject
+    JKleppmannTreeLogService logService;
+
+    private final Set<JObjectKey> _knownTrees = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Get the names of the trees that were opened since the start.
+     * @return the tree names
+     */
+    public Collection<JObjectKey> getKnownTrees() {
+        return Collections.unmodifiableSet(_knownTrees);
+    }
 
     /**
      * Get or create a tree with the given name.
@@ -52,22 +70,17 @@ public class JKleppmannTreeManager {
         return txManager.executeTx(() -> {
             var data = curTx.get(JKleppmannTreePersistentData.class, name).orElse(null);
             if (data == null) {
-                data = new JKleppmannTreePersistentData(
-                        name,
-                        TreePSet.empty(),
-                        true,
-                        1L,
-                        HashTreePMap.empty(),
-                        HashTreePMap.empty(),
-                        TreePMap.empty()
-                );
+                data = new JKleppmannTreePersistentData(name, TreePSet.empty(), true);
                 curTx.put(data);
+                curTx.put(new JKleppmannTreeClockData(JKleppmannTreeKeys.clock(name), 1L));
                 var rootNode = new JKleppmannTreeNode(JObjectKey.of(name.value() + "_jt_root"), null, rootNodeSupplier.get());
                 curTx.put(new JKleppmannTreeNodeHolder(rootNode, true));
                 var trashNode = new JKleppmannTreeNode(JObjectKey.of(name.value() + "_jt_trash"), null, rootNodeSupplier.get());
                 curTx.put(new JKleppmannTreeNodeHolder(trashNode, true));
                 var lf_node = new JKleppmannTreeNode(JObjectKey.of(name.value() + "_jt_lf"), null, rootNodeSupplier.get());
                 curTx.put(new JKleppmannTreeNodeHolder(lf_node, true));
+            } else {
+                data = migrateLegacy(data);
             }
             return new JKleppmannTree(data);
 //            opObjectRegistry.registerObject(tree);
@@ -81,10 +94,91 @@ public class JKleppmannTreeManager {
      */
     public Optional<JKleppmannTree> getTree(JObjectKey name) {
         return txManager.executeTx(() -> {
-            return curTx.get(JKleppmannTreePersistentData.class, name).map(JKleppmannTree::new);
+            return curTx.get(JKleppmannTreePersistentData.class, name).map(d -> new JKleppmannTree(migrateLegacy(d)));
         });
     }
 
+    /**
+     * Moves the state of a tree that was stored in {@link JKleppmannTreePersistentData} itself to separate objects.
+     * @param data the tree data
+     * @return the tree data with the state moved out
+     */
+    private JKleppmannTreePersistentData migrateLegacy(JKleppmannTreePersistentData data) {
+        if (!data.hasLegacyState())
+            return data;
+
+        var name = data.key();
+        Log.infov("Moving the state of tree {0} to separate objects, {1} log entries", name, data.log().size());
+
+        curTx.put(new JKleppmannTreeClockData(JKleppmannTreeKeys.clock(name), data.clock()));
+        for (var e : data.peerTimestampLog().entrySet())
+            curTx.put(new JKleppmannTreePeerTimestamp(JKleppmannTreeKeys.peerTimestamp(name, e.getKey()), e.getKey(), e.getValue()));
+        for (var e : data.log().entrySet())
+            curTx.put(new JKleppmannTreeLogEntry(JKleppmannTreeKeys.logEntry(name, e.getKey()), e.getValue()));
+        for (var q : data.queues().entrySet())
+            for (var e : q.getValue().entrySet())
+                curTx.put(new JKleppmannTreeQueueEntry(JKleppmannTreeKeys.queueEntry(name, q.getKey(), e.getKey()), name, q.getKey(), e.getValue()));
+
+        var migrated = data.withoutLegacyState();
+        curTx.put(migrated);
+        return migrated;
+    }
+
+    /**
+     * Get the objects with keys starting with the prefix, in key order.
+     * @param from the key to start from, should start with the prefix
+     * @param inclusive whether to include the object at the starting key
+     * @param prefix the prefix
+     * @param limit the maximum number of objects to return
+     * @param type the type of the objects
+     */
+    private <T extends JData> List<T> getRange(JObjectKey from, boolean inclusive, String prefix, int limit, Class<T> type) {
+        var ret = new ArrayList<T>();
+        try (var it = curTx.getIterator(inclusive ? IteratorStart.GE : IteratorStart.GT, from)) {
+            while (ret.size() < limit && it.hasNext()) {
+                var next = it.next();
+                if (!next.getKey().value().startsWith(prefix))
+                    break;
+                ret.add(type.cast(next.getValue()));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Count the objects with keys starting with the prefix, without reading them.
+     * @param prefix the prefix
+     * @return the number of objects
+     */
+    private long countRange(String prefix) {
+        long count = 0;
+        try (var it = curTx.getIterator(IteratorStart.GE, JObjectKey.of(prefix))) {
+            while (it.hasNext() && it.peekNextKey().value().startsWith(prefix)) {
+                it.skip();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Nullable
+    private <T extends JData> T getFirst(String prefix, Class<T> type) {
+        var got = getRange(JObjectKey.of(prefix), true, prefix, 1, type);
+        return got.isEmpty() ? null : got.getFirst();
+    }
+
+    @Nullable
+    private <T extends JData> T getLast(String prefix, Class<T> type) {
+        try (CloseableKvIterator<JObjectKey, JData> it = curTx.getIterator(IteratorStart.LT, JKleppmannTreeKeys.rangeEnd(prefix))) {
+            if (!it.hasNext())
+                return null;
+            var next = it.next();
+            if (!next.getKey().value().startsWith(prefix))
+                return null;
+            return type.cast(next.getValue());
+        }
+    }
+
     /**
      * Kleppmann tree wrapper, automatically synchronized and persistent.
      */
@@ -93,16 +187,15 @@ public class JKleppmannTreeManager {
         private final JKleppmannTreeStorageInterface _storageInterface;
         private final JKleppmannTreeClock _clock;
         private final JObjectKey _treeName;
-        private JKleppmannTreePersistentData _data;
 
         JKleppmannTree(JKleppmannTreePersistentData data) {
             _treeName = data.key();
-            _data = data;
+            _knownTrees.add(_treeName);
 
             _storageInterface = new JKleppmannTreeStorageInterface();
             _clock = new JKleppmannTreeClock();
 
-            _tree = new KleppmannTree<>(_storageInterface, peerInterface, _clock, new JOpRecorder());
+            _tree = new KleppmannTree<>(_storageInterface, peerInterface, _clock, new JOpRecorder(), logService);
         }
 
         /**
@@ -114,6 +207,39 @@ public class JKleppmannTreeManager {
             return _tree.traverse(names);
         }
 
+        /**
+         * Traverse the tree from root to find a node with the given name, using the lookup cache.
+         * Should only be used in transactions that have not modified the tree, as the cache only reflects
+         * committed changes.
+         * @param names list of names to traverse
+         * @param cacheGeneration the lookup cache generation, obtained before the transaction was started
+         * @return the node key, or null if not found
+         */
+        public JObjectKey traverseCached(List<String> names, long cacheGeneration) {
+            var cur = _storageInterface.getRootId();
+            for (var name : names) {
+                var next = lookupCache.get(cur, name);
+                if (next == null) {
+                    var node = _storageInterface.getById(cur);
+                    if (node == null) return null;
+                    next = node.children().get(name);
+                    if (next == null) return null;
+                    lookupCache.put(cur, name, next, cacheGeneration);
+                }
+                cur = next;
+            }
+            return cur;
+        }
+
+        /**
+         * Get a node of the tree, with its children readable in the current transaction.
+         * @param key the key of the node
+         * @return the node, or null if not found
+         */
+        public JKleppmannTreeNode getNode(JObjectKey key) {
+            return _storageInterface.getById(key);
+        }
+
         /**
          * Get a new node id. (random)
          * @return the new node id
@@ -147,7 +273,7 @@ public class JKleppmannTreeManager {
          * @return true if there are pending operations, false otherwise
          */
         public boolean hasPendingOpsForHost(PeerId host) {
-            return !_data.queues().getOrDefault(host, TreePMap.empty()).isEmpty();
+            return getFirst(JKleppmannTreeKeys.queuePrefix(_treeName, host), JKleppmannTreeQueueEntry.class) != null;
         }
 
         /**
@@ -157,13 +283,12 @@ public class JKleppmannTreeManager {
          * @return the list of pending operations
          */
         public List<Op> getPendingOpsForHost(PeerId host, int limit) {
+            var prefix = JKleppmannTreeKeys.queuePrefix(_treeName, host);
             ArrayList<Op> collected = new ArrayList<>();
-            for (var node : _data.queues().getOrDefault(host, TreePMap.empty()).entrySet()) {
-                collected.add(new JKleppmannTreeOpWrapper(_data.key(), node.getValue()));
-                if (collected.size() >= limit) break;
+            for (var entry : getRange(JObjectKey.of(prefix), true, prefix, limit, JKleppmannTreeQueueEntry.class)) {
+                collected.add(new JKleppmannTreeOpWrapper(_treeName, entry.op()));
             }
-            Log.tracev("Collected pending op for host: {0} - {1}, out of {2}", host, collected,
-                    _data.queues().getOrDefault(host, TreePMap.empty()));
+            Log.tracev("Collected pending op for host: {0} - {1}", host, collected);
             return Collections.unmodifiableList(collected);
         }
 
@@ -181,12 +306,30 @@ public class JKleppmannTreeManager {
             if (!(op instanceof JKleppmannTreeOpWrapper jop))
                 throw new IllegalArgumentException("Invalid incoming op type for JKleppmannTree: " + op.getClass());
 
-            var firstOp = _data.queues().get(host).firstEntry();
-            if (!Objects.equals(firstOp.getValue(), jop.op()))
+            var firstOp = getFirst(JKleppmannTreeKeys.queuePrefix(_treeName, host), JKleppmannTreeQueueEntry.class);
+            if (firstOp == null || !Objects.equals(firstOp.op(), jop.op()))
                 throw new IllegalArgumentException("Committed op push was not the oldest");
 
-            _data = _data.withQueues(_data.queues().plus(host, _data.queues().get(host).minus(firstOp.getKey())));
-            curTx.put(_data);
+            curTx.delete(firstOp.key());
+        }
+
+        /**
+         * Get how far behind the clock is the last timestamp received from the given peer.
+         * The log can't be trimmed past the oldest timestamp of all synchronized peers.
+         * @param peer the peer id
+         * @return the difference between the clock and the peer timestamp, or the clock if nothing was received
+         */
+        public long getTrimLag(PeerId peer) {
+            var peerTimestamp = _storageInterface.getPeerTimestampLog().getForPeer(peer);
+            return _clock.peekTimestamp() - (peerTimestamp == null ? 0 : peerTimestamp);
+        }
+
+        /**
+         * Get the number of entries in the log. Goes over the whole log.
+         * @return the log size
+         */
+        public long getLogSize() {
+            return _storageInterface.getLog().size();
         }
 
         /**
@@ -232,6 +375,19 @@ public class JKleppmannTreeManager {
             _tree.applyExternalOp(from, jop.op());
         }
 
+        /**
+         * Accept a batch of external operations from the given peer.
+         * The tree log is undone and redone only once for the whole batch.
+         * @param from the peer id
+         * @param ops the operations to accept
+         */
+        public void acceptExternalOps(PeerId from, List<JKleppmannTreeOpWrapper> ops) {
+            if (Log.isTraceEnabled())
+                Log.trace("Received " + ops.size() + " ops from " + from);
+
+            _tree.applyExternalOps(from, ops.stream().map(JKleppmannTreeOpWrapper::op).toList());
+        }
+
         /**
          * Create a dummy operation that contains the timestamp of the last operation, to move causality threshold
          * forward even without any real operations.
@@ -251,30 +407,34 @@ public class JKleppmannTreeManager {
 
             @Override
             public void recordOpForPeer(PeerId peer, OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> op) {
-                _data = _data.withQueues(_data.queues().plus(peer, _data.queues().getOrDefault(peer, TreePMap.empty()).plus(op.timestamp(), op)));
-                curTx.put(_data);
+                curTx.put(new JKleppmannTreeQueueEntry(JKleppmannTreeKeys.queueEntry(_treeName, peer, op.timestamp()), _treeName, peer, op));
             }
         }
 
         private class JKleppmannTreeClock implements Clock<Long> {
+            private JKleppmannTreeClockData get() {
+                return curTx.get(JKleppmannTreeClockData.class, JKleppmannTreeKeys.clock(_treeName))
+                        .orElseThrow(() -> new IllegalStateException("No clock for tree " + _treeName));
+            }
+
             @Override
             public Long getTimestamp() {
-                var res = _data.clock() + 1;
-                _data = _data.withClock(res);
-                curTx.put(_data);
+                var clock = get();
+                var res = clock.clock() + 1;
+                curTx.put(clock.withClock(res));
                 return res;
             }
 
             @Override
             public Long peekTimestamp() {
-                return _data.clock();
+                return get().clock();
             }
 
             @Override
             public Long updateTimestamp(Long receivedTimestamp) {
-                var old = _data.clock();
-                _data = _data.withClock(Math.max(old, receivedTimestamp) + 1);
-                curTx.put(_data);
+                var clock = get();
+                var old = clock.clock();
+                curTx.put(clock.withClock(Math.max(old, receivedTimestamp) + 1));
                 return old;
             }
         }
@@ -309,7 +469,7 @@ public class JKleppmannTreeManager {
             @Override
             public JKleppmannTreeNode getById(JObjectKey id) {
                 var got = curTx.get(JKleppmannTreeNodeHolder.class, id);
-                return got.map(JKleppmannTreeNodeHolder::node).orElse(null);
+                return got.map(h -> h.node().withChildrenIn(curTx)).orElse(null);
             }
 
             @Override
@@ -319,9 +479,12 @@ public class JKleppmannTreeManager {
 
             @Override
             public void putNode(TreeNode<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> node) {
+                curTx.onCommit(() -> lookupCache.invalidate(node.key()));
+                var toPut = ((JKleppmannTreeNode) node).withChildren(
+                        JKleppmannTreeShardedChildren.store(curTx, node.key(), node.children()));
                 curTx.put(curTx.get(JKleppmannTreeNodeHolder.class, node.key())
-                        .map(n -> n.withNode((JKleppmannTreeNode) node))
-                        .orElse(new JKleppmannTreeNodeHolder((JKleppmannTreeNode) node)));
+                        .map(n -> n.withNode(toPut))
+                        .orElse(new JKleppmannTreeNodeHolder(toPut)));
             }
 
             @Override
@@ -342,75 +505,82 @@ public class JKleppmannTreeManager {
             private class PeerLogWrapper implements PeerTimestampLogInterface<Long, PeerId> {
                 @Override
                 public Long getForPeer(PeerId peerId) {
-                    return _data.peerTimestampLog().get(peerId);
+                    return curTx.get(JKleppmannTreePeerTimestamp.class, JKleppmannTreeKeys.peerTimestamp(_treeName, peerId))
+                            .map(JKleppmannTreePeerTimestamp::timestamp).orElse(null);
                 }
 
                 @Override
                 public void putForPeer(PeerId peerId, Long timestamp) {
-                    _data = _data.withPeerTimestampLog(_data.peerTimestampLog().plus(peerId, timestamp));
-                    curTx.put(_data);
+                    curTx.put(new JKleppmannTreePeerTimestamp(JKleppmannTreeKeys.peerTimestamp(_treeName, peerId), peerId, timestamp));
                 }
             }
 
             private class LogWrapper implements LogInterface<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> {
+                private final String _prefix = JKleppmannTreeKeys.logPrefix(_treeName);
+
+                private Pair<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>> toPair(@Nullable JKleppmannTreeLogEntry entry) {
+                    if (entry == null) return null;
+                    return Pair.of(entry.record().op().timestamp(), entry.record());
+                }
+
+                private List<Pair<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>>> range(JObjectKey from, boolean inclusive) {
+                    return getRange(from, inclusive, _prefix, Integer.MAX_VALUE, JKleppmannTreeLogEntry.class)
+                            .stream().map(this::toPair).toList();
+                }
+
                 @Override
                 public Pair<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>> peekOldest() {
-                    if (_data.log().isEmpty()) return null;
-                    return Pair.of(_data.log().firstEntry());
+                    return toPair(getFirst(_prefix, JKleppmannTreeLogEntry.class));
                 }
 
                 @Override
                 public Pair<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>> takeOldest() {
-                    if (_data.log().isEmpty()) return null;
-                    var ret = _data.log().firstEntry();
-                    _data = _data.withLog(_data.log().minusFirstEntry());
-                    curTx.put(_data);
-                    return Pair.of(ret);
+                    var oldest = getFirst(_prefix, JKleppmannTreeLogEntry.class);
+                    if (oldest == null) return null;
+                    curTx.delete(oldest.key());
+                    return toPair(oldest);
                 }
 
                 @Override
                 public Pair<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>> peekNewest() {
-                    if (_data.log().isEmpty()) return null;
-                    return Pair.of(_data.log().lastEntry());
+                    return toPair(getLast(_prefix, JKleppmannTreeLogEntry.class));
                 }
 
                 @Override
                 public List<Pair<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>>> newestSlice(CombinedTimestamp<Long, PeerId> since, boolean inclusive) {
-                    return _data.log().tailMap(since, inclusive).entrySet().stream().map(e -> Pair.of(e.getKey(), e.getValue())).toList();
+                    return range(JKleppmannTreeKeys.logEntry(_treeName, since), inclusive);
                 }
 
                 @Override
                 public List<Pair<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>>> getAll() {
-                    return _data.log().entrySet().stream().map(e -> Pair.of(e.getKey(), e.getValue())).toList();
+                    return range(JObjectKey.of(_prefix), true);
                 }
 
                 @Override
                 public boolean isEmpty() {
-                    return _data.log().isEmpty();
+                    return getFirst(_prefix, JKleppmannTreeLogEntry.class) == null;
                 }
 
                 @Override
                 public boolean containsKey(CombinedTimestamp<Long, PeerId> timestamp) {
-                    return _data.log().containsKey(timestamp);
+                    return curTx.get(JKleppmannTreeLogEntry.class, JKleppmannTreeKeys.logEntry(_treeName, timestamp)).isPresent();
                 }
 
                 @Override
                 public long size() {
-                    return _data.log().size();
+                    return countRange(_prefix);
                 }
 
                 @Override
                 public void put(CombinedTimestamp<Long, PeerId> timestamp, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> record) {
-                    if (_data.log().containsKey(timestamp))
+                    if (containsKey(timestamp))
                         throw new IllegalStateException("Overwriting log entry?");
-                    _data = _data.withLog(_data.log().plus(timestamp, record));
-                    curTx.put(_data);
+                    replace(timestamp, record);
                 }
 
                 @Override
                 public void replace(CombinedTimestamp<Long, PeerId> timestamp, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> record) {
-                    _data = _data.withLog(_data.log().plus(timestamp, record));
-                    curTx.put(_data);
+                    curTx.put(new JKleppmannTreeLogEntry(JKleppmannTreeKeys.logEntry(_treeName, timestamp), record));
                 }
             }
         }
@@ -3,11 +3,16 @@ package com.usatiuk.dhfs.jkleppmanntree;
 import com.usatiuk.dhfs.invalidation.InvalidationQueueService;
 import com.usatiuk.dhfs.invalidation.OpHandler;
 import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.transaction.Transaction;
 import com.usatiuk.objects.transaction.TransactionManager;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
 @ApplicationScoped
 public class JKleppmannTreeOpHandler implements OpHandler<JKleppmannTreeOpWrapper> {
 @Inject
@@ -28,4 +33,20 @@ public class JKleppmannTreeOpHandler implements OpHandler<JKleppmannTreeOpWrappe
             curTx.onCommit(() -> invalidationQueueService.pushInvalidationToOne(from, op.treeName()));
         });
     }
+
+    @Override
+    public void handleOps(PeerId from, List<JKleppmannTreeOpWrapper> ops) {
+        var byTree = new LinkedHashMap<JObjectKey, List<JKleppmannTreeOpWrapper>>();
+        for (var op : ops)
+            byTree.computeIfAbsent(op.treeName(), k -> new ArrayList<>()).add(op);
+
+        txm.run(() -> {
+            for (var e : byTree.entrySet()) {
+                var tree = jKleppmannTreeManager.getTree(e.getKey()).orElseThrow();
+                tree.acceptExternalOps(from, e.getValue());
+                // Push ack op
+                curTx.onCommit(() -> invalidationQueueService.pushInvalidationToOne(from, e.getKey()));
+            }
+        });
+    }
 }
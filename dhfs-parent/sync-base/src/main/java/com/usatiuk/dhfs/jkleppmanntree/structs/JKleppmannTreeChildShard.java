@@ -0,0 +1,46 @@
+package com.usatiuk.dhfs.jkleppmanntree.structs;
+
+import com.usatiuk.dhfs.refcount.JDataRef;
+import com.usatiuk.dhfs.refcount.JDataRefcounted;
+import com.usatiuk.objects.JObjectKey;
+import org.pcollections.PCollection;
+import org.pcollections.PMap;
+import org.pcollections.TreePSet;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * A part of the children of a large JKleppmannTreeNode, see {@link JKleppmannTreeShardedChildren}.
+ * Referenced by the node holder, and references the children in it.
+ */
+public record JKleppmannTreeChildShard(JObjectKey key, PCollection<JDataRef> refsFrom, boolean frozen,
+                                       PMap<String, JObjectKey> children) implements JDataRefcounted {
+    public JKleppmannTreeChildShard(JObjectKey key, PMap<String, JObjectKey> children) {
+        this(key, TreePSet.empty(), false, children);
+    }
+
+    public JKleppmannTreeChildShard withChildren(PMap<String, JObjectKey> children) {
+        return new JKleppmannTreeChildShard(key, refsFrom, frozen, children);
+    }
+
+    @Override
+    public JKleppmannTreeChildShard withRefsFrom(PCollection<JDataRef> refs) {
+        return new JKleppmannTreeChildShard(key, refs, frozen, children);
+    }
+
+    @Override
+    public JKleppmannTreeChildShard withFrozen(boolean frozen) {
+        return new JKleppmannTreeChildShard(key, refsFrom, frozen, children);
+    }
+
+    @Override
+    public Collection<JObjectKey> collectRefsTo() {
+        return Set.copyOf(children.values());
+    }
+
+    @Override
+    public int estimateSize() {
+        return children.size() * 64;
+    }
+}
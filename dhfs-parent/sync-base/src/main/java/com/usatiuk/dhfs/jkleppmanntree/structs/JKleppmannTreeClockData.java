@@ -0,0 +1,16 @@
+package com.usatiuk.dhfs.jkleppmanntree.structs;
+
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JObjectKey;
+
+/**
+ * Lamport clock of a JKleppmannTree.
+ *
+ * @param key   the key of the object, see {@link JKleppmannTreeKeys#clock}
+ * @param clock the last timestamp that was used or seen
+ */
+public record JKleppmannTreeClockData(JObjectKey key, long clock) implements JData {
+    public JKleppmannTreeClockData withClock(long clock) {
+        return new JKleppmannTreeClockData(key, clock);
+    }
+}
@@ -0,0 +1,58 @@
+package com.usatiuk.dhfs.jkleppmanntree.structs;
+
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.kleppmanntree.CombinedTimestamp;
+import com.usatiuk.objects.JObjectKey;
+
+/**
+ * Keys of the objects holding the state of a JKleppmannTree, other than its nodes.
+ * The log and the op queues are stored as one object per entry, with the timestamp encoded in the key
+ * so that the keys of a log or of a queue are sorted in the timestamp order.
+ */
+public final class JKleppmannTreeKeys {
+    private JKleppmannTreeKeys() {
+    }
+
+    public static JObjectKey clock(JObjectKey tree) {
+        return JObjectKey.of(tree.value() + "_jt_clock");
+    }
+
+    public static JObjectKey peerTimestamp(JObjectKey tree, PeerId peer) {
+        return JObjectKey.of(tree.value() + "_jt_pt_" + peer.id().value());
+    }
+
+    /**
+     * @return the common prefix of the keys of all log entries of the tree
+     */
+    public static String logPrefix(JObjectKey tree) {
+        return tree.value() + "_jt_log=";
+    }
+
+    public static JObjectKey logEntry(JObjectKey tree, CombinedTimestamp<Long, PeerId> timestamp) {
+        return JObjectKey.of(logPrefix(tree) + encode(timestamp));
+    }
+
+    /**
+     * @return the common prefix of the keys of all queue entries of the tree for the peer
+     */
+    public static String queuePrefix(JObjectKey tree, PeerId peer) {
+        return tree.value() + "_jt_q_" + peer.id().value() + "=";
+    }
+
+    public static JObjectKey queueEntry(JObjectKey tree, PeerId peer, CombinedTimestamp<Long, PeerId> timestamp) {
+        return JObjectKey.of(queuePrefix(tree, peer) + encode(timestamp));
+    }
+
+    /**
+     * @param prefix a log or queue prefix
+     * @return a key that is greater than all the keys starting with the prefix
+     */
+    public static JObjectKey rangeEnd(String prefix) {
+        return JObjectKey.of(prefix.substring(0, prefix.length() - 1) + ">");
+    }
+
+    // Timestamps are never negative, so fixed-width hex sorts the same way as the numbers
+    private static String encode(CombinedTimestamp<Long, PeerId> timestamp) {
+        return String.format("%016x_%s", timestamp.timestamp(), timestamp.nodeId().id().value());
+    }
+}
@@ -0,0 +1,16 @@
+package com.usatiuk.dhfs.jkleppmanntree.structs;
+
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.kleppmanntree.LogRecord;
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JObjectKey;
+
+/**
+ * An entry of the op log of a JKleppmannTree.
+ *
+ * @param key    the key of the object, see {@link JKleppmannTreeKeys#logEntry}
+ * @param record the log record
+ */
+public record JKleppmannTreeLogEntry(JObjectKey key,
+                                     LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> record) implements JData {
+}
@@ -4,6 +4,7 @@ import com.usatiuk.dhfs.peersync.PeerId;
 import com.usatiuk.kleppmanntree.OpMove;
 import com.usatiuk.kleppmanntree.TreeNode;
 import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.transaction.Transaction;
 import jakarta.annotation.Nullable;
 import org.pcollections.HashTreePMap;
 import org.pcollections.PMap;
@@ -46,8 +47,25 @@ public record JKleppmannTreeNode(JObjectKey key, JObjectKey parent,
         return new JKleppmannTreeNode(key, parent, lastEffectiveOp, meta, children);
     }
 
+    /**
+     * Get the node with its children readable in the given transaction,
+     * as the children of large directories are read from it, see {@link JKleppmannTreeShardedChildren}.
+     *
+     * @param tx the transaction
+     * @return the node with the children bound to the transaction
+     */
+    public JKleppmannTreeNode withChildrenIn(Transaction tx) {
+        if (!(children instanceof JKleppmannTreeShardedChildren sharded))
+            return this;
+        return withChildren(sharded.bind(tx));
+    }
+
     public Collection<JObjectKey> collectRefsTo() {
-        return Stream.<JObjectKey>concat(children().values().stream(),
+        // Large directories reference their shards, which reference the children
+        var childRefs = children instanceof JKleppmannTreeShardedChildren sharded
+                ? sharded.shardKeys().stream()
+                : children.values().stream();
+        return Stream.<JObjectKey>concat(childRefs,
                         Optional.ofNullable(meta)
                                 .<Stream<JObjectKey>>map(o -> o.collectRefsTo().stream())
                                 .orElse(Stream.empty()))
@@ -55,6 +73,8 @@ public record JKleppmannTreeNode(JObjectKey key, JObjectKey parent,
     }
 
     public int estimateSize() {
+        if (children instanceof JKleppmannTreeShardedChildren)
+            return 64;
         return children.size() * 64;
     }
 }
@@ -0,0 +1,15 @@
+package com.usatiuk.dhfs.jkleppmanntree.structs;
+
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JObjectKey;
+
+/**
+ * The latest timestamp received from a peer for a JKleppmannTree.
+ *
+ * @param key       the key of the object, see {@link JKleppmannTreeKeys#peerTimestamp}
+ * @param peer      the peer
+ * @param timestamp the timestamp
+ */
+public record JKleppmannTreePeerTimestamp(JObjectKey key, PeerId peer, long timestamp) implements JData {
+}
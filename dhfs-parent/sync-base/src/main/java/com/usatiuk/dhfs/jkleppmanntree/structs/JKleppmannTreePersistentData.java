@@ -7,15 +7,18 @@ import com.usatiuk.kleppmanntree.CombinedTimestamp;
 import com.usatiuk.kleppmanntree.LogRecord;
 import com.usatiuk.kleppmanntree.OpMove;
 import com.usatiuk.objects.JObjectKey;
-import org.pcollections.PCollection;
-import org.pcollections.PMap;
-import org.pcollections.PSortedMap;
+import org.pcollections.*;
 
 import java.util.Collection;
 import java.util.List;
 
 /**
- * Various persistent data for JKleppmannTree
+ * The root object of a JKleppmannTree, holding references to its root, trash and lost+found nodes.
+ * <p>
+ * The clock, the op queues, the peer timestamps and the log are stored as separate objects,
+ * see {@link JKleppmannTreeKeys}. The corresponding fields are only kept to read the trees
+ * that were stored before that, and are moved out on the first access to such tree;
+ * they are always zero or empty otherwise.
  */
 public record JKleppmannTreePersistentData(
         JObjectKey key, PCollection<JDataRef> refsFrom, boolean frozen,
@@ -24,29 +27,28 @@ public record JKleppmannTreePersistentData(
         PMap<PeerId, Long> peerTimestampLog,
         PSortedMap<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>> log
 ) implements JDataRefcounted {
-    @Override
-    public JKleppmannTreePersistentData withRefsFrom(PCollection<JDataRef> refs) {
-        return new JKleppmannTreePersistentData(key, refs, frozen, clock, queues, peerTimestampLog, log);
-    }
-
-    @Override
-    public JKleppmannTreePersistentData withFrozen(boolean frozen) {
-        return new JKleppmannTreePersistentData(key, refsFrom, frozen, clock, queues, peerTimestampLog, log);
+    public JKleppmannTreePersistentData(JObjectKey key, PCollection<JDataRef> refsFrom, boolean frozen) {
+        this(key, refsFrom, frozen, 0L, HashTreePMap.empty(), HashTreePMap.empty(), TreePMap.empty());
     }
 
-    public JKleppmannTreePersistentData withClock(long clock) {
-        return new JKleppmannTreePersistentData(key, refsFrom, frozen, clock, queues, peerTimestampLog, log);
+    /**
+     * @return true if the tree state is still stored in this object
+     */
+    public boolean hasLegacyState() {
+        return clock != 0 || !queues.isEmpty() || !peerTimestampLog.isEmpty() || !log.isEmpty();
     }
 
-    public JKleppmannTreePersistentData withQueues(PMap<PeerId, PSortedMap<CombinedTimestamp<Long, PeerId>, OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>>> queues) {
-        return new JKleppmannTreePersistentData(key, refsFrom, frozen, clock, queues, peerTimestampLog, log);
+    public JKleppmannTreePersistentData withoutLegacyState() {
+        return new JKleppmannTreePersistentData(key, refsFrom, frozen);
     }
 
-    public JKleppmannTreePersistentData withPeerTimestampLog(PMap<PeerId, Long> peerTimestampLog) {
-        return new JKleppmannTreePersistentData(key, refsFrom, frozen, clock, queues, peerTimestampLog, log);
+    @Override
+    public JKleppmannTreePersistentData withRefsFrom(PCollection<JDataRef> refs) {
+        return new JKleppmannTreePersistentData(key, refs, frozen, clock, queues, peerTimestampLog, log);
     }
 
-    public JKleppmannTreePersistentData withLog(PSortedMap<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>> log) {
+    @Override
+    public JKleppmannTreePersistentData withFrozen(boolean frozen) {
         return new JKleppmannTreePersistentData(key, refsFrom, frozen, clock, queues, peerTimestampLog, log);
     }
 
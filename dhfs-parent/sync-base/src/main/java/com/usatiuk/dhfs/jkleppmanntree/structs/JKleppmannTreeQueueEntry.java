@@ -0,0 +1,18 @@
+package com.usatiuk.dhfs.jkleppmanntree.structs;
+
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.kleppmanntree.OpMove;
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JObjectKey;
+
+/**
+ * An op of a JKleppmannTree that is waiting to be sent to a peer.
+ *
+ * @param key  the key of the object, see {@link JKleppmannTreeKeys#queueEntry}
+ * @param tree the name of the tree
+ * @param peer the peer the op should be sent to
+ * @param op   the op
+ */
+public record JKleppmannTreeQueueEntry(JObjectKey key, JObjectKey tree, PeerId peer,
+                                       OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> op) implements JData {
+}
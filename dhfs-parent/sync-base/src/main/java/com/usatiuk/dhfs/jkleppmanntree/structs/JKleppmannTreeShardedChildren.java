@@ -0,0 +1,312 @@
+package com.usatiuk.dhfs.jkleppmanntree.structs;
+
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.transaction.Transaction;
+import org.pcollections.HashTreePMap;
+import org.pcollections.PMap;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Children of a large JKleppmannTreeNode, split by the hash of the name into {@link JKleppmannTreeChildShard} objects,
+ * so that adding or removing a child only rewrites one shard.
+ * <p>
+ * Only the number of shards and of children are stored in the node. To read the children, the map has to be
+ * bound to a transaction with {@link #bind}, the shards are then read from it when needed.
+ * Like any other PMap, it is immutable: changing it returns a new map that keeps the changed shards in memory,
+ * until they are written by {@link #store}.
+ * <p>
+ * Unlike other maps, equality and the hash code only depend on the node, the shard count, the size and the changed shards,
+ * so that comparing or printing tree nodes doesn't read the shards.
+ */
+public final class JKleppmannTreeShardedChildren extends AbstractMap<String, JObjectKey> implements PMap<String, JObjectKey>, Serializable {
+    /**
+     * Directories with more children than this are sharded
+     */
+    public static final int MAX_UNSHARDED = 1024;
+    /**
+     * Sharded directories with less children than this go back to a plain map
+     */
+    public static final int MIN_SHARDED = MAX_UNSHARDED / 4;
+    /**
+     * The number of shards is doubled when there are more children than this per shard on average
+     */
+    public static final int MAX_SHARD_SIZE = 1024;
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final JObjectKey _node;
+    private final int _shardCount;
+    private final int _size;
+    // Shards that were changed since the map was stored, null for the unchanged ones
+    private final transient PMap<String, JObjectKey>[] _changed;
+    // The transaction the unchanged shards are read from, null if not bound
+    private final transient Transaction _tx;
+
+    public JKleppmannTreeShardedChildren(JObjectKey node, int shardCount, int size) {
+        this(node, shardCount, size, null, null);
+    }
+
+    private JKleppmannTreeShardedChildren(JObjectKey node, int shardCount, int size, PMap<String, JObjectKey>[] changed, Transaction tx) {
+        if (Integer.bitCount(shardCount) != 1)
+            throw new IllegalArgumentException("Shard count should be a power of two: " + shardCount);
+        _node = node;
+        _shardCount = shardCount;
+        _size = size;
+        _changed = changed;
+        _tx = tx;
+    }
+
+    /**
+     * Get the same children, with the shards read from the given transaction.
+     *
+     * @param tx the transaction
+     * @return the bound map
+     */
+    public JKleppmannTreeShardedChildren bind(Transaction tx) {
+        if (_tx == tx)
+            return this;
+        return new JKleppmannTreeShardedChildren(_node, _shardCount, _size, _changed, tx);
+    }
+
+    public JObjectKey node() {
+        return _node;
+    }
+
+    public int shardCount() {
+        return _shardCount;
+    }
+
+    public JObjectKey shardKey(int shard) {
+        return JObjectKey.of(_node.value() + "_jt_cs" + _shardCount + "_" + shard);
+    }
+
+    public List<JObjectKey> shardKeys() {
+        var ret = new ArrayList<JObjectKey>(_shardCount);
+        for (int i = 0; i < _shardCount; i++)
+            ret.add(shardKey(i));
+        return ret;
+    }
+
+    private int shardOf(Object name) {
+        int h = name.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (_shardCount - 1);
+    }
+
+    private PMap<String, JObjectKey> shard(int shard) {
+        if (_changed != null && _changed[shard] != null)
+            return _changed[shard];
+        if (_tx == null)
+            throw new IllegalStateException("Children of " + _node + " are not bound to a transaction");
+        return _tx.get(JKleppmannTreeChildShard.class, shardKey(shard))
+                .map(JKleppmannTreeChildShard::children)
+                .orElseThrow(() -> new IllegalStateException("Child shard " + shardKey(shard) + " not found"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private JKleppmannTreeShardedChildren withShard(int shard, PMap<String, JObjectKey> children, int sizeDelta) {
+        var changed = _changed == null ? new PMap[_shardCount] : _changed.clone();
+        changed[shard] = children;
+        return new JKleppmannTreeShardedChildren(_node, _shardCount, _size + sizeDelta, changed, _tx);
+    }
+
+    @Override
+    public JObjectKey get(Object key) {
+        if (!(key instanceof String))
+            return null;
+        return shard(shardOf(key)).get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof JKleppmannTreeShardedChildren that)) return false;
+        return _shardCount == that._shardCount && _size == that._size && _node.equals(that._node)
+                && Arrays.equals(_changed, that._changed);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(_node, _shardCount, _size);
+    }
+
+    @Override
+    public String toString() {
+        return "JKleppmannTreeShardedChildren{node=" + _node + ", shardCount=" + _shardCount + ", size=" + _size + "}";
+    }
+
+    @Override
+    public Set<Entry<String, JObjectKey>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, JObjectKey>> iterator() {
+                return new Iterator<>() {
+                    private int _next = 0;
+                    private Iterator<Entry<String, JObjectKey>> _cur = Collections.emptyIterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!_cur.hasNext() && _next < _shardCount)
+                            _cur = shard(_next++).entrySet().iterator();
+                        return _cur.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, JObjectKey> next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        return _cur.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return _size;
+            }
+        };
+    }
+
+    @Override
+    public JKleppmannTreeShardedChildren plus(String key, JObjectKey value) {
+        int shard = shardOf(key);
+        var cur = shard(shard);
+        var next = cur.plus(key, value);
+        if (next == cur)
+            return this;
+        return withShard(shard, next, cur.containsKey(key) ? 0 : 1);
+    }
+
+    @Override
+    public JKleppmannTreeShardedChildren plusAll(Map<? extends String, ? extends JObjectKey> map) {
+        var ret = this;
+        for (var e : map.entrySet())
+            ret = ret.plus(e.getKey(), e.getValue());
+        return ret;
+    }
+
+    @Override
+    public JKleppmannTreeShardedChildren minus(Object key) {
+        if (!(key instanceof String))
+            return this;
+        int shard = shardOf(key);
+        var cur = shard(shard);
+        if (!cur.containsKey(key))
+            return this;
+        return withShard(shard, cur.minus(key), -1);
+    }
+
+    @Override
+    public JKleppmannTreeShardedChildren minusAll(Collection<?> keys) {
+        var ret = this;
+        for (var k : keys)
+            ret = ret.minus(k);
+        return ret;
+    }
+
+    @Override
+    @Deprecated
+    public JObjectKey put(String key, JObjectKey value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @Deprecated
+    public JObjectKey remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @Deprecated
+    public void putAll(Map<? extends String, ? extends JObjectKey> m) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @Deprecated
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static int shardCountFor(int size) {
+        // Start half full, so that the shards don't have to be split again right away
+        int wanted = Math.max(2, (size * 2 + MAX_SHARD_SIZE - 1) / MAX_SHARD_SIZE);
+        return Integer.highestOneBit(wanted - 1) << 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JKleppmannTreeShardedChildren split(Transaction tx, JObjectKey node, Map<String, JObjectKey> children) {
+        var ret = new JKleppmannTreeShardedChildren(node, shardCountFor(children.size()), children.size());
+        PMap<String, JObjectKey>[] shards = new PMap[ret._shardCount];
+        Arrays.fill(shards, HashTreePMap.empty());
+        for (var e : children.entrySet()) {
+            int shard = ret.shardOf(e.getKey());
+            shards[shard] = shards[shard].plus(e.getKey(), e.getValue());
+        }
+        for (int i = 0; i < shards.length; i++)
+            putShard(tx, ret.shardKey(i), shards[i]);
+        return ret;
+    }
+
+    private static void putShard(Transaction tx, JObjectKey key, PMap<String, JObjectKey> children) {
+        // The shard might still exist if it was dropped earlier in the same transaction
+        tx.put(tx.get(JKleppmannTreeChildShard.class, key)
+                .map(s -> s.withChildren(children))
+                .orElse(new JKleppmannTreeChildShard(key, children)));
+    }
+
+    /**
+     * Writes the changed shards of the children of a node, and returns the map that should be stored in the node.
+     * Small directories are kept as plain maps, and the large ones are sharded,
+     * with more shards as they grow. The shards that are not used anymore are deleted
+     * when their node stops referencing them.
+     *
+     * @param tx       the transaction
+     * @param node     the key of the node
+     * @param children the new children of the node
+     * @return the children to store in the node
+     */
+    public static PMap<String, JObjectKey> store(Transaction tx, JObjectKey node, PMap<String, JObjectKey> children) {
+        if (!(children instanceof JKleppmannTreeShardedChildren sharded)) {
+            if (children.size() > MAX_UNSHARDED)
+                return split(tx, node, children);
+            return children;
+        }
+
+        if (!sharded._node.equals(node))
+            throw new IllegalArgumentException("Children of " + sharded._node + " stored in " + node);
+        sharded = sharded.bind(tx);
+
+        if (sharded._size < MIN_SHARDED)
+            return HashTreePMap.from(sharded);
+        if (sharded._size > sharded._shardCount * MAX_SHARD_SIZE)
+            return split(tx, node, sharded);
+
+        if (sharded._changed == null)
+            return sharded;
+
+        for (int i = 0; i < sharded._shardCount; i++) {
+            if (sharded._changed[i] != null)
+                putShard(tx, sharded.shardKey(i), sharded._changed[i]);
+        }
+        return new JKleppmannTreeShardedChildren(node, sharded._shardCount, sharded._size);
+    }
+}
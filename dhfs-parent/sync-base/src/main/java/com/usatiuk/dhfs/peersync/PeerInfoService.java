@@ -87,8 +87,9 @@ public class PeerInfoService {
      */
     public List<PeerInfo> getPeers() {
         return jObjectTxManager.run(() -> {
-            var gotKey = getTree().traverse(List.of());
-            return curTx.get(JKleppmannTreeNodeHolder.class, gotKey).map(JKleppmannTreeNodeHolder::node).map(
+            var tree = getTree();
+            var gotKey = tree.traverse(List.of());
+            return Optional.ofNullable(tree.getNode(gotKey)).map(
                             node -> node.children().keySet().stream()
                                     .map(JObjectKey::of).map(this::getPeerInfoImpl)
                                     .filter(o -> {
@@ -42,8 +42,9 @@ public class PeerInfoCertUpdateTxHook implements PreCommitTxHook {
                 if (!(old instanceof JKleppmannTreeNodeHolder oldNode))
                     throw new IllegalStateException("Old node is not a tree node");
 
-                for (var curRef : oldNode.node().children().entrySet()) {
-                    if (!n.node().children().containsKey(curRef.getKey())) {
+                var curChildren = n.node().withChildrenIn(curTx).children();
+                for (var curRef : oldNode.node().withChildrenIn(curTx).children().entrySet()) {
+                    if (!curChildren.containsKey(curRef.getKey())) {
                         Log.infov("Will reset sync state for {0}", curRef.getValue());
                         persistentPeerDataService.resetInitialSyncDone(JKleppmannTreeNodeMetaPeer.nodeIdToPeerId(curRef.getValue()));
                     }
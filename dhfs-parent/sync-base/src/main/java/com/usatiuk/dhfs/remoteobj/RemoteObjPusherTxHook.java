@@ -1,7 +1,7 @@
 package com.usatiuk.dhfs.remoteobj;
 
 import com.usatiuk.dhfs.invalidation.InvalidationQueueService;
-import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreePersistentData;
+import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeQueueEntry;
 import com.usatiuk.objects.JData;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.transaction.PreCommitTxHook;
@@ -23,7 +23,10 @@ public class RemoteObjPusherTxHook implements PreCommitTxHook {
     public void onChange(JObjectKey key, JData old, JData cur) {
         boolean invalidate = switch (cur) {
             case RemoteObjectMeta remote -> remote.changelog() != ((RemoteObjectMeta) old).changelog();
-            case JKleppmannTreePersistentData pd -> pd.queues() != ((JKleppmannTreePersistentData) old).queues();
+            case JKleppmannTreeQueueEntry entry -> {
+                pushTreeOps(entry);
+                yield false;
+            }
             default -> false;
         };
 
@@ -34,6 +37,11 @@ public class RemoteObjPusherTxHook implements PreCommitTxHook {
 
     @Override
     public void onCreate(JObjectKey key, JData cur) {
+        if (cur instanceof JKleppmannTreeQueueEntry entry) {
+            pushTreeOps(entry);
+            return;
+        }
+
         if (!(cur instanceof RemoteObjectMeta remote)) {
             return;
         }
@@ -41,6 +49,11 @@ public class RemoteObjPusherTxHook implements PreCommitTxHook {
         curTx.onCommit(() -> invalidationQueueService.pushInvalidationToAll(remote.key()));
     }
 
+    // Tree ops are queued per peer, so only the peer that got a new op needs to be notified
+    private void pushTreeOps(JKleppmannTreeQueueEntry entry) {
+        curTx.onCommit(() -> invalidationQueueService.pushInvalidationToOne(entry.peer(), entry.tree()));
+    }
+
     @Override
     public void onDelete(JObjectKey key, JData cur) {
         if (!(cur instanceof RemoteObjectMeta remote)) {
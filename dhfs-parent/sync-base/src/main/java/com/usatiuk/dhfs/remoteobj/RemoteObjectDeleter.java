@@ -9,7 +9,8 @@ import com.usatiuk.dhfs.rpc.RemoteObjectServiceClient;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.transaction.Transaction;
 import com.usatiuk.objects.transaction.TransactionManager;
-import com.usatiuk.utils.HashSetDelayedBlockingQueue;
+import com.usatiuk.utils.DelayedBlockingQueue;
+import com.usatiuk.utils.ShardedDelayedBlockingQueue;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
@@ -34,9 +35,9 @@ import java.util.stream.Stream;
  */
 @ApplicationScoped
 public class RemoteObjectDeleter {
-    private final HashSetDelayedBlockingQueue<JObjectKey> _quickCandidates = new HashSetDelayedBlockingQueue<>(0);
-    private final HashSetDelayedBlockingQueue<JObjectKey> _candidates;
-    private final HashSetDelayedBlockingQueue<JObjectKey> _canDeleteRetries;
+    private final DelayedBlockingQueue<JObjectKey> _quickCandidates = new ShardedDelayedBlockingQueue<>(0);
+    private final DelayedBlockingQueue<JObjectKey> _candidates;
+    private final DelayedBlockingQueue<JObjectKey> _canDeleteRetries;
     private final HashSet<JObjectKey> _movablesInProcessing = new HashSet<>();
 
     @Inject
@@ -64,8 +65,8 @@ public class RemoteObjectDeleter {
 
     public RemoteObjectDeleter(@ConfigProperty(name = "dhfs.objects.deletion.delay") long deletionDelay,
                                @ConfigProperty(name = "dhfs.objects.deletion.can-delete-retry-delay") long canDeleteRetryDelay) {
-        _candidates = new HashSetDelayedBlockingQueue<>(deletionDelay);
-        _canDeleteRetries = new HashSetDelayedBlockingQueue<>(canDeleteRetryDelay);
+        _candidates = new ShardedDelayedBlockingQueue<>(deletionDelay);
+        _canDeleteRetries = new ShardedDelayedBlockingQueue<>(canDeleteRetryDelay);
     }
 
     void init(@Observes @Priority(200) StartupEvent event) throws IOException {
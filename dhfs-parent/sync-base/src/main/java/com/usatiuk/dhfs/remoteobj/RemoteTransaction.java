@@ -3,6 +3,7 @@ package com.usatiuk.dhfs.remoteobj;
 import com.usatiuk.dhfs.peersync.PersistentPeerDataService;
 import com.usatiuk.dhfs.rpc.RemoteObjectServiceClient;
 import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.transaction.ReadOnlyTransactionException;
 import com.usatiuk.objects.transaction.Transaction;
 import io.quarkus.logging.Log;
 import jakarta.inject.Inject;
@@ -10,6 +11,7 @@ import jakarta.inject.Singleton;
 import org.apache.commons.lang3.mutable.MutableObject;
 import org.pcollections.HashTreePSet;
 
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
 /**
@@ -70,6 +72,8 @@ public class RemoteTransaction {
                     }
                     if (!tryRequest)
                         return Optional.empty();
+                    if (curTx.readOnly())
+                        throw new ReadOnlyTransactionException("Downloading " + key + " requires a writable transaction");
                     return tryDownloadRemote(obj).map(wrapper -> (T) wrapper.data());
                 });
     }
@@ -107,6 +111,36 @@ public class RemoteTransaction {
         curTx.put(newData);
     }
 
+    /**
+     * Store a local copy of the data of an existing remote object, without changing its version.
+     * Should only be used when the data is known to be the same as on other peers (for example, when the object is content-addressed).
+     *
+     * @param obj the object to put
+     * @param <T> the type of the object
+     */
+    public <T extends JDataRemote> void putDataLocalCopy(T obj) {
+        var curMeta = getMeta(obj.key()).orElse(null);
+        if (curMeta == null)
+            throw new IllegalArgumentException("No data found for " + obj.key() + " when in putDataLocalCopy");
+
+        if (!curMeta.knownType().isAssignableFrom(obj.getClass()))
+            throw new IllegalStateException("Object type mismatch: " + curMeta.knownType() + " vs " + obj.getClass());
+
+        var newMeta = curMeta.withConfirmedDeletes(HashTreePSet.empty());
+
+        if (!newMeta.knownType().equals(obj.getClass()))
+            newMeta = newMeta.withKnownType(obj.getClass());
+
+        if (!newMeta.hasLocalData()) {
+            newMeta = newMeta.withHaveLocal(true);
+            var newData = curTx.get(RemoteObjectDataWrapper.class, RemoteObjectMeta.ofDataKey(obj.key()))
+                    .map(w -> w.withData(obj)).orElse(new RemoteObjectDataWrapper<>(obj));
+            curTx.put(newData);
+        }
+
+        curTx.put(newMeta);
+    }
+
     /**
      * Put the data of a remote object into the storage, creating a new object.
      * Should only be used when an object is known to be new. (for example, when it is created with a unique random key)
@@ -179,4 +213,17 @@ public class RemoteTransaction {
         return getData(type, key, false);
     }
 
+    /**
+     * Get the serialized data of a remote object with the given key, if it is present in the local storage.
+     * See {@link Transaction#getRaw} for when it is available and how long the buffer is valid.
+     *
+     * @param key the key of the object
+     * @return an Optional containing the serialized {@link RemoteObjectDataWrapper}, or an empty Optional if it's not available
+     */
+    public Optional<ByteBuffer> getDataLocalRaw(JObjectKey key) {
+        return getMeta(key)
+                .filter(RemoteObjectMeta::hasLocalData)
+                .flatMap(m -> curTx.getRaw(RemoteObjectMeta.ofDataKey(key)));
+    }
+
 }
@@ -9,6 +9,7 @@ import com.usatiuk.dhfs.rpc.RemoteObjectServiceClient;
 import com.usatiuk.objects.JData;
 import com.usatiuk.objects.JObjectKey;
 import com.usatiuk.objects.iterators.IteratorStart;
+import com.usatiuk.objects.stores.StorageKeyRouter;
 import com.usatiuk.objects.transaction.Transaction;
 import com.usatiuk.objects.transaction.TransactionManager;
 import io.quarkus.logging.Log;
@@ -142,7 +143,8 @@ public class SyncHandler {
         if (shutdownChecker.lastShutdownClean())
             return;
         txm.run(() -> {
-            try (var it = curTx.getIterator(IteratorStart.GE, JObjectKey.first())) {
+            // Objects with initial sync processors are all in the default partition, the data and map entries are skipped
+            try (var it = curTx.getIterator(StorageKeyRouter.DEFAULT_PARTITION, IteratorStart.GE, JObjectKey.first())) {
                 while (it.hasNext()) {
                     var key = it.peekNextKey();
                     txm.run(() -> {
@@ -167,7 +169,8 @@ public class SyncHandler {
     public void doInitialSync(PeerId peer) {
         txm.run(() -> {
             Log.tracev("Will do initial sync for {0}", peer);
-            try (var it = curTx.getIterator(IteratorStart.GE, JObjectKey.first())) {
+            // Only the objects in the default partition have ops to send
+            try (var it = curTx.getIterator(StorageKeyRouter.DEFAULT_PARTITION, IteratorStart.GE, JObjectKey.first())) {
                 while (it.hasNext()) {
                     var key = it.peekNextKey();
                     txm.run(() -> {
@@ -4,9 +4,11 @@ import com.usatiuk.dhfs.ProtoSerializer;
 import com.usatiuk.dhfs.persistence.JDataRemoteDtoP;
 import com.usatiuk.dhfs.remoteobj.JDataRemoteDto;
 import com.usatiuk.utils.SerializationHelper;
+import io.quarkus.arc.DefaultBean;
 import jakarta.enterprise.context.ApplicationScoped;
 
 @ApplicationScoped
+@DefaultBean
 public class RemoteObjectSerializer implements ProtoSerializer<JDataRemoteDtoP, JDataRemoteDto> {
     @Override
     public JDataRemoteDto deserialize(JDataRemoteDtoP message) {
@@ -25,9 +25,6 @@ import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicLong;
-
 // Note: RunOnVirtualThread hangs somehow
 @GrpcService
 @RolesAllowed("cluster-member")
@@ -56,7 +53,8 @@ public class RemoteObjectServiceServer implements DhfsObjectSyncGrpc {
     public Uni<GetObjectReply> getObject(PeerId from, GetObjectRequest request) {
         Log.info("<-- getObject: " + request.getName() + " from " + from);
 
-        Pair<RemoteObjectMeta, JDataRemoteDto> got = txm.run(() -> {
+        // Usually everything was already seen, so the writable transaction is only needed to mark it
+        Pair<RemoteObjectMeta, JDataRemoteDto> got = txm.runReadMostly(() -> {
             var meta = remoteTx.getMeta(JObjectKey.of(request.getName().getName())).orElse(null);
             var obj = remoteTx.getDataLocal(JDataRemote.class, JObjectKey.of(request.getName().getName())).orElse(null);
             if (meta != null && !meta.seen())
@@ -119,29 +117,22 @@ public class RemoteObjectServiceServer implements DhfsObjectSyncGrpc {
             return Uni.createFrom().item(OpPushReply.getDefaultInstance());
         }
 
-        var handles = new ArrayList<TransactionHandle>();
+        TransactionHandle handle;
         try {
             var ops = request.getMsgList().stream().map(opProtoSerializer::deserialize).toList();
             for (var op : ops) {
                 Log.infov("<-- opPush: {0} from {1}", op, from);
-                var handle = txm.run(() -> {
-                    opHandlerService.handleOp(from, op);
-                });
-                handles.add(handle);
             }
+            // All the ops are applied in one transaction, so that the handlers can process them as a batch
+            handle = txm.run(() -> {
+                opHandlerService.handleOps(from, ops);
+            });
         } catch (Exception e) {
             Log.error("Error handling ops", e);
             throw e;
         }
         return Uni.createFrom().emitter(e -> {
-            var counter = new AtomicLong(handles.size());
-            for (var handle : handles) {
-                handle.onFlush(() -> {
-                    if (counter.decrementAndGet() == 0) {
-                        e.complete(OpPushReply.getDefaultInstance());
-                    }
-                });
-            }
+            handle.onFlush(() -> e.complete(OpPushReply.getDefaultInstance()));
         });
     }
 
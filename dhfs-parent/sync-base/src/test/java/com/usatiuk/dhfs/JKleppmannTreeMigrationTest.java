@@ -0,0 +1,110 @@
+package com.usatiuk.dhfs;
+
+import com.usatiuk.dhfs.jkleppmanntree.JKleppmannTreeManager;
+import com.usatiuk.dhfs.jkleppmanntree.structs.*;
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.dhfs.peersync.structs.JKleppmannTreeNodeMetaPeer;
+import com.usatiuk.kleppmanntree.CombinedTimestamp;
+import com.usatiuk.kleppmanntree.LogRecord;
+import com.usatiuk.kleppmanntree.OpMove;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.transaction.Transaction;
+import com.usatiuk.objects.transaction.TransactionManager;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pcollections.HashTreePMap;
+import org.pcollections.HashTreePSet;
+import org.pcollections.PSortedMap;
+import org.pcollections.TreePMap;
+
+import java.util.List;
+
+@QuarkusTest
+@TestProfile(Profiles.RefcounterTestProfile.class)
+public class JKleppmannTreeMigrationTest {
+    private static final PeerId PEER_1 = PeerId.of("migration-peer1");
+    private static final PeerId PEER_2 = PeerId.of("migration-peer2");
+
+    @Inject
+    Transaction curTx;
+    @Inject
+    TransactionManager txm;
+    @Inject
+    JKleppmannTreeManager jKleppmannTreeManager;
+
+    private static OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> op(long timestamp, PeerId peer, String child) {
+        return new OpMove<>(new CombinedTimestamp<>(timestamp, peer), JObjectKey.of("parent"),
+                new JKleppmannTreeNodeMetaPeer(peer), JObjectKey.of(child));
+    }
+
+    private static LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> record(OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey> op) {
+        return new LogRecord<>(op, List.of());
+    }
+
+    @Test
+    void migrateLegacyStateTest() {
+        var name = JObjectKey.of("migrateLegacyStateTest");
+        var logged1 = op(3, PEER_1, "child1");
+        var logged2 = op(5, PEER_2, "child2");
+        var queued1 = op(6, PEER_2, "child3");
+        var queued2 = op(7, PEER_2, "child4");
+        var log = TreePMap.<CombinedTimestamp<Long, PeerId>, LogRecord<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>>empty()
+                .plus(logged1.timestamp(), record(logged1))
+                .plus(logged2.timestamp(), record(logged2));
+        var queues = HashTreePMap.<PeerId, PSortedMap<CombinedTimestamp<Long, PeerId>, OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>>>empty()
+                .plus(PEER_1, TreePMap.<CombinedTimestamp<Long, PeerId>, OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>>empty()
+                        .plus(queued1.timestamp(), queued1).plus(queued2.timestamp(), queued2));
+        var peerTimestamps = HashTreePMap.<PeerId, Long>empty().plus(PEER_1, 3L).plus(PEER_2, 5L);
+
+        // As stored before the state was moved to separate objects
+        txm.run(() -> {
+            curTx.put(new JKleppmannTreePersistentData(name, HashTreePSet.empty(), true, 10, queues, peerTimestamps, log));
+        });
+
+        txm.run(() -> {
+            var tree = jKleppmannTreeManager.getTree(name).orElseThrow();
+            Assertions.assertEquals(2, tree.getLogSize());
+            Assertions.assertEquals(10 - 3, tree.getTrimLag(PEER_1));
+            Assertions.assertEquals(10 - 5, tree.getTrimLag(PEER_2));
+            Assertions.assertTrue(tree.hasPendingOpsForHost(PEER_1));
+            Assertions.assertFalse(tree.hasPendingOpsForHost(PEER_2));
+        });
+
+        txm.run(() -> {
+            var data = curTx.get(JKleppmannTreePersistentData.class, name).orElseThrow();
+            Assertions.assertFalse(data.hasLegacyState());
+            Assertions.assertTrue(data.frozen());
+
+            Assertions.assertEquals(10, curTx.get(JKleppmannTreeClockData.class, JKleppmannTreeKeys.clock(name)).orElseThrow().clock());
+
+            for (var e : peerTimestamps.entrySet()) {
+                var timestamp = curTx.get(JKleppmannTreePeerTimestamp.class, JKleppmannTreeKeys.peerTimestamp(name, e.getKey())).orElseThrow();
+                Assertions.assertEquals(e.getKey(), timestamp.peer());
+                Assertions.assertEquals(e.getValue(), timestamp.timestamp());
+            }
+
+            for (var e : log.entrySet())
+                Assertions.assertEquals(e.getValue(), curTx.get(JKleppmannTreeLogEntry.class, JKleppmannTreeKeys.logEntry(name, e.getKey())).orElseThrow().record());
+
+            for (var op : List.of(queued1, queued2)) {
+                var entry = curTx.get(JKleppmannTreeQueueEntry.class, JKleppmannTreeKeys.queueEntry(name, PEER_1, op.timestamp())).orElseThrow();
+                Assertions.assertEquals(name, entry.tree());
+                Assertions.assertEquals(PEER_1, entry.peer());
+                Assertions.assertEquals(op, entry.op());
+            }
+        });
+
+        // The queued ops are sent in order
+        txm.run(() -> {
+            var tree = jKleppmannTreeManager.getTree(name).orElseThrow();
+            var pending = tree.getPendingOpsForHost(PEER_1, 10);
+            Assertions.assertEquals(2, pending.size());
+            tree.commitOpForHost(PEER_1, pending.get(0));
+            tree.commitOpForHost(PEER_1, pending.get(1));
+            Assertions.assertFalse(tree.hasPendingOpsForHost(PEER_1));
+        });
+    }
+}
@@ -0,0 +1,35 @@
+package com.usatiuk.dhfs;
+
+import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeNode;
+import com.usatiuk.dhfs.jkleppmanntree.structs.JKleppmannTreeShardedChildren;
+import com.usatiuk.objects.JObjectKey;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class JKleppmannTreeShardedChildrenTest {
+    private static JKleppmannTreeNode node(JKleppmannTreeShardedChildren children) {
+        return new JKleppmannTreeNode(children.node(), null, null, null, children);
+    }
+
+    // Nodes can be compared and printed outside of transactions, without reading the shards
+    @Test
+    void equalsWithoutShardsTest() {
+        var children = new JKleppmannTreeShardedChildren(JObjectKey.of("node"), 4, 2000);
+        var same = new JKleppmannTreeShardedChildren(JObjectKey.of("node"), 4, 2000);
+        var other = new JKleppmannTreeShardedChildren(JObjectKey.of("node"), 8, 2000);
+
+        Assertions.assertEquals(node(children), node(same));
+        Assertions.assertEquals(node(children).hashCode(), node(same).hashCode());
+        Assertions.assertNotEquals(node(children), node(other));
+        Assertions.assertTrue(node(children).toString().contains("shardCount=4"));
+    }
+
+    @Test
+    void unboundTest() {
+        var children = new JKleppmannTreeShardedChildren(JObjectKey.of("node"), 4, 2000);
+        Assertions.assertEquals(2000, children.size());
+        Assertions.assertThrows(IllegalStateException.class, () -> children.get("name"));
+        Assertions.assertThrows(IllegalStateException.class, () -> children.plus("name", JObjectKey.of("child")));
+        Assertions.assertThrows(IllegalStateException.class, () -> children.keySet().iterator().next());
+    }
+}
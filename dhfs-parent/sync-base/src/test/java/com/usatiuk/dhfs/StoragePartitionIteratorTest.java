@@ -0,0 +1,70 @@
+package com.usatiuk.dhfs;
+
+import com.usatiuk.dhfs.testobjs.TestRefcount;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.stores.StorageKeyRouter;
+import com.usatiuk.objects.transaction.Transaction;
+import com.usatiuk.objects.transaction.TransactionManager;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@QuarkusTest
+@TestProfile(Profiles.RefcounterTestProfile.class)
+public class StoragePartitionIteratorTest {
+    private static final String PREFIX = "partitionIteratorTest";
+
+    @Inject
+    Transaction curTx;
+    @Inject
+    TransactionManager txm;
+
+    private static JObjectKey key(String suffix) {
+        return JObjectKey.of(PREFIX + suffix);
+    }
+
+    private void put(String suffix) {
+        curTx.put(new TestRefcount(key(suffix)).withFrozen(true));
+    }
+
+    private List<String> keys(String partition) {
+        var ret = new ArrayList<String>();
+        try (var it = curTx.getIterator(partition, key(""))) {
+            while (it.hasNext()) {
+                var next = it.next().getKey().value();
+                if (!next.startsWith(PREFIX)) break;
+                ret.add(next.substring(PREFIX.length()));
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    void iteratePartitionsTest() {
+        txm.run(() -> {
+            put("_a");
+            put("_a_data");
+            put("_a=1");
+        });
+
+        // Both the committed objects and the ones written in the transaction
+        txm.run(() -> {
+            put("_c");
+            put("_c_data");
+            put("_c=1");
+            Assertions.assertEquals(List.of("_a", "_c"), keys(StorageKeyRouter.DEFAULT_PARTITION));
+            Assertions.assertEquals(List.of("_a_data", "_c_data"), keys(SyncBaseStorageKeyRouter.DATA_PARTITION));
+            Assertions.assertEquals(List.of("_a=1", "_c=1"), keys(SyncBaseStorageKeyRouter.MAPS_PARTITION));
+        });
+
+        txm.runReadOnly(() -> {
+            Assertions.assertEquals(List.of("_a", "_c"), keys(StorageKeyRouter.DEFAULT_PARTITION));
+            Assertions.assertEquals(List.of("_a=1", "_c=1"), keys(SyncBaseStorageKeyRouter.MAPS_PARTITION));
+        });
+    }
+}
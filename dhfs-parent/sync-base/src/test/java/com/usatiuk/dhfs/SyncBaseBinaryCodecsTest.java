@@ -0,0 +1,163 @@
+package com.usatiuk.dhfs;
+
+import com.google.protobuf.ByteString;
+import com.usatiuk.dhfs.jkleppmanntree.structs.*;
+import com.usatiuk.dhfs.jmap.JMapEntry;
+import com.usatiuk.dhfs.jmap.JMapLongKey;
+import com.usatiuk.dhfs.jmap.JMapRef;
+import com.usatiuk.dhfs.peersync.PeerId;
+import com.usatiuk.dhfs.peersync.PeerInfo;
+import com.usatiuk.dhfs.peersync.structs.JKleppmannTreeNodeMetaPeer;
+import com.usatiuk.dhfs.refcount.JDataNormalRef;
+import com.usatiuk.dhfs.refcount.JDataRef;
+import com.usatiuk.dhfs.remoteobj.RemoteObjectDataWrapper;
+import com.usatiuk.dhfs.remoteobj.RemoteObjectMeta;
+import com.usatiuk.kleppmanntree.*;
+import com.usatiuk.objects.BinaryDataSerializer;
+import com.usatiuk.objects.JData;
+import com.usatiuk.objects.JObjectKey;
+import com.usatiuk.objects.JavaDataSerializer;
+import com.usatiuk.objects.binary.BinaryCodecRegistry;
+import com.usatiuk.objects.binary.BinaryReader;
+import com.usatiuk.objects.binary.BinaryWriter;
+import com.usatiuk.utils.SerializationHelper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pcollections.HashTreePMap;
+import org.pcollections.HashTreePSet;
+import org.pcollections.PCollection;
+import org.pcollections.TreePMap;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+public class SyncBaseBinaryCodecsTest {
+    private static final SyncBaseBinaryCodecs CODECS = new SyncBaseBinaryCodecs();
+    private static final BinaryCodecRegistry REGISTRY = new BinaryCodecRegistry(List.of(CODECS));
+
+    private static final PeerId PEER = PeerId.of("peer");
+    private static final PCollection<JDataRef> REFS = HashTreePSet.<JDataRef>empty()
+            .plus(new JDataNormalRef(JObjectKey.of("ref")))
+            .plus(new JMapRef(JObjectKey.of("holder"), JMapLongKey.of(5)));
+
+    private static List<Object> samples() {
+        JKleppmannTreeNodeMeta meta = new JKleppmannTreeNodeMetaPeer(PEER);
+        var timestamp = new CombinedTimestamp<>(3L, PEER);
+        var op = new OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>(timestamp, JObjectKey.of("parent"), meta, JObjectKey.of("child"));
+        var oldOp = new OpMove<Long, PeerId, JKleppmannTreeNodeMeta, JObjectKey>(new CombinedTimestamp<>(2L, PeerId.of("other")), JObjectKey.of("old-parent"),
+                new JKleppmannTreeNodeMetaPeer("old", JObjectKey.of("old")), JObjectKey.of("child"));
+        var effectOld = new LogEffectOld<>(oldOp, JObjectKey.of("old-parent"), oldOp.newMeta());
+        var effect = new LogEffect<>(effectOld, op, JObjectKey.of("parent"), meta, JObjectKey.of("child"));
+        var record = new LogRecord<>(op, List.of(effect));
+        var node = new JKleppmannTreeNode(JObjectKey.of("child"), JObjectKey.of("parent"), op, meta,
+                HashTreePMap.<String, JObjectKey>empty().plus("a", JObjectKey.of("a")).plus("b", JObjectKey.of("b")));
+        var peerInfo = new PeerInfo(PEER.toJObjectKey(), PEER, ByteString.copyFromUtf8("cert"),
+                HashTreePMap.<PeerId, Long>empty().plus(PeerId.of("other"), 2L), 12345);
+
+        return List.of(
+                PEER,
+                new JDataNormalRef(JObjectKey.of("ref")),
+                new JMapRef(JObjectKey.of("holder"), JMapLongKey.of(5)),
+                JMapLongKey.of(5),
+                new JMapEntry<>(JObjectKey.of("holder"), JMapLongKey.of(5), JObjectKey.of("ref")),
+                new RemoteObjectMeta(JObjectKey.of("meta"), REFS, true,
+                        HashTreePMap.<PeerId, Long>empty().plus(PEER, 3L), PeerInfo.class,
+                        HashTreePSet.<PeerId>empty().plus(PeerId.of("other")), true,
+                        TreePMap.<PeerId, Long>empty().plus(PEER, 4L), true),
+                new RemoteObjectDataWrapper<>(RemoteObjectMeta.ofDataKey(peerInfo.key()), REFS, false, peerInfo),
+                new JKleppmannTreeNodeHolder(REFS, true, node),
+                node,
+                new JKleppmannTreePersistentData(JObjectKey.of("tree"), REFS, false, 10,
+                        HashTreePMap.singleton(PEER, TreePMap.singleton(timestamp, op)),
+                        HashTreePMap.<PeerId, Long>empty().plus(PEER, 3L),
+                        TreePMap.singleton(timestamp, record)),
+                meta,
+                peerInfo,
+                timestamp,
+                op,
+                record,
+                effect,
+                effectOld,
+                new JKleppmannTreeClockData(JObjectKey.of("clock"), 10),
+                new JKleppmannTreePeerTimestamp(JObjectKey.of("timestamp"), PEER, 3),
+                new JKleppmannTreeLogEntry(JObjectKey.of("log"), record),
+                new JKleppmannTreeQueueEntry(JObjectKey.of("queue"), JObjectKey.of("tree"), PEER, op),
+                new JKleppmannTreeShardedChildren(JObjectKey.of("node"), 4, 2000),
+                new JKleppmannTreeChildShard(JObjectKey.of("shard"), REFS, false,
+                        HashTreePMap.<String, JObjectKey>empty().plus("a", JObjectKey.of("a")))
+        );
+    }
+
+    private static Object roundTrip(Object value) {
+        var writer = new BinaryWriter(REGISTRY);
+        writer.writeObject(value);
+        return new BinaryReader(REGISTRY, writer.toByteString().asReadOnlyByteBuffer()).readObject();
+    }
+
+    // The sharded children map is backed by the shard objects, so compare only what is stored
+    private static void assertSame(Object expected, Object actual) {
+        if (expected instanceof JKleppmannTreeShardedChildren sharded) {
+            var read = Assertions.assertInstanceOf(JKleppmannTreeShardedChildren.class, actual);
+            Assertions.assertEquals(sharded.node(), read.node());
+            Assertions.assertEquals(sharded.shardCount(), read.shardCount());
+            Assertions.assertEquals(sharded.size(), read.size());
+            return;
+        }
+        Assertions.assertEquals(expected, actual);
+    }
+
+    @Test
+    void samplesCoverAllCodecsTest() {
+        var types = new HashSet<Class<?>>();
+        for (var codec : CODECS.codecs())
+            types.add(codec.type());
+        var sampled = new HashSet<Class<?>>();
+        for (var sample : samples()) {
+            Assertions.assertNotNull(REGISTRY.forClass(sample.getClass()), "No codec for " + sample.getClass());
+            sampled.add(sample.getClass());
+        }
+        Assertions.assertEquals(types, sampled);
+    }
+
+    @Test
+    void roundTripTest() {
+        for (var sample : samples()) {
+            var writer = new BinaryWriter(REGISTRY);
+            writer.writeObject(sample);
+            var written = writer.toByteString();
+            // The object is written by its codec, not with Java serialization
+            Assertions.assertTrue(written.size() < SerializationHelper.serialize((Serializable) sample).size(),
+                    "Written " + sample.getClass() + " with " + written.size() + " bytes");
+            assertSame(sample, new BinaryReader(REGISTRY, written.asReadOnlyByteBuffer()).readObject());
+        }
+    }
+
+    @Test
+    void nestedRoundTripTest() {
+        var samples = samples();
+        var map = HashTreePMap.<String, Object>empty();
+        for (int i = 0; i < samples.size(); i++)
+            map = map.plus(Integer.toString(i), samples.get(i));
+        var read = (Map<?, ?>) roundTrip(map);
+        Assertions.assertEquals(samples.size(), read.size());
+        for (int i = 0; i < samples.size(); i++)
+            assertSame(samples.get(i), read.get(Integer.toString(i)));
+    }
+
+    @Test
+    void readsJavaSerializedTest() {
+        // Objects stored by JavaDataSerializer before the binary format was enabled
+        var serializer = new BinaryDataSerializer(REGISTRY);
+        var javaSerializer = new JavaDataSerializer();
+        for (var sample : samples()) {
+            if (!(sample instanceof JData data))
+                continue;
+            var read = serializer.deserialize(javaSerializer.serialize(data).asReadOnlyByteBuffer());
+            Assertions.assertEquals(data, read);
+            // And are written in the binary format when changed
+            Assertions.assertEquals(data, serializer.deserialize(serializer.serialize(read).asReadOnlyByteBuffer()));
+        }
+    }
+}
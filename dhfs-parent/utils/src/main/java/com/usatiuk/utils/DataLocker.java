@@ -3,40 +3,95 @@ package com.usatiuk.utils;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 
-import java.lang.ref.Cleaner;
-import java.lang.ref.WeakReference;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Allows to lock arbitrary keys.
+ * <p>
+ * The keys are hashed into a fixed table of locks, so nothing is allocated per key,
+ * but different keys can share a lock. The locks are reentrant, and several keys
+ * should be locked with {@link #lockAll}, which takes the locks in the table order.
  */
 public class DataLocker {
-    private final ConcurrentHashMap<Object, WeakReference<ReentrantLock>> _locks = new ConcurrentHashMap<>();
-    private static final Cleaner CLEANER = Cleaner.create();
+    public static final int DEFAULT_STRIPES = 1024;
 
-    private Lock getTag(Object data) {
-        var newTag = new ReentrantLock();
-        var newTagRef = new WeakReference<>(newTag);
+    private final ReentrantLock[] _stripes;
+    private final int _mask;
 
-        while (true) {
-            var oldTagRef = _locks.putIfAbsent(data, newTagRef);
-            var oldTag = oldTagRef != null ? oldTagRef.get() : null;
+    private final LongAdder _acquired = new LongAdder();
+    private final LongAdder _contended = new LongAdder();
+    private final LongAdder _timedOut = new LongAdder();
 
-            if (oldTag == null && oldTagRef != null) {
-                _locks.remove(data, oldTagRef);
-                continue;
-            }
+    public DataLocker() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes the number of locks in the table, rounded up to a power of two
+     */
+    public DataLocker(int stripes) {
+        if (stripes <= 0)
+            throw new IllegalArgumentException("Stripe count should be positive: " + stripes);
+        int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        _stripes = new ReentrantLock[size];
+        for (int i = 0; i < _stripes.length; i++)
+            _stripes[i] = new ReentrantLock();
+        _mask = size - 1;
+    }
+
+    /**
+     * Lock counters, since the creation of the locker.
+     *
+     * @param acquired  number of locks taken
+     * @param contended number of locks that were held by another thread when trying to take them
+     * @param timedOut  number of locks that could not be taken in time
+     */
+    public record Stats(long acquired, long contended, long timedOut) {
+        public Stats minus(Stats other) {
+            return new Stats(acquired - other.acquired, contended - other.contended, timedOut - other.timedOut);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(_acquired.sum(), _contended.sum(), _timedOut.sum());
+    }
+
+    public int stripes() {
+        return _stripes.length;
+    }
 
-            if (oldTag != null)
-                return oldTag;
+    private int stripeOf(Object data) {
+        // The low bits of hashCode() are often poorly distributed
+        int h = data.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & _mask;
+    }
 
-            CLEANER.register(newTag, () -> {
-                _locks.remove(data, newTagRef);
-            });
-            return newTag;
+    private boolean acquire(ReentrantLock lock, long timeoutNanos) {
+        if (lock.tryLock()) {
+            _acquired.increment();
+            return true;
+        }
+        _contended.increment();
+        if (timeoutNanos <= 0) {
+            lock.lock();
+        } else {
+            try {
+                if (!lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                    _timedOut.increment();
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a lock", e);
+            }
         }
+        _acquired.increment();
+        return true;
     }
 
     /**
@@ -47,8 +102,8 @@ public class DataLocker {
      */
     @Nonnull
     public AutoCloseableNoThrow lock(Object data) {
-        var lock = getTag(data);
-        lock.lock();
+        var lock = _stripes[stripeOf(data)];
+        acquire(lock, 0);
         return lock::unlock;
     }
 
@@ -61,11 +116,56 @@ public class DataLocker {
      */
     @Nullable
     public AutoCloseableNoThrow tryLock(Object data) {
-        var lock = getTag(data);
+        var lock = _stripes[stripeOf(data)];
         if (lock.tryLock()) {
+            _acquired.increment();
             return lock::unlock;
         } else {
+            _contended.increment();
             return null;
         }
     }
+
+    /**
+     * Locks all the given keys and returns an AutoCloseable that unlocks them when closed.
+     * The locks are always taken in the same order, so concurrent calls can't deadlock.
+     *
+     * @param data    the keys to lock
+     * @param timeout how long to wait for each of the locks, zero or null to wait indefinitely
+     * @return an AutoCloseable that unlocks the keys when closed
+     * @throws LockTimeoutException if one of the locks could not be taken in time, nothing stays locked then
+     */
+    @Nonnull
+    public AutoCloseableNoThrow lockAll(Collection<?> data, @Nullable Duration timeout) {
+        var indices = new int[data.size()];
+        int count = 0;
+        for (var d : data)
+            indices[count++] = stripeOf(d);
+        Arrays.sort(indices);
+
+        int unique = 0;
+        for (int i = 0; i < count; i++)
+            if (unique == 0 || indices[unique - 1] != indices[i])
+                indices[unique++] = indices[i];
+        int locked = unique;
+
+        long timeoutNanos = timeout == null ? 0 : timeout.toNanos();
+        for (int i = 0; i < locked; i++) {
+            boolean ok = false;
+            try {
+                ok = acquire(_stripes[indices[i]], timeoutNanos);
+            } finally {
+                if (!ok)
+                    for (int j = i - 1; j >= 0; j--)
+                        _stripes[indices[j]].unlock();
+            }
+            if (!ok)
+                throw new LockTimeoutException("Could not lock " + data.size() + " keys in " + timeout);
+        }
+
+        return () -> {
+            for (int i = locked - 1; i >= 0; i--)
+                _stripes[indices[i]].unlock();
+        };
+    }
 }
@@ -0,0 +1,139 @@
+package com.usatiuk.utils;
+
+import jakarta.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * Blocking queue that delays the objects for a given time, and deduplicates them.
+ *
+ * @param <T> the type of the objects in the queue
+ */
+public interface DelayedBlockingQueue<T> {
+    /**
+     * @return the delay in milliseconds
+     */
+    long getDelay();
+
+    /**
+     * Sets the delay for the queue.
+     *
+     * @param delay the delay in milliseconds
+     */
+    void setDelay(long delay);
+
+    /**
+     * Adds the object to the queue if it doesn't exist.
+     *
+     * @param el the object to add
+     * @return true if the object was added, false if it already exists
+     */
+    boolean add(T el);
+
+    /**
+     * Adds the object to the queue with no delay.
+     *
+     * @param el the object to add
+     * @return the old object if it existed, null otherwise
+     */
+    T addNoDelay(T el);
+
+    /**
+     * Adds the object to the queue, if it exists re-adds it with a new delay
+     *
+     * @param el the object to add
+     * @return the old object if it existed, null otherwise
+     */
+    T readd(T el);
+
+    /**
+     * Merges the object with the old one.
+     *
+     * @param el          the object to merge
+     * @param transformer the function to transform the old object
+     * @return the old object if it existed, null otherwise
+     */
+    T merge(T el, Function<T, T> transformer);
+
+    /**
+     * Removes the object from the queue.
+     *
+     * @param el the object to remove
+     * @return the removed object, or null if it didn't exist
+     */
+    T remove(T el);
+
+    /**
+     * Gets the object from the queue, waiting for it if necessary.
+     *
+     * @param timeout the timeout in milliseconds, or -1 for no timeout
+     * @return the object, or null if it timed out
+     * @throws InterruptedException if the thread is interrupted
+     */
+    T get(long timeout) throws InterruptedException;
+
+    /**
+     * Gets the object from the queue, waiting for it if necessary.
+     *
+     * @return the object
+     * @throws InterruptedException if the thread is interrupted
+     */
+    T get() throws InterruptedException;
+
+    /**
+     * Checks if the queue has an object that is ready to be processed.
+     *
+     * @return true if there is an object ready, false otherwise
+     */
+    boolean hasImmediate();
+
+    /**
+     * Tries to get the object from the queue without waiting.
+     *
+     * @return the object, or null if it doesn't exist
+     */
+    @Nullable
+    T tryGet();
+
+    /**
+     * Gets all objects from the queue that are ready to be processed.
+     *
+     * @return a collection of objects
+     */
+    Collection<T> getAll();
+
+    /**
+     * Closes the queue and returns all objects in it.
+     *
+     * @return a collection of objects
+     */
+    Collection<T> close();
+
+    /**
+     * Gets all objects from the queue, waiting for them if necessary.
+     *
+     * @return a collection of objects
+     * @throws InterruptedException if the thread is interrupted
+     */
+    Collection<T> getAllWait() throws InterruptedException;
+
+    /**
+     * Gets all objects from the queue, waiting for them if necessary.
+     *
+     * @param max the maximum number of objects to get
+     * @return a collection of objects
+     * @throws InterruptedException if the thread is interrupted
+     */
+    Collection<T> getAllWait(int max) throws InterruptedException;
+
+    /**
+     * Gets all objects from the queue, waiting for them if necessary.
+     *
+     * @param max     the maximum number of objects to get
+     * @param timeout the timeout in milliseconds, or -1 for no timeout
+     * @return a collection of objects
+     * @throws InterruptedException if the thread is interrupted
+     */
+    Collection<T> getAllWait(int max, long timeout) throws InterruptedException;
+}
@@ -12,7 +12,7 @@ import java.util.function.Function;
  *
  * @param <T> the type of the objects in the queue
  */
-public class HashSetDelayedBlockingQueue<T> {
+public class HashSetDelayedBlockingQueue<T> implements DelayedBlockingQueue<T> {
     private final LinkedHashMap<T, SetElement<T>> _set = new LinkedHashMap<>();
     private final Object _sleepSynchronizer = new Object();
     private long _delay;
@@ -30,6 +30,7 @@ public class HashSetDelayedBlockingQueue<T> {
     /**
      * @return the delay in milliseconds
      */
+    @Override
     public long getDelay() {
         return _delay;
     }
@@ -39,6 +40,7 @@ public class HashSetDelayedBlockingQueue<T> {
      *
      * @param delay the delay in milliseconds
      */
+    @Override
     public void setDelay(long delay) {
         synchronized (_sleepSynchronizer) {
             _delay = delay;
@@ -52,6 +54,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @param el the object to add
      * @return true if the object was added, false if it already exists
      */
+    @Override
     public boolean add(T el) {
         synchronized (this) {
             if (_closed) throw new IllegalStateException("Adding to a queue that is closed!");
@@ -71,6 +74,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @param el the object to add
      * @return the old object if it existed, null otherwise
      */
+    @Override
     public T addNoDelay(T el) {
         synchronized (this) {
             if (_closed) throw new IllegalStateException("Adding to a queue that is closed!");
@@ -91,6 +95,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @param el the object to add
      * @return the old object if it existed, null otherwise
      */
+    @Override
     public T readd(T el) {
         synchronized (this) {
             if (_closed) throw new IllegalStateException("Adding to a queue that is closed!");
@@ -112,6 +117,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @param transformer the function to transform the old object
      * @return the old object if it existed, null otherwise
      */
+    @Override
     public T merge(T el, Function<T, T> transformer) {
         synchronized (this) {
             if (_closed) throw new IllegalStateException("Adding to a queue that is closed!");
@@ -137,6 +143,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @param el the object to remove
      * @return the removed object, or null if it didn't exist
      */
+    @Override
     public T remove(T el) {
         synchronized (this) {
             var rem = _set.remove(el);
@@ -152,6 +159,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @return the object, or null if it timed out
      * @throws InterruptedException if the thread is interrupted
      */
+    @Override
     public T get(long timeout) throws InterruptedException {
         long startedWaiting = timeout > 0 ? System.currentTimeMillis() : -1;
 
@@ -200,6 +208,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @return the object
      * @throws InterruptedException if the thread is interrupted
      */
+    @Override
     public T get() throws InterruptedException {
         T ret;
         do {
@@ -212,6 +221,7 @@ public class HashSetDelayedBlockingQueue<T> {
      *
      * @return true if there is an object ready, false otherwise
      */
+    @Override
     public boolean hasImmediate() {
         synchronized (this) {
             if (_set.isEmpty()) return false;
@@ -228,6 +238,7 @@ public class HashSetDelayedBlockingQueue<T> {
      *
      * @return the object, or null if it doesn't exist
      */
+    @Override
     @Nullable
     public T tryGet() {
         synchronized (this) {
@@ -249,6 +260,7 @@ public class HashSetDelayedBlockingQueue<T> {
      *
      * @return a collection of objects
      */
+    @Override
     public Collection<T> getAll() {
         ArrayList<T> out = new ArrayList<>();
 
@@ -270,6 +282,7 @@ public class HashSetDelayedBlockingQueue<T> {
      *
      * @return a collection of objects
      */
+    @Override
     public Collection<T> close() {
         synchronized (this) {
             _closed = true;
@@ -285,6 +298,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @return a collection of objects
      * @throws InterruptedException if the thread is interrupted
      */
+    @Override
     public Collection<T> getAllWait() throws InterruptedException {
         Collection<T> out;
         do {
@@ -299,6 +313,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @return a collection of objects
      * @throws InterruptedException if the thread is interrupted
      */
+    @Override
     public Collection<T> getAllWait(int max) throws InterruptedException {
         Collection<T> out;
         do {
@@ -314,6 +329,7 @@ public class HashSetDelayedBlockingQueue<T> {
      * @return a collection of objects
      * @throws InterruptedException if the thread is interrupted
      */
+    @Override
     public Collection<T> getAllWait(int max, long timeout) throws InterruptedException {
         ArrayList<T> out = new ArrayList<>();
 
@@ -0,0 +1,10 @@
+package com.usatiuk.utils;
+
+/**
+ * Thrown when a lock could not be acquired in time.
+ */
+public class LockTimeoutException extends RuntimeException {
+    public LockTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,420 @@
+package com.usatiuk.utils;
+
+import jakarta.annotation.Nullable;
+import org.apache.commons.lang3.mutable.MutableObject;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Concurrent version of {@link HashSetDelayedBlockingQueue}, with no lock shared by all the operations.
+ * <p>
+ * The deduplication is done by a concurrent map, and the objects are queued in several lock-free FIFO shards,
+ * picked by the hash of the object, plus one more for the objects added with no delay.
+ * As the delay is the same for every object, the objects become ready in the order they were added,
+ * so only the heads of the shards have to be looked at; the one added first is taken.
+ * Replaced and removed entries are only marked as such, and are dropped from the shards when they reach the head.
+ * A lock is only taken to wait for new objects, and by the producers if someone is waiting.
+ *
+ * @param <T> the type of the objects in the queue
+ */
+public class ShardedDelayedBlockingQueue<T> implements DelayedBlockingQueue<T> {
+    private static final int QUEUED = 0;
+    private static final int TAKEN = 1;
+    private static final int DEAD = 2;
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Node.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final class Node<T> {
+        final T key;
+        final T el;
+        final long time;
+        final long seq;
+        volatile int state = QUEUED;
+
+        Node(T key, T el, long time, long seq) {
+            this.key = key;
+            this.el = el;
+            this.time = time;
+            this.seq = seq;
+        }
+
+        boolean queued() {
+            return state == QUEUED;
+        }
+
+        boolean transition(int to) {
+            return STATE.compareAndSet(this, QUEUED, to);
+        }
+    }
+
+    private final ConcurrentHashMap<T, Node<T>> _map = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node<T>>[] _shards;
+    private final ConcurrentLinkedQueue<Node<T>> _immediate = new ConcurrentLinkedQueue<>();
+    private final int _mask;
+    private final AtomicLong _seq = new AtomicLong();
+
+    private final ReentrantLock _waitLock = new ReentrantLock();
+    private final Condition _waitCondition = _waitLock.newCondition();
+    private final AtomicInteger _waiters = new AtomicInteger();
+
+    private volatile long _delay;
+    private volatile boolean _closed = false;
+
+    /**
+     * Creates a new ShardedDelayedBlockingQueue with the specified delay,
+     * and a shard for each available processor.
+     *
+     * @param delay the delay in milliseconds
+     */
+    public ShardedDelayedBlockingQueue(long delay) {
+        this(delay, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new ShardedDelayedBlockingQueue with the specified delay and number of shards.
+     *
+     * @param delay  the delay in milliseconds
+     * @param shards the number of shards, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedDelayedBlockingQueue(long delay, int shards) {
+        if (shards <= 0)
+            throw new IllegalArgumentException("Shard count should be positive: " + shards);
+        int size = shards == 1 ? 1 : Integer.highestOneBit(shards - 1) << 1;
+        _shards = new ConcurrentLinkedQueue[size];
+        for (int i = 0; i < size; i++)
+            _shards[i] = new ConcurrentLinkedQueue<>();
+        _mask = size - 1;
+        _delay = delay;
+    }
+
+    @Override
+    public long getDelay() {
+        return _delay;
+    }
+
+    @Override
+    public void setDelay(long delay) {
+        _delay = delay;
+        _waitLock.lock();
+        try {
+            _waitCondition.signalAll();
+        } finally {
+            _waitLock.unlock();
+        }
+    }
+
+    private ConcurrentLinkedQueue<Node<T>> shardOf(T key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return _shards[(h ^ (h >>> 16)) & _mask];
+    }
+
+    private void checkOpen() {
+        if (_closed) throw new IllegalStateException("Adding to a queue that is closed!");
+    }
+
+    private void enqueue(Node<T> node, boolean immediate) {
+        (immediate ? _immediate : shardOf(node.key)).add(node);
+
+        // The queue might have been closed after the check, and then the node would be lost
+        if (_closed && node.transition(DEAD)) {
+            _map.remove(node.key, node);
+            throw new IllegalStateException("Adding to a queue that is closed!");
+        }
+
+        if (_waiters.get() > 0) {
+            _waitLock.lock();
+            try {
+                _waitCondition.signalAll();
+            } finally {
+                _waitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replaces the entry for the key, the old entry is marked as dead if it wasn't taken yet.
+     *
+     * @return the old object if it was still in the queue, null otherwise
+     */
+    private T replace(T key, Function<T, Node<T>> next) {
+        var prev = new MutableObject<T>();
+        _map.compute(key, (k, old) -> {
+            if (old != null && old.transition(DEAD))
+                prev.setValue(old.el);
+            return next.apply(prev.getValue());
+        });
+        return prev.getValue();
+    }
+
+    @Override
+    public boolean add(T el) {
+        checkOpen();
+
+        var existing = _map.get(el);
+        if (existing != null && existing.queued())
+            return false;
+
+        var node = new Node<>(el, el, System.currentTimeMillis(), _seq.getAndIncrement());
+        var cur = _map.compute(el, (k, old) -> old != null && old.queued() ? old : node);
+        if (cur != node)
+            return false;
+
+        enqueue(node, false);
+        return true;
+    }
+
+    @Override
+    public T addNoDelay(T el) {
+        checkOpen();
+        var node = new Node<>(el, el, 0, _seq.getAndIncrement());
+        var old = replace(el, o -> node);
+        enqueue(node, true);
+        return old;
+    }
+
+    @Override
+    public T readd(T el) {
+        checkOpen();
+        var node = new Node<>(el, el, System.currentTimeMillis(), _seq.getAndIncrement());
+        var old = replace(el, o -> node);
+        enqueue(node, false);
+        return old;
+    }
+
+    @Override
+    public T merge(T el, Function<T, T> transformer) {
+        checkOpen();
+        var node = new MutableObject<Node<T>>();
+        var old = replace(el, o -> {
+            node.setValue(new Node<>(el, transformer.apply(o), System.currentTimeMillis(), _seq.getAndIncrement()));
+            return node.getValue();
+        });
+        enqueue(node.getValue(), false);
+        return old;
+    }
+
+    @Override
+    public T remove(T el) {
+        var prev = new MutableObject<T>();
+        _map.computeIfPresent(el, (k, old) -> {
+            if (old.transition(DEAD))
+                prev.setValue(old.el);
+            return null;
+        });
+        return prev.getValue();
+    }
+
+    /**
+     * @return the first node in the shard that wasn't taken or replaced, dropping those that were
+     */
+    @Nullable
+    private Node<T> peekLive(ConcurrentLinkedQueue<Node<T>> shard) {
+        while (true) {
+            var head = shard.peek();
+            if (head == null || head.queued())
+                return head;
+            shard.remove(head);
+        }
+    }
+
+    @Nullable
+    private Node<T> pollReady() {
+        while (true) {
+            var immediate = peekLive(_immediate);
+            if (immediate != null) {
+                if (immediate.transition(TAKEN)) {
+                    _immediate.remove(immediate);
+                    _map.remove(immediate.key, immediate);
+                    return immediate;
+                }
+                continue;
+            }
+
+            long readyBefore = System.currentTimeMillis() - _delay;
+            Node<T> best = null;
+            ConcurrentLinkedQueue<Node<T>> bestShard = null;
+            for (var shard : _shards) {
+                var head = peekLive(shard);
+                if (head != null && head.time <= readyBefore && (best == null || head.seq < best.seq)) {
+                    best = head;
+                    bestShard = shard;
+                }
+            }
+
+            if (best == null)
+                return null;
+
+            if (best.transition(TAKEN)) {
+                bestShard.remove(best);
+                _map.remove(best.key, best);
+                return best;
+            }
+        }
+    }
+
+    /**
+     * @return the time at which the first object will be ready, Long.MAX_VALUE if the queue is empty
+     */
+    private long nextReadyTime() {
+        if (peekLive(_immediate) != null)
+            return Long.MIN_VALUE;
+        long first = Long.MAX_VALUE;
+        for (var shard : _shards) {
+            var head = peekLive(shard);
+            if (head != null)
+                first = Math.min(first, head.time);
+        }
+        return first == Long.MAX_VALUE ? first : first + _delay;
+    }
+
+    /**
+     * Waits until something might be ready, or until the deadline.
+     *
+     * @return false if the deadline has passed
+     */
+    private boolean await(long deadline) throws InterruptedException {
+        _waitLock.lockInterruptibly();
+        try {
+            _waiters.incrementAndGet();
+            try {
+                // Recheck after registering as a waiter, otherwise an object could have been added just before
+                long now = System.currentTimeMillis();
+                if (now >= deadline)
+                    return false;
+                long wake = Math.min(nextReadyTime(), deadline);
+                if (wake <= now)
+                    return true;
+                if (wake == Long.MAX_VALUE)
+                    _waitCondition.await();
+                else
+                    _waitCondition.await(wake - now, TimeUnit.MILLISECONDS);
+                return true;
+            } finally {
+                _waiters.decrementAndGet();
+            }
+        } finally {
+            _waitLock.unlock();
+        }
+    }
+
+    @Override
+    public T get(long timeout) throws InterruptedException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+
+        while (!Thread.interrupted()) {
+            var got = pollReady();
+            if (got != null)
+                return got.el;
+            if (!await(deadline))
+                return null;
+        }
+
+        throw new InterruptedException();
+    }
+
+    @Override
+    public T get() throws InterruptedException {
+        T ret;
+        do {
+        } while ((ret = get(-1)) == null);
+        return ret;
+    }
+
+    @Override
+    public boolean hasImmediate() {
+        return nextReadyTime() <= System.currentTimeMillis();
+    }
+
+    @Override
+    @Nullable
+    public T tryGet() {
+        var got = pollReady();
+        return got != null ? got.el : null;
+    }
+
+    private void drain(Collection<T> out, int max) {
+        while (out.size() < max) {
+            var got = pollReady();
+            if (got == null) break;
+            out.add(got.el);
+        }
+    }
+
+    @Override
+    public Collection<T> getAll() {
+        ArrayList<T> out = new ArrayList<>();
+        drain(out, Integer.MAX_VALUE);
+        return out;
+    }
+
+    @Override
+    public Collection<T> close() {
+        _closed = true;
+
+        var taken = new ArrayList<Node<T>>();
+        var immediate = new ArrayList<Node<T>>();
+        for (Node<T> node; (node = _immediate.poll()) != null; )
+            if (node.transition(TAKEN))
+                immediate.add(node);
+        for (var shard : _shards)
+            for (Node<T> node; (node = shard.poll()) != null; )
+                if (node.transition(TAKEN))
+                    taken.add(node);
+        taken.sort(Comparator.comparingLong(n -> n.seq));
+        immediate.addAll(taken);
+
+        _map.clear();
+        return immediate.stream().map(n -> n.el).toList();
+    }
+
+    @Override
+    public Collection<T> getAllWait() throws InterruptedException {
+        Collection<T> out;
+        do {
+        } while ((out = getAllWait(Integer.MAX_VALUE, -1)).isEmpty());
+        return out;
+    }
+
+    @Override
+    public Collection<T> getAllWait(int max) throws InterruptedException {
+        Collection<T> out;
+        do {
+        } while ((out = getAllWait(max, -1)).isEmpty());
+        return out;
+    }
+
+    @Override
+    public Collection<T> getAllWait(int max, long timeout) throws InterruptedException {
+        ArrayList<T> out = new ArrayList<>();
+
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+
+        while (!Thread.interrupted()) {
+            drain(out, max);
+            if (!out.isEmpty() || !await(deadline))
+                return out;
+        }
+
+        throw new InterruptedException();
+    }
+}
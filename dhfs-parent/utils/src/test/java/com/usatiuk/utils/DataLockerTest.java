@@ -0,0 +1,86 @@
+package com.usatiuk.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DataLockerTest {
+    @Test
+    void tryLockHeld() throws Exception {
+        var locker = new DataLocker(16);
+        var ex = Executors.newSingleThreadExecutor();
+        try (var l = locker.lock("a")) {
+            Assertions.assertNull(ex.submit(() -> locker.tryLock("a")).get());
+            // Reentrant
+            var again = locker.tryLock("a");
+            Assertions.assertNotNull(again);
+            again.close();
+        }
+        var got = ex.submit(() -> {
+            var l = locker.tryLock("a");
+            if (l != null) l.close();
+            return l != null;
+        }).get();
+        Assertions.assertTrue(got);
+        Assertions.assertEquals(1, locker.stats().contended());
+        ex.shutdownNow();
+    }
+
+    @Test
+    void lockAllTimeout() throws Exception {
+        var locker = new DataLocker(16);
+        var ex = Executors.newSingleThreadExecutor();
+        try (var l = locker.lock("b")) {
+            var f = ex.submit(() -> locker.lockAll(List.of("a", "b", "c"), Duration.ofMillis(100)));
+            var e = Assertions.assertThrows(Exception.class, f::get);
+            Assertions.assertInstanceOf(LockTimeoutException.class, e.getCause());
+        }
+        Assertions.assertEquals(1, locker.stats().timedOut());
+        // Nothing should stay locked after the timeout
+        var got = ex.submit(() -> {
+            try (var l = locker.lockAll(List.of("a", "b", "c"), Duration.ofMillis(100))) {
+                return true;
+            }
+        }).get();
+        Assertions.assertTrue(got);
+        ex.shutdownNow();
+    }
+
+    @Test
+    void lockAllNoDeadlock() throws Exception {
+        // Few stripes so that the keys collide a lot
+        var locker = new DataLocker(4);
+        var counter = new AtomicInteger();
+        var inside = new AtomicInteger();
+        var ex = Executors.newFixedThreadPool(8);
+        var futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            futures.add(ex.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    var keys = new ArrayList<Integer>();
+                    for (int k = 0; k < 5; k++)
+                        keys.add((seed * 31 + i * 7 + k * 13) % 50);
+                    // Everything touches key 0, so it's all mutually exclusive
+                    keys.add(0);
+                    try (var l = locker.lockAll(keys, null)) {
+                        Assertions.assertEquals(1, inside.incrementAndGet());
+                        counter.incrementAndGet();
+                        inside.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (var f : futures)
+            f.get(30, TimeUnit.SECONDS);
+        Assertions.assertEquals(8000, counter.get());
+        ex.shutdownNow();
+    }
+}
@@ -0,0 +1,300 @@
+package com.usatiuk.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public abstract class DelayedBlockingQueueTestImpl {
+    protected abstract <T> DelayedBlockingQueue<T> create(long delay);
+
+    @Test
+    void Get() throws InterruptedException {
+        var queue = create(1000);
+
+        var curTime = System.currentTimeMillis();
+        queue.add("hello!");
+        var thing = queue.get();
+        var gotTime = System.currentTimeMillis();
+        Assertions.assertEquals("hello!", thing);
+        Assertions.assertTrue((gotTime - curTime) >= 1000);
+    }
+
+
+    @Test
+    void addNoDelay() throws InterruptedException {
+        var queue = create(1000);
+
+        var curTime = System.currentTimeMillis();
+        queue.addNoDelay("hello!");
+        var thing = queue.get();
+        var gotTime = System.currentTimeMillis();
+        Assertions.assertEquals("hello!", thing);
+        Assertions.assertTrue((gotTime - curTime) < 500);
+    }
+
+    @Test
+    void GetImmediate() throws InterruptedException {
+        var queue = create(0);
+
+        var curTime = System.currentTimeMillis();
+        queue.add("hello!");
+        Assertions.assertEquals("hello!", queue.get());
+        var gotTime = System.currentTimeMillis();
+        Assertions.assertTrue((gotTime - curTime) <= 50);
+    }
+
+    @Test
+    void GetTimeout() throws InterruptedException {
+        var queue = create(1000);
+
+        var curTime = System.currentTimeMillis();
+        var thing = queue.get(500L);
+        Assertions.assertNull(thing);
+        var gotTime = System.currentTimeMillis();
+        Assertions.assertTrue((gotTime - curTime) <= 10000);
+    }
+
+    @Test
+    void GetAll() throws InterruptedException {
+        var queue = create(1000);
+
+        var curTime = System.currentTimeMillis();
+        var ex = Executors.newSingleThreadExecutor();
+        ex.submit(() -> {
+            try {
+                Thread.sleep(10);
+                queue.add("hello1");
+                queue.add("hello2");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        var thing = queue.getAllWait(); // Theoretically you can get one...
+        if (thing.size() == 1) thing.addAll(queue.getAllWait());
+        var gotTime = System.currentTimeMillis();
+        Assertions.assertIterableEquals(List.of("hello1", "hello2"), thing);
+        Assertions.assertTrue((gotTime - curTime) >= 1010);
+    }
+
+
+    @Test
+    void GetAllLimit() throws InterruptedException {
+        var queue = create(1000);
+
+        var curTime = System.currentTimeMillis();
+        var ex = Executors.newSingleThreadExecutor();
+        ex.submit(() -> {
+            try {
+                Thread.sleep(10);
+                queue.add("hello1");
+                queue.add("hello2");
+                queue.add("hello3");
+                queue.add("hello4");
+                queue.add("hello5");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(500);
+        var got1 = queue.getAllWait(3);
+        var got2 = queue.getAllWait(3);
+        Assertions.assertEquals(3, got1.size());
+        Assertions.assertEquals(2, got2.size());
+        var gotTime = System.currentTimeMillis();
+        Assertions.assertIterableEquals(List.of("hello1", "hello2", "hello3"), got1);
+        Assertions.assertIterableEquals(List.of("hello4", "hello5"), got2);
+        Assertions.assertTrue((gotTime - curTime) >= 1010);
+    }
+
+    @Test
+    void GetAllLimitImmediate() throws InterruptedException {
+        var queue = create(1000);
+
+        var curTime = System.currentTimeMillis();
+        var ex = Executors.newSingleThreadExecutor();
+        ex.submit(() -> {
+            try {
+                Thread.sleep(10);
+                queue.add("hello1");
+                queue.add("hello2");
+                queue.add("hello3");
+                queue.add("hello4");
+                queue.add("hello5");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(1100);
+        var got1 = queue.getAllWait(3);
+        var got2 = queue.getAllWait(3);
+        Assertions.assertEquals(3, got1.size());
+        Assertions.assertEquals(2, got2.size());
+        var gotTime = System.currentTimeMillis();
+        Assertions.assertIterableEquals(List.of("hello1", "hello2", "hello3"), got1);
+        Assertions.assertIterableEquals(List.of("hello4", "hello5"), got2);
+    }
+
+    @Test
+    void readdTest() throws InterruptedException {
+        var queue = create(1000);
+
+        var curTime = System.currentTimeMillis();
+        var ex = Executors.newSingleThreadExecutor();
+        ex.submit(() -> {
+            try {
+                Thread.sleep(10);
+                queue.readd("hello1");
+                queue.readd("hello2");
+                Thread.sleep(800);
+                queue.readd("hello1");
+                queue.readd("hello2");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        var thing = queue.getAllWait(); // Theoretically you can get one...
+        if (thing.size() == 1) thing.add(queue.getAllWait().stream().findFirst().get());
+        var gotTime = System.currentTimeMillis();
+        Assertions.assertIterableEquals(List.of("hello1", "hello2"), thing);
+        Assertions.assertTrue((gotTime - curTime) >= 1810);
+    }
+
+    @Test
+    void interruptTest() throws InterruptedException, ExecutionException, TimeoutException {
+        var queue = create(100000);
+
+        var curTime = System.currentTimeMillis();
+        AtomicBoolean ok = new AtomicBoolean(false);
+        Thread t = new Thread(() -> {
+            Assertions.assertThrows(InterruptedException.class, queue::get);
+            Assertions.assertThrows(InterruptedException.class, queue::getAllWait);
+            Assertions.assertTrue((System.currentTimeMillis() - curTime) < 2000);
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            ok.set(true);
+        });
+
+        t.start();
+
+        Thread.sleep(500);
+        t.interrupt();
+        Thread.sleep(500);
+        t.interrupt();
+
+        Thread.sleep(1500);
+
+        Assertions.assertTrue(ok.get());
+    }
+
+    @Test
+    void setDelayTest() throws InterruptedException, ExecutionException, TimeoutException {
+        DelayedBlockingQueue<String> queue = create(100000);
+
+        var curTime = System.currentTimeMillis();
+        var ex = Executors.newSingleThreadExecutor();
+
+        var future = ex.submit(() -> {
+            Assertions.assertEquals("hello1", queue.get());
+            Assertions.assertTrue((System.currentTimeMillis() - curTime) < 2000);
+            var startTime2 = System.currentTimeMillis();
+            Assertions.assertEquals("hello2", queue.get());
+            Assertions.assertTrue((System.currentTimeMillis() - startTime2) < 200);
+            var startTime3 = System.currentTimeMillis();
+            Assertions.assertEquals("hello3", queue.get());
+            Assertions.assertTrue((System.currentTimeMillis() - startTime3) >= 1000);
+            return null;
+        });
+
+        Thread.sleep(500);
+        queue.add("hello1");
+        queue.add("hello2");
+        Thread.sleep(500);
+        queue.setDelay(0);
+        Thread.sleep(500);
+        queue.setDelay(1000);
+        queue.add("hello3");
+
+        future.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void concurrentDedup() throws Exception {
+        var queue = this.<Integer>create(0);
+        var ex = Executors.newFixedThreadPool(8);
+        var futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(ex.submit(() -> {
+                for (int i = 0; i < 10000; i++)
+                    queue.add(i);
+            }));
+        }
+        for (var f : futures)
+            f.get(10, TimeUnit.SECONDS);
+        futures.clear();
+
+        var got = ConcurrentHashMap.<Integer>newKeySet();
+        var total = new AtomicInteger();
+        for (int t = 0; t < 4; t++) {
+            futures.add(ex.submit(() -> {
+                for (var el : queue.getAll()) {
+                    total.incrementAndGet();
+                    got.add(el);
+                }
+            }));
+        }
+        for (var f : futures)
+            f.get(10, TimeUnit.SECONDS);
+        ex.shutdownNow();
+
+        Assertions.assertEquals(10000, got.size());
+        Assertions.assertEquals(10000, total.get());
+        Assertions.assertNull(queue.tryGet());
+    }
+
+    @Test
+    void concurrentProducersConsumers() throws Exception {
+        var queue = this.<Integer>create(0);
+        var ex = Executors.newFixedThreadPool(8);
+        var producers = new ArrayList<Future<?>>();
+        var consumers = new ArrayList<Future<?>>();
+        var got = ConcurrentHashMap.<Integer>newKeySet();
+        var total = new AtomicInteger();
+        for (int t = 0; t < 4; t++) {
+            int base = t * 10000;
+            producers.add(ex.submit(() -> {
+                for (int i = 0; i < 10000; i++)
+                    queue.add(base + i);
+            }));
+            consumers.add(ex.submit(() -> {
+                while (total.get() < 40000) {
+                    for (var el : queue.getAllWait(100, 100)) {
+                        total.incrementAndGet();
+                        got.add(el);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (var f : producers)
+            f.get(10, TimeUnit.SECONDS);
+        for (var f : consumers)
+            f.get(10, TimeUnit.SECONDS);
+        ex.shutdownNow();
+
+        Assertions.assertEquals(40000, got.size());
+        Assertions.assertEquals(40000, total.get());
+    }
+}
@@ -0,0 +1,8 @@
+package com.usatiuk.utils;
+
+public class ShardedDelayedBlockingQueueTest extends DelayedBlockingQueueTestImpl {
+    @Override
+    protected <T> DelayedBlockingQueue<T> create(long delay) {
+        return new ShardedDelayedBlockingQueue<>(delay, 4);
+    }
+}